@@ -16,11 +16,20 @@
 package org.commonjava.indy.service.httprox;
 
 
+import io.micrometer.core.instrument.Metrics;
 import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
 import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.handler.MITMSSLContexts;
 import org.commonjava.indy.service.httprox.handler.ProxyAcceptHandler;
+import org.commonjava.indy.service.httprox.util.ByteBufferPool;
+import org.commonjava.indy.service.httprox.util.ContentCache;
+import org.commonjava.indy.service.httprox.util.DownloadCoalescer;
+import org.commonjava.indy.service.httprox.util.InFlightLimiter;
+import org.commonjava.indy.service.httprox.util.PinnedThreadMonitor;
 import org.commonjava.indy.service.httprox.util.PortFinder;
+import org.commonjava.indy.service.httprox.util.RetryBudget;
+import org.commonjava.indy.service.httprox.util.TunnelSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xnio.*;
@@ -43,6 +52,24 @@ public class HttpProxy {
     @Inject
     ProxyAcceptHandler acceptHandler;
 
+    @Inject
+    MITMSSLContexts mitmContexts;
+
+    @Inject
+    ContentCache contentCache;
+
+    @Inject
+    DownloadCoalescer downloadCoalescer;
+
+    @Inject
+    RetryBudget retryBudget;
+
+    @Inject
+    InFlightLimiter inFlightLimiter;
+
+    @Inject
+    PinnedThreadMonitor pinnedThreadMonitor;
+
     private AcceptingChannel<StreamConnection> server;
 
 
@@ -59,6 +86,29 @@ public class HttpProxy {
 
         logger.info("Starting HTTProx proxy on: {}:{}", bind, config.getPort());
 
+        ByteBufferPool bufferPool = ByteBufferPool.getInstance();
+        bufferPool.setMaxPooled(config.getBufferPoolMaxIdle());
+        bufferPool.bindTo(Metrics.globalRegistry);
+        retryBudget.bindTo(Metrics.globalRegistry);
+        inFlightLimiter.bindTo(Metrics.globalRegistry);
+
+        if (Boolean.TRUE.equals(config.isContentCacheEnabled())) {
+            contentCache.bindTo(Metrics.globalRegistry);
+        }
+
+        if (Boolean.TRUE.equals(config.isDownloadCoalescingEnabled())) {
+            downloadCoalescer.bindTo(Metrics.globalRegistry);
+        }
+
+        if (Boolean.TRUE.equals(config.isMITMEnabled())) {
+            mitmContexts.bindTo(Metrics.globalRegistry);
+            mitmContexts.prewarm();
+            TunnelSelector.getInstance().bindTo(Metrics.globalRegistry);
+            if (Boolean.TRUE.equals(config.isMitmVirtualThreads())) {
+                pinnedThreadMonitor.start(Metrics.globalRegistry);
+            }
+        }
+
         XnioWorker worker;
         try {
             worker = Xnio.getInstance()
@@ -96,6 +146,7 @@ public class HttpProxy {
     }
 
     public void onStop(@Observes ShutdownEvent ev) {
+        pinnedThreadMonitor.stop();
         if (server != null) {
             try {
                 logger.info("stopping server");
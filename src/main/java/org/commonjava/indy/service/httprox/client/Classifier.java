@@ -22,16 +22,23 @@ import org.apache.commons.io.FilenameUtils;
 import org.commonjava.indy.service.httprox.config.ServiceConfig;
 import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
 import org.commonjava.indy.service.httprox.util.OtelAdapter;
+import org.commonjava.indy.service.httprox.util.RetryBudget;
 import org.commonjava.indy.service.httprox.util.WebClientAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import javax.management.ServiceNotFoundException;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
@@ -45,14 +52,45 @@ public class Classifier
 
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
+    /**
+     * Retired adapters are closed no sooner than this, so a request that picked one up right before the reload still
+     * gets to start its call.
+     */
+    private static final long DEFAULT_RETIRE_GRACE_MILLIS = TimeUnit.SECONDS.toMillis( 10 );
+
+    private long retireGraceMillis = DEFAULT_RETIRE_GRACE_MILLIS;
+
     private final Map<ServiceConfig, WebClientAdapter> clientMap = new ConcurrentHashMap<>();
 
+    private final Queue<WebClientAdapter> retired = new ConcurrentLinkedQueue<>();
+
+    private volatile int generation;
+
+    private ScheduledExecutorService reaper;
+
     @Inject
     ServiceProxyConfig proxyConfiguration;
 
     @Inject
     OtelAdapter otel;
 
+    @Inject
+    RetryBudget retryBudget;
+
+    protected Classifier()
+    {
+    }
+
+    public Classifier( ServiceProxyConfig proxyConfiguration, OtelAdapter otel, RetryBudget retryBudget,
+                       long retireGraceMillis )
+    {
+        this.proxyConfiguration = proxyConfiguration;
+        this.otel = otel;
+        this.retryBudget = retryBudget;
+        this.retireGraceMillis = retireGraceMillis;
+        init();
+    }
+
     public <R> R classifyAnd( String path, HttpServerRequest request,
                               BiFunction<WebClientAdapter, ServiceConfig, R> action ) throws Exception
     {
@@ -96,26 +134,76 @@ public class Classifier
 
     private ServiceConfig getServiceConfig( String path, HttpMethod method )
     {
-        ServiceConfig service = null;
+        return proxyConfiguration.getRoutes().route( path, method.name() );
+    }
+
+    @PostConstruct
+    void init()
+    {
+        generation = proxyConfiguration.getGeneration();
+        reaper = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread t = new Thread( r, "upstream-client-reaper" );
+            t.setDaemon( true );
+            return t;
+        } );
+        reaper.scheduleWithFixedDelay( this::reap, retireGraceMillis, retireGraceMillis, TimeUnit.MILLISECONDS );
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        reaper.shutdownNow();
+    }
 
-        Set<ServiceConfig> services = proxyConfiguration.getServices();
-        if ( services != null )
+    private WebClientAdapter getWebClient( ServiceConfig service ) throws Exception
+    {
+        if ( generation != proxyConfiguration.getGeneration() )
+        {
+            retireStale();
+        }
+        return clientMap.computeIfAbsent( service,
+                sc -> new WebClientAdapter( sc, proxyConfiguration, timeout, otel, retryBudget ) );
+    }
+
+    /**
+     * After a reload, take out the adapters whose service entry is gone or now points somewhere else (host, port,
+     * protocol, pool settings). Timeout and retry changes do not need a new adapter; each one picks those up itself.
+     */
+    private synchronized void retireStale()
+    {
+        int current = proxyConfiguration.getGeneration();
+        if ( generation == current )
         {
-            for ( ServiceConfig sv : services )
+            return;
+        }
+
+        Map<ServiceConfig, ServiceConfig> services = new HashMap<>();
+        proxyConfiguration.getServices().forEach( sv -> services.put( sv, sv ) );
+        clientMap.forEach( ( key, adapter ) -> {
+            ServiceConfig updated = services.get( key );
+            if ( updated == null || !updated.sameUpstream( adapter.getServiceConfig() ) )
             {
-                if ( path.matches( sv.pathPattern ) && ( sv.methods == null || sv.methods.contains( method.name() ) ) )
-                {
-                    service = sv;
-                    break;
-                }
+                adapter.retire();
+                clientMap.remove( key, adapter );
+                retired.add( adapter );
             }
-        }
-        return service;
+        } );
+        generation = current;
     }
 
-    private WebClientAdapter getWebClient( ServiceConfig service ) throws Exception
+    private void reap()
     {
-        return clientMap.computeIfAbsent( service,
-                sc -> new WebClientAdapter( sc, proxyConfiguration, timeout, otel ) );
+        try
+        {
+            if ( generation != proxyConfiguration.getGeneration() )
+            {
+                retireStale();
+            }
+            retired.removeIf( adapter -> adapter.closeIfDrained( retireGraceMillis ) );
+        }
+        catch ( RuntimeException e )
+        {
+            logger.warn( "Failed to close retired upstream clients", e );
+        }
     }
 }
@@ -19,6 +19,7 @@ import io.smallrye.mutiny.Uni;
 import io.vertx.core.http.HttpMethod;
 import org.commonjava.indy.service.httprox.client.Classifier;
 import org.commonjava.indy.service.httprox.util.OtelAdapter;
+import org.commonjava.indy.service.httprox.util.ServiceUnavailableException;
 import org.commonjava.indy.service.httprox.util.UrlUtils;
 import org.commonjava.indy.service.httprox.util.WebClientAdapter;
 import org.slf4j.Logger;
@@ -62,9 +63,15 @@ public class ContentRetrievalService
                 client.get( p ).call(), HttpMethod.GET ) ) );
     }
 
+    /**
+     * Calls the service, turning errors into a 500 response. A call turned away by the service's open circuit breaker
+     * fails with the {@link ServiceUnavailableException} instead, for the caller to answer 503.
+     */
     private Uni<okhttp3.Response> wrapAsyncCall(WebClientAdapter.CallAdapter asyncCall, HttpMethod method )
     {
-        return asyncCall.enqueue().onFailure().recoverWithItem(this::handleProxyException);
+        return asyncCall.enqueue()
+                        .onFailure( t -> !( t instanceof ServiceUnavailableException ) )
+                        .recoverWithItem( this::handleProxyException );
     }
 
     /**
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.client.repository;
+
+import org.eclipse.microprofile.rest.client.ext.ResponseExceptionMapper;
+
+import jakarta.ws.rs.ClientErrorException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.ServerErrorException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Turns error answers of the repository service into exceptions the fault tolerance annotations of
+ * {@link RepositoryService} can tell apart. The default mapper throws a plain {@link WebApplicationException} for any
+ * status, which matches neither skipOn nor abortOn, so a 404 would count as a breaker failure and be retried. Here
+ * 4xx answers become {@link ClientErrorException}s (404 a {@link NotFoundException}, which callers check for) and 5xx
+ * answers {@link ServerErrorException}s.
+ */
+public class RepositoryResponseExceptionMapper
+        implements ResponseExceptionMapper<WebApplicationException>
+{
+    @Override
+    public boolean handles( final int status, final MultivaluedMap<String, Object> headers )
+    {
+        return status >= 400;
+    }
+
+    @Override
+    public WebApplicationException toThrowable( final Response response )
+    {
+        int status = response.getStatus();
+        if ( status == Response.Status.NOT_FOUND.getStatusCode() )
+        {
+            return new NotFoundException( response );
+        }
+        if ( status < 500 )
+        {
+            return new ClientErrorException( response );
+        }
+        if ( status < 600 )
+        {
+            return new ServerErrorException( response );
+        }
+        return new WebApplicationException( response );
+    }
+}
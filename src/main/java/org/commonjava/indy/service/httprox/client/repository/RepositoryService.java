@@ -16,7 +16,9 @@
 package org.commonjava.indy.service.httprox.client.repository;
 
 import org.commonjava.indy.service.httprox.util.CustomClientRequestFilter;
+import org.eclipse.microprofile.faulttolerance.CircuitBreaker;
 import org.eclipse.microprofile.faulttolerance.Retry;
+import org.eclipse.microprofile.faulttolerance.exceptions.CircuitBreakerOpenException;
 import org.eclipse.microprofile.rest.client.annotation.RegisterProvider;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
@@ -26,24 +28,35 @@ import jakarta.ws.rs.core.Response;
 @Path("/api/admin/stores")
 @RegisterRestClient(configKey="repo-service-api")
 @RegisterProvider(CustomClientRequestFilter.class)
+@RegisterProvider(RepositoryResponseExceptionMapper.class)
 public interface RepositoryService
 {
+    /**
+     * How long a tripped circuit breaker fails calls right away before it lets a trial call through. 4xx answers
+     * are the repository service working as it should and neither trip the breakers nor get retried; they arrive as
+     * {@link ClientErrorException}s through {@link RepositoryResponseExceptionMapper}.
+     */
+    long BREAKER_DELAY_MILLIS = 10000;
 
     @HEAD
     @Path("/{packageType}/{type: (hosted|group|remote)}/{name}")
+    @CircuitBreaker ( delay = BREAKER_DELAY_MILLIS, skipOn = ClientErrorException.class )
     Response repoExists(@PathParam("packageType") String packageType, @PathParam("type") String type, @PathParam("name") String name );
 
     @GET
     @Path("/{packageType}/{type: (hosted|group|remote)}/{name}")
-    @Retry ( delay = 3000 )
+    @Retry ( delay = 3000, abortOn = { CircuitBreakerOpenException.class, ClientErrorException.class } )
+    @CircuitBreaker ( delay = BREAKER_DELAY_MILLIS, skipOn = ClientErrorException.class )
     Response getStore(@PathParam("packageType") String packageType, @PathParam("type") String type, @PathParam("name") String name);
 
     @POST
     @Path("/{packageType}/{type: (hosted|group|remote)}")
-    @Retry ( delay = 3000 )
+    @Retry ( delay = 3000, abortOn = { CircuitBreakerOpenException.class, ClientErrorException.class } )
+    @CircuitBreaker ( delay = BREAKER_DELAY_MILLIS, skipOn = ClientErrorException.class )
     Response createStore(@PathParam("packageType") String packageType, @PathParam("type") String type, String store );
 
     @GET
     @Path("/{packageType}/{type: (remote)}/query/byUrl")
+    @CircuitBreaker ( delay = BREAKER_DELAY_MILLIS, skipOn = ClientErrorException.class )
     Response getRemoteByUrl(@PathParam("packageType") String packageType, @PathParam("type") String type, @QueryParam("url") String url );
 }
@@ -17,10 +17,12 @@ package org.commonjava.indy.service.httprox.config;
 
 import io.quarkus.runtime.Startup;
 import org.commonjava.indy.model.core.PathStyle;
+import org.commonjava.indy.service.httprox.model.MITMMode;
 import org.commonjava.indy.service.httprox.model.TrackingType;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import jakarta.enterprise.context.ApplicationScoped;
+import java.util.List;
 import java.util.Optional;
 
 @Startup
@@ -32,6 +34,18 @@ public class ProxyConfiguration
 
     private static final int DEFAULT_MITM_SO_TIMEOUT_MINUTES = 3;
 
+    private static final String DEFAULT_MITM_MODE = MITMMode.ENGINE.name();
+
+    private static final int DEFAULT_MITM_CERT_CACHE_MAX_SIZE = 1000;
+
+    private static final int DEFAULT_MITM_CERT_CACHE_TTL_HOURS = 24;
+
+    private static final int DEFAULT_MITM_CERT_GENERATOR_THREADS = 2;
+
+    private static final String DEFAULT_MITM_CERT_KEY_TYPE = "RSA";
+
+    private static final boolean DEFAULT_MITM_CERT_KEY_SHARED = true;
+
     private static final String DEFAULT_TRACKING_TYPE = TrackingType.SUFFIX.name();
 
     private static final String DEFAULT_PROXY_REALM = "httprox";
@@ -46,6 +60,64 @@ public class ProxyConfiguration
 
     private static final int DEFAULT_EXECUTOR_MAX_QUEUED = 20;
 
+    private static final int DEFAULT_BUFFER_POOL_MAX_IDLE = 512;
+
+    private static final boolean DEFAULT_KEEP_ALIVE_ENABLED = true;
+
+    private static final int DEFAULT_KEEP_ALIVE_IDLE_TIMEOUT_SECONDS = 60;
+
+    private static final int DEFAULT_KEEP_ALIVE_MAX_REQUESTS = 100;
+
+    private static final int DEFAULT_STORE_LOOKUP_NEGATIVE_TTL_SECONDS = 10;
+
+    private static final int DEFAULT_STORE_LOOKUP_MAX_ASYNC = 20;
+
+    private static final int DEFAULT_STORE_LOOKUP_MAX_QUEUED = 200;
+
+    private static final boolean DEFAULT_CONTENT_CACHE_ENABLED = false;
+
+    private static final String DEFAULT_CONTENT_CACHE_DIR =
+            System.getProperty( "java.io.tmpdir" ) + "/httprox-content-cache";
+
+    private static final long DEFAULT_CONTENT_CACHE_MAX_SIZE_MB = 2048;
+
+    private static final List<String> DEFAULT_CONTENT_CACHE_IMMUTABLE_EXTENSIONS = List.of( ".jar", ".tgz", ".pom" );
+
+    private static final boolean DEFAULT_DOWNLOAD_COALESCING_ENABLED = true;
+
+    private static final String DEFAULT_DOWNLOAD_SPOOL_DIR =
+                    System.getProperty( "java.io.tmpdir" ) + "/httprox-download-spool";
+
+    private static final int DEFAULT_DOWNLOAD_SPOOL_MAX_ASYNC = 50;
+
+    private static final int DEFAULT_DOWNLOAD_SPOOL_MAX_QUEUED = 200;
+
+    private static final int DEFAULT_SERVICE_CONFIG_RELOAD_INTERVAL_SECONDS = 30;
+
+    private static final int DEFAULT_LOAD_SHEDDING_MAX_IN_FLIGHT = 0;
+
+    private static final int DEFAULT_LOAD_SHEDDING_RETRY_AFTER_SECONDS = 1;
+
+    private static final int DEFAULT_LOAD_SHEDDING_QUEUE_TIMEOUT_MILLIS = 0;
+
+    private static final boolean DEFAULT_ADAPTIVE_LIMIT_ENABLED = false;
+
+    private static final int DEFAULT_ADAPTIVE_LIMIT_INITIAL = 20;
+
+    private static final int DEFAULT_ADAPTIVE_LIMIT_MIN = 5;
+
+    private static final double DEFAULT_ADAPTIVE_LIMIT_LATENCY_TOLERANCE = 1.5;
+
+    private static final boolean DEFAULT_MITM_VIRTUAL_THREADS = false;
+
+    private static final int DEFAULT_MITM_PINNED_THRESHOLD_MILLIS = 20;
+
+    private static final int DEFAULT_UPSTREAM_READ_MAX_ASYNC = 200;
+
+    private static final int DEFAULT_UPSTREAM_READ_MAX_QUEUED = 1000;
+
+    private static final boolean DEFAULT_UPSTREAM_READ_VIRTUAL_THREADS = false;
+
     @ConfigProperty(name = "proxy.port")
     Optional<Integer> port;
 
@@ -64,6 +136,27 @@ public class ProxyConfiguration
     @ConfigProperty(name = "MITM.so.timeout.minutes")
     public Integer MITMSoTimeoutMinutes;
 
+    @ConfigProperty(name = "MITM.mode")
+    Optional<String> mitmMode;
+
+    @ConfigProperty(name = "MITM.cert.cache.max-size")
+    Optional<Integer> mitmCertCacheMaxSize;
+
+    @ConfigProperty(name = "MITM.cert.cache.ttl-hours")
+    Optional<Integer> mitmCertCacheTtlHours;
+
+    @ConfigProperty(name = "MITM.cert.generator.threads")
+    Optional<Integer> mitmCertGeneratorThreads;
+
+    @ConfigProperty(name = "MITM.cert.key.type")
+    Optional<String> mitmCertKeyType;
+
+    @ConfigProperty(name = "MITM.cert.key.shared")
+    Optional<Boolean> mitmCertKeyShared;
+
+    @ConfigProperty(name = "MITM.cert.prewarm.hosts")
+    Optional<List<String>> mitmCertPrewarmHosts;
+
     @ConfigProperty(name="proxy.secured")
     public Boolean secured;
 
@@ -91,6 +184,90 @@ public class ProxyConfiguration
     @ConfigProperty(name="executor.mitm-transfers.max-queued")
     public Integer mitmMaxQueued;
 
+    @ConfigProperty(name="executor.mitm-transfers.virtual-threads")
+    Optional<Boolean> mitmVirtualThreads;
+
+    @ConfigProperty(name="executor.mitm-transfers.pinned-threshold-ms")
+    Optional<Integer> mitmPinnedThresholdMillis;
+
+    @ConfigProperty(name="executor.store-lookups.max-async")
+    Optional<Integer> storeLookupMaxAsync;
+
+    @ConfigProperty(name="executor.store-lookups.max-queued")
+    Optional<Integer> storeLookupMaxQueued;
+
+    @ConfigProperty(name="proxy.store-lookup.negative-ttl-seconds")
+    Optional<Integer> storeLookupNegativeTtlSeconds;
+
+    @ConfigProperty(name="proxy.content-cache.enabled")
+    Optional<Boolean> contentCacheEnabled;
+
+    @ConfigProperty(name="proxy.content-cache.dir")
+    Optional<String> contentCacheDir;
+
+    @ConfigProperty(name="proxy.content-cache.max-size-mb")
+    Optional<Long> contentCacheMaxSizeMb;
+
+    @ConfigProperty(name="proxy.content-cache.immutable-extensions")
+    Optional<List<String>> contentCacheImmutableExtensions;
+
+    @ConfigProperty(name="proxy.download-coalescing.enabled")
+    Optional<Boolean> downloadCoalescingEnabled;
+
+    @ConfigProperty(name="proxy.download-coalescing.spool-dir")
+    Optional<String> downloadSpoolDir;
+
+    @ConfigProperty(name="executor.download-spools.max-async")
+    Optional<Integer> downloadSpoolMaxAsync;
+
+    @ConfigProperty(name="executor.download-spools.max-queued")
+    Optional<Integer> downloadSpoolMaxQueued;
+
+    @ConfigProperty(name="executor.upstream-reads.max-async")
+    Optional<Integer> upstreamReadMaxAsync;
+
+    @ConfigProperty(name="executor.upstream-reads.max-queued")
+    Optional<Integer> upstreamReadMaxQueued;
+
+    @ConfigProperty(name="executor.upstream-reads.virtual-threads")
+    Optional<Boolean> upstreamReadVirtualThreads;
+
+    @ConfigProperty(name="proxy.service-config.reload-interval-seconds")
+    Optional<Integer> serviceConfigReloadIntervalSeconds;
+
+    @ConfigProperty(name="proxy.load-shedding.max-in-flight")
+    Optional<Integer> loadSheddingMaxInFlight;
+
+    @ConfigProperty(name="proxy.load-shedding.retry-after-seconds")
+    Optional<Integer> loadSheddingRetryAfterSeconds;
+
+    @ConfigProperty(name="proxy.load-shedding.queue-timeout-ms")
+    Optional<Integer> loadSheddingQueueTimeoutMillis;
+
+    @ConfigProperty(name="proxy.load-shedding.adaptive.enabled")
+    Optional<Boolean> adaptiveLimitEnabled;
+
+    @ConfigProperty(name="proxy.load-shedding.adaptive.initial-limit")
+    Optional<Integer> adaptiveLimitInitial;
+
+    @ConfigProperty(name="proxy.load-shedding.adaptive.min-limit")
+    Optional<Integer> adaptiveLimitMin;
+
+    @ConfigProperty(name="proxy.load-shedding.adaptive.latency-tolerance")
+    Optional<Double> adaptiveLimitLatencyTolerance;
+
+    @ConfigProperty(name="proxy.buffer-pool.max-idle")
+    Optional<Integer> bufferPoolMaxIdle;
+
+    @ConfigProperty(name="proxy.keep-alive.enabled")
+    Optional<Boolean> keepAliveEnabled;
+
+    @ConfigProperty(name="proxy.keep-alive.idle-timeout-seconds")
+    Optional<Integer> keepAliveIdleTimeoutSeconds;
+
+    @ConfigProperty(name="proxy.keep-alive.max-requests")
+    Optional<Integer> keepAliveMaxRequests;
+
     public Integer getPort() {
         return port.orElse(8081);
     }
@@ -147,6 +324,76 @@ public class ProxyConfiguration
         this.MITMSoTimeoutMinutes = MITMSoTimeoutMinutes;
     }
 
+    public MITMMode getMITMMode()
+    {
+        return MITMMode.valueOf( mitmMode.orElse( DEFAULT_MITM_MODE ).toUpperCase() );
+    }
+
+    public void setMITMMode( MITMMode mitmMode )
+    {
+        this.mitmMode = Optional.of( mitmMode.name() );
+    }
+
+    public Integer getMITMCertCacheMaxSize()
+    {
+        return mitmCertCacheMaxSize.orElse( DEFAULT_MITM_CERT_CACHE_MAX_SIZE );
+    }
+
+    public void setMITMCertCacheMaxSize( Integer mitmCertCacheMaxSize )
+    {
+        this.mitmCertCacheMaxSize = Optional.of( mitmCertCacheMaxSize );
+    }
+
+    public Integer getMITMCertCacheTtlHours()
+    {
+        return mitmCertCacheTtlHours.orElse( DEFAULT_MITM_CERT_CACHE_TTL_HOURS );
+    }
+
+    public void setMITMCertCacheTtlHours( Integer mitmCertCacheTtlHours )
+    {
+        this.mitmCertCacheTtlHours = Optional.of( mitmCertCacheTtlHours );
+    }
+
+    public Integer getMITMCertGeneratorThreads()
+    {
+        return mitmCertGeneratorThreads.orElse( DEFAULT_MITM_CERT_GENERATOR_THREADS );
+    }
+
+    public void setMITMCertGeneratorThreads( Integer mitmCertGeneratorThreads )
+    {
+        this.mitmCertGeneratorThreads = Optional.of( mitmCertGeneratorThreads );
+    }
+
+    public String getMITMCertKeyType()
+    {
+        return mitmCertKeyType.orElse( DEFAULT_MITM_CERT_KEY_TYPE ).toUpperCase();
+    }
+
+    public void setMITMCertKeyType( String mitmCertKeyType )
+    {
+        this.mitmCertKeyType = Optional.of( mitmCertKeyType );
+    }
+
+    public Boolean isMITMCertKeyShared()
+    {
+        return mitmCertKeyShared.orElse( DEFAULT_MITM_CERT_KEY_SHARED );
+    }
+
+    public void setMITMCertKeyShared( Boolean mitmCertKeyShared )
+    {
+        this.mitmCertKeyShared = Optional.of( mitmCertKeyShared );
+    }
+
+    public List<String> getMITMCertPrewarmHosts()
+    {
+        return mitmCertPrewarmHosts.orElse( List.of() );
+    }
+
+    public void setMITMCertPrewarmHosts( List<String> mitmCertPrewarmHosts )
+    {
+        this.mitmCertPrewarmHosts = Optional.of( mitmCertPrewarmHosts );
+    }
+
     public Boolean getMITMEnabled() {
         return MITMEnabled;
     }
@@ -230,4 +477,228 @@ public class ProxyConfiguration
     public void setMitmMaxQueued(Integer mitmMaxQueued) {
         this.mitmMaxQueued = mitmMaxQueued;
     }
-}
\ No newline at end of file
+
+    public Integer getBufferPoolMaxIdle() {
+        return bufferPoolMaxIdle.orElse(DEFAULT_BUFFER_POOL_MAX_IDLE);
+    }
+
+    public void setBufferPoolMaxIdle(Integer bufferPoolMaxIdle) {
+        this.bufferPoolMaxIdle = Optional.of(bufferPoolMaxIdle);
+    }
+
+    public Boolean isKeepAliveEnabled() {
+        return keepAliveEnabled.orElse(DEFAULT_KEEP_ALIVE_ENABLED);
+    }
+
+    public void setKeepAliveEnabled(Boolean keepAliveEnabled) {
+        this.keepAliveEnabled = Optional.of(keepAliveEnabled);
+    }
+
+    public Integer getKeepAliveIdleTimeoutSeconds() {
+        return keepAliveIdleTimeoutSeconds.orElse(DEFAULT_KEEP_ALIVE_IDLE_TIMEOUT_SECONDS);
+    }
+
+    public void setKeepAliveIdleTimeoutSeconds(Integer keepAliveIdleTimeoutSeconds) {
+        this.keepAliveIdleTimeoutSeconds = Optional.of(keepAliveIdleTimeoutSeconds);
+    }
+
+    public Integer getKeepAliveMaxRequests() {
+        return keepAliveMaxRequests.orElse(DEFAULT_KEEP_ALIVE_MAX_REQUESTS);
+    }
+
+    public void setKeepAliveMaxRequests(Integer keepAliveMaxRequests) {
+        this.keepAliveMaxRequests = Optional.of(keepAliveMaxRequests);
+    }
+
+    public Integer getStoreLookupMaxAsync() {
+        return storeLookupMaxAsync.orElse(DEFAULT_STORE_LOOKUP_MAX_ASYNC);
+    }
+
+    public void setStoreLookupMaxAsync(Integer storeLookupMaxAsync) {
+        this.storeLookupMaxAsync = Optional.of(storeLookupMaxAsync);
+    }
+
+    public Integer getStoreLookupMaxQueued() {
+        return storeLookupMaxQueued.orElse(DEFAULT_STORE_LOOKUP_MAX_QUEUED);
+    }
+
+    public void setStoreLookupMaxQueued(Integer storeLookupMaxQueued) {
+        this.storeLookupMaxQueued = Optional.of(storeLookupMaxQueued);
+    }
+
+    public Integer getStoreLookupNegativeTtlSeconds() {
+        return storeLookupNegativeTtlSeconds.orElse(DEFAULT_STORE_LOOKUP_NEGATIVE_TTL_SECONDS);
+    }
+
+    public void setStoreLookupNegativeTtlSeconds(Integer storeLookupNegativeTtlSeconds) {
+        this.storeLookupNegativeTtlSeconds = Optional.of(storeLookupNegativeTtlSeconds);
+    }
+
+    public Boolean isContentCacheEnabled() {
+        return contentCacheEnabled.orElse(DEFAULT_CONTENT_CACHE_ENABLED);
+    }
+
+    public void setContentCacheEnabled(Boolean contentCacheEnabled) {
+        this.contentCacheEnabled = Optional.of(contentCacheEnabled);
+    }
+
+    public String getContentCacheDir() {
+        return contentCacheDir.orElse(DEFAULT_CONTENT_CACHE_DIR);
+    }
+
+    public void setContentCacheDir(String contentCacheDir) {
+        this.contentCacheDir = Optional.of(contentCacheDir);
+    }
+
+    public Long getContentCacheMaxSizeMb() {
+        return contentCacheMaxSizeMb.orElse(DEFAULT_CONTENT_CACHE_MAX_SIZE_MB);
+    }
+
+    public void setContentCacheMaxSizeMb(Long contentCacheMaxSizeMb) {
+        this.contentCacheMaxSizeMb = Optional.of(contentCacheMaxSizeMb);
+    }
+
+    public List<String> getContentCacheImmutableExtensions() {
+        return contentCacheImmutableExtensions.orElse(DEFAULT_CONTENT_CACHE_IMMUTABLE_EXTENSIONS);
+    }
+
+    public void setContentCacheImmutableExtensions(List<String> contentCacheImmutableExtensions) {
+        this.contentCacheImmutableExtensions = Optional.of(contentCacheImmutableExtensions);
+    }
+
+    public Boolean isDownloadCoalescingEnabled() {
+        return downloadCoalescingEnabled.orElse(DEFAULT_DOWNLOAD_COALESCING_ENABLED);
+    }
+
+    public void setDownloadCoalescingEnabled(Boolean downloadCoalescingEnabled) {
+        this.downloadCoalescingEnabled = Optional.of(downloadCoalescingEnabled);
+    }
+
+    public String getDownloadSpoolDir() {
+        return downloadSpoolDir.orElse(DEFAULT_DOWNLOAD_SPOOL_DIR);
+    }
+
+    public void setDownloadSpoolDir(String downloadSpoolDir) {
+        this.downloadSpoolDir = Optional.of(downloadSpoolDir);
+    }
+
+    public Integer getDownloadSpoolMaxAsync() {
+        return downloadSpoolMaxAsync.orElse(DEFAULT_DOWNLOAD_SPOOL_MAX_ASYNC);
+    }
+
+    public void setDownloadSpoolMaxAsync(Integer downloadSpoolMaxAsync) {
+        this.downloadSpoolMaxAsync = Optional.of(downloadSpoolMaxAsync);
+    }
+
+    public Integer getDownloadSpoolMaxQueued() {
+        return downloadSpoolMaxQueued.orElse(DEFAULT_DOWNLOAD_SPOOL_MAX_QUEUED);
+    }
+
+    public void setDownloadSpoolMaxQueued(Integer downloadSpoolMaxQueued) {
+        this.downloadSpoolMaxQueued = Optional.of(downloadSpoolMaxQueued);
+    }
+
+    public Integer getServiceConfigReloadIntervalSeconds() {
+        return serviceConfigReloadIntervalSeconds.orElse(DEFAULT_SERVICE_CONFIG_RELOAD_INTERVAL_SECONDS);
+    }
+
+    public void setServiceConfigReloadIntervalSeconds(Integer serviceConfigReloadIntervalSeconds) {
+        this.serviceConfigReloadIntervalSeconds = Optional.of(serviceConfigReloadIntervalSeconds);
+    }
+
+    public Integer getLoadSheddingMaxInFlight() {
+        return loadSheddingMaxInFlight.orElse(DEFAULT_LOAD_SHEDDING_MAX_IN_FLIGHT);
+    }
+
+    public void setLoadSheddingMaxInFlight(Integer loadSheddingMaxInFlight) {
+        this.loadSheddingMaxInFlight = Optional.of(loadSheddingMaxInFlight);
+    }
+
+    public Integer getLoadSheddingRetryAfterSeconds() {
+        return loadSheddingRetryAfterSeconds.orElse(DEFAULT_LOAD_SHEDDING_RETRY_AFTER_SECONDS);
+    }
+
+    public void setLoadSheddingRetryAfterSeconds(Integer loadSheddingRetryAfterSeconds) {
+        this.loadSheddingRetryAfterSeconds = Optional.of(loadSheddingRetryAfterSeconds);
+    }
+
+    public Integer getLoadSheddingQueueTimeoutMillis() {
+        return loadSheddingQueueTimeoutMillis.orElse(DEFAULT_LOAD_SHEDDING_QUEUE_TIMEOUT_MILLIS);
+    }
+
+    public void setLoadSheddingQueueTimeoutMillis(Integer loadSheddingQueueTimeoutMillis) {
+        this.loadSheddingQueueTimeoutMillis = Optional.of(loadSheddingQueueTimeoutMillis);
+    }
+
+    public Boolean isAdaptiveLimitEnabled() {
+        return adaptiveLimitEnabled.orElse(DEFAULT_ADAPTIVE_LIMIT_ENABLED);
+    }
+
+    public void setAdaptiveLimitEnabled(Boolean adaptiveLimitEnabled) {
+        this.adaptiveLimitEnabled = Optional.of(adaptiveLimitEnabled);
+    }
+
+    public Integer getAdaptiveLimitInitial() {
+        return adaptiveLimitInitial.orElse(DEFAULT_ADAPTIVE_LIMIT_INITIAL);
+    }
+
+    public void setAdaptiveLimitInitial(Integer adaptiveLimitInitial) {
+        this.adaptiveLimitInitial = Optional.of(adaptiveLimitInitial);
+    }
+
+    public Integer getAdaptiveLimitMin() {
+        return adaptiveLimitMin.orElse(DEFAULT_ADAPTIVE_LIMIT_MIN);
+    }
+
+    public void setAdaptiveLimitMin(Integer adaptiveLimitMin) {
+        this.adaptiveLimitMin = Optional.of(adaptiveLimitMin);
+    }
+
+    public Double getAdaptiveLimitLatencyTolerance() {
+        return adaptiveLimitLatencyTolerance.orElse(DEFAULT_ADAPTIVE_LIMIT_LATENCY_TOLERANCE);
+    }
+
+    public void setAdaptiveLimitLatencyTolerance(Double adaptiveLimitLatencyTolerance) {
+        this.adaptiveLimitLatencyTolerance = Optional.of(adaptiveLimitLatencyTolerance);
+    }
+
+    public Boolean isMitmVirtualThreads() {
+        return mitmVirtualThreads.orElse(DEFAULT_MITM_VIRTUAL_THREADS);
+    }
+
+    public void setMitmVirtualThreads(Boolean mitmVirtualThreads) {
+        this.mitmVirtualThreads = Optional.of(mitmVirtualThreads);
+    }
+
+    public Integer getMitmPinnedThresholdMillis() {
+        return mitmPinnedThresholdMillis.orElse(DEFAULT_MITM_PINNED_THRESHOLD_MILLIS);
+    }
+
+    public void setMitmPinnedThresholdMillis(Integer mitmPinnedThresholdMillis) {
+        this.mitmPinnedThresholdMillis = Optional.of(mitmPinnedThresholdMillis);
+    }
+
+    public Integer getUpstreamReadMaxAsync() {
+        return upstreamReadMaxAsync.orElse(DEFAULT_UPSTREAM_READ_MAX_ASYNC);
+    }
+
+    public void setUpstreamReadMaxAsync(Integer upstreamReadMaxAsync) {
+        this.upstreamReadMaxAsync = Optional.of(upstreamReadMaxAsync);
+    }
+
+    public Integer getUpstreamReadMaxQueued() {
+        return upstreamReadMaxQueued.orElse(DEFAULT_UPSTREAM_READ_MAX_QUEUED);
+    }
+
+    public void setUpstreamReadMaxQueued(Integer upstreamReadMaxQueued) {
+        this.upstreamReadMaxQueued = Optional.of(upstreamReadMaxQueued);
+    }
+
+    public Boolean isUpstreamReadVirtualThreads() {
+        return upstreamReadVirtualThreads.orElse(DEFAULT_UPSTREAM_READ_VIRTUAL_THREADS);
+    }
+
+    public void setUpstreamReadVirtualThreads(Boolean upstreamReadVirtualThreads) {
+        this.upstreamReadVirtualThreads = Optional.of(upstreamReadVirtualThreads);
+    }
+}
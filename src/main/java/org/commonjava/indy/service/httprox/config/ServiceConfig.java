@@ -17,6 +17,7 @@ package org.commonjava.indy.service.httprox.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.List;
 import java.util.Objects;
 
 public class ServiceConfig
@@ -32,6 +33,58 @@ public class ServiceConfig
     @JsonProperty( "path-pattern" )
     public String pathPattern;
 
+    /**
+     * Upstream protocol: 'http/1.1' (default), 'h2' (HTTP/2 negotiated over TLS, else HTTP/1.1) or 'h2c' (cleartext
+     * HTTP/2 with prior knowledge).
+     */
+    public String protocol;
+
+    @JsonProperty( "pool-max-idle" )
+    public Integer poolMaxIdle;
+
+    /**
+     * How long an idle pooled connection is kept, e.g. '5m'.
+     */
+    @JsonProperty( "pool-keep-alive" )
+    public String poolKeepAlive;
+
+    @JsonProperty( "max-requests" )
+    public Integer maxRequests;
+
+    @JsonProperty( "max-requests-per-host" )
+    public Integer maxRequestsPerHost;
+
+    /**
+     * Replicas serving this entry, as 'host:port'. When set, calls are spread over them and host and port are not used.
+     */
+    public List<String> endpoints;
+
+    /**
+     * How an endpoint is picked for each attempt: 'round-robin' (default), 'least-outstanding' or 'ewma' (lowest
+     * recent latency, weighted by the calls it already has).
+     */
+    @JsonProperty( "load-balancer" )
+    public String loadBalancer;
+
+    /**
+     * Path probed on every endpoint, e.g. '/q/health/ready'. Endpoints failing it are skipped until it passes again.
+     */
+    @JsonProperty( "health-check-path" )
+    public String healthCheckPath;
+
+    @JsonProperty( "health-check-interval" )
+    public String healthCheckInterval;
+
+    /**
+     * Consecutive failed attempts (connect errors, 5xx) after which an endpoint is ejected for 'eject-for', longer
+     * each time it is ejected again without a success in between.
+     */
+    @JsonProperty( "eject-after-failures" )
+    public Integer ejectAfterFailures;
+
+    @JsonProperty( "eject-for" )
+    public String ejectFor;
+
     @Override
     public boolean equals( Object o )
     {
@@ -53,7 +106,27 @@ public class ServiceConfig
     public String toString()
     {
         return "ServiceConfig{" + "host='" + host + '\'' + ", port=" + port + ", ssl=" + ssl + ", methods='" + methods
-                + '\'' + ", pathPattern='" + pathPattern + '\'' + '}';
+                + '\'' + ", pathPattern='" + pathPattern + '\'' + ", protocol='" + protocol + '\'' + ", poolMaxIdle="
+                + poolMaxIdle + ", poolKeepAlive='" + poolKeepAlive + '\'' + ", maxRequests=" + maxRequests
+                + ", maxRequestsPerHost=" + maxRequestsPerHost + ", endpoints=" + endpoints + ", loadBalancer='"
+                + loadBalancer + '\'' + ", healthCheckPath='" + healthCheckPath + '\'' + ", healthCheckInterval='"
+                + healthCheckInterval + '\'' + ", ejectAfterFailures=" + ejectAfterFailures + ", ejectFor='" + ejectFor
+                + '\'' + '}';
+    }
+
+    /**
+     * Whether a client built for the other entry would talk to the same upstream the same way. {@link #equals(Object)}
+     * only covers the route (methods and path-pattern).
+     */
+    public boolean sameUpstream( ServiceConfig o )
+    {
+        return equals( o ) && port == o.port && ssl == o.ssl && Objects.equals( host, o.host ) && Objects.equals(
+                protocol, o.protocol ) && Objects.equals( poolMaxIdle, o.poolMaxIdle ) && Objects.equals(
+                poolKeepAlive, o.poolKeepAlive ) && Objects.equals( maxRequests, o.maxRequests ) && Objects.equals(
+                maxRequestsPerHost, o.maxRequestsPerHost ) && Objects.equals( endpoints, o.endpoints ) && Objects.equals(
+                loadBalancer, o.loadBalancer ) && Objects.equals( healthCheckPath, o.healthCheckPath ) && Objects.equals(
+                healthCheckInterval, o.healthCheckInterval ) && Objects.equals( ejectAfterFailures, o.ejectAfterFailures )
+                && Objects.equals( ejectFor, o.ejectFor );
     }
 
     void normalize()
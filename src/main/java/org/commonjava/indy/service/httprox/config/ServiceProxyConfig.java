@@ -16,6 +16,7 @@
 package org.commonjava.indy.service.httprox.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import io.quarkus.runtime.Startup;
 import io.vertx.core.json.JsonObject;
 import org.apache.commons.io.IOUtils;
@@ -24,15 +25,20 @@ import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -45,7 +51,7 @@ public class ServiceProxyConfig
     public static final String USER_DIR = System.getProperty( "user.dir" ); // where the JVM was invoked
 
     @JsonProperty( "read-timeout" )
-    private String readTimeout;
+    private volatile String readTimeout;
 
     public String getReadTimeout()
     {
@@ -54,23 +60,62 @@ public class ServiceProxyConfig
 
     private volatile Retry retry;
 
-    private Set<ServiceConfig> services = Collections.synchronizedSet( new HashSet<>() );
+    @JsonProperty( "circuit-breaker" )
+    private volatile CircuitBreaker circuitBreaker;
 
+    private volatile int generation;
+
+    @JsonDeserialize( as = LinkedHashSet.class ) // keep the file order, it decides which route wins
+    private volatile Set<ServiceConfig> services = Collections.emptySet();
+
+    private volatile ServiceRoutes routes = ServiceRoutes.EMPTY;
+
+    @Inject
+    ProxyConfiguration config;
+
+    private ScheduledExecutorService watcher;
+
+    private volatile String appliedStamp;
+
+    /**
+     * The services of the last applied config file, an unmodifiable set that is replaced, never changed, on reload.
+     */
     public Set<ServiceConfig> getServices()
     {
         return services;
     }
 
+    /**
+     * Routing table over {@link #getServices()}, rebuilt and swapped in whole each time a config file is applied.
+     */
+    public ServiceRoutes getRoutes()
+    {
+        return routes;
+    }
+
     public Retry getRetry()
     {
         return retry;
     }
 
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    /**
+     * Bumped every time a config file has been applied, so state derived from these settings can tell it is stale.
+     */
+    public int getGeneration()
+    {
+        return generation;
+    }
+
     @Override
     public String toString()
     {
-        return "ProxyConfiguration{" + "readTimeout='" + readTimeout + '\'' + ", retry=" + retry + ", services="
-                + services + '}';
+        return "ProxyConfiguration{" + "readTimeout='" + readTimeout + '\'' + ", retry=" + retry + ", circuitBreaker="
+                + circuitBreaker + ", services=" + services + '}';
     }
 
     @PostConstruct
@@ -78,6 +123,52 @@ public class ServiceProxyConfig
     {
         load();
         logger.info( "Proxy config, {}", this );
+
+        int interval = config.getServiceConfigReloadIntervalSeconds();
+        if ( interval > 0 )
+        {
+            watcher = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread( r, "service-proxy-config-watcher" );
+                t.setDaemon( true );
+                return t;
+            } );
+            watcher.scheduleWithFixedDelay( this::reloadIfChanged, interval, interval, TimeUnit.SECONDS );
+        }
+    }
+
+    @PreDestroy
+    void stop()
+    {
+        if ( watcher != null )
+        {
+            watcher.shutdownNow();
+        }
+    }
+
+    /**
+     * Load the config file again if its modification time or size changed since it was last applied. A mounted
+     * ConfigMap is swapped through a symlink, which File follows.
+     */
+    public void reloadIfChanged()
+    {
+        File file = new File( USER_DIR, "config/" + PROXY_YAML );
+        if ( file.exists() && !stamp( file ).equals( appliedStamp ) )
+        {
+            try
+            {
+                load();
+            }
+            catch ( RuntimeException e )
+            {
+                // a broken file must not stop the watcher; the previous settings stay in effect
+                logger.error( "Reload failed, keeping the current service_proxy config", e );
+            }
+        }
+    }
+
+    private static String stamp( File file )
+    {
+        return file.lastModified() + ":" + file.length();
     }
 
     private static final String PROXY_YAML = "application.yaml";
@@ -85,12 +176,14 @@ public class ServiceProxyConfig
     /**
      * Load proxy config from '${user.dir}/config/application.yaml'. If not found, load from default classpath resource.
      */
-    public void load()
+    public synchronized void load()
     {
         File file = new File( USER_DIR, "config/" + PROXY_YAML );
         if ( file.exists() )
         {
             logger.info( "Load proxy config from file, {}", file );
+            // taken before reading, so a write racing with the read is picked up by the next check
+            String stamp = stamp( file );
             try(FileInputStream fis = new FileInputStream( file ))
             {
                 doLoad( fis );
@@ -100,6 +193,8 @@ public class ServiceProxyConfig
                 logger.error( "Load failed", e );
                 return;
             }
+            // only once applied, so a file that failed to load is tried again by the next check
+            appliedStamp = stamp;
         }
         else
         {
@@ -107,40 +202,34 @@ public class ServiceProxyConfig
         }
     }
 
-    private void doLoad( InputStream res )
+    private void doLoad( InputStream res ) throws IOException
     {
-        try
-        {
-            String str = IOUtils.toString( res, UTF_8 );
+        String str = IOUtils.toString( res, UTF_8 );
 
-            ServiceProxyConfig parsed = parseConfig( str );
-            logger.info( "Loaded: {}", parsed );
+        ServiceProxyConfig parsed = parseConfig( str );
+        logger.info( "Loaded: {}", parsed );
 
-            if ( parsed.readTimeout != null )
-            {
-                this.readTimeout = parsed.readTimeout;
-            }
+        if ( parsed.readTimeout != null )
+        {
+            this.readTimeout = parsed.readTimeout;
+        }
 
-            this.retry = parsed.retry;
+        this.retry = parsed.retry;
+        this.circuitBreaker = parsed.circuitBreaker;
 
-            if ( parsed.services != null )
-            {
-                parsed.services.forEach( sv -> {
-                    overrideIfPresent( sv );
-                } );
-            }
-
-        }
-        catch ( IOException e )
+        if ( parsed.services != null )
         {
-            logger.error( "Load failed", e );
+            // the file is the whole list: services it no longer has are dropped
+            Set<ServiceConfig> updated = new LinkedHashSet<>();
+            parsed.services.forEach( sv -> {
+                updated.remove( sv ); // remove first so a later entry replaces an earlier one
+                updated.add( sv );
+            } );
+            this.services = Collections.unmodifiableSet( updated );
+            this.routes = ServiceRoutes.build( updated );
         }
-    }
 
-    private void overrideIfPresent( ServiceConfig sv )
-    {
-        this.services.remove( sv ); // remove first so it can replace the old one
-        this.services.add( sv );
+        generation++;
     }
 
     private ServiceProxyConfig parseConfig( String str )
@@ -162,12 +251,46 @@ public class ServiceProxyConfig
     {
         public int count;
 
-        public long interval; // in millis
+        public long interval; // in millis, the base of the exponential backoff
+
+        @JsonProperty( "max-interval" )
+        public Long maxInterval; // in millis
+
+        @JsonProperty( "budget-percent" )
+        public Integer budgetPercent;
+
+        @JsonProperty( "budget-min-per-second" )
+        public Integer budgetMinPerSecond;
+
+        @Override
+        public String toString()
+        {
+            return "Retry{" + "count=" + count + ", interval=" + interval + ", maxInterval=" + maxInterval
+                    + ", budgetPercent=" + budgetPercent + ", budgetMinPerSecond=" + budgetMinPerSecond + '}';
+        }
+
+    }
+
+    public static class CircuitBreaker
+    {
+        public Boolean enabled;
+
+        @JsonProperty( "request-volume" )
+        public Integer requestVolume; // calls in the rolling window the failure ratio is taken over
+
+        @JsonProperty( "failure-ratio" )
+        public Double failureRatio;
+
+        public String delay; // how long it stays open, e.g. 10s
+
+        @JsonProperty( "success-threshold" )
+        public Integer successThreshold; // trial calls that have to succeed to close it again
 
         @Override
         public String toString()
         {
-            return "Retry{" + "count=" + count + ", interval=" + interval + '}';
+            return "CircuitBreaker{" + "enabled=" + enabled + ", requestVolume=" + requestVolume + ", failureRatio="
+                    + failureRatio + ", delay='" + delay + '\'' + ", successThreshold=" + successThreshold + '}';
         }
 
     }
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable routing table over the configured services. Path patterns are compiled once, and each route is filed in a
+ * trie under the literal prefix its pattern starts with, so a lookup only runs the regexes of routes whose prefix the
+ * path actually has. As before, the first service (in config order) whose pattern matches the whole path and whose
+ * methods allow the request wins.
+ */
+public final class ServiceRoutes
+{
+    private static final Logger logger = LoggerFactory.getLogger( ServiceRoutes.class );
+
+    public static final ServiceRoutes EMPTY = new ServiceRoutes( new Node(), 0 );
+
+    private static final String METACHARS = "\\.[]{}()*+?^$|";
+
+    private static final Pattern METHOD_SEPARATORS = Pattern.compile( "[\\s,|]+" );
+
+    private final Node root;
+
+    private final int size;
+
+    private ServiceRoutes( Node root, int size )
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Builds the table, ranking the services in iteration order. A service whose path pattern does not compile is
+     * logged and left out.
+     */
+    public static ServiceRoutes build( Collection<ServiceConfig> services )
+    {
+        Node root = new Node();
+        int order = 0;
+        for ( ServiceConfig sv : services )
+        {
+            Pattern pattern;
+            try
+            {
+                pattern = Pattern.compile( sv.pathPattern );
+            }
+            catch ( PatternSyntaxException | NullPointerException e )
+            {
+                logger.error( "Skip service with invalid path-pattern, {}", sv, e );
+                continue;
+            }
+
+            String prefix = literalPrefix( sv.pathPattern );
+            Node node = root;
+            for ( int i = 0; i < prefix.length(); i++ )
+            {
+                node = node.children.computeIfAbsent( prefix.charAt( i ), c -> new Node() );
+            }
+            node.routes.add( new Route( order++, sv, pattern, parseMethods( sv.methods ) ) );
+        }
+        return new ServiceRoutes( root, order );
+    }
+
+    public ServiceConfig route( String path, String method )
+    {
+        Route best = null;
+        Node node = root;
+        int i = 0;
+        while ( node != null )
+        {
+            for ( Route route : node.routes )
+            {
+                if ( ( best == null || route.order < best.order ) && route.matches( path, method ) )
+                {
+                    best = route;
+                }
+            }
+            node = i < path.length() ? node.children.get( path.charAt( i++ ) ) : null;
+        }
+        return best == null ? null : best.service;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * The text every match of the given regex has to start with: the leading run of literal characters, stopping at
+     * the first construct that is not one, and dropping the last literal when a quantifier makes it optional. Patterns
+     * with alternation get no prefix.
+     */
+    static String literalPrefix( String regex )
+    {
+        if ( regex.indexOf( '|' ) >= 0 )
+        {
+            return "";
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith( "^" ) ? 1 : 0;
+        while ( i < regex.length() )
+        {
+            char c = regex.charAt( i );
+            int next = i + 1;
+            if ( c == '\\' )
+            {
+                // escaped punctuation is a literal, anything else (\d, \Q, \p...) ends the prefix
+                if ( next >= regex.length() || Character.isLetterOrDigit( regex.charAt( next ) ) )
+                {
+                    break;
+                }
+                c = regex.charAt( next++ );
+            }
+            else if ( METACHARS.indexOf( c ) >= 0 )
+            {
+                break;
+            }
+
+            if ( next < regex.length() && "?*{".indexOf( regex.charAt( next ) ) >= 0 )
+            {
+                break;
+            }
+            prefix.append( c );
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static Set<String> parseMethods( String methods )
+    {
+        if ( methods == null )
+        {
+            return null;
+        }
+
+        Set<String> ret = new HashSet<>();
+        for ( String m : METHOD_SEPARATORS.split( methods.trim() ) )
+        {
+            if ( !m.isEmpty() )
+            {
+                ret.add( m.toUpperCase() );
+            }
+        }
+        return Collections.unmodifiableSet( ret );
+    }
+
+    private static final class Node
+    {
+        private final Map<Character, Node> children = new HashMap<>();
+
+        private final List<Route> routes = new ArrayList<>( 1 );
+    }
+
+    private static final class Route
+    {
+        private final int order;
+
+        private final ServiceConfig service;
+
+        private final Pattern pattern;
+
+        private final Set<String> methods;
+
+        private Route( int order, ServiceConfig service, Pattern pattern, Set<String> methods )
+        {
+            this.order = order;
+            this.service = service;
+            this.pattern = pattern;
+            this.methods = methods;
+        }
+
+        private boolean matches( String path, String method )
+        {
+            return ( methods == null || methods.contains( method ) ) && pattern.matcher( path ).matches();
+        }
+    }
+}
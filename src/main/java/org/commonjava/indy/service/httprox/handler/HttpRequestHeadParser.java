@@ -0,0 +1,438 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.handler;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.message.BasicHttpRequest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental, byte-level parser for an HTTP/1.x request head.
+ *
+ * The parser scans the bytes of a buffer for line ends and remembers where it stopped, so each call to
+ * {@link #parse(ByteBuffer, int)} only looks at bytes that arrived since the previous call. The request line and the
+ * header fields are recorded as absolute offsets into the scanned buffer; Strings are only created when a caller asks
+ * for them (e.g., {@link #toHttpRequest(ByteBuffer)}).
+ *
+ * The head is expected to start at index 0 of the buffer and to stay in place until it is materialized or the parser
+ * is {@link #reset()}.
+ */
+public final class HttpRequestHeadParser
+{
+    private static final byte CR = '\r';
+
+    private static final byte LF = '\n';
+
+    private static final byte SP = ' ';
+
+    private static final byte HT = '\t';
+
+    private static final byte COLON = ':';
+
+    private static final int INITIAL_HEADER_SLOTS = 16;
+
+    public static final int MAX_HEADERS = 256;
+
+    private int scanPos;
+
+    private int lineStart;
+
+    private int lineCount;
+
+    private boolean done;
+
+    private int headEnd = -1;
+
+    private int methodStart, methodEnd, uriStart, uriEnd, versionStart, versionEnd;
+
+    private int headerCount;
+
+    // per header: nameStart, nameEnd, valueStart, valueEnd
+    private int[] headers = new int[INITIAL_HEADER_SLOTS * 4];
+
+    /**
+     * Continue scanning the buffer up to (exclusive) the given absolute index.
+     *
+     * @return true once the empty line terminating the head has been seen
+     */
+    public boolean parse( final ByteBuffer buf, final int end )
+            throws ProtocolException
+    {
+        if ( done )
+        {
+            return true;
+        }
+
+        for ( int i = scanPos; i < end; i++ )
+        {
+            if ( buf.get( i ) != LF )
+            {
+                continue;
+            }
+
+            // tolerate bare LF line endings, strip CR otherwise
+            int lineEnd = i > lineStart && buf.get( i - 1 ) == CR ? i - 1 : i;
+            onLine( buf, lineStart, lineEnd );
+            lineStart = i + 1;
+
+            if ( done )
+            {
+                headEnd = i + 1;
+                scanPos = headEnd;
+                return true;
+            }
+        }
+
+        scanPos = end;
+        return false;
+    }
+
+    private void onLine( final ByteBuffer buf, final int start, final int end )
+            throws ProtocolException
+    {
+        if ( lineCount == 0 && start == end )
+        {
+            // RFC 7230, 3.5: ignore at least one empty line received prior to the request-line
+            return;
+        }
+
+        lineCount++;
+
+        if ( lineCount == 1 )
+        {
+            onRequestLine( buf, start, end );
+        }
+        else if ( start == end )
+        {
+            done = true;
+        }
+        else
+        {
+            onHeaderLine( buf, start, end );
+        }
+    }
+
+    private void onRequestLine( final ByteBuffer buf, final int start, final int end )
+            throws ProtocolException
+    {
+        methodStart = start;
+        methodEnd = indexOf( buf, SP, start, end );
+        if ( methodEnd <= methodStart )
+        {
+            throw new ProtocolException( "Invalid request line: " + ascii( buf, start, end ) );
+        }
+
+        uriStart = skipSpaces( buf, methodEnd, end );
+        uriEnd = indexOf( buf, SP, uriStart, end );
+        if ( uriEnd <= uriStart )
+        {
+            throw new ProtocolException( "Invalid request line: " + ascii( buf, start, end ) );
+        }
+
+        versionStart = skipSpaces( buf, uriEnd, end );
+        versionEnd = end;
+        while ( versionEnd > versionStart && isSpace( buf.get( versionEnd - 1 ) ) )
+        {
+            versionEnd--;
+        }
+
+        if ( versionEnd - versionStart < 8 || !regionEqualsIgnoreCase( buf, versionStart, versionStart + 5, "HTTP/" ) )
+        {
+            throw new ProtocolException( "Invalid protocol version: " + ascii( buf, start, end ) );
+        }
+    }
+
+    private void onHeaderLine( final ByteBuffer buf, final int start, final int end )
+            throws ProtocolException
+    {
+        if ( isSpace( buf.get( start ) ) )
+        {
+            // obs-fold is deprecated; a proxy may reject it (RFC 7230, 3.2.4)
+            throw new ProtocolException( "Folded header lines are not supported: " + ascii( buf, start, end ) );
+        }
+
+        int colon = indexOf( buf, COLON, start, end );
+        if ( colon <= start )
+        {
+            throw new ProtocolException( "Invalid header: " + ascii( buf, start, end ) );
+        }
+
+        int nameEnd = colon;
+        while ( nameEnd > start && isSpace( buf.get( nameEnd - 1 ) ) )
+        {
+            nameEnd--;
+        }
+
+        int valueStart = skipSpaces( buf, colon + 1, end );
+        int valueEnd = end;
+        while ( valueEnd > valueStart && isSpace( buf.get( valueEnd - 1 ) ) )
+        {
+            valueEnd--;
+        }
+
+        if ( headerCount == MAX_HEADERS )
+        {
+            throw new ProtocolException( "Maximum header count exceeded: " + MAX_HEADERS );
+        }
+
+        int slot = headerCount * 4;
+        if ( slot + 4 > headers.length )
+        {
+            headers = Arrays.copyOf( headers, headers.length * 2 );
+        }
+
+        headers[slot] = start;
+        headers[slot + 1] = nameEnd;
+        headers[slot + 2] = valueStart;
+        headers[slot + 3] = valueEnd;
+        headerCount++;
+    }
+
+    /**
+     * Prepare the parser for the next request head. Offsets recorded so far become invalid.
+     */
+    public void reset()
+    {
+        scanPos = 0;
+        lineStart = 0;
+        lineCount = 0;
+        done = false;
+        headEnd = -1;
+        headerCount = 0;
+        methodStart = methodEnd = uriStart = uriEnd = versionStart = versionEnd = 0;
+    }
+
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * @return absolute index of the first byte after the head terminator, or -1 while the head is incomplete
+     */
+    public int getHeadEnd()
+    {
+        return headEnd;
+    }
+
+    public int getMethodStart()
+    {
+        return methodStart;
+    }
+
+    public int getMethodEnd()
+    {
+        return methodEnd;
+    }
+
+    public int getUriStart()
+    {
+        return uriStart;
+    }
+
+    public int getUriEnd()
+    {
+        return uriEnd;
+    }
+
+    public int getVersionStart()
+    {
+        return versionStart;
+    }
+
+    public int getVersionEnd()
+    {
+        return versionEnd;
+    }
+
+    public int getHeaderCount()
+    {
+        return headerCount;
+    }
+
+    public int getHeaderNameStart( final int index )
+    {
+        return headers[index * 4];
+    }
+
+    public int getHeaderNameEnd( final int index )
+    {
+        return headers[index * 4 + 1];
+    }
+
+    public int getHeaderValueStart( final int index )
+    {
+        return headers[index * 4 + 2];
+    }
+
+    public int getHeaderValueEnd( final int index )
+    {
+        return headers[index * 4 + 3];
+    }
+
+    public boolean methodEquals( final ByteBuffer buf, final String method )
+    {
+        return methodEnd - methodStart == method.length() && regionEqualsIgnoreCase( buf, methodStart, methodEnd,
+                                                                                     method );
+    }
+
+    /**
+     * @return index of the first header with the given name (case-insensitive), or -1
+     */
+    public int findHeader( final ByteBuffer buf, final String name )
+    {
+        for ( int i = 0; i < headerCount; i++ )
+        {
+            int start = getHeaderNameStart( i );
+            int end = getHeaderNameEnd( i );
+            if ( end - start == name.length() && regionEqualsIgnoreCase( buf, start, end, name ) )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Build the {@link HttpRequest} consumed by {@link ProxyResponseWriter}. This is the only place Strings are
+     * created for the request line and headers.
+     */
+    public HttpRequest toHttpRequest( final ByteBuffer buf )
+            throws ProtocolException
+    {
+        if ( !done )
+        {
+            throw new IllegalStateException( "Request head is not complete" );
+        }
+
+        final BasicHttpRequest request =
+                new BasicHttpRequest( ascii( buf, methodStart, methodEnd ), ascii( buf, uriStart, uriEnd ),
+                                      parseVersion( buf ) );
+
+        for ( int i = 0; i < headerCount; i++ )
+        {
+            request.addHeader( ascii( buf, getHeaderNameStart( i ), getHeaderNameEnd( i ) ),
+                               ascii( buf, getHeaderValueStart( i ), getHeaderValueEnd( i ) ) );
+        }
+
+        return request;
+    }
+
+    private ProtocolVersion parseVersion( final ByteBuffer buf )
+            throws ProtocolException
+    {
+        // "HTTP/" major "." minor
+        int dot = indexOf( buf, (byte) '.', versionStart + 5, versionEnd );
+        if ( dot < 0 )
+        {
+            throw new ProtocolException( "Invalid protocol version: " + ascii( buf, versionStart, versionEnd ) );
+        }
+
+        int major = parseDigits( buf, versionStart + 5, dot );
+        int minor = parseDigits( buf, dot + 1, versionEnd );
+        if ( major == 1 && minor == 1 )
+        {
+            return HttpVersion.HTTP_1_1;
+        }
+        else if ( major == 1 && minor == 0 )
+        {
+            return HttpVersion.HTTP_1_0;
+        }
+        return new HttpVersion( major, minor );
+    }
+
+    private int parseDigits( final ByteBuffer buf, final int start, final int end )
+            throws ProtocolException
+    {
+        if ( start >= end )
+        {
+            throw new ProtocolException( "Invalid protocol version: " + ascii( buf, versionStart, versionEnd ) );
+        }
+
+        int value = 0;
+        for ( int i = start; i < end; i++ )
+        {
+            int d = buf.get( i ) - '0';
+            if ( d < 0 || d > 9 )
+            {
+                throw new ProtocolException( "Invalid protocol version: " + ascii( buf, versionStart, versionEnd ) );
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    public static String ascii( final ByteBuffer buf, final int start, final int end )
+    {
+        final char[] chars = new char[end - start];
+        for ( int i = start; i < end; i++ )
+        {
+            chars[i - start] = (char) ( buf.get( i ) & 0xff );
+        }
+        return new String( chars );
+    }
+
+    private static int indexOf( final ByteBuffer buf, final byte b, final int start, final int end )
+    {
+        for ( int i = start; i < end; i++ )
+        {
+            if ( buf.get( i ) == b )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces( final ByteBuffer buf, int pos, final int end )
+    {
+        while ( pos < end && isSpace( buf.get( pos ) ) )
+        {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isSpace( final byte b )
+    {
+        return b == SP || b == HT;
+    }
+
+    private static boolean regionEqualsIgnoreCase( final ByteBuffer buf, final int start, final int end,
+                                                   final String value )
+    {
+        if ( end - start < value.length() )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            int a = buf.get( start + i );
+            int b = value.charAt( i );
+            if ( a != b && Character.toLowerCase( a ) != Character.toLowerCase( b ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
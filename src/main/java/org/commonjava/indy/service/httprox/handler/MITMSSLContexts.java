@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.handler;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.util.CertificateAndKeys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.commonjava.indy.service.httprox.util.CertUtils.createKeyStore;
+import static org.commonjava.indy.service.httprox.util.CertUtils.createSignedCertificateAndKey;
+import static org.commonjava.indy.service.httprox.util.CertUtils.generateKeyPair;
+import static org.commonjava.indy.service.httprox.util.CertUtils.getPrivateKey;
+import static org.commonjava.indy.service.httprox.util.CertUtils.loadX509Certificate;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.MITM_CERT_CACHE_HITS;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.MITM_CERT_CACHE_MISSES;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.MITM_CERT_CACHE_SIZE;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.MITM_CERT_GENERATION;
+
+/**
+ * Server-side {@link SSLContext}s impersonating the hosts clients CONNECT to, each holding a certificate signed on the
+ * fly by the MITM CA. Shared by the in-process TLS termination and the legacy {@link ProxyMITMSSLServer}.
+ *
+ * Contexts are cached with a size and age bound. Certificates are generated on a dedicated pool, so a miss never
+ * holds an I/O thread, and concurrent misses for one host share a single generation. The CA key and certificate are
+ * read once, on the first generation.
+ *
+ * Leaf keys are RSA or EC P-256 ({@code MITM.cert.key.type}). Unless {@code MITM.cert.key.shared} is false, one leaf
+ * key pair is generated with the CA and reused for every host, leaving a single signature per new host.
+ */
+@ApplicationScoped
+public class MITMSSLContexts
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private static final char[] KEYSTORE_PASSWORD = "password".toCharArray(); // keystore password can not be null
+
+    @Inject
+    ProxyConfiguration config;
+
+    private ExecutorService generators;
+
+    private AsyncLoadingCache<String, SSLContext> contexts;
+
+    private Timer generationTimer;
+
+    private volatile CertificateAuthority ca;
+
+    protected MITMSSLContexts()
+    {
+    }
+
+    public MITMSSLContexts( final ProxyConfiguration config )
+    {
+        this.config = config;
+        init();
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = ( r ) -> {
+            Thread t = new Thread( r, "mitm-cert-generator-" + count.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        };
+        generators = Executors.newFixedThreadPool( config.getMITMCertGeneratorThreads(), threadFactory );
+
+        contexts = Caffeine.newBuilder()
+                           .maximumSize( config.getMITMCertCacheMaxSize() )
+                           .expireAfterWrite( config.getMITMCertCacheTtlHours(), TimeUnit.HOURS )
+                           .executor( generators )
+                           .recordStats()
+                           .buildAsync( this::createContext );
+
+        generationTimer = Timer.builder( MITM_CERT_GENERATION )
+                               .description( "Time to generate and sign a MITM host certificate" )
+                               .register( Metrics.globalRegistry );
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        generators.shutdownNow();
+    }
+
+    /**
+     * Get the context for the host. The future completes on the generator pool when the certificate has to be
+     * created, and immediately otherwise.
+     */
+    public CompletableFuture<SSLContext> getSSLContext( final String host )
+    {
+        return contexts.get( host );
+    }
+
+    /**
+     * Start generating certificates for the configured hosts, so the first clients to CONNECT to them do not wait.
+     */
+    public void prewarm()
+    {
+        List<String> hosts = config.getMITMCertPrewarmHosts();
+        if ( hosts.isEmpty() )
+        {
+            return;
+        }
+
+        logger.info( "Pre-warming MITM certificates for {} host(s)", hosts.size() );
+        for ( String host : hosts )
+        {
+            getSSLContext( host ).whenComplete( ( ctx, t ) -> {
+                if ( t != null )
+                {
+                    logger.warn( "Failed to pre-warm MITM certificate for {}: {}", host, t.toString() );
+                }
+            } );
+        }
+    }
+
+    public long getHits()
+    {
+        return contexts.synchronous().stats().hitCount();
+    }
+
+    public long getMisses()
+    {
+        return contexts.synchronous().stats().missCount();
+    }
+
+    public long getSize()
+    {
+        return contexts.synchronous().estimatedSize();
+    }
+
+    public void bindTo( final MeterRegistry registry )
+    {
+        FunctionCounter.builder( MITM_CERT_CACHE_HITS, this, MITMSSLContexts::getHits )
+                       .description( "MITM host certificates served from the cache" )
+                       .register( registry );
+        FunctionCounter.builder( MITM_CERT_CACHE_MISSES, this, MITMSSLContexts::getMisses )
+                       .description( "MITM host certificates that had to be generated" )
+                       .register( registry );
+        Gauge.builder( MITM_CERT_CACHE_SIZE, this, MITMSSLContexts::getSize )
+             .description( "MITM host certificates currently cached" )
+             .register( registry );
+    }
+
+    private SSLContext createContext( final String host ) throws Exception
+    {
+        long start = System.nanoTime();
+        try
+        {
+            final KeyStore ks = getKeyStore( host );
+            final KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+            kmf.init( ks, KEYSTORE_PASSWORD );
+
+            final SSLContext sc = SSLContext.getInstance( "TLS" );
+            sc.init( kmf.getKeyManagers(), null, null );
+            return sc;
+        }
+        finally
+        {
+            generationTimer.record( System.nanoTime() - start, TimeUnit.NANOSECONDS );
+        }
+    }
+
+    private KeyStore getKeyStore( final String host ) throws Exception
+    {
+        CertificateAuthority ca = getCertificateAuthority();
+
+        String dn = config.getMITMDNTemplate().replace( "<host>", host ); // e.g., "CN=<host>, O=Test Org"
+
+        KeyPair leafKeys = ca.sharedLeafKeys != null ? ca.sharedLeafKeys : generateKeyPair( config.getMITMCertKeyType() );
+        CertificateAndKeys certificateAndKeys = createSignedCertificateAndKey( dn, leafKeys, ca.cert, ca.key, false );
+        Certificate signedCertificate = certificateAndKeys.getCertificate();
+        logger.debug( "Create signed cert:\n" + signedCertificate.toString() );
+
+        KeyStore ks = createKeyStore();
+        ks.setKeyEntry( host, certificateAndKeys.getPrivateKey(), KEYSTORE_PASSWORD,
+                        new Certificate[] { signedCertificate, ca.cert } );
+        return ks;
+    }
+
+    // loaded on first use rather than at startup, the CA files may be provisioned after the service starts
+    private CertificateAuthority getCertificateAuthority() throws Exception
+    {
+        CertificateAuthority loaded = ca;
+        if ( loaded == null )
+        {
+            synchronized ( this )
+            {
+                loaded = ca;
+                if ( loaded == null )
+                {
+                    PrivateKey caKey = getPrivateKey( config.getMITMCAKey() );
+                    X509Certificate caCert = loadX509Certificate( new File( config.getMITMCACert() ) );
+                    KeyPair sharedLeafKeys =
+                            config.isMITMCertKeyShared() ? generateKeyPair( config.getMITMCertKeyType() ) : null;
+                    ca = loaded = new CertificateAuthority( caKey, caCert, sharedLeafKeys );
+                    logger.info( "Loaded MITM CA: {}, leaf key type: {}, shared: {}",
+                                 caCert.getSubjectX500Principal(), config.getMITMCertKeyType(),
+                                 sharedLeafKeys != null );
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private static final class CertificateAuthority
+    {
+        private final PrivateKey key;
+
+        private final X509Certificate cert;
+
+        private final KeyPair sharedLeafKeys;
+
+        private CertificateAuthority( final PrivateKey key, final X509Certificate cert, final KeyPair sharedLeafKeys )
+        {
+            this.key = key;
+            this.cert = cert;
+            this.sharedLeafKeys = sharedLeafKeys;
+        }
+    }
+}
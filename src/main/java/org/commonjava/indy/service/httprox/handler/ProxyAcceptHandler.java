@@ -22,23 +22,24 @@ import org.commonjava.indy.service.httprox.client.content.ContentRetrievalServic
 import org.commonjava.indy.service.httprox.client.repository.RepositoryService;
 import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
 import org.commonjava.indy.service.httprox.keycloak.KeycloakProxyAuthenticator;
-import org.commonjava.indy.service.httprox.util.CacheProducer;
+import org.commonjava.indy.service.httprox.util.ArtifactStoreResolver;
+import org.commonjava.indy.service.httprox.util.ContentCache;
+import org.commonjava.indy.service.httprox.util.DownloadCoalescer;
+import org.commonjava.indy.service.httprox.util.InFlightLimiter;
 import org.commonjava.indy.service.httprox.util.OtelAdapter;
 import org.commonjava.indy.service.httprox.util.RepoCreator;
-import org.eclipse.microprofile.context.ManagedExecutor;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xnio.ChannelListener;
 import org.xnio.StreamConnection;
 import org.xnio.channels.AcceptingChannel;
-import org.xnio.conduits.ConduitStreamSinkChannel;
-import org.xnio.conduits.ConduitStreamSourceChannel;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 import static org.commonjava.indy.pkg.PackageTypeConstants.PKG_TYPE_GENERIC_HTTP;
 import static org.commonjava.indy.service.httprox.util.MetricsConstants.*;
@@ -63,13 +64,29 @@ public class ProxyAcceptHandler implements ChannelListener<AcceptingChannel<Stre
 
     @Inject
     @Named("mitm-transfers")
-    ManagedExecutor proxyExecutor;
+    ExecutorService proxyExecutor;
+
+    @Inject
+    @Named("upstream-reads")
+    ExecutorService upstreamExecutor;
 
     @Inject
     OtelAdapter otel;
 
     @Inject
-    CacheProducer cacheProducer;
+    ArtifactStoreResolver storeResolver;
+
+    @Inject
+    ContentCache contentCache;
+
+    @Inject
+    DownloadCoalescer downloadCoalescer;
+
+    @Inject
+    MITMSSLContexts mitmContexts;
+
+    @Inject
+    InFlightLimiter inFlightLimiter;
 
     IndyObjectMapper objectMapper;
 
@@ -113,23 +130,12 @@ public class ProxyAcceptHandler implements ChannelListener<AcceptingChannel<Stre
 
         logger.info("accepted request from address: {}", accepted.getPeerAddress());
 
-        final ConduitStreamSourceChannel source = accepted.getSourceChannel();
-        final ConduitStreamSinkChannel sink = accepted.getSinkChannel();
-
         ProxyRepositoryCreator repoCreator = new RepoCreator( config );
 
         final ProxyResponseWriter writer =
                 new ProxyResponseWriter( config, repoCreator, accepted, repositoryService, contentRetrievalService,
-                        proxyExecutor, proxyAuthenticator, objectMapper, cacheProducer, start, otel );
-
-        logger.debug("Setting writer: {}", writer);
-        sink.getWriteSetter().set(writer);
-
-        final ProxyRequestReader reader = new ProxyRequestReader(writer, sink);
-        writer.setProxyRequestReader(reader);
+                        proxyExecutor, upstreamExecutor, proxyAuthenticator, objectMapper, storeResolver, contentCache, downloadCoalescer, mitmContexts, inFlightLimiter, start, otel );
 
-        logger.debug("Setting reader: {}", reader);
-        source.getReadSetter().set(reader);
-        source.resumeReads();
+        writer.serve();
     }
 }
@@ -15,34 +15,38 @@
  */
 package org.commonjava.indy.service.httprox.handler;
 
+import io.micrometer.core.instrument.Metrics;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolException;
+import org.apache.http.RequestLine;
 import org.commonjava.indy.model.core.ArtifactStore;
 import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
 import org.commonjava.indy.service.httprox.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 
 import static jakarta.ws.rs.HttpMethod.GET;
 import static jakarta.ws.rs.HttpMethod.HEAD;
-import static org.commonjava.indy.service.httprox.util.CertUtils.*;
 import static org.commonjava.indy.service.httprox.util.HttpProxyConstants.GET_METHOD;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.MITM_REQUESTS_PER_TUNNEL;
 import static org.commonjava.indy.service.httprox.util.PortFinder.findOpenPort;
 
+/**
+ * Legacy MITM mode ({@code MITM.mode: socket}): terminates TLS on a loopback SSL server socket opened for each
+ * CONNECT, with {@link ProxySSLTunnel} relaying the client's bytes to it.
+ */
 public class ProxyMITMSSLServer implements Runnable
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
@@ -75,12 +79,15 @@ public class ProxyMITMSSLServer implements Runnable
 
     private final HttpConduitWrapper httpConduitWrapper;
 
+    private final MITMSSLContexts mitmContexts;
+
     private ProxySSLTunnel sslTunnel;
 
     private final static long MAX_WAIT_TIME_IN_MILLIS = 60 * 1000;
 
     public ProxyMITMSSLServer( String host, int port, String trackingId, UserPass proxyUserPass,
-                               ProxyResponseHelper proxyResponseHelper, ProxyConfiguration config, ProxyMeter meter, HttpConduitWrapper httpConduitWrapper)
+                               ProxyResponseHelper proxyResponseHelper, ProxyConfiguration config, ProxyMeter meter, HttpConduitWrapper httpConduitWrapper,
+                               MITMSSLContexts mitmContexts )
     {
         this.host = host;
         this.port = port;
@@ -90,6 +97,7 @@ public class ProxyMITMSSLServer implements Runnable
         this.config = config;
         this.meterTemplate = meter;
         this.httpConduitWrapper = httpConduitWrapper;
+        this.mitmContexts = mitmContexts;
     }
 
     @Override
@@ -162,64 +170,10 @@ public class ProxyMITMSSLServer implements Runnable
 
     private volatile boolean started;
 
-    private final char[] keystorePassword = "password".toCharArray(); // keystore password can not be null
-
-    // TODO: What are the memory footprint implications of this? It seems like these will never be purged.
-    private static final Map<String, HostContext> hostContextMap = new ConcurrentHashMap(); // cache keystore and socket factory, key: hostname
-
-    /**
-     * Generate the keystore on-the-fly and initiate SSL socket factory.
-     */
-    private SSLServerSocketFactory getSSLServerSocketFactory(String host ) throws Exception
-    {
-        AtomicReference<Exception> err = new AtomicReference<>();
-        HostContext context = hostContextMap.computeIfAbsent( host, (k) -> {
-            try
-            {
-                final KeyStore ks = getKeyStore(k);
-                final KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
-                kmf.init( ks, keystorePassword );
-
-                final SSLContext sc = SSLContext.getInstance( "TLS" );
-                sc.init( kmf.getKeyManagers(), null, null );
-                final SSLServerSocketFactory factory = sc.getServerSocketFactory();
-                return new HostContext(ks, factory);
-            }
-            catch ( Exception e )
-            {
-                err.set( e );
-            }
-            return null;
-        } );
-        if ( context == null || err.get() != null )
-        {
-            throw err.get();
-        }
-
-        return context.getSslSocketFactory();
-    }
-
-    private KeyStore getKeyStore( String host ) throws Exception
-    {
-        PrivateKey caKey = getPrivateKey( config.getMITMCAKey() );
-        X509Certificate caCert = loadX509Certificate( new File( config.getMITMCACert() ));
-
-        String dn = config.getMITMDNTemplate().replace( "<host>", host ); // e.g., "CN=<host>, O=Test Org"
-
-        CertificateAndKeys certificateAndKeys = createSignedCertificateAndKey( dn, caCert, caKey, false );
-        Certificate signedCertificate = certificateAndKeys.getCertificate();
-        logger.debug( "Create signed cert:\n" + signedCertificate.toString() );
-
-        KeyStore ks = createKeyStore();
-        String alias = host;
-        ks.setKeyEntry( alias, certificateAndKeys.getPrivateKey(), keystorePassword, new Certificate[] { signedCertificate, caCert } );
-        return ks;
-    }
-
     private void execute() throws Exception
     {
-        ProxyMeter meter = null;
-        SSLServerSocketFactory sslServerSocketFactory = getSSLServerSocketFactory( host );
+        SSLServerSocketFactory sslServerSocketFactory =
+                mitmContexts.getSSLContext( host ).get().getServerSocketFactory();
 
         serverPort = findOpenPort( FIND_OPEN_PORT_MAX_RETRIES );
 
@@ -229,61 +183,17 @@ public class ProxyMITMSSLServer implements Runnable
             sslServerSocket.setSoTimeout( ACCEPT_SOCKET_TIMEOUT_IN_MILLISECONDS ); //in case the response handler times out
             started = true;
             logger.debug( "MITM server started, {}", sslServerSocket );
-            long startNanos = System.nanoTime();
 
             if ( !isCancelled )
             {
                 try ( Socket socket = sslServerSocket.accept() )
                 {
-                    String method = null;
-                    String requestLine = null;
-
                     socket.setSoTimeout( (int) TimeUnit.MINUTES.toMillis( config.getMITMSoTimeoutMinutes() ) );
                     logger.debug( "MITM server accepted" );
 
-                    try (BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream() ) ))
+                    try
                     {
-                        // TODO: Should we implement a while loop around this with some sort of read timeout, in case multiple requests are inlined?
-                        // In principle, any sort of network communication is permitted over this port, but even if we restrict this to
-                        // HTTPS only, couldn't there be multiple requests over the port at a time?
-                        String path = null;
-                        StringBuilder sb = new StringBuilder();
-                        String line;
-                        while ( ( line = in.readLine() ) != null )
-                        {
-                            sb.append(line).append("\n");
-                            if ( line.startsWith( GET ) || line.startsWith( HEAD ) ) // only care about GET/HEAD
-                            {
-                                String[] toks = line.split("\\s+");
-                                method = toks[0];
-                                path = toks[1];
-                                requestLine = line;
-                            }
-                            else if ( line.isEmpty() )
-                            {
-                                logger.debug( "Get empty line and break" );
-                                break;
-                            }
-                        }
-                        meter = meterTemplate.copy( startNanos, method, requestLine );
-
-                        logger.debug( "Request:\n{}", sb );
-
-                        if ( path != null )
-                        {
-                            try
-                            {
-                                transferRemote( socket, host, port, method, path, meter );
-                            }
-                            catch ( Exception e )
-                            {
-                                logger.error( "Transfer remote failed", e );
-                            }
-                        }
-                        else
-                        {
-                            logger.debug( "MITM server failed to get request from client" );
-                        }
+                        serveRequests( socket );
                     }
                     catch ( Exception e )
                     {
@@ -295,15 +205,161 @@ public class ProxyMITMSSLServer implements Runnable
         }
         finally
         {
-            if (meter != null)
-            {
-                meter.reportResponseSummary();
-            }
             isCancelled = false;
             started = false;
         }
     }
 
+    /**
+     * Serve requests from the decrypted client stream until the client closes the tunnel, asks to close, or stays
+     * idle longer than the keep-alive timeout. Requests are read one head at a time, so pipelined requests are
+     * answered in order.
+     */
+    private void serveRequests( Socket socket ) throws IOException
+    {
+        final InputStream in = new BufferedInputStream( socket.getInputStream() );
+        final OutputStream out = new BufferedOutputStream( socket.getOutputStream() );
+        final HttpRequestHeadParser headParser = new HttpRequestHeadParser();
+        final int idleTimeoutMillis = (int) TimeUnit.SECONDS.toMillis( config.getKeepAliveIdleTimeoutSeconds() );
+
+        int served = 0;
+        try ( ByteBufferPool.Lease lease = ByteBufferPool.getInstance().lease() )
+        {
+            while ( true )
+            {
+                final HttpRequest request;
+                try
+                {
+                    request = readRequest( in, lease.buffer(), headParser );
+                }
+                catch ( SocketTimeoutException e )
+                {
+                    logger.debug( "MITM tunnel idle, closing after {} request(s)", served );
+                    break;
+                }
+                catch ( HttpException e )
+                {
+                    logger.warn( "MITM server got an invalid request: {}", e.getMessage() );
+                    break;
+                }
+
+                if ( request == null )
+                {
+                    logger.debug( "MITM client closed the tunnel after {} request(s)", served );
+                    break;
+                }
+
+                long startNanos = System.nanoTime();
+                served++;
+
+                final RequestLine requestLine = request.getRequestLine();
+                final String method = requestLine.getMethod().toUpperCase();
+                logger.debug( "MITM request #{}: {}", served, requestLine );
+
+                ProxyMeter meter = meterTemplate.copy( startNanos, method, requestLine.toString() );
+                boolean keepAlive = isKeepAlive( request, served );
+                try
+                {
+                    if ( GET.equals( method ) || HEAD.equals( method ) )
+                    {
+                        keepAlive = transferRemote( out, host, port, method, requestLine.getUri(), meter, keepAlive );
+                    }
+                    else
+                    {
+                        keepAlive = writeMethodNotAllowed( out, keepAlive );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    logger.error( "Transfer remote failed", e );
+                    keepAlive = false;
+                }
+                finally
+                {
+                    meter.reportResponseSummary();
+                }
+
+                if ( !keepAlive )
+                {
+                    break;
+                }
+
+                if ( idleTimeoutMillis > 0 )
+                {
+                    socket.setSoTimeout( idleTimeoutMillis );
+                }
+            }
+        }
+        finally
+        {
+            Metrics.globalRegistry.summary( MITM_REQUESTS_PER_TUNNEL ).record( served );
+        }
+    }
+
+    /**
+     * @return the next request head, or null if the client closed the stream
+     */
+    private HttpRequest readRequest( InputStream in, ByteBuffer buffer, HttpRequestHeadParser headParser )
+            throws IOException, HttpException
+    {
+        headParser.reset();
+        buffer.clear();
+
+        int b;
+        while ( ( b = in.read() ) != -1 )
+        {
+            if ( !buffer.hasRemaining() )
+            {
+                throw new ProtocolException( "Request head exceeds " + buffer.capacity() + " bytes" );
+            }
+
+            buffer.put( (byte) b );
+            if ( b == '\n' && headParser.parse( buffer, buffer.position() ) )
+            {
+                return headParser.toHttpRequest( buffer );
+            }
+        }
+        return null;
+    }
+
+    private boolean isKeepAlive( HttpRequest request, int served )
+    {
+        if ( !config.isKeepAliveEnabled() || served >= config.getKeepAliveMaxRequests() )
+        {
+            return false;
+        }
+
+        if ( request.getProtocolVersion().lessEquals( HttpVersion.HTTP_1_0 ) )
+        {
+            return false;
+        }
+
+        for ( Header header : request.getHeaders( HttpHeaders.CONNECTION ) )
+        {
+            if ( header.getValue().toLowerCase().contains( "close" ) )
+            {
+                return false;
+            }
+        }
+
+        // request bodies are not read, the next request could not be located
+        Header contentLength = request.getFirstHeader( HttpHeaders.CONTENT_LENGTH );
+        return !request.containsHeader( HttpHeaders.TRANSFER_ENCODING ) && ( contentLength == null || "0".equals(
+                contentLength.getValue().trim() ) );
+    }
+
+    private boolean writeMethodNotAllowed( OutputStream out, boolean keepAlive ) throws IOException
+    {
+        try (HttpConduitWrapper http = new HttpConduitWrapper( new OutputStreamSinkChannel( out ), null ))
+        {
+            http.setKeepAlive( keepAlive );
+            http.writeStatus( ApplicationStatus.METHOD_NOT_ALLOWED );
+            http.writeEmptyBody();
+        }
+        out.flush();
+        return keepAlive;
+    }
+
     private void sendError(Socket socket, Exception e)
     {
         if ( !socket.isClosed() )
@@ -321,20 +377,27 @@ public class ProxyMITMSSLServer implements Runnable
         }
     }
 
-    private void transferRemote( Socket socket, String host, int port, String method, String file,
-                                 ProxyMeter meter ) throws Exception
+    /**
+     * @return whether the connection can be used for another request
+     */
+    private boolean transferRemote( OutputStream out, String host, int port, String method, String file,
+                                    ProxyMeter meter, boolean keepAlive ) throws Exception
     {
         String protocol = "https";
         URL remoteUrl = new URL( protocol, host, port, file );
         logger.debug( "Requesting remote URL: {}", remoteUrl );
 
         ArtifactStore store = proxyResponseHelper.getArtifactStore( trackingId, remoteUrl );
-        try (BufferedOutputStream out = new BufferedOutputStream( socket.getOutputStream() );
-             HttpConduitWrapper http = new HttpConduitWrapper( new OutputStreamSinkChannel( out ), null ))
+
+        // the stream is left open for the next request, closing the wrapper only flushes it
+        try (HttpConduitWrapper http = new HttpConduitWrapper( new OutputStreamSinkChannel( out ), null ))
         {
-            proxyResponseHelper.transfer( http, store, remoteUrl.getFile(), GET_METHOD.equals( method ),
-                    proxyUserPass, meter );
+            http.setKeepAlive( keepAlive );
+            // this thread owns the blocking socket anyway, so just wait for the response to be written
+            proxyResponseHelper.newTransfer().transfer( http, store, remoteUrl.getFile(), GET_METHOD.equals( method ),
+                    proxyUserPass, meter ).join();
             out.flush();
+            return http.isKeepAlive();
         }
     }
 
@@ -381,22 +444,6 @@ public class ProxyMITMSSLServer implements Runnable
         logger.debug( "MITM server timed out waiting for response creation" );
     }
 
-    class HostContext{
-        private KeyStore keystore;
-        private SSLServerSocketFactory sslSocketFactory;
-        HostContext(KeyStore ks, SSLServerSocketFactory factory){
-            keystore = ks;
-            sslSocketFactory = factory;
-        }
-        KeyStore getKeystore() {
-            return keystore;
-        }
-        SSLServerSocketFactory getSslSocketFactory() {
-            return sslSocketFactory;
-        }
-
-    }
-
     public void setProxySSLTunnel( ProxySSLTunnel sslTunnel )
     {
         this.sslTunnel = sslTunnel;
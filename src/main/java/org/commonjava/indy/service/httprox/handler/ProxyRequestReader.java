@@ -15,147 +15,308 @@
  */
 package org.commonjava.indy.service.httprox.handler;
 
-import org.apache.commons.codec.binary.Hex;
-import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
-import org.apache.http.HttpRequestFactory;
-import org.apache.http.config.MessageConstraints;
-import org.apache.http.impl.DefaultHttpRequestFactory;
-import org.apache.http.impl.io.DefaultHttpRequestParser;
-import org.apache.http.impl.io.HttpTransportMetricsImpl;
-import org.apache.http.impl.io.SessionInputBufferImpl;
-import org.apache.http.message.BasicLineParser;
-import org.apache.http.message.LineParser;
+import org.apache.http.ProtocolException;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
 import org.commonjava.indy.service.httprox.util.ApplicationHeader;
+import org.commonjava.indy.service.httprox.util.ByteBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xnio.ChannelListener;
+import org.xnio.XnioExecutor;
 import org.xnio.conduits.ConduitStreamSinkChannel;
 import org.xnio.conduits.ConduitStreamSourceChannel;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
 public final class ProxyRequestReader
         implements ChannelListener<ConduitStreamSourceChannel> {
-    private static final int AWAIT_READABLE_IN_MILLISECONDS = 100;
-
-    private static final List<Character> HEAD_END = List.of('\r', '\n', '\r', '\n');
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final ProxyResponseWriter writer;
     private final ConduitStreamSinkChannel sinkChannel;
-    private final List<Character> lastFour = new ArrayList<>();
-    private ByteArrayOutputStream bReq;
-    private PrintStream pReq;
+    private final ConduitStreamSourceChannel sourceChannel;
+    private final HttpRequestHeadParser headParser = new HttpRequestHeadParser();
+    private final long idleTimeoutMillis;
+
+    /**
+     * Holds the request head while it is being received (head always starts at index 0). Kept in write mode between
+     * events.
+     */
+    private ByteBufferPool.Lease bufferLease;
+    private ByteBuffer buffer;
     private boolean headDone = false;
 
+    // closes the connection if no complete request head arrives in time
+    private XnioExecutor.Key idleKey;
+
     private ProxySSLTunnel sslTunnel;
 
-    public ProxyRequestReader(final ProxyResponseWriter writer, final ConduitStreamSinkChannel sinkChannel) {
+    // discards the body of the current request, null once there is none left or when it cannot be framed
+    private RequestBodySkipper bodySkipper;
+
+    // whether the body of the current request can be told apart from the next request
+    private boolean bodyFramed;
+
+    public ProxyRequestReader(final ProxyResponseWriter writer, final ConduitStreamSinkChannel sinkChannel,
+                              final ConduitStreamSourceChannel sourceChannel, final ProxyConfiguration config) {
         this.writer = writer;
         this.sinkChannel = sinkChannel;
+        this.sourceChannel = sourceChannel;
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.getKeepAliveIdleTimeoutSeconds());
     }
 
-    @Override
-    public void handleEvent(final ConduitStreamSourceChannel sourceChannel) {
-        boolean sendResponse = false;
+    /**
+     * Wait for the next request head on this connection.
+     */
+    public void awaitRequest() {
+        if (idleTimeoutMillis > 0) {
+            idleKey = sourceChannel.getIoThread().executeAfter(this::idleTimeout, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        sourceChannel.resumeReads();
+    }
+
+    /**
+     * Called by the writer once a response has been completely written on a kept-alive connection, see
+     * {@link #isBodyFramed()}. The body of the previous request is skipped; bytes the client already sent past it are
+     * the start of the next (pipelined) request and are parsed first.
+     */
+    public void nextRequest() {
+        buffer.flip();
+        buffer.position(headParser.getHeadEnd());
+
+        headParser.reset();
+        headDone = false;
+
         try {
-            final int read = doRead(sourceChannel);
+            skipBody();
+        } catch (final ProtocolException e) {
+            logger.debug("Failed to skip request body, closing connection: {}", e.getMessage());
+            closeConnection();
+            return;
+        }
+        buffer.compact();
+
+        if (bodySkipper == null && buffer.position() > 0) {
+            try {
+                headDone = headParser.parse(buffer, buffer.position());
+            } catch (final HttpException e) {
+                logger.error("Failed to parse pipelined http request: " + e.getMessage(), e);
+                writer.setError(e);
+                sinkChannel.resumeWrites();
+                return;
+            }
 
-            if (read <= 0) {
-                logger.debug("Reads: {} ", read);
+            if (headDone) {
+                logger.debug("Serving pipelined request.");
+                onHeadDone();
                 return;
             }
+        }
 
-            byte[] bytes = bReq.toByteArray();
+        awaitRequest();
+    }
+
+    /**
+     * Whether the end of the current request's body is known, so the connection can carry another request.
+     */
+    public boolean isBodyFramed() {
+        return bodyFramed;
+    }
+
+    /**
+     * Discard body bytes of the previous request from the buffer (in read mode).
+     */
+    private void skipBody() throws ProtocolException {
+        if (bodySkipper != null && bodySkipper.skip(buffer)) {
+            bodySkipper = null;
+        }
+    }
 
+    @Override
+    public void handleEvent(final ConduitStreamSourceChannel sourceChannel) {
+        try {
             if ( sslTunnel != null )
             {
-                logger.debug( "Send to ssl tunnel, {}, bytes:\n\n {}\n", new String( bytes ), Hex.encodeHexString( bytes ) );
-                directTo( sslTunnel );
+                // the tunnel reads the connection from now on
+                return;
+            }
+
+            if ( headDone )
+            {
+                // the request is being served; further input is left in the socket until then
+                sourceChannel.suspendReads();
+                return;
+            }
+
+            if ( bodySkipper != null && !skipBody( sourceChannel ) )
+            {
                 return;
             }
 
-            logger.debug("Request in progress is:\n\n{}", new String(bytes));
+            final int read = doRead(sourceChannel);
+
+            if (read < 0) {
+                logger.debug("Client closed connection before sending a complete request head.");
+                sourceChannel.suspendReads();
+                cancelIdleTimeout();
+                closeQuietly( sinkChannel );
+                closeQuietly( sourceChannel );
+                releaseBuffer();
+                return;
+            }
 
             if (headDone) {
-                logger.debug("Request done. parsing.");
-                MessageConstraints mc = MessageConstraints.DEFAULT;
-                SessionInputBufferImpl inbuf = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 1024);
-                HttpRequestFactory requestFactory = new DefaultHttpRequestFactory();
-                LineParser lp = new BasicLineParser();
-
-                DefaultHttpRequestParser requestParser = new DefaultHttpRequestParser(inbuf, lp, requestFactory, mc);
-
-                inbuf.bind(new ByteArrayInputStream(bytes));
-
-                try {
-                    logger.debug("Passing parsed http request off to response writer.");
-                    HttpRequest request = requestParser.parse();
-
-                    logger.debug("Request contains {} header: '{}'", ApplicationHeader.authorization.key(),
-                            request.getHeaders(ApplicationHeader.authorization.key()));
-
-                    writer.setHttpRequest(request);
-                    sendResponse = true;
-                } catch (ConnectionClosedException e) {
-                    logger.warn("Client closed connection. Aborting proxy request.");
-                    sendResponse = false;
-                    sourceChannel.shutdownReads();
-                } catch (HttpException e) {
-                    logger.error("Failed to parse http request: " + e.getMessage(), e);
-                    writer.setError(e);
-                }
+                onHeadDone();
             } else {
                 logger.debug("Request not finished. Pausing until more reads are available.");
                 sourceChannel.resumeReads();
             }
+        } catch (final HttpException e) {
+            logger.error("Failed to parse http request: " + e.getMessage(), e);
+            sourceChannel.suspendReads();
+            cancelIdleTimeout();
+            writer.setError(e);
+            sinkChannel.resumeWrites();
         } catch (final IOException e) {
+            sourceChannel.suspendReads();
+            cancelIdleTimeout();
             writer.setError(e);
-            sendResponse = true;
+            sinkChannel.resumeWrites();
         }
+    }
 
-        if (sendResponse) {
-            sinkChannel.resumeWrites();
+    private void onHeadDone() {
+        logger.debug("Request head done. parsing.");
+        sourceChannel.suspendReads();
+        cancelIdleTimeout();
+
+        try {
+            HttpRequest request = headParser.toHttpRequest( buffer );
+            bodySkipper = RequestBodySkipper.forRequest( request );
+            bodyFramed = bodySkipper != null;
+            if ( bodySkipper != null && bodySkipper.isDone() )
+            {
+                bodySkipper = null;
+            }
+            logger.debug( "Request line: {}", request.getRequestLine() );
+            logger.debug("Request contains {} header: '{}'", ApplicationHeader.authorization.key(),
+                    request.getHeaders(ApplicationHeader.authorization.key()));
+
+            logger.debug("Passing parsed http request off to response writer.");
+            writer.setHttpRequest(request);
+        } catch (final HttpException e) {
+            logger.error("Failed to parse http request: " + e.getMessage(), e);
+            writer.setError(e);
+        }
+
+        sinkChannel.resumeWrites();
+    }
+
+    private void idleTimeout() {
+        idleKey = null;
+        if (headDone || sslTunnel != null) {
+            return;
+        }
+
+        logger.debug("No request received within {} ms, closing connection.", idleTimeoutMillis);
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        sourceChannel.suspendReads();
+        cancelIdleTimeout();
+        closeQuietly( sinkChannel );
+        closeQuietly( sourceChannel );
+        releaseBuffer();
+    }
+
+    private void cancelIdleTimeout() {
+        if (idleKey != null) {
+            idleKey.remove();
+            idleKey = null;
         }
     }
 
-    private int doRead(final ConduitStreamSourceChannel channel)
-            throws IOException
+    /**
+     * Read and discard the rest of the previous request's body. Returns true once it is gone, leaving whatever the
+     * client sent after it in the buffer; false when the body continues in the socket or the connection was closed.
+     */
+    private boolean skipBody( final ConduitStreamSourceChannel channel )
+            throws IOException, HttpException
     {
-        bReq = new ByteArrayOutputStream();
-        pReq = new PrintStream( bReq );
+        while ( bodySkipper != null )
+        {
+            final int read = channel.read( buffer );
+            if ( read < 0 )
+            {
+                logger.debug( "Client closed connection within a request body." );
+                closeConnection();
+                return false;
+            }
+            if ( read == 0 )
+            {
+                channel.resumeReads();
+                return false;
+            }
+
+            buffer.flip();
+            try
+            {
+                skipBody();
+            }
+            catch ( final ProtocolException e )
+            {
+                logger.debug( "Failed to skip request body, closing connection: {}", e.getMessage() );
+                closeConnection();
+                return false;
+            }
+            buffer.compact();
+        }
+
+        // the start of the next request may have come along with the end of the body
+        if ( buffer.position() > 0 )
+        {
+            headDone = headParser.parse( buffer, buffer.position() );
+        }
+        return true;
+    }
+
+    /**
+     * Read whatever is available, feeding new bytes to the head parser. Returns the number of bytes read, or -1 when
+     * the channel reached end-of-stream without delivering anything.
+     */
+    private int doRead( final ConduitStreamSourceChannel channel )
+            throws IOException, HttpException
+    {
+        if ( buffer == null )
+        {
+            bufferLease = ByteBufferPool.getInstance().lease();
+            buffer = bufferLease.buffer();
+        }
 
         logger.debug( "Starting read: {}", channel );
 
         int total = 0;
-        while ( true )
+        while ( !headDone )
         {
-            ByteBuffer buf = ByteBuffer.allocate( 1024 );
-            channel.awaitReadable( AWAIT_READABLE_IN_MILLISECONDS, TimeUnit.MILLISECONDS );
+            if ( !buffer.hasRemaining() )
+            {
+                throw new ProtocolException( "Request head exceeds " + buffer.capacity() + " bytes" );
+            }
 
-            int read = channel.read( buf ); // return the number of bytes read, possibly zero, or -1
+            int read = channel.read( buffer ); // return the number of bytes read, possibly zero, or -1
 
-            logger.debug( "Read {} bytes", read );
+            logger.trace( "Read {} bytes", read );
 
             if ( read == -1 ) // return -1 if the channel has reached end-of-stream
             {
-                if ( total == 0 ) // nothing read, return -1 to indicate the EOF
-                {
-                    return -1;
-                }
-                else
-                {
-                    return total;
-                }
+                return total == 0 ? -1 : total;
             }
 
             if ( read == 0 ) // no new bytes this time
@@ -165,67 +326,63 @@ public final class ProxyRequestReader
 
             total += read;
 
-            buf.flip();
-            byte[] bbuf = new byte[buf.limit()];
-            buf.get( bbuf );
-
-            if ( !headDone )
+            // only the newly arrived bytes are scanned
+            headDone = headParser.parse( buffer, buffer.position() );
+            if ( headDone )
             {
-                // allows us to stop after header read...
-                final String part = new String( bbuf );
-                for ( final char c : part.toCharArray() )
-                {
-                    switch ( c )
-                    {
-                        case '\n':
-                        {
-                            while ( lastFour.size() > 3 )
-                            {
-                                lastFour.remove(0);
-                            }
-
-                            lastFour.add( c );
-                            try
-                            {
-                                if ( bReq.size() > 0 && HEAD_END.equals( lastFour ) )
-                                {
-                                    logger.debug( "Detected end of request headers." );
-                                    headDone = true;
-
-                                    logger.trace( "Proxy request header:\n{}\n", new String( bReq.toByteArray() ) );
-                                }
-                            }
-                            finally
-                            {
-                                lastFour.remove( lastFour.size() - 1 );
-                            }
-                        }
-                        default:
-                        {
-                            pReq.print( c );
-                            lastFour.add( c );
-                        }
-                    }
-                }
-            }
-            else
-            {
-                bReq.write( bbuf );
+                logger.debug( "Detected end of request headers." );
             }
         }
+
+        return total;
     }
 
-    private void directTo( ProxySSLTunnel sslTunnel ) throws IOException
+    /**
+     * Hand the connection over to an SSL tunnel and start it; anything the client sent after the CONNECT head belongs
+     * to the tunnel. The buffer goes back to the pool, the tunnel leases its own while it has bytes to relay.
+     */
+    public void setProxySSLTunnel( ProxySSLTunnel sslTunnel ) throws IOException
     {
-        byte[] bytes = bReq.toByteArray();
-        logger.info( "Write client data to ssl tunnel, size: {}", bytes.length );
-        sslTunnel.write( bytes );
+        this.sslTunnel = sslTunnel;
+        cancelIdleTimeout();
+
+        buffer.flip();
+        buffer.position( headParser.getHeadEnd() );
+        try
+        {
+            sslTunnel.start( buffer );
+        }
+        finally
+        {
+            releaseBuffer();
+        }
     }
 
-    public void setProxySSLTunnel( ProxySSLTunnel sslTunnel )
+    /**
+     * Stop reading this connection so another reader can take over its stream, e.g. once TLS is terminated on it.
+     * Returns false if the client already sent bytes past the current head, which would be lost by the hand-off.
+     */
+    public boolean detach()
     {
-        this.sslTunnel = sslTunnel;
+        sourceChannel.suspendReads();
+        cancelIdleTimeout();
+
+        final boolean clean = buffer == null || buffer.position() <= headParser.getHeadEnd();
+        releaseBuffer();
+        return clean;
     }
 
+    /**
+     * Give the connection buffer back to the pool. Called once the connection is closed; safe to call repeatedly.
+     */
+    public void releaseBuffer()
+    {
+        if ( bufferLease != null )
+        {
+            bufferLease.release();
+            bufferLease = null;
+            buffer = null;
+        }
+    }
 
-}
\ No newline at end of file
+}
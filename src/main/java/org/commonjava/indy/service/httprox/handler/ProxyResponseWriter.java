@@ -16,7 +16,10 @@
 package org.commonjava.indy.service.httprox.handler;
 
 import io.opentelemetry.api.trace.Span;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
 import org.apache.http.RequestLine;
 import org.commonjava.indy.model.core.ArtifactStore;
 import org.commonjava.indy.model.core.io.IndyObjectMapper;
@@ -24,21 +27,27 @@ import org.commonjava.indy.service.httprox.client.content.ContentRetrievalServic
 import org.commonjava.indy.service.httprox.client.repository.RepositoryService;
 import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
 import org.commonjava.indy.service.httprox.keycloak.KeycloakProxyAuthenticator;
+import org.commonjava.indy.service.httprox.model.MITMMode;
 import org.commonjava.indy.service.httprox.model.TrackingKey;
 import org.commonjava.indy.service.httprox.model.TrackingType;
 import org.commonjava.indy.service.httprox.util.*;
-import org.eclipse.microprofile.context.ManagedExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xnio.ChannelListener;
 import org.xnio.StreamConnection;
 import org.xnio.conduits.ConduitStreamSinkChannel;
 import org.xnio.conduits.ConduitStreamSourceChannel;
+import org.xnio.ssl.JsseSslStreamConnection;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.net.URL;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 
 import static java.lang.Integer.parseInt;
 import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
@@ -52,6 +61,8 @@ import static org.commonjava.indy.service.httprox.util.UserPass.parse;
 public final class ProxyResponseWriter
         implements ChannelListener<ConduitStreamSinkChannel> {
 
+    private static final String PROXY_CONNECTION = "Proxy-Connection";
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private Throwable error;
@@ -59,23 +70,45 @@ public final class ProxyResponseWriter
     private ProxyConfiguration config;
     private ProxyRepositoryCreator repoCreator;
 
+    private final StreamConnection connection;
     private ConduitStreamSourceChannel sourceChannel;
     private SocketAddress peerAddress;
 
+    // set when this writer serves the decrypted stream of a CONNECT; requests then carry origin-form URIs
+    private String tunnelHost;
+    private int tunnelPort;
+    private UserPass tunnelUserPass;
+
     private RepositoryService repositoryService;
     private ContentRetrievalService contentRetrievalService;
 
     private ProxySSLTunnel sslTunnel;
     private boolean directed = false;
 
+    // the response is being written asynchronously; the connection is finished by the transfer completion
+    private boolean transferPending = false;
+
+    // requests received on this connection so far
+    private int requestCount;
+
     private ProxyRequestReader proxyRequestReader;
-    private final ManagedExecutor tunnelAndMITMExecutor;
+    private final ExecutorService tunnelAndMITMExecutor;
+
+    private final ExecutorService upstreamExecutor;
 
     private KeycloakProxyAuthenticator proxyAuthenticator;
 
     private IndyObjectMapper indyObjectMapper;
 
-    private CacheProducer cacheProducer;
+    private ArtifactStoreResolver storeResolver;
+
+    private ContentCache contentCache;
+
+    private DownloadCoalescer downloadCoalescer;
+
+    private MITMSSLContexts mitmContexts;
+
+    private InFlightLimiter inFlightLimiter;
 
     private OtelAdapter otel;
 
@@ -83,21 +116,31 @@ public final class ProxyResponseWriter
 
     public ProxyResponseWriter(final ProxyConfiguration config, final ProxyRepositoryCreator repoCreator,
                                final StreamConnection accepted, final RepositoryService repositoryService,
-                               final ContentRetrievalService contentRetrievalService, final ManagedExecutor executor,
+                               final ContentRetrievalService contentRetrievalService, final ExecutorService executor,
+                               final ExecutorService upstreamExecutor,
                                final KeycloakProxyAuthenticator proxyAuthenticator, final IndyObjectMapper indyObjectMapper,
-                               final CacheProducer cacheProducer, final long start, final OtelAdapter otel)
+                               final ArtifactStoreResolver storeResolver, final ContentCache contentCache,
+                               final DownloadCoalescer downloadCoalescer,
+                               final MITMSSLContexts mitmContexts, final InFlightLimiter inFlightLimiter,
+                               final long start, final OtelAdapter otel)
     {
         this.config = config;
         this.repoCreator = repoCreator;
+        this.connection = accepted;
         this.peerAddress = accepted.getPeerAddress();
         this.sourceChannel = accepted.getSourceChannel();
         this.repositoryService = repositoryService;
         this.contentRetrievalService = contentRetrievalService;
         this.tunnelAndMITMExecutor = executor;
+        this.upstreamExecutor = upstreamExecutor;
         this.proxyAuthenticator = proxyAuthenticator;
         this.indyObjectMapper = indyObjectMapper;
         this.startNanos = start;
-        this.cacheProducer = cacheProducer;
+        this.storeResolver = storeResolver;
+        this.contentCache = contentCache;
+        this.downloadCoalescer = downloadCoalescer;
+        this.mitmContexts = mitmContexts;
+        this.inFlightLimiter = inFlightLimiter;
         this.otel = otel;
     }
 
@@ -109,6 +152,29 @@ public final class ProxyResponseWriter
         this.proxyRequestReader = proxyRequestReader;
     }
 
+    /**
+     * Install this writer and a new request reader on the connection, then wait for the first request.
+     */
+    public void serve() {
+        final ConduitStreamSinkChannel sinkChannel = connection.getSinkChannel();
+        logger.debug("Setting writer: {}", this);
+        sinkChannel.getWriteSetter().set(this);
+
+        proxyRequestReader = new ProxyRequestReader(this, sinkChannel, sourceChannel, config);
+        logger.debug("Setting reader: {}", proxyRequestReader);
+        sourceChannel.getReadSetter().set(proxyRequestReader);
+        proxyRequestReader.awaitRequest();
+    }
+
+    /**
+     * Resolve requests against the target of a CONNECT, authenticated with the credentials the CONNECT carried.
+     */
+    public void setTunnelTarget(final String host, final int port, final UserPass proxyUserPass) {
+        this.tunnelHost = host;
+        this.tunnelPort = port;
+        this.tunnelUserPass = proxyUserPass;
+    }
+
     @Override
     public void handleEvent(final ConduitStreamSinkChannel channel) {
         doHandleEvent(channel);
@@ -116,16 +182,12 @@ public final class ProxyResponseWriter
 
     private void doHandleEvent(final ConduitStreamSinkChannel sinkChannel)
     {
-        if ( directed )
+        if ( directed || transferPending )
         {
             return;
         }
 
-        ProxyMeter meter =
-                new ProxyMeter( httpRequest.getRequestLine().getMethod(), httpRequest.getRequestLine().toString(),
-                        startNanos, peerAddress, otel );
-
-        HttpConduitWrapper http = new HttpConduitWrapper(sinkChannel, httpRequest);
+        HttpConduitWrapper http = new HttpConduitWrapper(sinkChannel, httpRequest, upstreamExecutor);
         if (httpRequest == null) {
             if (error != null) {
                 logger.debug("Handling error from request reader: " + error.getMessage(), error);
@@ -135,9 +197,17 @@ public final class ProxyResponseWriter
             }
             closeQuietly(sinkChannel);
             closeQuietly(sourceChannel);
+            releaseReaderBuffer();
             return;
         }
 
+        requestCount++;
+        http.setKeepAlive( isKeepAlive( httpRequest ) );
+
+        ProxyMeter meter =
+                new ProxyMeter( httpRequest.getRequestLine().getMethod(), httpRequest.getRequestLine().toString(),
+                        startNanos, peerAddress, otel );
+
         final String oldThreadName = Thread.currentThread().getName();
         Thread.currentThread().setName("PROXY-" + httpRequest.getRequestLine().toString());
         sinkChannel.getCloseSetter().set((c) -> {
@@ -148,6 +218,8 @@ public final class ProxyResponseWriter
                 logger.trace( "Close ssl tunnel" );
                 sslTunnel.close();
             }
+            // a pump waiting for writability or for upstream would never hear of it otherwise
+            http.abortTransfer();
             try
             {
                 sourceChannel.close();
@@ -156,18 +228,21 @@ public final class ProxyResponseWriter
             {
                 logger.warn("Close source channel failed", e);
             }
+            releaseReaderBuffer();
         });
 
         logger.debug("\n\n\n>>>>>>> Handle write\n\n\n");
         if (error == null) {
 
             ProxyResponseHelper proxyResponseHelper =
-                    new ProxyResponseHelper( httpRequest, config, repoCreator, repositoryService, contentRetrievalService, indyObjectMapper, cacheProducer, otel );
+                    new ProxyResponseHelper( httpRequest, config, repoCreator, repositoryService, contentRetrievalService, indyObjectMapper, storeResolver, contentCache, downloadCoalescer, otel );
 
             try
             {
 
-                final UserPass proxyUserPass = parse( ApplicationHeader.proxy_authorization, httpRequest, null );
+                final UserPass proxyUserPass = tunnelHost != null ?
+                        tunnelUserPass :
+                        parse( ApplicationHeader.proxy_authorization, httpRequest, null );
                 logger.info( "Using proxy authentication: {}", proxyUserPass );
 
                 logger.debug( "Proxy UserPass: {}\nConfig secured? {}\nConfig tracking type: {}", proxyUserPass,
@@ -181,7 +256,8 @@ public final class ProxyResponseWriter
                             PROXY_AUTHENTICATION_REQUIRED, proxy_authenticate, realmInfo );
 
                     http.writeStatus( PROXY_AUTHENTICATION_REQUIRED );
-                    http.writeHeader( proxy_authenticate, String.format( "%s\n", realmInfo ) );
+                    http.writeHeader( proxy_authenticate, realmInfo );
+                    http.writeEmptyBody();
                 }
                 else
                 {
@@ -229,18 +305,38 @@ public final class ProxyResponseWriter
                             case GET_METHOD:
                             case HEAD_METHOD:
                             {
-                                final URL url = new URL( requestLine.getUri() );
+                                final URL url = tunnelHost != null ?
+                                        new URL( "https", tunnelHost, tunnelPort, requestLine.getUri() ) :
+                                        new URL( requestLine.getUri() );
                                 logger.debug( "Get artifact store, trackingId: {}, url: {}", trackingId, url );
-                                ArtifactStore store = proxyResponseHelper.getArtifactStore( trackingId, url );
+                                final boolean isGet = GET_METHOD.equals( method );
+                                final String transferTrackingId = trackingId;
+
+                                // hand the I/O thread back while the store lookup and the upstream response are
+                                // pending; the transfer starts back on the I/O thread, takes over the write listener
+                                // and resumes writes once it has something to send. Beyond the in-flight limit the
+                                // request waits briefly for a permit, or fails to be answered 503.
+                                sinkChannel.suspendWrites();
+                                transferPending = true;
                                 // 'url.getFile()' gets the file name of this URL. The returned file portion will be the
                                 // same as getPath(), plus the concatenation of the value of getQuery(), if any.
-                                proxyResponseHelper.transfer( http, store, url.getFile(), GET_METHOD.equals( method ), proxyUserPass, meter );
+                                inFlightLimiter.acquire()
+                                               .thenCompose( permit -> lookupAndTransfer( proxyResponseHelper, http,
+                                                                                          sinkChannel,
+                                                                                          transferTrackingId, url,
+                                                                                          isGet, proxyUserPass, meter )
+                                                               .whenComplete( ( v, t ) -> permit.release( meter ) ) )
+                                               .whenComplete( ( v, t ) -> sinkChannel.getIoThread()
+                                                                                     .execute( () -> finishTransfer(
+                                                                                                     http, sinkChannel,
+                                                                                                     t ) ) );
                                 break;
                             }
                             case OPTIONS_METHOD:
                             {
                                 http.writeStatus(ApplicationStatus.OK);
                                 http.writeHeader(ApplicationHeader.allow, ALLOW_HEADER_VALUE);
+                                http.writeEmptyBody();
                                 break;
                             }
                             case CONNECT_METHOD:
@@ -249,6 +345,15 @@ public final class ProxyResponseWriter
                                 {
                                     logger.debug( "CONNECT method not supported unless MITM-proxying is enabled." );
                                     http.writeStatus( ApplicationStatus.BAD_REQUEST );
+                                    http.writeEmptyBody();
+                                    break;
+                                }
+
+                                if ( tunnelHost != null )
+                                {
+                                    logger.debug( "CONNECT inside a MITM tunnel is not supported." );
+                                    http.writeStatus( ApplicationStatus.METHOD_NOT_ALLOWED );
+                                    http.writeEmptyBody();
                                     break;
                                 }
 
@@ -259,6 +364,12 @@ public final class ProxyResponseWriter
                                 String host = toks[0];
                                 int port = parseInt( toks[1] );
 
+                                if ( config.getMITMMode() == MITMMode.ENGINE )
+                                {
+                                    terminateTls( http, sinkChannel, host, port, proxyUserPass );
+                                    break;
+                                }
+
                                 directed = true;
 
                                 // After this, the proxy simply opens a plain socket to the target server and relays
@@ -268,33 +379,36 @@ public final class ProxyResponseWriter
 
                                 ProxyMITMSSLServer svr =
                                         new ProxyMITMSSLServer( host, port, trackingId, proxyUserPass,
-                                                proxyResponseHelper, config, meter, http );
+                                                proxyResponseHelper, config, meter, http, mitmContexts );
                                 tunnelAndMITMExecutor.submit( svr );
                                 socketChannel = svr.getSocketChannel();
 
                                 if ( socketChannel == null )
                                 {
                                     logger.debug( "Failed to get MITM socket channel" );
+                                    directed = false;
+                                    http.setKeepAlive( false );
                                     http.writeStatus( ApplicationStatus.SERVER_ERROR );
+                                    http.writeEmptyBody();
                                     svr.stop();
                                     break;
                                 }
 
-                                sslTunnel = new ProxySSLTunnel( sinkChannel, socketChannel, config );
-                                tunnelAndMITMExecutor.submit( sslTunnel );
-                                proxyRequestReader.setProxySSLTunnel( sslTunnel ); // client input will be directed to target socket
-                                svr.setProxySSLTunnel( sslTunnel );
-
-                                // When all is ready, send the 200 to client. Client send the SSL handshake to reader,
-                                // reader direct it to tunnel to MITM. MITM finish the handshake and read the request data,
-                                // retrieve remote content and send back to tunnel to client.
+                                // When all is ready, send the 200 to client and start the tunnel. Client send the SSL
+                                // handshake to the tunnel, which relays it to MITM. MITM finish the handshake and read the
+                                // request data, retrieve remote content and send back through the tunnel to client.
                                 http.writeStatus( ApplicationStatus.OK );
                                 http.writeHeader( "Status", "200 OK\r\n" );
 
+                                sslTunnel = new ProxySSLTunnel( sourceChannel, sinkChannel, socketChannel, config );
+                                svr.setProxySSLTunnel( sslTunnel );
+                                proxyRequestReader.setProxySSLTunnel( sslTunnel ); // client input will be directed to target socket
+
                                 break;
                             }
                             default: {
                                 http.writeStatus(ApplicationStatus.METHOD_NOT_ALLOWED);
+                                http.writeEmptyBody();
                             }
                         }
                     }
@@ -309,15 +423,211 @@ public final class ProxyResponseWriter
             handleError(error, http);
         }
 
-        if ( directed )
+        Thread.currentThread().setName( oldThreadName );
+
+        if ( transferPending || directed )
         {
             // do not close sink channel
         }
         else
         {
-            closeQuietly( http );
-            closeQuietly( sinkChannel );
-            closeQuietly( sourceChannel );
+            finishResponse( http, sinkChannel );
+        }
+    }
+
+    /**
+     * Answer the CONNECT and terminate TLS right on this connection with an {@link SSLEngine}. The decrypted stream
+     * is served by a new writer and reader pair, the same way as a plain connection.
+     */
+    private void terminateTls( final HttpConduitWrapper http, final ConduitStreamSinkChannel sinkChannel,
+                               final String host, final int port, final UserPass proxyUserPass )
+            throws IOException
+    {
+        if ( !proxyRequestReader.detach() )
+        {
+            logger.warn( "Client sent data before the CONNECT response, closing connection." );
+            http.setKeepAlive( false );
+            http.writeStatus( ApplicationStatus.BAD_REQUEST );
+            http.writeEmptyBody();
+            return;
+        }
+
+        // the host certificate may have to be generated first, which is not done on the I/O thread
+        directed = true;
+        sinkChannel.suspendWrites();
+        mitmContexts.getSSLContext( host )
+                    .whenComplete( ( sslContext, t ) -> sinkChannel.getIoThread()
+                                                                   .execute( () -> startTls( http, sinkChannel, host,
+                                                                                             port, proxyUserPass,
+                                                                                             sslContext, t ) ) );
+    }
+
+    private void startTls( final HttpConduitWrapper http, final ConduitStreamSinkChannel sinkChannel,
+                           final String host, final int port, final UserPass proxyUserPass,
+                           final SSLContext sslContext, final Throwable error )
+    {
+        if ( error != null )
+        {
+            this.error = error;
+            handleError( error, http );
+            closeConnection( http, sinkChannel );
+            return;
+        }
+
+        final SSLEngine engine = sslContext.createSSLEngine( host, port );
+        engine.setUseClientMode( false );
+
+        try
+        {
+            http.writeStatus( ApplicationStatus.OK );
+            http.writeHeader( "Status", "200 OK\r\n" );
+            ChannelUtils.flush( sinkChannel ); // must be on the wire in plain text before the handshake starts
+        }
+        catch ( final IOException e )
+        {
+            logger.debug( "Failed to answer CONNECT to {}:{}, closing connection: {}", host, port, e.toString() );
+            closeConnection( http, sinkChannel );
+            return;
+        }
+
+        final JsseSslStreamConnection tls = new JsseSslStreamConnection( connection, engine, false );
+        final ProxyResponseWriter tlsWriter =
+                new ProxyResponseWriter( config, repoCreator, tls, repositoryService, contentRetrievalService,
+                                         tunnelAndMITMExecutor, upstreamExecutor, proxyAuthenticator, indyObjectMapper, storeResolver,
+                                         contentCache, downloadCoalescer, mitmContexts, inFlightLimiter,
+                                         System.nanoTime(), otel );
+        tlsWriter.setTunnelTarget( host, port, proxyUserPass );
+
+        logger.debug( "Terminating TLS for {}:{} on the client connection", host, port );
+        tlsWriter.serve();
+    }
+
+    private static CompletableFuture<Void> startTransfer( final ProxyResponseHelper proxyResponseHelper,
+                                                          final HttpConduitWrapper http, final ArtifactStore store,
+                                                          final String path, final boolean isGet,
+                                                          final UserPass proxyUserPass, final ProxyMeter meter )
+    {
+        try
+        {
+            return proxyResponseHelper.transfer( http, store, path, isGet, proxyUserPass, meter );
+        }
+        catch ( final Exception e )
+        {
+            return CompletableFuture.failedFuture( e );
+        }
+    }
+
+    private CompletableFuture<Void> lookupAndTransfer( final ProxyResponseHelper proxyResponseHelper,
+                                                       final HttpConduitWrapper http,
+                                                       final ConduitStreamSinkChannel sinkChannel,
+                                                       final String trackingId, final URL url, final boolean isGet,
+                                                       final UserPass proxyUserPass, final ProxyMeter meter )
+    {
+        return proxyResponseHelper.getArtifactStoreAsync( trackingId, url )
+                                  .thenComposeAsync( store -> startTransfer( proxyResponseHelper, http, store,
+                                                                             url.getFile(), isGet, proxyUserPass,
+                                                                             meter ),
+                                                     sinkChannel.getIoThread() );
+    }
+
+    private void finishTransfer( final HttpConduitWrapper http, final ConduitStreamSinkChannel sinkChannel,
+                                 final Throwable t )
+    {
+        logger.debug( "Transfer complete." );
+        if ( t != null )
+        {
+            final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            error = cause;
+            handleError( cause, http );
+        }
+        finishResponse( http, sinkChannel );
+    }
+
+    private void finishResponse( final HttpConduitWrapper http, final ConduitStreamSinkChannel sinkChannel )
+    {
+        if ( error == null && http.isKeepAlive() && sinkChannel.isOpen() )
+        {
+            try
+            {
+                ChannelUtils.flush( sinkChannel );
+                recycle( sinkChannel );
+                return;
+            }
+            catch ( IOException e )
+            {
+                logger.debug( "Failed to flush response, closing connection: {}", e.toString() );
+            }
+        }
+        closeConnection( http, sinkChannel );
+    }
+
+    /**
+     * Get ready for the next request on a kept-alive connection.
+     */
+    private void recycle( final ConduitStreamSinkChannel sinkChannel )
+    {
+        logger.debug( "Keeping connection alive after request #{}", requestCount );
+        httpRequest = null;
+        error = null;
+        transferPending = false;
+        startNanos = System.nanoTime();
+
+        // a transfer may have taken over the write listener
+        sinkChannel.getWriteSetter().set( this );
+        sinkChannel.suspendWrites();
+
+        proxyRequestReader.nextRequest();
+    }
+
+    private boolean isKeepAlive( final HttpRequest request )
+    {
+        if ( !config.isKeepAliveEnabled() || requestCount >= config.getKeepAliveMaxRequests() )
+        {
+            return false;
+        }
+
+        if ( request.getProtocolVersion().lessEquals( HttpVersion.HTTP_1_0 ) )
+        {
+            return false;
+        }
+
+        if ( hasToken( request, HttpHeaders.CONNECTION, "close" ) || hasToken( request, PROXY_CONNECTION, "close" ) )
+        {
+            return false;
+        }
+
+        // the request body is skipped before the next request is read, which needs to know where it ends
+        return proxyRequestReader.isBodyFramed();
+    }
+
+    private static boolean hasToken( final HttpRequest request, final String header, final String token )
+    {
+        for ( final Header h : request.getHeaders( header ) )
+        {
+            for ( final String value : h.getValue().split( "," ) )
+            {
+                if ( token.equalsIgnoreCase( value.trim() ) )
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void closeConnection( final HttpConduitWrapper http, final ConduitStreamSinkChannel sinkChannel )
+    {
+        closeQuietly( http );
+        closeQuietly( sinkChannel );
+        closeQuietly( sourceChannel );
+        releaseReaderBuffer();
+    }
+
+    private void releaseReaderBuffer()
+    {
+        if ( proxyRequestReader != null )
+        {
+            proxyRequestReader.releaseBuffer();
         }
     }
 
@@ -335,7 +645,21 @@ public final class ProxyResponseWriter
         return sha256Hex( proxyUserPass.getUser() + ":" + proxyUserPass.getPassword() );
     }
 
-    private void handleError(final Throwable error, final HttpWrapper http) {
+    private void handleError(final Throwable error, final HttpConduitWrapper http) {
+        final ServiceUnavailableException unavailable = ServiceUnavailableException.find(error);
+        if (unavailable != null) {
+            // expected while a backend is down, answered without the stack trace
+            logger.warn("HTTProx request turned away: {}", unavailable.getMessage());
+            try {
+                if (http.isOpen()) {
+                    http.writeUnavailable(unavailable.getRetryAfterSeconds());
+                }
+            } catch (final IOException e) {
+                logger.warn("Failed to write 503: " + e.getMessage(), e);
+            }
+            return;
+        }
+
         logger.error("HTTProx request failed: " + error.getMessage(), error);
         try {
             if (http.isOpen()) {
@@ -16,145 +16,403 @@
 package org.commonjava.indy.service.httprox.handler;
 
 import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
-import org.commonjava.indy.service.httprox.util.ChannelUtils;
+import org.commonjava.indy.service.httprox.util.ByteBufferPool;
+import org.commonjava.indy.service.httprox.util.TunnelSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioIoThread;
 import org.xnio.conduits.ConduitStreamSinkChannel;
+import org.xnio.conduits.ConduitStreamSourceChannel;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 
-import static org.commonjava.indy.service.httprox.util.ChannelUtils.DEFAULT_READ_BUF_SIZE;
-import static org.commonjava.indy.service.httprox.util.ChannelUtils.flush;
+import static org.apache.commons.io.IOUtils.closeQuietly;
 
-public class ProxySSLTunnel implements Runnable
+/**
+ * Relays a CONNECT tunnel in both directions between the client connection and the target socket (the loopback MITM
+ * server), without a thread of its own: the client side is driven by the connection's XNIO listeners, the target side
+ * by the shared {@link TunnelSelector}, and all bytes are moved on the connection's I/O thread. A pooled direct
+ * buffer is leased per read and kept only while its bytes wait for the other side to take them; reading that
+ * direction pauses meanwhile.
+ *
+ * Each direction ends on its own: end-of-stream from one side is passed on by shutting down output to the other once
+ * the pending bytes are written. The tunnel closes when both directions are done, on an I/O error, or when neither
+ * side sent anything for the MITM socket timeout.
+ */
+public class ProxySSLTunnel
 {
     private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    //private volatile Selector selector; // selecting READ events for target channel
-
-    //private static final long SELECTOR_TIMEOUT = 60 * 1000; // 60 seconds
+    private final ConduitStreamSourceChannel sourceChannel;
 
     private final ConduitStreamSinkChannel sinkChannel;
 
     private final SocketChannel socketChannel;
 
-    private volatile boolean closed;
+    private final XnioIoThread ioThread;
+
+    private final long idleTimeoutMillis;
+
+    private final TunnelSelector tunnelSelector = TunnelSelector.getInstance();
+
+    private final ByteBufferPool bufferPool = ByteBufferPool.getInstance();
+
+    // the fields below are only used on the I/O thread
+
+    private TunnelSelector.Registration registration;
+
+    // bytes read from one side that the other did not take yet, in read mode; null when there are none
+    private ByteBufferPool.Lease toTarget;
+
+    private ByteBufferPool.Lease toClient;
+
+    private boolean clientDone;
+
+    private boolean targetDone;
+
+    private boolean targetShutdown;
 
-    private final ProxyConfiguration config;
+    private boolean clientShutdown;
 
-    public ProxySSLTunnel( ConduitStreamSinkChannel sinkChannel, SocketChannel socketChannel, ProxyConfiguration config )
+    private long bytesToTarget;
+
+    private long bytesToClient;
+
+    private long lastActivityNanos;
+
+    private XnioExecutor.Key idleKey;
+
+    private volatile boolean closed;
+
+    public ProxySSLTunnel( ConduitStreamSourceChannel sourceChannel, ConduitStreamSinkChannel sinkChannel,
+                           SocketChannel socketChannel, ProxyConfiguration config )
     {
+        this.sourceChannel = sourceChannel;
         this.sinkChannel = sinkChannel;
         this.socketChannel = socketChannel;
-        this.config = config;
+        this.ioThread = sinkChannel.getIoThread();
+        this.idleTimeoutMillis = TimeUnit.MINUTES.toMillis( config.getMITMSoTimeoutMinutes() );
     }
 
-    @Override
-    public void run()
+    /**
+     * Take over the client connection and start relaying. Call on the connection's I/O thread, once the response to
+     * the CONNECT is written.
+     *
+     * @param clientBytes what the client sent past the CONNECT head, in read mode
+     */
+    public void start( final ByteBuffer clientBytes ) throws IOException
     {
+        lastActivityNanos = System.nanoTime();
+        sourceChannel.getReadSetter().set( c -> relay( this::readClient ) );
+        sinkChannel.getWriteSetter().set( c -> relay( this::writeClient ) );
         try
         {
-            pipeTargetToSinkChannel( sinkChannel, socketChannel );
+            registration = tunnelSelector.register( socketChannel, SelectionKey.OP_READ, this::targetReady );
+            tunnelSelector.opened();
+            scheduleIdleCheck( idleTimeoutMillis );
+
+            if ( clientBytes.hasRemaining() )
+            {
+                toTarget = bufferPool.lease();
+                toTarget.buffer().put( clientBytes ).flip();
+            }
+            writeTarget();
         }
-        catch ( Exception e )
+        catch ( IOException e )
         {
-            logger.error( "Pipe to sink channel failed", e );
+            // the CONNECT was answered already, the connection is of no use anymore
+            close();
+            throw e;
         }
     }
 
-    private void pipeTargetToSinkChannel( ConduitStreamSinkChannel sinkChannel, SocketChannel targetChannel )
-            throws IOException
+    private interface IoStep
     {
-        targetChannel.socket().setSoTimeout( (int) TimeUnit.MINUTES.toMillis( config.getMITMSoTimeoutMinutes() ) );
-        InputStream inStream = new BufferedInputStream( targetChannel.socket().getInputStream() );
-        ReadableByteChannel wrappedChannel = Channels.newChannel( inStream );
+        void run() throws IOException;
+    }
+
+    private void relay( final IoStep step )
+    {
+        if ( closed )
+        {
+            return;
+        }
+        try
+        {
+            step.run();
+        }
+        catch ( IOException e )
+        {
+            logger.debug( "SSL tunnel broke: {}", e.toString() );
+            close();
+        }
+    }
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate( DEFAULT_READ_BUF_SIZE );
+    /**
+     * Called by the selector thread, hands the work to the I/O thread.
+     */
+    private void targetReady( final int readyOps )
+    {
+        ioThread.execute( () -> relay( () -> {
+            if ( ( readyOps & SelectionKey.OP_WRITE ) != 0 )
+            {
+                writeTarget();
+            }
+            if ( ( readyOps & SelectionKey.OP_READ ) != 0 && !closed )
+            {
+                readTarget();
+            }
+        } ) );
+    }
 
-        int total = 0;
-        while ( true )
+    private void readClient() throws IOException
+    {
+        ByteBufferPool.Lease lease = bufferPool.lease();
+        ByteBuffer buffer = lease.buffer();
+        boolean kept = false;
+        try
         {
-            if ( closed )
+            int read;
+            while ( ( read = sourceChannel.read( buffer ) ) > 0 )
             {
-                logger.debug( "Tunnel closed" );
-                break;
+                lastActivityNanos = System.nanoTime();
+                buffer.flip();
+                sendToTarget( buffer );
+                if ( buffer.hasRemaining() )
+                {
+                    // the target is busy, hold the rest and stop reading the client until it is written
+                    sourceChannel.suspendReads();
+                    toTarget = lease;
+                    kept = true;
+                    registration.interest( SelectionKey.OP_WRITE );
+                    return;
+                }
+                buffer.clear();
             }
 
-            int read = -1;
-            try
+            if ( read < 0 )
             {
-                read = wrappedChannel.read( byteBuffer );
+                logger.debug( "Client closed its side of the ssl tunnel" );
+                clientDone = true;
+                sourceChannel.suspendReads();
+                writeTarget();
             }
-            catch ( IOException e )
+        }
+        finally
+        {
+            if ( !kept )
             {
-                logger.debug( "Read target channel breaks, {}", e.toString() );
-                break;
+                lease.release();
             }
+        }
+    }
 
-            if ( read <= 0 )
+    /**
+     * Write the pending client bytes to the target, then read the client again, or pass its end-of-stream on.
+     */
+    private void writeTarget() throws IOException
+    {
+        if ( toTarget != null )
+        {
+            ByteBuffer buffer = toTarget.buffer();
+            sendToTarget( buffer );
+            if ( buffer.hasRemaining() )
             {
-                logger.debug( "Read breaks, read: {}", read );
-                break;
+                registration.interest( SelectionKey.OP_WRITE );
+                return;
             }
+            toTarget.release();
+            toTarget = null;
+        }
 
-            //limit is set to current position and position is set to zero
-            byteBuffer.flip();
+        if ( !clientDone )
+        {
+            sourceChannel.resumeReads();
+        }
+        else if ( !targetShutdown )
+        {
+            socketChannel.shutdownOutput();
+            targetShutdown = true;
+            closeIfDone();
+        }
+    }
 
-            //final byte[] bytes = new byte[byteBuffer.limit()];
-            //byteBuffer.get( bytes );
+    private void readTarget() throws IOException
+    {
+        ByteBufferPool.Lease lease = bufferPool.lease();
+        ByteBuffer buffer = lease.buffer();
+        boolean kept = false;
+        try
+        {
+            int read;
+            while ( ( read = socketChannel.read( buffer ) ) > 0 )
+            {
+                lastActivityNanos = System.nanoTime();
+                buffer.flip();
+                sendToClient( buffer );
+                if ( buffer.hasRemaining() )
+                {
+                    // the client is slow, hold the rest and stop reading the target until it is written
+                    toClient = lease;
+                    kept = true;
+                    sinkChannel.resumeWrites();
+                    return;
+                }
+                buffer.clear();
+            }
 
-            logger.debug( "Write to sink channel, size: {}", byteBuffer.limit() );
-            try
+            if ( read < 0 )
             {
-                ChannelUtils.write( sinkChannel, byteBuffer );
+                logger.debug( "Target closed its side of the ssl tunnel" );
+                targetDone = true;
             }
-            catch ( IOException e )
+        }
+        finally
+        {
+            if ( !kept )
             {
-                logger.debug( "Write to sink channel breaks, {}", e.toString() );
-                break;
+                lease.release();
             }
-            finally
+        }
+        writeClient();
+    }
+
+    /**
+     * Write the pending target bytes to the client and flush, then read the target again, or pass its end-of-stream
+     * on.
+     */
+    private void writeClient() throws IOException
+    {
+        if ( toClient != null )
+        {
+            ByteBuffer buffer = toClient.buffer();
+            sendToClient( buffer );
+            if ( buffer.hasRemaining() )
             {
-                sinkChannel.flush();
-                byteBuffer.clear();
+                sinkChannel.resumeWrites();
+                return;
             }
+            toClient.release();
+            toClient = null;
+        }
 
-            total += read;
+        if ( targetDone )
+        {
+            sinkChannel.shutdownWrites();
+        }
+        if ( !sinkChannel.flush() )
+        {
+            sinkChannel.resumeWrites();
+            return;
         }
+        sinkChannel.suspendWrites();
 
-        logger.debug( "Write to sink channel complete, transferred: {}", total );
+        if ( !targetDone )
+        {
+            registration.interest( SelectionKey.OP_READ );
+        }
+        else if ( !clientShutdown )
+        {
+            clientShutdown = true;
+            closeIfDone();
+        }
+    }
 
-        flush( sinkChannel );
-        sinkChannel.shutdownWrites();
-        sinkChannel.close();
+    private void sendToTarget( final ByteBuffer buffer ) throws IOException
+    {
+        int written;
+        while ( buffer.hasRemaining() && ( written = socketChannel.write( buffer ) ) > 0 )
+        {
+            bytesToTarget += written;
+            tunnelSelector.countToTarget( written );
+        }
+    }
 
-        closed = true;
+    private void sendToClient( final ByteBuffer buffer ) throws IOException
+    {
+        int written;
+        while ( buffer.hasRemaining() && ( written = sinkChannel.write( buffer ) ) > 0 )
+        {
+            bytesToClient += written;
+            tunnelSelector.countToClient( written );
+        }
+    }
 
+    private void closeIfDone()
+    {
+        if ( targetShutdown && clientShutdown )
+        {
+            close();
+        }
     }
 
-    public void write( byte[] bytes ) throws IOException
+    private void scheduleIdleCheck( final long delayMillis )
     {
-        socketChannel.write( ByteBuffer.wrap( bytes ) );
+        idleKey = ioThread.executeAfter( this::checkIdle, delayMillis, TimeUnit.MILLISECONDS );
     }
 
+    private void checkIdle()
+    {
+        if ( closed )
+        {
+            return;
+        }
+        long idleMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - lastActivityNanos );
+        if ( idleMillis >= idleTimeoutMillis )
+        {
+            logger.debug( "SSL tunnel idle for {} ms, closing", idleMillis );
+            close();
+        }
+        else
+        {
+            scheduleIdleCheck( idleTimeoutMillis - idleMillis );
+        }
+    }
+
+    /**
+     * Close both sides. Safe to call from any thread and repeatedly.
+     */
     public void close()
     {
-        try
+        if ( Thread.currentThread() != ioThread )
         {
-            //selector.close(); // wake it up to complete the tunnel
-            socketChannel.close();
+            ioThread.execute( this::close );
+            return;
         }
-        catch ( IOException e )
+        if ( closed )
         {
-            logger.error( "Close tunnel selector failed", e );
+            return;
         }
+        closed = true;
+
+        if ( idleKey != null )
+        {
+            idleKey.remove();
+        }
+        if ( registration != null )
+        {
+            registration.cancel();
+            tunnelSelector.closed();
+        }
+        closeQuietly( socketChannel );
+        if ( toTarget != null )
+        {
+            toTarget.release();
+            toTarget = null;
+        }
+        if ( toClient != null )
+        {
+            toClient.release();
+            toClient = null;
+        }
+        closeQuietly( sinkChannel );
+        closeQuietly( sourceChannel );
+        logger.debug( "SSL tunnel closed, {} bytes to target, {} bytes to client", bytesToTarget, bytesToClient );
     }
 
     public boolean isClosed()
@@ -162,4 +420,13 @@ public class ProxySSLTunnel implements Runnable
         return closed;
     }
 
+    public long getBytesToTarget()
+    {
+        return bytesToTarget;
+    }
+
+    public long getBytesToClient()
+    {
+        return bytesToClient;
+    }
 }
@@ -15,28 +15,112 @@
  */
 package org.commonjava.indy.service.httprox.handler;
 
+import io.smallrye.common.annotation.Identifier;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 import jakarta.ws.rs.Produces;
 import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.util.VirtualThreads;
 import org.eclipse.microprofile.context.ManagedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
 
 
 public class ProxyTransfersExecutor {
 
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
     @Inject
     ProxyConfiguration config;
 
+    /**
+     * Runs the blocking MITM servers of the socket MITM mode, each holding its thread for as long as the client keeps
+     * the connection. With virtual threads on, every task gets its own virtual thread, so the servers are bound by
+     * the connection high-water rather than max-async and max-queued. The tasks are started from XNIO I/O threads,
+     * which have no context to propagate.
+     */
     @Named("mitm-transfers")
     @ApplicationScoped
     @Produces
-    public ManagedExecutor getExecutor()
+    public ExecutorService getExecutor()
     {
+        if ( Boolean.TRUE.equals( config.isMitmVirtualThreads() ) )
+        {
+            if ( VirtualThreads.isSupported() )
+            {
+                logger.info( "Running MITM transfers on virtual threads" );
+                return VirtualThreads.newThreadPerTaskExecutor( "mitm-transfer-" );
+            }
+            logger.warn( "Virtual threads need Java 21, running MITM transfers on at most {} threads",
+                         config.getMitmMaxAsync() );
+        }
 
         return ManagedExecutor.builder()
                 .maxAsync( config.getMitmMaxAsync() )
                 .maxQueued( config.getMitmMaxQueued() )
                 .build();
     }
+
+    /**
+     * Runs the blocking store lookups of the {@link org.commonjava.indy.service.httprox.util.ArtifactStoreResolver}.
+     * Qualified by {@link Identifier} rather than {@link Named}, which would keep it a default ManagedExecutor too and
+     * make that ambiguous.
+     */
+    @Identifier("store-lookups")
+    @ApplicationScoped
+    @Produces
+    public ManagedExecutor getStoreLookupExecutor()
+    {
+
+        return ManagedExecutor.builder()
+                .maxAsync( config.getStoreLookupMaxAsync() )
+                .maxQueued( config.getStoreLookupMaxQueued() )
+                .build();
+    }
+
+    /**
+     * Runs the tasks of the {@link org.commonjava.indy.service.httprox.util.DownloadCoalescer} that write shared
+     * downloads to their spool files.
+     */
+    @Identifier("download-spools")
+    @ApplicationScoped
+    @Produces
+    public ManagedExecutor getDownloadSpoolExecutor()
+    {
+
+        return ManagedExecutor.builder()
+                .maxAsync( config.getDownloadSpoolMaxAsync() )
+                .maxQueued( config.getDownloadSpoolMaxQueued() )
+                .build();
+    }
+
+    /**
+     * Runs the blocking upstream reads of the {@link org.commonjava.indy.service.httprox.util.TransferPump}s, apart
+     * from the XNIO worker pool so that stalled upstreams do not starve other worker tasks. A read holds its thread
+     * only until the next bytes arrive; with virtual threads on it never holds a platform thread.
+     */
+    @Named("upstream-reads")
+    @ApplicationScoped
+    @Produces
+    public ExecutorService getUpstreamReadExecutor()
+    {
+        if ( Boolean.TRUE.equals( config.isUpstreamReadVirtualThreads() ) )
+        {
+            if ( VirtualThreads.isSupported() )
+            {
+                logger.info( "Running upstream reads on virtual threads" );
+                return VirtualThreads.newThreadPerTaskExecutor( "upstream-read-" );
+            }
+            logger.warn( "Virtual threads need Java 21, running upstream reads on at most {} threads",
+                         config.getUpstreamReadMaxAsync() );
+        }
+
+        return ManagedExecutor.builder()
+                .maxAsync( config.getUpstreamReadMaxAsync() )
+                .maxQueued( config.getUpstreamReadMaxQueued() )
+                .build();
+    }
 }
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.handler;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.ProtocolException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Discards a request body according to its framing, so that the next request on a kept-alive connection can be
+ * found. The proxy never uses request bodies: requests that may carry one are answered without reading it.
+ *
+ * The body is framed by chunked transfer coding or by Content-Length (RFC 7230, 3.3.3). Chunk extensions and
+ * trailer fields are skipped without being interpreted. Bodies over {@link #MAX_SKIPPED} bytes are not worth reading
+ * to keep a connection, the connection is closed instead.
+ */
+public final class RequestBodySkipper
+{
+    public static final long MAX_SKIPPED = 1024 * 1024;
+
+    private enum State
+    {
+        SIZE, EXTENSION, DATA, DATA_END, TRAILER, DONE
+    }
+
+    private final boolean chunked;
+
+    private State state;
+
+    // bytes left in the body, or in the current chunk
+    private long remaining;
+
+    private boolean sizeDigits;
+
+    private int trailerLineLength;
+
+    private long skipped;
+
+    private RequestBodySkipper( final boolean chunked, final long length )
+    {
+        this.chunked = chunked;
+        this.remaining = length;
+        this.state = chunked ? State.SIZE : length > 0 ? State.DATA : State.DONE;
+    }
+
+    /**
+     * @return a skipper for the body of request, or null when the end of the body cannot be told, e.g. a transfer
+     * coding other than chunked comes last, or the Content-Length headers are malformed or disagree, or when the body
+     * is longer than {@link #MAX_SKIPPED}
+     */
+    public static RequestBodySkipper forRequest( final HttpRequest request )
+    {
+        final Header[] codings = request.getHeaders( HttpHeaders.TRANSFER_ENCODING );
+        if ( codings.length > 0 )
+        {
+            final String[] last = codings[codings.length - 1].getValue().split( "," );
+            return "chunked".equalsIgnoreCase( last[last.length - 1].trim() ) ? new RequestBodySkipper( true, 0 ) : null;
+        }
+
+        long length = -1;
+        for ( final Header header : request.getHeaders( HttpHeaders.CONTENT_LENGTH ) )
+        {
+            final long value;
+            try
+            {
+                value = Long.parseLong( header.getValue().trim() );
+            }
+            catch ( final NumberFormatException e )
+            {
+                return null;
+            }
+            if ( value < 0 || value > MAX_SKIPPED || ( length >= 0 && value != length ) )
+            {
+                return null;
+            }
+            length = value;
+        }
+        return new RequestBodySkipper( false, Math.max( length, 0 ) );
+    }
+
+    public boolean isDone()
+    {
+        return state == State.DONE;
+    }
+
+    /**
+     * Consume body bytes from buf (in read mode), leaving its position after the body or at its limit.
+     *
+     * @return true once the whole body has been consumed
+     * @throws ProtocolException on broken chunk framing, or when a chunked body exceeds {@link #MAX_SKIPPED}
+     */
+    public boolean skip( final ByteBuffer buf )
+            throws ProtocolException
+    {
+        final int start = buf.position();
+        final boolean done = doSkip( buf );
+        skipped += buf.position() - start;
+        if ( !done && skipped > MAX_SKIPPED )
+        {
+            throw new ProtocolException( "Request body exceeds " + MAX_SKIPPED + " bytes" );
+        }
+        return done;
+    }
+
+    private boolean doSkip( final ByteBuffer buf )
+            throws ProtocolException
+    {
+        while ( state != State.DONE && buf.hasRemaining() )
+        {
+            if ( state == State.DATA )
+            {
+                final int n = (int) Math.min( remaining, buf.remaining() );
+                buf.position( buf.position() + n );
+                remaining -= n;
+                if ( remaining == 0 )
+                {
+                    state = chunked ? State.DATA_END : State.DONE;
+                }
+                continue;
+            }
+
+            onChunkByte( buf.get() );
+        }
+        return state == State.DONE;
+    }
+
+    private void onChunkByte( final byte b )
+            throws ProtocolException
+    {
+        switch ( state )
+        {
+            case SIZE:
+            {
+                final int digit = Character.digit( b, 16 );
+                if ( digit >= 0 )
+                {
+                    if ( remaining > ( Long.MAX_VALUE >> 4 ) )
+                    {
+                        throw new ProtocolException( "Chunk size too large" );
+                    }
+                    remaining = ( remaining << 4 ) + digit;
+                    sizeDigits = true;
+                }
+                else if ( b == ';' || b == ' ' || b == '\t' )
+                {
+                    state = State.EXTENSION;
+                }
+                else if ( b == '\n' )
+                {
+                    onSizeLineEnd();
+                }
+                else if ( b != '\r' )
+                {
+                    throw new ProtocolException( "Invalid chunk size" );
+                }
+                break;
+            }
+            case EXTENSION:
+            {
+                if ( b == '\n' )
+                {
+                    onSizeLineEnd();
+                }
+                break;
+            }
+            case DATA_END:
+            {
+                if ( b == '\n' )
+                {
+                    state = State.SIZE;
+                    sizeDigits = false;
+                }
+                else if ( b != '\r' )
+                {
+                    throw new ProtocolException( "Missing line end after chunk data" );
+                }
+                break;
+            }
+            case TRAILER:
+            {
+                if ( b == '\n' )
+                {
+                    if ( trailerLineLength == 0 )
+                    {
+                        state = State.DONE;
+                    }
+                    trailerLineLength = 0;
+                }
+                else if ( b != '\r' )
+                {
+                    trailerLineLength++;
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException( "Not a chunk framing state: " + state );
+        }
+    }
+
+    private void onSizeLineEnd()
+            throws ProtocolException
+    {
+        if ( !sizeDigits )
+        {
+            throw new ProtocolException( "Missing chunk size" );
+        }
+        state = remaining == 0 ? State.TRAILER : State.DATA;
+    }
+}
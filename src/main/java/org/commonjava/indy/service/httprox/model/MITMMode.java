@@ -13,20 +13,18 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package org.commonjava.indy.service.httprox.util;
+package org.commonjava.indy.service.httprox.model;
 
-import com.google.common.util.concurrent.Striped;
-
-import java.util.concurrent.locks.Lock;
-
-public class LockWrapper
+/**
+ * How TLS is terminated for CONNECT requests when MITM is enabled.
+ * <ul>
+ *     <li>ENGINE: on the client's own connection, with an SSLEngine wrapped around it.</li>
+ *     <li>SOCKET: by a loopback SSL server socket per CONNECT, relayed through {@code ProxySSLTunnel} (legacy).</li>
+ * </ul>
+ */
+public enum MITMMode
 {
 
-    private final static Striped<Lock> striped = Striped.lock(50);
-
-    public static Lock getLockByKey( String key )
-    {
-        return striped.get( key );
-    }
+    ENGINE, SOCKET;
 
 }
@@ -32,6 +32,7 @@ public enum ApplicationHeader {
     content_disposition("Content-Disposition"),
     indy_origin("Indy-Origin"),
     transfer_encoding("Transfer-Encoding"),
+    retry_after("Retry-After"),
     md5("INDY-MD5"),
     sha1("INDY-SHA1");
 
@@ -47,7 +47,9 @@ public enum ApplicationStatus {
 
     NOT_IMPLEMENTED(501, "Not Implemented"),
 
-    BAD_GATEWAY(502, "Bad Gateway");
+    BAD_GATEWAY(502, "Bad Gateway"),
+
+    SERVICE_UNAVAILABLE(503, "Service Unavailable");
     /* @formatter:on */
 
     private final int status;
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import org.apache.http.HttpStatus;
+import org.commonjava.indy.model.core.ArtifactStore;
+import org.commonjava.indy.model.core.Group;
+import org.commonjava.indy.model.core.RemoteRepository;
+import org.commonjava.indy.model.core.dto.StoreListingDTO;
+import org.commonjava.indy.pkg.PackageTypeConstants;
+import org.commonjava.indy.service.httprox.client.repository.RepositoryService;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.eclipse.microprofile.faulttolerance.exceptions.CircuitBreakerOpenException;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.indy.model.core.ArtifactStore.TRACKING_ID;
+
+/**
+ * Looks up the store of a {@link StoreTarget} in the repository service: the group of the trackingId, or else the
+ * untracked remote repository of the target's base url. Depends on nothing of the request, so the
+ * {@link ArtifactStoreResolver} uses it for background refreshes as well.
+ */
+@ApplicationScoped
+public class ArtifactStoreFinder
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    ProxyConfiguration config;
+
+    @Inject
+    @RestClient
+    RepositoryService repositoryService;
+
+    /**
+     * While the repository service's circuit breaker is open the lookup fails right away, with a
+     * {@link ServiceUnavailableException} that has the request answered 503.
+     *
+     * @param creator creates the store if the repository service does not know the target; null to not create it,
+     * the answer is null then
+     */
+    public ArtifactStore find( final StoreTarget target, final ArtifactStoreResolver.StoreCreator creator )
+            throws Exception
+    {
+        try
+        {
+            return target.getTrackingId() != null ? findGroup( target, creator ) : findRemote( target, creator );
+        }
+        catch ( CircuitBreakerOpenException e )
+        {
+            long retryAfter = TimeUnit.MILLISECONDS.toSeconds( RepositoryService.BREAKER_DELAY_MILLIS );
+            throw new ServiceUnavailableException( retryAfter,
+                                                   "Repository service unavailable, circuit breaker is open", e );
+        }
+    }
+
+    private ArtifactStore findGroup( final StoreTarget target, final ArtifactStoreResolver.StoreCreator creator )
+            throws Exception
+    {
+        String groupName = new RepoCreator( config ).formatId( target.getHost(), target.getPort(), 0,
+                                                               target.getTrackingId(), "group" );
+        try ( Response response = repositoryService.getStore( PackageTypeConstants.PKG_TYPE_GENERIC_HTTP, "group",
+                                                              groupName ) )
+        {
+            if ( response != null && response.getStatus() == HttpStatus.SC_OK )
+            {
+                return (Group) response.readEntity( ArtifactStore.class );
+            }
+            return null;
+        }
+        catch ( WebApplicationException e )
+        {
+            if ( e.getResponse().getStatus() == HttpStatus.SC_NOT_FOUND )
+            {
+                logger.debug( "No group {} for {}", groupName, target );
+                return creator == null ? null : creator.create();
+            }
+            throw new IndyProxyException( "Get artifact store error.", e );
+        }
+    }
+
+    private ArtifactStore findRemote( final StoreTarget target, final ArtifactStoreResolver.StoreCreator creator )
+            throws Exception
+    {
+        final String baseUrl = target.getBaseUrl();
+        logger.info( "baseUrl: {}", baseUrl );
+        try ( Response response = repositoryService.getRemoteByUrl( PackageTypeConstants.PKG_TYPE_GENERIC_HTTP,
+                                                                    "remote", baseUrl ) )
+        {
+            if ( response != null && response.getStatus() == HttpStatus.SC_OK )
+            {
+                StoreListingDTO<RemoteRepository> dto = response.readEntity( StoreListingDTO.class );
+                for ( RemoteRepository remoteRepository : dto.getItems() )
+                {
+                    if ( remoteRepository.getMetadata( TRACKING_ID ) == null )
+                    {
+                        return remoteRepository;
+                    }
+                }
+            }
+            return null;
+        }
+        catch ( WebApplicationException e )
+        {
+            if ( e.getResponse().getStatus() == HttpStatus.SC_NOT_FOUND )
+            {
+                logger.debug( "No remote repository for {}", baseUrl );
+                return creator == null ? null : creator.create();
+            }
+            throw new IndyProxyException( "Get artifact store error.", e );
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.smallrye.common.annotation.Identifier;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.commonjava.indy.model.core.ArtifactStore;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.eclipse.microprofile.context.ManagedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the artifact store serving a (host, port, trackingId) target without blocking the caller.
+ *
+ * Concurrent requests for the same target share one lookup, run on the store-lookups executor. Stores found are kept
+ * in the artifact_store cache; failed lookups are remembered for a short while so a failing repository service is not
+ * hit again by every queued request. No lock is held while the repository service is called.
+ *
+ * A store the repository service does not know yet is created by the request that asked for it, on behalf of its
+ * client. Nothing of that request is kept: cache entries hold the {@link StoreTarget} only.
+ *
+ * When the artifact_store cache has a refresh-after-write, a cached store older than that is still served while the
+ * {@link StoreLookup} runs again in the background, without creating anything. A failed refresh keeps the old store
+ * until the cache's expire-after-write drops it.
+ */
+@ApplicationScoped
+public class ArtifactStoreResolver
+{
+    public static final String ARTIFACT_STORE_CACHE = "artifact_store";
+
+    private static final int MAX_FAILURES = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    ProxyConfiguration config;
+
+    @Inject
+    CacheProducer cacheProducer;
+
+    @Inject
+    @Identifier( "store-lookups" )
+    ManagedExecutor lookupExecutor;
+
+    @Inject
+    ArtifactStoreFinder finder;
+
+    private Executor executor;
+
+    private StoreLookup lookup;
+
+    private LoadingCache<String, StoreEntry> stores;
+
+    private Cache<String, Throwable> failures;
+
+    private final ConcurrentMap<String, CompletableFuture<ArtifactStore>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * The blocking lookup of a store against the repository service, see {@link ArtifactStoreFinder}.
+     */
+    @FunctionalInterface
+    public interface StoreLookup
+    {
+        /**
+         * @param creator creates the store if the repository service does not know target; null on refreshes
+         */
+        ArtifactStore lookup( StoreTarget target, StoreCreator creator )
+                throws Exception;
+    }
+
+    /**
+     * Creates the store of a target on behalf of the requesting client. Only used while its lookup runs.
+     */
+    @FunctionalInterface
+    public interface StoreCreator
+    {
+        ArtifactStore create()
+                throws Exception;
+    }
+
+    protected ArtifactStoreResolver()
+    {
+    }
+
+    public ArtifactStoreResolver( final ProxyConfiguration config, final CacheProducer cacheProducer,
+                                  final Executor executor, final StoreLookup lookup )
+    {
+        this.config = config;
+        this.cacheProducer = cacheProducer;
+        this.executor = executor;
+        this.lookup = lookup;
+        init();
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        if ( executor == null )
+        {
+            executor = lookupExecutor;
+        }
+        if ( lookup == null )
+        {
+            lookup = finder::find;
+        }
+        stores = cacheProducer.getLoadingCache( ARTIFACT_STORE_CACHE, new StoreReloader() );
+        failures = Caffeine.newBuilder()
+                           .maximumSize( MAX_FAILURES )
+                           .expireAfterWrite( config.getStoreLookupNegativeTtlSeconds(), TimeUnit.SECONDS )
+                           .build();
+    }
+
+    /**
+     * Get the store for the given target, running the lookup only if no other request is already doing so. The
+     * future completes with null when the repository service answered without a store; that answer is not cached.
+     */
+    public CompletableFuture<ArtifactStore> resolve( final StoreTarget target, final StoreCreator creator )
+    {
+        final String key = target.toKey();
+
+        StoreEntry entry = stores.getIfPresent( key ); // may start a background refresh of a stale entry
+        if ( entry != null )
+        {
+            return CompletableFuture.completedFuture( entry.store );
+        }
+
+        Throwable failure = failures.getIfPresent( key );
+        if ( failure != null )
+        {
+            logger.debug( "Store lookup for {} failed recently, not retrying yet: {}", key, failure.toString() );
+            return CompletableFuture.failedFuture( failure );
+        }
+
+        final CompletableFuture<ArtifactStore> created = new CompletableFuture<>();
+        final CompletableFuture<ArtifactStore> existing = inFlight.putIfAbsent( key, created );
+        if ( existing != null )
+        {
+            logger.debug( "Joining store lookup in flight for {}", key );
+            return existing;
+        }
+
+        try
+        {
+            executor.execute( () -> runLookup( key, target, creator, created ) );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            inFlight.remove( key, created );
+            created.completeExceptionally( e );
+        }
+        return created;
+    }
+
+    private void runLookup( final String key, final StoreTarget target, final StoreCreator creator,
+                            final CompletableFuture<ArtifactStore> future )
+    {
+        try
+        {
+            ArtifactStore store = lookup.lookup( target, creator );
+            if ( store != null )
+            {
+                stores.put( key, new StoreEntry( store, target ) );
+            }
+            future.complete( store );
+        }
+        catch ( Throwable t )
+        {
+            logger.debug( "Store lookup for {} failed: {}", key, t.toString() );
+            failures.put( key, t );
+            future.completeExceptionally( t );
+        }
+        finally
+        {
+            // later callers find the result in one of the caches
+            inFlight.remove( key, future );
+        }
+    }
+
+    /**
+     * A cached store, with its target so it can be refreshed.
+     */
+    private static final class StoreEntry
+    {
+        private final ArtifactStore store;
+
+        private final StoreTarget target;
+
+        private StoreEntry( final ArtifactStore store, final StoreTarget target )
+        {
+            this.store = store;
+            this.target = target;
+        }
+    }
+
+    private final class StoreReloader
+            implements CacheLoader<String, StoreEntry>
+    {
+        @Override
+        public StoreEntry load( final String key )
+        {
+            return null; // entries are only added by resolve(), which knows how to look them up
+        }
+
+        @Override
+        public CompletableFuture<StoreEntry> asyncReload( final String key, final StoreEntry old,
+                                                         final Executor cacheExecutor )
+        {
+            Throwable failure = failures.getIfPresent( key );
+            if ( failure != null )
+            {
+                return CompletableFuture.failedFuture( failure );
+            }
+
+            final CompletableFuture<StoreEntry> reloaded = new CompletableFuture<>();
+            try
+            {
+                executor.execute( () -> {
+                    try
+                    {
+                        // no request is behind a refresh, so nothing is created on anybody's behalf
+                        ArtifactStore store = lookup.lookup( old.target, null );
+                        logger.debug( "Refreshed store for {}: {}", key, store == null ? null : store.getKey() );
+                        // null drops the entry, the next request looks it up again (and creates it if need be)
+                        reloaded.complete( store == null ? null : new StoreEntry( store, old.target ) );
+                    }
+                    catch ( Throwable t )
+                    {
+                        logger.debug( "Store refresh for {} failed, keeping the cached store: {}", key, t.toString() );
+                        failures.put( key, t );
+                        reloaded.completeExceptionally( t );
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                reloaded.completeExceptionally( e );
+            }
+            return reloaded;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.commonjava.indy.service.httprox.util.ChannelUtils.DEFAULT_READ_BUF_SIZE;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.BUFFER_POOL_HITS;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.BUFFER_POOL_IDLE;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.BUFFER_POOL_LEAKS;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.BUFFER_POOL_MISSES;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.BUFFER_POOL_OUTSTANDING;
+
+/**
+ * Bounded pool of direct {@link ByteBuffer}s of {@link ChannelUtils#DEFAULT_READ_BUF_SIZE} bytes, shared by the
+ * reader, writer and tunnel I/O paths.
+ *
+ * Buffers are handed out as {@link Lease}s. A lease that becomes unreachable without being released is reported as
+ * a leak and its buffer is dropped rather than returned to the pool.
+ */
+public final class ByteBufferPool
+{
+    public static final int DEFAULT_MAX_POOLED = 512;
+
+    private static final ByteBufferPool INSTANCE = new ByteBufferPool( DEFAULT_READ_BUF_SIZE, DEFAULT_MAX_POOLED );
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final int bufferSize;
+
+    private volatile int maxPooled;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder leaks = new LongAdder();
+
+    public ByteBufferPool( final int bufferSize, final int maxPooled )
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public static ByteBufferPool getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public void setMaxPooled( final int maxPooled )
+    {
+        this.maxPooled = maxPooled;
+        while ( idleCount.get() > maxPooled && idle.poll() != null )
+        {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public Lease lease()
+    {
+        ByteBuffer buffer = idle.poll();
+        if ( buffer != null )
+        {
+            idleCount.decrementAndGet();
+            hits.increment();
+            buffer.clear();
+        }
+        else
+        {
+            misses.increment();
+            buffer = ByteBuffer.allocateDirect( bufferSize );
+        }
+
+        outstanding.incrementAndGet();
+        return new Lease( buffer );
+    }
+
+    private void recycle( final ByteBuffer buffer )
+    {
+        outstanding.decrementAndGet();
+        if ( idleCount.incrementAndGet() <= maxPooled )
+        {
+            buffer.clear();
+            idle.offer( buffer );
+        }
+        else
+        {
+            idleCount.decrementAndGet(); // pool is full, let GC reclaim it
+        }
+    }
+
+    private void leaked( final Throwable origin )
+    {
+        outstanding.decrementAndGet();
+        leaks.increment();
+        if ( origin != null )
+        {
+            logger.warn( "Pooled buffer was never released. Leased at:", origin );
+        }
+        else
+        {
+            logger.warn( "Pooled buffer was never released. Enable DEBUG logging for {} to see where it was leased.",
+                         ByteBufferPool.class.getName() );
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getLeaks()
+    {
+        return leaks.sum();
+    }
+
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+    public int getIdle()
+    {
+        return idleCount.get();
+    }
+
+    public void bindTo( final MeterRegistry registry )
+    {
+        FunctionCounter.builder( BUFFER_POOL_HITS, this, ByteBufferPool::getHits )
+                       .description( "Buffer leases served from the pool" )
+                       .register( registry );
+        FunctionCounter.builder( BUFFER_POOL_MISSES, this, ByteBufferPool::getMisses )
+                       .description( "Buffer leases that required a new allocation" )
+                       .register( registry );
+        FunctionCounter.builder( BUFFER_POOL_LEAKS, this, ByteBufferPool::getLeaks )
+                       .description( "Buffer leases collected without being released" )
+                       .register( registry );
+        Gauge.builder( BUFFER_POOL_OUTSTANDING, this, ByteBufferPool::getOutstanding )
+             .description( "Buffers currently leased" )
+             .register( registry );
+        Gauge.builder( BUFFER_POOL_IDLE, this, ByteBufferPool::getIdle )
+             .description( "Buffers waiting in the pool" )
+             .register( registry );
+    }
+
+    /**
+     * A leased buffer. Release it exactly once when the owning connection or transfer is done with it; further
+     * releases are ignored.
+     */
+    public final class Lease
+            implements AutoCloseable
+    {
+        private final ByteBuffer buffer;
+
+        private final LeakDetector detector;
+
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease( final ByteBuffer buffer )
+        {
+            this.buffer = buffer;
+            this.detector = new LeakDetector( ByteBufferPool.this,
+                                              logger.isDebugEnabled() ? new Throwable( "buffer lease" ) : null );
+            this.cleanable = CLEANER.register( this, detector );
+        }
+
+        public ByteBuffer buffer()
+        {
+            return buffer;
+        }
+
+        public void release()
+        {
+            // the I/O thread and a transfer completion may race to release, only one of them may recycle
+            if ( !detector.released.compareAndSet( false, true ) )
+            {
+                return;
+            }
+
+            cleanable.clean();
+            recycle( buffer );
+        }
+
+        @Override
+        public void close()
+        {
+            release();
+        }
+    }
+
+    // must not reference the Lease, otherwise it never becomes phantom reachable
+    private static final class LeakDetector
+            implements Runnable
+    {
+        private final ByteBufferPool pool;
+
+        private final Throwable origin;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private LeakDetector( final ByteBufferPool pool, final Throwable origin )
+        {
+            this.pool = pool;
+            this.origin = origin;
+        }
+
+        @Override
+        public void run()
+        {
+            if ( !released.get() )
+            {
+                pool.leaked( origin );
+            }
+        }
+    }
+}
@@ -16,19 +16,66 @@
 package org.commonjava.indy.service.httprox.util;
 
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Weigher;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
 import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CACHE_EVICTIONS;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CACHE_HIT_RATE;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CACHE_LOAD_TIME;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CACHE_NAME;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CACHE_SIZE;
+
+/**
+ * Named Caffeine caches, each sized and expired per the <code>cache.&lt;name&gt;.*</code> settings:
+ * <ul>
+ *     <li>max-size, or max-weight when the cache is created with a {@link Weigher};</li>
+ *     <li>expire-after-write and/or expire-after-access (expire-after-access 15m if neither is set);</li>
+ *     <li>refresh-after-write, for caches created with a {@link CacheLoader}.</li>
+ * </ul>
+ * Every cache records stats, published as gauges tagged with the cache name. A cache is built by the first caller
+ * asking for its name; lookups after that are lock-free.
+ */
 @ApplicationScoped
 public class CacheProducer
 {
+    public static final String CACHE_CONFIG_PREFIX = "cache.";
+
+    private static final long DEFAULT_MAX_SIZE = 50;
+
+    private static final Duration DEFAULT_EXPIRE_AFTER_ACCESS = Duration.ofMinutes( 15 );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    Config config;
 
-    private Map<String, Cache> caches = new ConcurrentHashMap<>();
+    private final Map<String, Cache> caches = new ConcurrentHashMap<>();
+
+    public CacheProducer()
+    {
+    }
+
+    public CacheProducer( Config config )
+    {
+        this.config = config;
+    }
 
     @PostConstruct
     public void start()
@@ -36,19 +83,104 @@ public class CacheProducer
 
     }
 
-    public synchronized <K, V> Cache<K, V> getCache( String named )
+    public <K, V> Cache<K, V> getCache( String named )
     {
-        return caches.computeIfAbsent( named, ( k ) -> buildCache());
+        return getCache( named, null );
     }
 
-    private Cache buildCache()
+    /**
+     * Get the named cache, bounding it by total weight when <code>cache.&lt;name&gt;.max-weight</code> is set.
+     */
+    public <K, V> Cache<K, V> getCache( String named, Weigher<? super K, ? super V> weigher )
     {
-        Cache<String, String> cache = Caffeine.newBuilder()
-                .maximumSize( 50 )
-                .expireAfterAccess(15, TimeUnit.MINUTES)
-                .build();
+        Cache cache = caches.get( named );
+        if ( cache == null )
+        {
+            cache = caches.computeIfAbsent( named, ( k ) -> {
+                if ( getSetting( k, "refresh-after-write", Duration.class ).isPresent() )
+                {
+                    logger.warn( "Cache {} has no loader, ignoring its refresh-after-write", k );
+                }
+                return register( k, buildCache( k, weigher ).build() );
+            } );
+        }
         return cache;
     }
 
+    /**
+     * Get the named cache, loading missing entries (and refreshing them ahead of expiry, when
+     * <code>cache.&lt;name&gt;.refresh-after-write</code> is set) with the given loader.
+     */
+    public <K, V> LoadingCache<K, V> getLoadingCache( String named, CacheLoader<K, V> loader )
+    {
+        Cache cache = caches.get( named );
+        if ( cache == null )
+        {
+            cache = caches.computeIfAbsent( named, ( k ) -> {
+                Caffeine builder = buildCache( k, null );
+                getSetting( k, "refresh-after-write", Duration.class ).ifPresent( builder::refreshAfterWrite );
+                return register( k, builder.build( loader ) );
+            } );
+        }
+        return (LoadingCache<K, V>) cache;
+    }
+
+    private Caffeine buildCache( String named, Weigher weigher )
+    {
+        Caffeine builder = Caffeine.newBuilder().recordStats();
+
+        Optional<Long> maxWeight = getSetting( named, "max-weight", Long.class );
+        if ( weigher != null && maxWeight.isPresent() )
+        {
+            builder = builder.maximumWeight( maxWeight.get() ).weigher( weigher );
+        }
+        else
+        {
+            builder = builder.maximumSize( getSetting( named, "max-size", Long.class ).orElse( DEFAULT_MAX_SIZE ) );
+        }
+
+        Optional<Duration> expireAfterWrite = getSetting( named, "expire-after-write", Duration.class );
+        Optional<Duration> expireAfterAccess = getSetting( named, "expire-after-access", Duration.class );
+        if ( expireAfterWrite.isEmpty() && expireAfterAccess.isEmpty() )
+        {
+            expireAfterAccess = Optional.of( DEFAULT_EXPIRE_AFTER_ACCESS );
+        }
+        expireAfterWrite.ifPresent( builder::expireAfterWrite );
+        expireAfterAccess.ifPresent( builder::expireAfterAccess );
+
+        logger.info( "Building cache {}, max-weight: {}, expire-after-write: {}, expire-after-access: {}", named,
+                     maxWeight.orElse( null ), expireAfterWrite.orElse( null ), expireAfterAccess.orElse( null ) );
+        return builder;
+    }
 
+    private <T> Optional<T> getSetting( String named, String setting, Class<T> type )
+    {
+        if ( config == null )
+        {
+            return Optional.empty();
+        }
+        return config.getOptionalValue( CACHE_CONFIG_PREFIX + named + "." + setting, type );
+    }
+
+    private Cache register( String named, Cache cache )
+    {
+        Gauge.builder( CACHE_SIZE, cache, Cache::estimatedSize )
+             .tag( CACHE_NAME, named )
+             .description( "Approximate number of entries in the cache" )
+             .register( Metrics.globalRegistry );
+        Gauge.builder( CACHE_HIT_RATE, cache, c -> c.stats().hitRate() )
+             .tag( CACHE_NAME, named )
+             .description( "Ratio of cache lookups that found an entry" )
+             .register( Metrics.globalRegistry );
+        FunctionCounter.builder( CACHE_EVICTIONS, cache, c -> c.stats().evictionCount() )
+                       .tag( CACHE_NAME, named )
+                       .description( "Entries evicted from the cache by size or expiry" )
+                       .register( Metrics.globalRegistry );
+        Gauge.builder( CACHE_LOAD_TIME, cache,
+                       c -> c.stats().averageLoadPenalty() / TimeUnit.MILLISECONDS.toNanos( 1 ) )
+             .tag( CACHE_NAME, named )
+             .description( "Average time spent loading a missing entry, in milliseconds" )
+             .register( Metrics.globalRegistry );
+        return cache;
+    }
 }
@@ -40,6 +40,7 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Date;
@@ -50,6 +51,12 @@ public class CertUtils
 
     public static final String KEY_TYPE_RSA = "RSA";
 
+    public static final String KEY_TYPE_EC = "EC";
+
+    public static final int RSA_KEY_SIZE = 2048;
+
+    public static final String EC_CURVE = "secp256r1"; // P-256
+
     public static final String CERT_TYPE_X509 = "X.509";
 
     public static final int DEFAULT_CERT_EXPIRATION_DAYS = 365;
@@ -227,16 +234,91 @@ public class CertUtils
                                                                     boolean isIntermediate )
             throws OperatorCreationException, Exception
     {
-        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance( KEY_TYPE_RSA );
-        KeyPair pair = keyPairGenerator.generateKeyPair();
-
-        X509Certificate cert = generateX509Certificate( pair, dn, DEFAULT_CERT_EXPIRATION_DAYS, DEFAULT_SIGN_ALGORITHM );
+        return createSignedCertificateAndKey( dn, generateKeyPair( KEY_TYPE_RSA ), issuerCertificate,
+                                              issuerPrivateKey, isIntermediate );
+    }
 
+    /**
+     * Issue a certificate for an existing key pair, which may be shared by many certificates.
+     * @param dn                the subject Distinguished Name
+     * @param pair              the subject key pair
+     * @param issuerCertificate
+     * @param issuerPrivateKey
+     * @param isIntermediate
+     * @return
+     * @throws Exception
+     */
+    public static CertificateAndKeys createSignedCertificateAndKey( String dn, KeyPair pair,
+                                                                    X509Certificate issuerCertificate,
+                                                                    PrivateKey issuerPrivateKey,
+                                                                    boolean isIntermediate )
+            throws Exception
+    {
         X509Certificate signedCertificate =
-                createSignedCertificate( cert, issuerCertificate, issuerPrivateKey, isIntermediate );
-        PublicKey publicKey = signedCertificate.getPublicKey();
-        PrivateKey privateKey = pair.getPrivate();
-        return new CertificateAndKeys( signedCertificate, privateKey, publicKey );
+                issueCertificate( dn, pair.getPublic(), issuerCertificate, issuerPrivateKey,
+                                  DEFAULT_CERT_EXPIRATION_DAYS, isIntermediate );
+        return new CertificateAndKeys( signedCertificate, pair );
+    }
+
+    /**
+     * Issue a certificate signed by the issuer in a single pass, without first creating a self-signed certificate
+     * for the subject key as {@link #createSignedCertificate} requires.
+     * @param dn                the subject Distinguished Name
+     * @param subjectKey        the subject public key
+     * @param issuerCertificate
+     * @param issuerPrivateKey
+     * @param days              how many days from now the cert is valid for
+     * @param isIntermediate
+     * @return
+     * @throws Exception
+     */
+    public static X509Certificate issueCertificate( String dn, PublicKey subjectKey,
+                                                    X509Certificate issuerCertificate, PrivateKey issuerPrivateKey,
+                                                    int days, boolean isIntermediate )
+            throws Exception
+    {
+        String issuerSigAlg = issuerCertificate.getSigAlgName();
+        JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+        JcaContentSignerBuilder contentSignerBuilder = new JcaContentSignerBuilder(issuerSigAlg).setProvider(BouncyCastleProvider.PROVIDER_NAME);
+        Date now = new Date();
+        JcaX509v3CertificateBuilder v3CertGen = new JcaX509v3CertificateBuilder(
+                issuerCertificate.getSubjectX500Principal(),
+                allocateSerialNumber(),
+                now,
+                new Date( now.getTime() + (MILLIS_IN_DAY * days) ),
+                new X500Principal( dn ),
+                subjectKey
+        );
+
+        if ( isIntermediate )
+        {
+            v3CertGen.addExtension(
+                    Extension.basicConstraints,
+                    true,
+                    new BasicConstraints(-1));
+        }
+
+        return converter.getCertificate(v3CertGen.build(contentSignerBuilder.build(issuerPrivateKey)));
+    }
+
+    /**
+     * Generate a key pair for a leaf certificate
+     * @param keyType   {@link #KEY_TYPE_RSA} ({@value #RSA_KEY_SIZE} bits) or {@link #KEY_TYPE_EC} (P-256)
+     * @return          new key pair
+     * @throws GeneralSecurityException
+     */
+    public static KeyPair generateKeyPair( String keyType ) throws GeneralSecurityException
+    {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance( keyType );
+        if ( KEY_TYPE_EC.equals( keyType ) )
+        {
+            keyPairGenerator.initialize( new ECGenParameterSpec( EC_CURVE ) );
+        }
+        else
+        {
+            keyPairGenerator.initialize( RSA_KEY_SIZE );
+        }
+        return keyPairGenerator.generateKeyPair();
     }
 
     private static BigInteger allocateSerialNumber()
@@ -0,0 +1,515 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import okhttp3.Headers;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.commonjava.indy.model.core.ArtifactStore;
+import org.commonjava.indy.model.core.RemoteRepository;
+import org.commonjava.indy.model.core.StoreKey;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.apache.commons.codec.digest.DigestUtils.sha256Hex;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CONTENT_CACHE_HITS;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CONTENT_CACHE_MISSES;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.CONTENT_CACHE_SIZE_BYTES;
+
+/**
+ * Optional on-disk copies of content fetched for non-tracked requests, which go to passthrough remotes and would
+ * otherwise hit the content service (and upstream) every time.
+ *
+ * Content is written to the cache while it streams to the first client, and kept when upstream allows it: paths with
+ * an immutable extension are kept until evicted, other paths for their Cache-Control max-age. Once the total size
+ * exceeds the configured bound, the least recently (and frequently) used entries are evicted. The index lives in memory
+ * only, so the cache directory is emptied on startup.
+ */
+@ApplicationScoped
+public class ContentCache
+{
+    private static final long KB = 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    ProxyConfiguration config;
+
+    private boolean enabled;
+
+    private Path dir;
+
+    private List<String> immutableExtensions;
+
+    private Cache<String, Entry> index;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong sizeBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    protected ContentCache()
+    {
+    }
+
+    public ContentCache( final ProxyConfiguration config )
+    {
+        this.config = config;
+        init();
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        enabled = Boolean.TRUE.equals( config.isContentCacheEnabled() );
+        if ( !enabled )
+        {
+            return;
+        }
+
+        dir = Paths.get( config.getContentCacheDir() );
+        immutableExtensions = config.getContentCacheImmutableExtensions()
+                                    .stream()
+                                    .map( e -> e.trim().toLowerCase( Locale.ROOT ) )
+                                    .collect( Collectors.toList() );
+        try
+        {
+            clean( dir );
+            Files.createDirectories( dir );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Cannot prepare content cache directory " + dir, e );
+        }
+
+        index = Caffeine.newBuilder()
+                        .maximumWeight( config.getContentCacheMaxSizeMb() * KB )
+                        .weigher( ( String k, Entry e ) -> (int) Math.min( Integer.MAX_VALUE, ( e.length + KB - 1 ) / KB ) )
+                        .removalListener( ( k, e, cause ) -> {
+                            if ( e != null )
+                            {
+                                logger.debug( "Content cache entry {} removed ({})", k, cause );
+                                sizeBytes.addAndGet( -e.length );
+                                delete( e.file );
+                            }
+                        } )
+                        .build();
+
+        logger.info( "Content cache in {}, max size: {} MB, immutable extensions: {}", dir,
+                     config.getContentCacheMaxSizeMb(), immutableExtensions );
+    }
+
+    /**
+     * Content is only cached for non-tracked requests to passthrough remotes; tracked requests must reach the content
+     * service so their downloads get recorded.
+     */
+    public boolean isCacheable( final ArtifactStore store, final String trackingId )
+    {
+        return enabled && trackingId == null && store instanceof RemoteRepository
+                && ( (RemoteRepository) store ).isPassthrough();
+    }
+
+    /**
+     * Get the fresh cached copy of path in store, or null.
+     */
+    public Entry get( final StoreKey storeKey, final String path )
+    {
+        final String key = toKey( storeKey, path );
+        Entry entry = index.getIfPresent( key );
+        if ( entry != null && entry.expiresAt <= System.currentTimeMillis() )
+        {
+            index.asMap().remove( key, entry );
+            entry = null;
+        }
+
+        if ( entry == null )
+        {
+            misses.increment();
+        }
+        else
+        {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Return a source that also writes what is read from upstream to the cache, or the upstream source itself if the
+     * response may not be cached. The copy is only kept once the whole body has been read.
+     */
+    public BufferedSource cache( final StoreKey storeKey, final String path, final Headers headers,
+                                 final long contentLength, final BufferedSource upstream )
+    {
+        final long expiresAt = getExpiry( path, headers.get( ApplicationHeader.cache_control.key() ) );
+        if ( expiresAt <= System.currentTimeMillis() )
+        {
+            logger.trace( "Not caching {} in {}", path, storeKey );
+            return upstream;
+        }
+
+        final String key = toKey( storeKey, path );
+        final Path file = dir.resolve( sha256Hex( key ) + "." + sequence.incrementAndGet() );
+        final Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+        try
+        {
+            final OutputStream out = Files.newOutputStream( tmp );
+            return Okio.buffer(
+                    new CachingSource( upstream, out, tmp, key, contentLength,
+                                       new Entry( file, 0, headers.get( ApplicationHeader.content_type.key() ),
+                                                  headers.get( ApplicationHeader.last_modified.key() ),
+                                                  expiresAt ) ) );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Cannot write content cache file {}: {}", tmp, e.toString() );
+            return upstream;
+        }
+    }
+
+    private long getExpiry( final String path, final String cacheControl )
+    {
+        long maxAge = -1;
+        boolean immutable = isImmutable( path );
+        if ( cacheControl != null )
+        {
+            for ( String directive : cacheControl.toLowerCase( Locale.ROOT ).split( "," ) )
+            {
+                directive = directive.trim();
+                if ( directive.equals( "no-store" ) || directive.equals( "no-cache" ) || directive.equals( "private" ) )
+                {
+                    return -1;
+                }
+                else if ( directive.equals( "immutable" ) )
+                {
+                    immutable = true;
+                }
+                else if ( directive.startsWith( "max-age=" ) || directive.startsWith( "s-maxage=" ) )
+                {
+                    try
+                    {
+                        maxAge = Math.max( maxAge, Long.parseLong( directive.substring( directive.indexOf( '=' ) + 1 ) ) );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        logger.debug( "Ignoring malformed Cache-Control directive: {}", directive );
+                    }
+                }
+            }
+        }
+
+        if ( immutable )
+        {
+            return Long.MAX_VALUE;
+        }
+        return maxAge > 0 ? System.currentTimeMillis() + maxAge * 1000 : -1;
+    }
+
+    private boolean isImmutable( final String path )
+    {
+        int query = path.indexOf( '?' );
+        String p = ( query < 0 ? path : path.substring( 0, query ) ).toLowerCase( Locale.ROOT );
+        for ( String ext : immutableExtensions )
+        {
+            if ( p.endsWith( ext ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void commit( final String key, final Path tmp, final Entry pending, final long length )
+    {
+        try
+        {
+            Files.move( tmp, pending.file, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Cannot commit content cache file {}: {}", pending.file, e.toString() );
+            delete( tmp );
+            return;
+        }
+
+        Entry entry = new Entry( pending.file, length, pending.contentType, pending.lastModified, pending.expiresAt );
+        sizeBytes.addAndGet( length );
+        index.put( key, entry );
+        logger.debug( "Cached {} ({} bytes)", key, length );
+    }
+
+    private void delete( final Path file )
+    {
+        try
+        {
+            Files.deleteIfExists( file );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Cannot delete content cache file {}: {}", file, e.toString() );
+        }
+    }
+
+    private static void clean( final Path dir )
+            throws IOException
+    {
+        if ( !Files.isDirectory( dir ) )
+        {
+            return;
+        }
+        try (Stream<Path> files = Files.walk( dir ))
+        {
+            for ( Path p : files.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() ) )
+            {
+                if ( !p.equals( dir ) )
+                {
+                    Files.delete( p );
+                }
+            }
+        }
+    }
+
+    private static String toKey( final StoreKey storeKey, final String path )
+    {
+        return storeKey + ":" + path;
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getSizeBytes()
+    {
+        return sizeBytes.get();
+    }
+
+    public void bindTo( final MeterRegistry registry )
+    {
+        FunctionCounter.builder( CONTENT_CACHE_HITS, this, ContentCache::getHits )
+                       .description( "Requests served from the local content cache" )
+                       .register( registry );
+        FunctionCounter.builder( CONTENT_CACHE_MISSES, this, ContentCache::getMisses )
+                       .description( "Cacheable requests not found in the local content cache" )
+                       .register( registry );
+        Gauge.builder( CONTENT_CACHE_SIZE_BYTES, this, ContentCache::getSizeBytes )
+             .description( "Total size of the files in the local content cache" )
+             .register( registry );
+    }
+
+    /**
+     * A cached file and the upstream headers that are replayed with it.
+     */
+    public static final class Entry
+    {
+        private final Path file;
+
+        private final long length;
+
+        private final String contentType;
+
+        private final String lastModified;
+
+        private final long expiresAt;
+
+        private Entry( final Path file, final long length, final String contentType, final String lastModified,
+                       final long expiresAt )
+        {
+            this.file = file;
+            this.length = length;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        public Path getFile()
+        {
+            return file;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        public String getLastModified()
+        {
+            return lastModified;
+        }
+    }
+
+    private final class CachingSource
+            extends ForwardingSource
+    {
+        private final OutputStream out;
+
+        private final Path tmp;
+
+        private final String key;
+
+        private final long contentLength;
+
+        private final Entry pending;
+
+        private long written;
+
+        private boolean done;
+
+        private CachingSource( final BufferedSource upstream, final OutputStream out, final Path tmp, final String key,
+                               final long contentLength, final Entry pending )
+        {
+            super( upstream );
+            this.out = out;
+            this.tmp = tmp;
+            this.key = key;
+            this.contentLength = contentLength;
+            this.pending = pending;
+        }
+
+        @Override
+        public long read( final Buffer sink, final long byteCount )
+                throws IOException
+        {
+            final long read;
+            try
+            {
+                read = super.read( sink, byteCount );
+            }
+            catch ( IOException e )
+            {
+                abort();
+                throw e;
+            }
+
+            if ( read < 0 )
+            {
+                finish();
+            }
+            else if ( !done )
+            {
+                try
+                {
+                    sink.copyTo( out, sink.size() - read, read );
+                    written += read;
+                }
+                catch ( IOException e )
+                {
+                    // the client transfer goes on, only the copy is given up
+                    logger.warn( "Cannot write content cache file {}: {}", tmp, e.toString() );
+                    abort();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                abort();
+            }
+        }
+
+        private void finish()
+        {
+            if ( done )
+            {
+                return;
+            }
+            done = true;
+            try
+            {
+                out.close();
+            }
+            catch ( IOException e )
+            {
+                logger.warn( "Cannot write content cache file {}: {}", tmp, e.toString() );
+                delete( tmp );
+                return;
+            }
+
+            if ( contentLength >= 0 && written != contentLength )
+            {
+                logger.debug( "Not caching {}, got {} of {} bytes", key, written, contentLength );
+                delete( tmp );
+                return;
+            }
+            commit( key, tmp, pending, written );
+        }
+
+        private void abort()
+        {
+            if ( done )
+            {
+                return;
+            }
+            done = true;
+            try
+            {
+                out.close();
+            }
+            catch ( IOException e )
+            {
+                logger.trace( "Close content cache file {} failed: {}", tmp, e.toString() );
+            }
+            delete( tmp );
+        }
+    }
+}
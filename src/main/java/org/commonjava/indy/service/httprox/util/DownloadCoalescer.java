@@ -0,0 +1,582 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.smallrye.common.annotation.Identifier;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import okhttp3.Headers;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.commonjava.indy.model.core.StoreKey;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.eclipse.microprofile.context.ManagedExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.DOWNLOADS_COALESCED;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.DOWNLOADS_IN_FLIGHT;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.DOWNLOADS_SPOOL_FAILURES;
+
+/**
+ * Collapses concurrent downloads of the same path from the same store (and for the same trackingId) into one upstream
+ * request.
+ *
+ * The first request of a flight is its leader: it fetches from the content service and publishes the response. If
+ * nobody joined the flight by the time upstream answers, the flight ends there and the leader streams the response
+ * itself. Otherwise a 200 body is written to a spool file by a task on the download-spools executor, at upstream's
+ * pace; the leader and every request that joined the flight meanwhile tail that file as bytes arrive, so nobody waits
+ * for the whole body and a slow client does not hold up the others. The flight ends with the upstream body; later
+ * requests start a new one. A 404 is shared as is; any other answer sends the followers upstream on their own.
+ *
+ * Tracked requests are keyed by their trackingId as well, so the leader's GET through the folo endpoint records the
+ * download for exactly the tracking record its followers belong to.
+ */
+@ApplicationScoped
+public class DownloadCoalescer
+{
+    private static final long SEGMENT = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    ProxyConfiguration config;
+
+    @Inject
+    @Identifier( "download-spools" )
+    ManagedExecutor spoolExecutor;
+
+    private Executor executor;
+
+    private boolean enabled;
+
+    private Path dir;
+
+    private final ConcurrentMap<String, Shared> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder spoolFailures = new LongAdder();
+
+    protected DownloadCoalescer()
+    {
+    }
+
+    public DownloadCoalescer( final ProxyConfiguration config, final Executor executor )
+    {
+        this.config = config;
+        this.executor = executor;
+        init();
+    }
+
+    @PostConstruct
+    public void init()
+    {
+        enabled = Boolean.TRUE.equals( config.isDownloadCoalescingEnabled() );
+        if ( !enabled )
+        {
+            return;
+        }
+
+        if ( executor == null )
+        {
+            executor = spoolExecutor;
+        }
+        dir = Paths.get( config.getDownloadSpoolDir() );
+        try
+        {
+            clean( dir );
+            Files.createDirectories( dir );
+        }
+        catch ( IOException e )
+        {
+            throw new UncheckedIOException( "Cannot prepare download spool directory " + dir, e );
+        }
+        logger.info( "Coalescing concurrent downloads, spooled in {}", dir );
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Join the flight for path in store, starting one if none is in progress. The leader must hand the upstream
+     * response to {@link #publish}, {@link #publishNotFound} or {@link #abandon}; followers wait for
+     * {@link Flight#getSpool()}. Every participant calls {@link Flight#release()} once done with the spool.
+     */
+    public Flight join( final String trackingId, final StoreKey storeKey, final String path )
+    {
+        final Shared created = new Shared( toKey( trackingId, storeKey, path ) );
+        final Shared shared =
+                flights.compute( created.key, ( k, existing ) -> existing != null && existing.retain() ? existing : created );
+
+        if ( shared != created )
+        {
+            logger.debug( "Joining download in flight: {}", shared.key );
+            coalesced.increment();
+        }
+        return new Flight( shared, shared == created );
+    }
+
+    /**
+     * Start spooling a 200 body and share it with the flight. The spool task owns body and response from here on and
+     * closes both when the body ends. Returns null, with the flight ended, if nobody joined the flight or the spool
+     * cannot be started; the leader then still owns the response and serves it directly.
+     */
+    public Spool publish( final Flight flight, final Headers headers, final long contentLength,
+                          final BufferedSource body, final Closeable response )
+    {
+        final Shared shared = flight.shared;
+
+        // nobody to share with: spare the leader the spool's executor hop and disk round trip. Joins go through the
+        // same compute, so nobody can join between the check and the removal
+        final AtomicBoolean alone = new AtomicBoolean();
+        flights.computeIfPresent( shared.key, ( k, existing ) -> {
+            if ( existing == shared && shared.refs.get() == 1 )
+            {
+                alone.set( true );
+                return null;
+            }
+            return existing;
+        } );
+        if ( alone.get() )
+        {
+            shared.spool.complete( null );
+            return null;
+        }
+
+        final Path file = dir.resolve( "spool." + sequence.incrementAndGet() );
+        final OutputStream out;
+        try
+        {
+            out = Files.newOutputStream( file );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Cannot create download spool {}: {}", file, e.toString() );
+            spoolFailures.increment();
+            abandon( flight );
+            return null;
+        }
+
+        final Spool spool = new Spool( file, headers, contentLength );
+        shared.retain(); // held by the spool task
+        try
+        {
+            executor.execute( () -> fill( shared, spool, out, body, response ) );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // the followers go upstream on their own, each of them
+            logger.warn( "Cannot start download spool for {}, {} requests fetch it separately: {}", shared.key,
+                         shared.refs.get() - 1, e.toString() );
+            spoolFailures.increment();
+            closeQuietly( out );
+            delete( file );
+            shared.release();
+            abandon( flight );
+            return null;
+        }
+
+        shared.spool.complete( spool );
+        return spool;
+    }
+
+    /**
+     * Answer the flight with 404. The leader writes its own response.
+     */
+    public void publishNotFound( final Flight flight )
+    {
+        flights.remove( flight.shared.key, flight.shared );
+        flight.shared.spool.complete( Spool.NOT_FOUND );
+    }
+
+    /**
+     * End the flight without a shared response; followers fetch from upstream themselves. Does nothing if the flight
+     * has already been answered.
+     */
+    public void abandon( final Flight flight )
+    {
+        if ( flight.shared.spool.complete( null ) )
+        {
+            flights.remove( flight.shared.key, flight.shared );
+        }
+    }
+
+    private void fill( final Shared shared, final Spool spool, final OutputStream out, final BufferedSource body,
+                       final Closeable response )
+    {
+        IOException failure = null;
+        long total = 0;
+        try
+        {
+            Buffer buf = new Buffer();
+            long read;
+            while ( ( read = body.read( buf, SEGMENT ) ) > -1 )
+            {
+                buf.writeTo( out );
+                total += read;
+                spool.append( read );
+            }
+
+            if ( spool.contentLength >= 0 && total != spool.contentLength )
+            {
+                failure = new IOException( "Upstream body ended after " + total + " of " + spool.contentLength + " bytes" );
+            }
+        }
+        catch ( IOException e )
+        {
+            failure = e;
+        }
+        finally
+        {
+            closeQuietly( out );
+            closeQuietly( body );
+            closeQuietly( response );
+        }
+
+        if ( failure != null )
+        {
+            logger.warn( "Spooling {} failed after {} bytes: {}", shared.key, total, failure.toString() );
+        }
+        else
+        {
+            logger.debug( "Spooled {} ({} bytes)", shared.key, total );
+        }
+
+        flights.remove( shared.key, shared );
+        spool.finish( failure );
+        shared.release();
+    }
+
+    private void delete( final Path file )
+    {
+        try
+        {
+            Files.deleteIfExists( file );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Cannot delete download spool {}: {}", file, e.toString() );
+        }
+    }
+
+    private static void clean( final Path dir )
+            throws IOException
+    {
+        if ( !Files.isDirectory( dir ) )
+        {
+            return;
+        }
+        try (Stream<Path> files = Files.walk( dir ))
+        {
+            for ( Path p : files.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() ) )
+            {
+                if ( !p.equals( dir ) )
+                {
+                    Files.delete( p );
+                }
+            }
+        }
+    }
+
+    private static String toKey( final String trackingId, final StoreKey storeKey, final String path )
+    {
+        return ( trackingId == null ? "" : trackingId + "#" ) + storeKey + ":" + path;
+    }
+
+    public long getCoalesced()
+    {
+        return coalesced.sum();
+    }
+
+    public int getInFlight()
+    {
+        return flights.size();
+    }
+
+    public long getSpoolFailures()
+    {
+        return spoolFailures.sum();
+    }
+
+    public void bindTo( final MeterRegistry registry )
+    {
+        FunctionCounter.builder( DOWNLOADS_COALESCED, this, DownloadCoalescer::getCoalesced )
+                       .description( "Downloads that joined another request's upstream download" )
+                       .register( registry );
+        Gauge.builder( DOWNLOADS_IN_FLIGHT, this, DownloadCoalescer::getInFlight )
+             .description( "Upstream downloads that can currently be joined" )
+             .register( registry );
+        FunctionCounter.builder( DOWNLOADS_SPOOL_FAILURES, this, DownloadCoalescer::getSpoolFailures )
+                       .description( "Shared downloads that could not be spooled, their followers fetched on their own" )
+                       .register( registry );
+    }
+
+    /**
+     * State shared by the participants of one flight. The spool file is deleted once the last of them (and the spool
+     * task) has let go.
+     */
+    private final class Shared
+    {
+        private final String key;
+
+        private final CompletableFuture<Spool> spool = new CompletableFuture<>();
+
+        private final AtomicInteger refs = new AtomicInteger( 1 );
+
+        private Shared( final String key )
+        {
+            this.key = key;
+        }
+
+        private boolean retain()
+        {
+            int r;
+            do
+            {
+                r = refs.get();
+                if ( r == 0 )
+                {
+                    return false;
+                }
+            }
+            while ( !refs.compareAndSet( r, r + 1 ) );
+            return true;
+        }
+
+        private void release()
+        {
+            if ( refs.decrementAndGet() == 0 )
+            {
+                Spool s = spool.getNow( null );
+                if ( s != null && s.file != null )
+                {
+                    delete( s.file );
+                }
+            }
+        }
+    }
+
+    /**
+     * One request's part in a flight.
+     */
+    public static final class Flight
+    {
+        private final Shared shared;
+
+        private final boolean leader;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Flight( final Shared shared, final boolean leader )
+        {
+            this.shared = shared;
+            this.leader = leader;
+        }
+
+        public boolean isLeader()
+        {
+            return leader;
+        }
+
+        /**
+         * Completes with the leader's response: a spool to tail, {@link Spool#NOT_FOUND}, or null if there is nothing
+         * to share.
+         */
+        public CompletableFuture<Spool> getSpool()
+        {
+            return shared.spool;
+        }
+
+        public void release()
+        {
+            if ( released.compareAndSet( false, true ) )
+            {
+                shared.release();
+            }
+        }
+    }
+
+    /**
+     * An upstream 200 response whose body is being written to a file.
+     */
+    public static final class Spool
+    {
+        public static final Spool NOT_FOUND = new Spool( null, null, -1 );
+
+        private final Path file;
+
+        private final Headers headers;
+
+        private final long contentLength;
+
+        private long written;
+
+        private boolean done;
+
+        private IOException failure;
+
+        private Spool( final Path file, final Headers headers, final long contentLength )
+        {
+            this.file = file;
+            this.headers = headers;
+            this.contentLength = contentLength;
+        }
+
+        public Headers getHeaders()
+        {
+            return headers;
+        }
+
+        public long getContentLength()
+        {
+            return contentLength;
+        }
+
+        /**
+         * Read the body from the start, blocking until bytes arrive. Reads fail if the upstream body did not arrive
+         * in full.
+         */
+        public BufferedSource open()
+                throws IOException
+        {
+            return Okio.buffer( new TailSource( this, FileChannel.open( file, StandardOpenOption.READ ) ) );
+        }
+
+        private synchronized void append( final long count )
+        {
+            written += count;
+            notifyAll();
+        }
+
+        private synchronized void finish( final IOException failure )
+        {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait until there is something to read past position; returns the spooled length, or -1 at the end.
+         */
+        private synchronized long await( final long position )
+                throws IOException
+        {
+            while ( written <= position && !done )
+            {
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( "Interrupted waiting for spooled content" );
+                }
+            }
+
+            if ( written > position )
+            {
+                return written;
+            }
+            if ( failure != null )
+            {
+                throw new IOException( "Upstream download failed: " + failure.getMessage(), failure );
+            }
+            return -1;
+        }
+    }
+
+    private static final class TailSource
+            implements Source
+    {
+        private final Spool spool;
+
+        private final FileChannel channel;
+
+        private long position;
+
+        private TailSource( final Spool spool, final FileChannel channel )
+        {
+            this.spool = spool;
+            this.channel = channel;
+        }
+
+        @Override
+        public long read( final Buffer sink, final long byteCount )
+                throws IOException
+        {
+            long available = spool.await( position );
+            if ( available < 0 )
+            {
+                return -1;
+            }
+
+            long count = Math.min( byteCount, available - position );
+            long read = channel.transferTo( position, count, sink );
+            position += read;
+            return read;
+        }
+
+        @Override
+        public Timeout timeout()
+        {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.ChannelListener;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Sends a response head and a file region to an XNIO sink channel, driven by the channel's write readiness.
+ *
+ * The body goes through {@link StreamSinkChannel#transferFrom(FileChannel, long, long)}, which on a plain socket is a
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} into it, so the kernel copies the
+ * bytes. Everything runs on the channel's I/O thread; nothing blocks.
+ */
+public final class FileTransferPump
+        implements ChannelListener<StreamSinkChannel>
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final StreamSinkChannel sink;
+
+    private final ByteBuffer head;
+
+    private final FileChannel file;
+
+    private final long end;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private long position;
+
+    /**
+     * @param file the body, or null when there is no body to send (e.g., HEAD); closed once the transfer is done
+     */
+    public FileTransferPump( final StreamSinkChannel sink, final ByteBuffer head, final FileChannel file,
+                             final long position, final long count )
+    {
+        this.sink = sink;
+        this.head = head;
+        this.file = file;
+        this.position = position;
+        this.end = file == null ? position : position + count;
+    }
+
+    /**
+     * Take over the channel's write listener and start sending. The returned future completes when the last byte has
+     * been flushed, or exceptionally when the transfer fails.
+     */
+    @SuppressWarnings( "unchecked" )
+    public CompletableFuture<Void> start()
+    {
+        if ( !sink.isOpen() )
+        {
+            complete( new ClosedChannelException() );
+            return done;
+        }
+        ( (ChannelListener.Setter<StreamSinkChannel>) sink.getWriteSetter() ).set( this );
+        sink.resumeWrites();
+        return done;
+    }
+
+    /**
+     * Give up on the transfer because the channel was closed, which sends no more write events. Fails the future of
+     * {@link #start()} unless the transfer is done already.
+     */
+    public void abort()
+    {
+        complete( new ClosedChannelException() );
+    }
+
+    @Override
+    public void handleEvent( final StreamSinkChannel channel )
+    {
+        try
+        {
+            while ( head.hasRemaining() )
+            {
+                if ( channel.write( head ) == 0 )
+                {
+                    return; // wait until the channel is writable again
+                }
+            }
+
+            while ( position < end )
+            {
+                long sent = channel.transferFrom( file, position, end - position );
+                if ( sent <= 0 )
+                {
+                    if ( position >= file.size() )
+                    {
+                        // the file got shorter than the length already announced, waiting would spin forever
+                        throw new EOFException( "File ends at " + position + " of " + end );
+                    }
+                    return;
+                }
+                position += sent;
+            }
+
+            if ( channel.flush() )
+            {
+                channel.suspendWrites();
+                complete( null );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.debug( "File transfer failed at {} of {}: {}", position, end, e.toString() );
+            channel.suspendWrites();
+            complete( e );
+        }
+    }
+
+    private void complete( final Throwable error )
+    {
+        if ( !completed.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        if ( file != null )
+        {
+            closeQuietly( file );
+        }
+
+        if ( error == null )
+        {
+            done.complete( null );
+        }
+        else
+        {
+            done.completeExceptionally( error );
+        }
+    }
+}
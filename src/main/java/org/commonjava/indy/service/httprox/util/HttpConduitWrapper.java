@@ -15,7 +15,9 @@
  */
 package org.commonjava.indy.service.httprox.util;
 
+import kotlin.Pair;
 import okhttp3.Headers;
+import okio.BufferedSource;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpRequest;
@@ -25,11 +27,13 @@ import org.slf4j.LoggerFactory;
 import org.xnio.channels.StreamSinkChannel;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static org.commonjava.indy.service.httprox.util.ChannelUtils.*;
 
@@ -41,10 +45,27 @@ public class HttpConduitWrapper
 
     private final HttpRequest httpRequest;
 
+    // runs the upstream reads of non-blocking transfers
+    private final Executor upstreamExecutor;
 
+    // whether the connection stays open for another request after this response
+    private boolean keepAlive;
+
+    // stops the transfer being pumped, if any
+    private volatile Runnable pumpAbort;
+
+
+    /**
+     * For sinks written in place, see {@link #isNonBlocking()}.
+     */
     public HttpConduitWrapper(StreamSinkChannel channel, HttpRequest httpRequest) {
+        this(channel, httpRequest, null);
+    }
+
+    public HttpConduitWrapper(StreamSinkChannel channel, HttpRequest httpRequest, Executor upstreamExecutor) {
         this.sinkChannel = channel;
         this.httpRequest = httpRequest;
+        this.upstreamExecutor = upstreamExecutor;
     }
 
     @Override
@@ -90,87 +111,222 @@ public class HttpConduitWrapper
         writeHeader("Connection", "close\r\n");
     }
 
-    public void writeExistingTransfer(InputStream txfr, boolean writeBody, Headers headers )
+    /**
+     * Whether response bodies are pumped by the sink's I/O thread, rather than written in place by the calling thread.
+     */
+    public boolean isNonBlocking() {
+        return sinkChannel.getIoThread() != null;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Stop the transfer being pumped to the sink, if any, because the sink was closed. Its future fails with a
+     * {@link java.nio.channels.ClosedChannelException}, which releases whatever the transfer holds.
+     */
+    public void abortTransfer() {
+        Runnable abort = pumpAbort;
+        if (abort != null) {
+            abort.run();
+        }
+    }
+
+    /**
+     * Finish a response head that has no body, e.g. 404 or OPTIONS. The explicit zero length lets the client reuse
+     * the connection when it is kept alive.
+     */
+    public void writeEmptyBody()
+            throws IOException {
+        writeHeader(ApplicationHeader.content_length, "0");
+        writeHeader("Connection", (keepAlive ? "keep-alive" : "close") + "\r\n");
+    }
+
+    /**
+     * Answer 503 without a body, telling the client when to come back. The connection is closed afterwards, which
+     * frees it for requests that can be served.
+     */
+    public void writeUnavailable(final long retryAfterSeconds)
+            throws IOException {
+        keepAlive = false;
+        writeStatus(ApplicationStatus.SERVICE_UNAVAILABLE);
+        writeHeader(ApplicationHeader.retry_after, String.valueOf(retryAfterSeconds));
+        writeEmptyBody();
+    }
+
+    /**
+     * Write the response for an upstream transfer. On an XNIO sink the body is pumped asynchronously by a
+     * {@link TransferPump}, following the client's write readiness and reading upstream on the upstream executor;
+     * other sinks (the MITM socket stream) are written
+     * in place. Either way the returned future completes once the response has been fully written.
+     *
+     * When upstream sent neither Content-Length nor chunked framing, the body is delimited with the known content
+     * length, or re-chunked for a kept-alive connection; failing both, the connection is closed after the response.
+     */
+    public CompletableFuture<Void> writeExistingTransfer( BufferedSource txfr, long contentLength, boolean writeBody,
+                                                          Headers headers )
             throws IOException
     {
         Logger logger = LoggerFactory.getLogger( getClass() );
         logger.debug( "Valid transfer found, {}", txfr );
 
-        AtomicBoolean chunked = new AtomicBoolean(false);
-        try
+        boolean chunked = false;
+        boolean hasLength = false;
+        StringBuilder head = new StringBuilder();
+        head.append( String.format( "HTTP/1.1 %d %s\r\n", ApplicationStatus.OK.code(), ApplicationStatus.OK.message() ) );
+        for ( Pair<? extends String, ? extends String> header : headers )
         {
+            logger.debug( "Setting response header: {} = {}", header.getFirst(), header.getSecond() );
+            if ( header.getFirst().equalsIgnoreCase( ApplicationHeader.content_length.key() )
+                    || header.getFirst().equalsIgnoreCase( ApplicationHeader.last_modified.key() )
+                        || header.getFirst().equalsIgnoreCase( ApplicationHeader.content_type.key() )
+                            || header.getFirst().equalsIgnoreCase(ApplicationHeader.transfer_encoding.key() ))
+            {
+                head.append( header.getFirst() ).append( ": " ).append( header.getSecond() ).append( "\r\n" );
+            }
 
-            writeStatus( ApplicationStatus.OK );
+            if ( header.getFirst().equalsIgnoreCase(ApplicationHeader.transfer_encoding.key() )
+                    && header.getSecond().equalsIgnoreCase( "chunked") )
+            {
+                chunked = true;
+            }
 
-            headers.forEach( header -> {
-                logger.debug( "Setting response header: {} = {}", header.getFirst(), header.getSecond() );
-                try
-                {
-                    if ( header.getFirst().equalsIgnoreCase( ApplicationHeader.content_length.key() )
-                            || header.getFirst().equalsIgnoreCase( ApplicationHeader.last_modified.key() )
-                                || header.getFirst().equalsIgnoreCase( ApplicationHeader.content_type.key() )
-                                    || header.getFirst().equalsIgnoreCase(ApplicationHeader.transfer_encoding.key() ))
-                    {
-                        writeHeader(header.getFirst(), header.getSecond());
-                    }
+            if ( header.getFirst().equalsIgnoreCase( ApplicationHeader.content_length.key() ) )
+            {
+                hasLength = true;
+            }
+        }
 
-                    if ( header.getFirst().equalsIgnoreCase(ApplicationHeader.transfer_encoding.key() )
-                            && header.getSecond().equalsIgnoreCase( "chunked") )
-                    {
-                        chunked.set(true);
-                    }
-                } catch (IOException e)
-                {
-                    logger.error("Write header error: {}", e.getMessage(), e);
-                }
-            } );
+        if ( !hasLength && !chunked )
+        {
+            if ( contentLength >= 0 )
+            {
+                head.append( ApplicationHeader.content_length.key() ).append( ": " ).append( contentLength ).append( "\r\n" );
+            }
+            else if ( keepAlive )
+            {
+                head.append( ApplicationHeader.transfer_encoding.key() ).append( ": chunked\r\n" );
+                chunked = true;
+            }
+        }
 
-            writeHeader("Connection", "close");
+        head.append( "Connection: " ).append( keepAlive ? "keep-alive" : "close" ).append( "\r\n\r\n" );
 
-            logger.trace( "Write body, {}", writeBody );
-            if ( writeBody )
-            {
-                sinkChannel.write( ByteBuffer.wrap( "\r\n".getBytes() ) );
+        logger.trace( "Write body, {}", writeBody );
+
+        ByteBuffer headBuf = ByteBuffer.wrap( head.toString().getBytes() );
+
+        if ( isNonBlocking() )
+        {
+            TransferPump pump = new TransferPump( sinkChannel, headBuf, writeBody ? txfr : null, chunked,
+                                                  upstreamExecutor );
+            pumpAbort = pump::abort;
+            return pump.start();
+        }
 
-                int capacity = DEFAULT_READ_BUF_SIZE;
-                ByteBuffer bbuf = ByteBuffer.allocate( capacity );
-                byte[] buf = new byte[capacity];
-                int read = -1;
+        write( sinkChannel, headBuf );
+        if ( writeBody )
+        {
+            try ( ByteBufferPool.Lease lease = ByteBufferPool.getInstance().lease() )
+            {
+                ByteBuffer bbuf = lease.buffer();
+                int read;
                 logger.trace( "Read transfer..." );
-                while ( ( read = txfr.read( buf ) ) > -1 )
+                while ( ( read = txfr.read( bbuf ) ) > -1 )
                 {
-                    if ( chunked.get() )
+                    if ( chunked )
                     {
                         // writes the chunk size (in hexadecimal)
                         sinkChannel.write(ByteBuffer.wrap((Integer.toHexString(read) + "\r\n").getBytes()));
                     }
 
                     logger.trace( "Read transfer and write to channel, size: {}", read );
-                    bbuf.clear();
-                    bbuf.put( buf, 0, read );
                     bbuf.flip();
                     write( sinkChannel, bbuf );
+                    bbuf.clear();
 
-                    if ( chunked.get() )
+                    if ( chunked )
                     {
                         // writes the chunk data followed by \r\n.
                         sinkChannel.write(ByteBuffer.wrap("\r\n".getBytes()));
                     }
                 }
+            }
 
-                if ( chunked.get() )
-                {
-                    // Write the final chunk (0-length) to signal the end of the response
-                    sinkChannel.write(ByteBuffer.wrap("0\r\n\r\n".getBytes()));
-                }
+            if ( chunked )
+            {
+                // Write the final chunk (0-length) to signal the end of the response
+                sinkChannel.write(ByteBuffer.wrap("0\r\n\r\n".getBytes()));
             }
         }
-        finally
+        sinkChannel.flush();
+        logger.debug( "Write transfer DONE." );
+        return CompletableFuture.completedFuture( null );
+    }
+
+    /**
+     * Write the response for a copy in the local content cache, see {@link #writeFileTransfer}. Fails right away if
+     * the file is gone, e.g. because the entry was evicted meanwhile.
+     */
+    public CompletableFuture<Void> writeCachedTransfer( ContentCache.Entry entry, boolean writeBody )
+            throws IOException
+    {
+        FileChannel file = writeBody ? FileChannel.open( entry.getFile(), StandardOpenOption.READ ) : null;
+
+        StringBuilder head = new StringBuilder();
+        head.append( String.format( "HTTP/1.1 %d %s\r\n", ApplicationStatus.OK.code(), ApplicationStatus.OK.message() ) );
+        head.append( ApplicationHeader.content_length.key() ).append( ": " ).append( entry.getLength() ).append( "\r\n" );
+        if ( entry.getContentType() != null )
+        {
+            head.append( ApplicationHeader.content_type.key() ).append( ": " ).append( entry.getContentType() ).append( "\r\n" );
+        }
+        if ( entry.getLastModified() != null )
         {
-            //TODO
+            head.append( ApplicationHeader.last_modified.key() ).append( ": " ).append( entry.getLastModified() ).append( "\r\n" );
+        }
+        head.append( "Connection: " ).append( keepAlive ? "keep-alive" : "close" ).append( "\r\n\r\n" );
+
+        return writeFileTransfer( ByteBuffer.wrap( head.toString().getBytes() ), file, 0, entry.getLength() );
+    }
+
+    /**
+     * Send a response head followed by count bytes of file from position, closing the file when done. The body goes
+     * through {@link StreamSinkChannel#transferFrom(FileChannel, long, long)}: on an XNIO socket the kernel copies it
+     * (see {@link FileTransferPump}), on the MITM stream the file channel writes it out without an intermediate heap
+     * copy of ours.
+     *
+     * @param file the body, or null to send the head only
+     */
+    public CompletableFuture<Void> writeFileTransfer( ByteBuffer head, FileChannel file, long position, long count )
+            throws IOException
+    {
+        if ( isNonBlocking() )
+        {
+            FileTransferPump pump = new FileTransferPump( sinkChannel, head, file, position, count );
+            pumpAbort = pump::abort;
+            return pump.start();
+        }
+
+        try ( FileChannel f = file )
+        {
+            write( sinkChannel, head );
+            if ( f != null )
+            {
+                long sent = sinkChannel.transferFrom( f, position, count );
+                if ( sent < count )
+                {
+                    throw new IOException( "File ended after " + sent + " of " + count + " bytes" );
+                }
+            }
         }
         sinkChannel.flush();
-        logger.debug( "Write transfer DONE." );
+        logger.debug( "Write file transfer DONE." );
+        return CompletableFuture.completedFuture( null );
     }
 
     public void writeNotFoundTransfer( ArtifactStore store, String path )
@@ -181,7 +337,7 @@ public class HttpConduitWrapper
 
         writeStatus( ApplicationStatus.NOT_FOUND );
 
-        writeClose();
+        writeEmptyBody();
     }
 
     @Override
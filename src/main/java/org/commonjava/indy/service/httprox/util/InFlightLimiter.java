@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.REQUESTS_IN_FLIGHT;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.REQUESTS_LIMIT;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.REQUESTS_QUEUED;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.REQUESTS_SHED;
+
+/**
+ * Caps the proxy requests being served at once. A request over the cap waits up to the queue timeout for a request
+ * to finish, or is shed: answered 503 instead of waiting behind the others for upstream capacity that is not there.
+ * Each admitted request holds a {@link Permit} that must be released when its response is done.
+ *
+ * The cap is either the static max-in-flight, or with the adaptive limit on, follows the upstream latency the
+ * requests measured in their {@link ProxyMeter} (gradient, as in TCP Vegas): while latency stays within tolerance of
+ * its long-term average the limit grows by about its square root per sample, once the requests queue up upstream and
+ * latency rises it shrinks in proportion, and an upstream that fails or reports overload cuts it by a tenth. The
+ * limit stays between min-limit and max-in-flight.
+ */
+@ApplicationScoped
+public class InFlightLimiter
+{
+    // an adaptive limit with no max-in-flight still stops somewhere
+    private static final int ADAPTIVE_MAX_LIMIT = 1000;
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    // weight of a new limit against the current one, damping the noise of single samples
+    private static final double SMOOTHING = 0.2;
+
+    // samples averaged in the short-term latency, and in the long-term one that stands for the unloaded latency
+    private static final int SHORT_WINDOW = 10;
+
+    private static final int LONG_WINDOW = 600;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    ProxyConfiguration config;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder shed = new LongAdder();
+
+    private final Queue<CompletableFuture<Permit>> waiters = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // guarded by this
+    private double adaptiveLimit = -1;
+
+    private double shortLatency;
+
+    private double longLatency;
+
+    protected InFlightLimiter()
+    {
+    }
+
+    public InFlightLimiter( final ProxyConfiguration config )
+    {
+        this.config = config;
+    }
+
+    /**
+     * Get a permit to serve a request, right away when under the limit, otherwise once one of the requests in flight
+     * is done. Fails with {@link ServiceUnavailableException} when the request is shed.
+     */
+    public CompletableFuture<Permit> acquire()
+    {
+        int limit = getLimit();
+        if ( tryAdmit( limit ) )
+        {
+            return CompletableFuture.completedFuture( new Permit() );
+        }
+
+        long timeout = config.getLoadSheddingQueueTimeoutMillis();
+        if ( timeout <= 0 || queued.incrementAndGet() > limit )
+        {
+            if ( timeout > 0 )
+            {
+                queued.decrementAndGet();
+            }
+            return shed();
+        }
+
+        CompletableFuture<Permit> waiter = new CompletableFuture<>();
+        waiters.add( waiter );
+        // a request may have finished before this one was queued
+        drain();
+        return waiter.completeOnTimeout( null, timeout, TimeUnit.MILLISECONDS ).thenCompose( permit -> {
+            if ( permit != null )
+            {
+                return CompletableFuture.completedFuture( permit );
+            }
+            if ( waiters.remove( waiter ) )
+            {
+                queued.decrementAndGet();
+            }
+            return shed();
+        } );
+    }
+
+    private CompletableFuture<Permit> shed()
+    {
+        shed.increment();
+        return CompletableFuture.failedFuture(
+                        new ServiceUnavailableException( getRetryAfterSeconds(), "Too many requests in flight: %s",
+                                                         inFlight.get() ) );
+    }
+
+    private boolean tryAdmit( final int limit )
+    {
+        int current;
+        do
+        {
+            current = inFlight.get();
+            if ( current >= limit )
+            {
+                return false;
+            }
+        }
+        while ( !inFlight.compareAndSet( current, current + 1 ) );
+        return true;
+    }
+
+    /**
+     * Hand the free capacity to the queued requests, oldest first.
+     */
+    private void drain()
+    {
+        while ( !waiters.isEmpty() && tryAdmit( getLimit() ) )
+        {
+            CompletableFuture<Permit> waiter = waiters.poll();
+            if ( waiter == null )
+            {
+                inFlight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            if ( !waiter.complete( new Permit() ) )
+            {
+                // timed out meanwhile
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void release( final ProxyMeter meter )
+    {
+        if ( meter != null && meter.getUpstreamLatencyNanos() >= 0 && config.isAdaptiveLimitEnabled() )
+        {
+            onSample( meter.getUpstreamLatencyNanos(), meter.isUpstreamOverloaded() );
+        }
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private synchronized void onSample( final long latencyNanos, final boolean overloaded )
+    {
+        double limit = adaptiveLimit();
+        double newLimit;
+        if ( overloaded )
+        {
+            newLimit = limit * BACKOFF_RATIO;
+        }
+        else
+        {
+            if ( longLatency == 0 )
+            {
+                shortLatency = longLatency = Math.max( latencyNanos, 1 );
+            }
+            shortLatency += ( latencyNanos - shortLatency ) / SHORT_WINDOW;
+            longLatency += ( latencyNanos - longLatency ) / LONG_WINDOW;
+            if ( longLatency > 2 * shortLatency )
+            {
+                // a latency spike is over, don't let its average hold the limit down for long
+                longLatency *= 0.95;
+            }
+
+            if ( inFlight.get() < limit / 2 )
+            {
+                // too few requests to tell whether upstream would take more
+                return;
+            }
+
+            double tolerance = config.getAdaptiveLimitLatencyTolerance();
+            double gradient = Math.max( 0.5, Math.min( 1.0, tolerance * longLatency / shortLatency ) );
+            newLimit = limit * gradient + Math.sqrt( limit );
+        }
+
+        newLimit = limit * ( 1 - SMOOTHING ) + newLimit * SMOOTHING;
+        adaptiveLimit = Math.max( config.getAdaptiveLimitMin(), Math.min( maxLimit(), newLimit ) );
+        if ( (int) adaptiveLimit != (int) limit )
+        {
+            logger.debug( "In-flight limit {} -> {}, latency {}ms (long-term {}ms)", (int) limit, (int) adaptiveLimit,
+                          (long) shortLatency / 1000000, (long) longLatency / 1000000 );
+        }
+    }
+
+    private double adaptiveLimit()
+    {
+        if ( adaptiveLimit < 0 )
+        {
+            adaptiveLimit = Math.max( config.getAdaptiveLimitMin(),
+                                      Math.min( maxLimit(), config.getAdaptiveLimitInitial() ) );
+        }
+        return adaptiveLimit;
+    }
+
+    private int maxLimit()
+    {
+        int max = config.getLoadSheddingMaxInFlight();
+        return max > 0 ? max : ADAPTIVE_MAX_LIMIT;
+    }
+
+    /**
+     * The requests admitted at once right now; {@link Integer#MAX_VALUE} when there is no limit.
+     */
+    public int getLimit()
+    {
+        if ( config.isAdaptiveLimitEnabled() )
+        {
+            synchronized ( this )
+            {
+                return (int) adaptiveLimit();
+            }
+        }
+        int max = config.getLoadSheddingMaxInFlight();
+        return max > 0 ? max : Integer.MAX_VALUE;
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    public int getQueued()
+    {
+        return queued.get();
+    }
+
+    public long getShed()
+    {
+        return shed.sum();
+    }
+
+    public long getRetryAfterSeconds()
+    {
+        return config.getLoadSheddingRetryAfterSeconds();
+    }
+
+    public void bindTo( final MeterRegistry registry )
+    {
+        Gauge.builder( REQUESTS_IN_FLIGHT, this, InFlightLimiter::getInFlight )
+             .description( "Proxy requests being served" )
+             .register( registry );
+        Gauge.builder( REQUESTS_LIMIT, this, l -> l.getLimit() == Integer.MAX_VALUE ? 0 : l.getLimit() )
+             .description( "Proxy requests admitted at once, 0 if unlimited" )
+             .register( registry );
+        Gauge.builder( REQUESTS_QUEUED, this, InFlightLimiter::getQueued )
+             .description( "Proxy requests waiting for one in flight to finish" )
+             .register( registry );
+        FunctionCounter.builder( REQUESTS_SHED, this, InFlightLimiter::getShed )
+                       .description( "Proxy requests answered 503 because too many were in flight" )
+                       .register( registry );
+    }
+
+    /**
+     * An admitted request. Releasing it more than once has no effect.
+     */
+    public final class Permit
+    {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit()
+        {
+        }
+
+        /**
+         * @param meter the request's meter, whose upstream latency adjusts the adaptive limit; may be null
+         */
+        public void release( final ProxyMeter meter )
+        {
+            if ( released.compareAndSet( false, true ) )
+            {
+                InFlightLimiter.this.release( meter );
+            }
+        }
+    }
+}
@@ -41,4 +41,92 @@ public class MetricsConstants
 
     public static final String REQUEST_PHASE_END = "end";
 
+    public static final String BUFFER_POOL_HITS = "indy.proxy.buffer.pool.hits";
+
+    public static final String BUFFER_POOL_MISSES = "indy.proxy.buffer.pool.misses";
+
+    public static final String BUFFER_POOL_LEAKS = "indy.proxy.buffer.pool.leaks";
+
+    public static final String BUFFER_POOL_OUTSTANDING = "indy.proxy.buffer.pool.outstanding";
+
+    public static final String BUFFER_POOL_IDLE = "indy.proxy.buffer.pool.idle";
+
+    public static final String MITM_REQUESTS_PER_TUNNEL = "indy.proxy.mitm.requests.per.tunnel";
+
+    public static final String MITM_CERT_CACHE_HITS = "indy.proxy.mitm.cert.cache.hits";
+
+    public static final String MITM_CERT_CACHE_MISSES = "indy.proxy.mitm.cert.cache.misses";
+
+    public static final String MITM_CERT_CACHE_SIZE = "indy.proxy.mitm.cert.cache.size";
+
+    public static final String MITM_CERT_GENERATION = "indy.proxy.mitm.cert.generation";
+
+    public static final String VIRTUAL_THREADS_PINNED = "indy.proxy.virtual.threads.pinned";
+
+    public static final String TUNNEL_OPEN = "indy.proxy.tunnel.open";
+
+    public static final String TUNNEL_BYTES_TO_TARGET = "indy.proxy.tunnel.bytes.to.target";
+
+    public static final String TUNNEL_BYTES_TO_CLIENT = "indy.proxy.tunnel.bytes.to.client";
+
+    public static final String CACHE_NAME = "cache";
+
+    public static final String CACHE_SIZE = "indy.proxy.cache.size";
+
+    public static final String CACHE_HIT_RATE = "indy.proxy.cache.hit.rate";
+
+    public static final String CACHE_EVICTIONS = "indy.proxy.cache.evictions";
+
+    public static final String CACHE_LOAD_TIME = "indy.proxy.cache.load.time";
+
+    public static final String CONTENT_CACHE_HITS = "indy.proxy.content.cache.hits";
+
+    public static final String CONTENT_CACHE_MISSES = "indy.proxy.content.cache.misses";
+
+    public static final String CONTENT_CACHE_SIZE_BYTES = "indy.proxy.content.cache.size.bytes";
+
+    public static final String DOWNLOADS_COALESCED = "indy.proxy.downloads.coalesced";
+
+    public static final String DOWNLOADS_IN_FLIGHT = "indy.proxy.downloads.in.flight";
+
+    public static final String DOWNLOADS_SPOOL_FAILURES = "indy.proxy.downloads.spool.failures";
+
+    public static final String UPSTREAM_SERVICE = "service";
+
+    public static final String UPSTREAM_PATH_PATTERN = "path-pattern";
+
+    public static final String UPSTREAM_POOL_CONNECTIONS = "indy.proxy.upstream.pool.connections";
+
+    public static final String UPSTREAM_POOL_IDLE = "indy.proxy.upstream.pool.idle";
+
+    public static final String UPSTREAM_CALLS_RUNNING = "indy.proxy.upstream.calls.running";
+
+    public static final String UPSTREAM_CALLS_QUEUED = "indy.proxy.upstream.calls.queued";
+
+    public static final String UPSTREAM_ENDPOINT = "endpoint";
+
+    public static final String UPSTREAM_ENDPOINT_OUTSTANDING = "indy.proxy.upstream.endpoint.outstanding";
+
+    public static final String UPSTREAM_ENDPOINT_AVAILABLE = "indy.proxy.upstream.endpoint.available";
+
+    public static final String UPSTREAM_ENDPOINT_EJECTIONS = "indy.proxy.upstream.endpoint.ejections";
+
+    public static final String UPSTREAM_RETRIES = "indy.proxy.upstream.retries";
+
+    public static final String UPSTREAM_RETRY_BUDGET_EXHAUSTED = "indy.proxy.upstream.retry.budget.exhausted";
+
+    public static final String UPSTREAM_RETRY_BUDGET_TOKENS = "indy.proxy.upstream.retry.budget.tokens";
+
+    public static final String UPSTREAM_CIRCUIT_OPEN = "indy.proxy.upstream.circuit.open";
+
+    public static final String UPSTREAM_CIRCUIT_REJECTED = "indy.proxy.upstream.circuit.rejected";
+
+    public static final String REQUESTS_IN_FLIGHT = "indy.proxy.requests.in.flight";
+
+    public static final String REQUESTS_SHED = "indy.proxy.requests.shed";
+
+    public static final String REQUESTS_LIMIT = "indy.proxy.requests.limit";
+
+    public static final String REQUESTS_QUEUED = "indy.proxy.requests.queued";
+
 }
@@ -22,30 +22,77 @@ import org.xnio.channels.StreamSourceChannel;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.TimeUnit;
 
 public class OutputStreamSinkChannel
         implements StreamSinkChannel
 {
+    private static final int SCRATCH_SIZE = 8192;
+
     private final OutputStream outputStream;
 
+    /**
+     * Pooled buffers are direct, so their content has to be copied out before it can go to the stream. Reuse one
+     * small array per channel instead of allocating one per write.
+     */
+    private byte[] scratch;
+
+    private WritableByteChannel outputChannel;
+
     public OutputStreamSinkChannel( OutputStream outputStream )
     {
         this.outputStream = outputStream;
     }
 
+    /**
+     * Let the file channel push the region into the stream. The stream is blocking, so this only returns short when
+     * the file ends before position + count.
+     */
     @Override
-    public long transferFrom(FileChannel fileChannel, long l, long l1 ) throws IOException
+    public long transferFrom( FileChannel fileChannel, long position, long count ) throws IOException
     {
-        return 0;
+        if ( outputChannel == null )
+        {
+            outputChannel = Channels.newChannel( outputStream );
+        }
+
+        long transferred = 0;
+        while ( transferred < count )
+        {
+            long sent = fileChannel.transferTo( position + transferred, count - transferred, outputChannel );
+            if ( sent <= 0 )
+            {
+                break; // end of file
+            }
+            transferred += sent;
+        }
+        return transferred;
     }
 
     @Override
-    public long transferFrom(StreamSourceChannel streamSourceChannel, long l, ByteBuffer byteBuffer )
+    public long transferFrom( StreamSourceChannel source, long count, ByteBuffer throughBuffer )
             throws IOException
     {
-        return 0;
+        throughBuffer.clear();
+        long transferred = 0;
+        while ( transferred < count )
+        {
+            throughBuffer.limit( (int) Math.min( throughBuffer.capacity(), count - transferred ) );
+            int read = source.read( throughBuffer );
+            if ( read <= 0 )
+            {
+                break;
+            }
+            throughBuffer.flip();
+            transferred += write( throughBuffer );
+            throughBuffer.clear();
+        }
+        // nothing is left behind in the buffer, as the stream always takes everything
+        throughBuffer.limit( 0 );
+        return transferred;
     }
 
     @Override
@@ -146,24 +193,45 @@ public class OutputStreamSinkChannel
     }
 
     @Override
-    public long write( ByteBuffer[] byteBuffers, int i, int i1 ) throws IOException
+    public long write( ByteBuffer[] byteBuffers, int offset, int length ) throws IOException
     {
-        return 0;
+        long total = 0;
+        for ( int i = offset; i < offset + length; i++ )
+        {
+            total += write( byteBuffers[i] );
+        }
+        return total;
     }
 
     @Override
     public long write( ByteBuffer[] byteBuffers ) throws IOException
     {
-        return 0;
+        return write( byteBuffers, 0, byteBuffers.length );
     }
 
     @Override
     public int write( ByteBuffer byteBuffer ) throws IOException
     {
-        byte[] bytes = new byte[byteBuffer.remaining()];
-        byteBuffer.get(bytes);
-        outputStream.write( bytes );
-        return bytes.length;
+        final int total = byteBuffer.remaining();
+        if ( byteBuffer.hasArray() )
+        {
+            outputStream.write( byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), total );
+            byteBuffer.position( byteBuffer.limit() );
+            return total;
+        }
+
+        if ( scratch == null )
+        {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+
+        while ( byteBuffer.hasRemaining() )
+        {
+            int len = Math.min( scratch.length, byteBuffer.remaining() );
+            byteBuffer.get( scratch, 0, len );
+            outputStream.write( scratch, 0, len );
+        }
+        return total;
     }
 
     @Override
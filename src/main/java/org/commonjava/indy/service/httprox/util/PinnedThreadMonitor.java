@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.VIRTUAL_THREADS_PINNED;
+
+/**
+ * Reports virtual threads that stay pinned to their carrier thread while blocking, e.g. in a synchronized block or a
+ * native call. A pinned thread holds a carrier, of which there are only as many as CPUs, so a few of them can stall
+ * all the others. The JFR jdk.VirtualThreadPinned events over the threshold are counted, and the stack of each
+ * distinct pinning site is logged once.
+ */
+@ApplicationScoped
+public class PinnedThreadMonitor
+{
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    private static final int MAX_LOGGED_FRAMES = 12;
+
+    // pinning sites logged with their stack already; bounded, past that they are logged at debug level only
+    private static final int MAX_LOGGED_SITES = 100;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    @Inject
+    ProxyConfiguration config;
+
+    private final LongAdder pinned = new LongAdder();
+
+    private final Set<String> loggedSites = ConcurrentHashMap.newKeySet();
+
+    private RecordingStream stream;
+
+    protected PinnedThreadMonitor()
+    {
+    }
+
+    public PinnedThreadMonitor( final ProxyConfiguration config )
+    {
+        this.config = config;
+    }
+
+    /**
+     * Start reporting when virtual threads are in use and the pinned threshold is positive.
+     */
+    public synchronized void start( final MeterRegistry registry )
+    {
+        int thresholdMillis = config.getMitmPinnedThresholdMillis();
+        if ( stream != null || thresholdMillis <= 0 || !VirtualThreads.isSupported() )
+        {
+            return;
+        }
+
+        FunctionCounter.builder( VIRTUAL_THREADS_PINNED, this, PinnedThreadMonitor::getPinned )
+                       .description( "Virtual threads blocked while pinned to their carrier thread" )
+                       .register( registry );
+
+        stream = new RecordingStream();
+        stream.enable( PINNED_EVENT ).withThreshold( Duration.ofMillis( thresholdMillis ) ).withStackTrace();
+        stream.onEvent( PINNED_EVENT, this::onPinned );
+        stream.startAsync();
+        logger.info( "Reporting virtual threads pinned for more than {}ms", thresholdMillis );
+    }
+
+    public synchronized void stop()
+    {
+        if ( stream != null )
+        {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    public long getPinned()
+    {
+        return pinned.sum();
+    }
+
+    private void onPinned( final RecordedEvent event )
+    {
+        pinned.increment();
+
+        String thread = event.getThread() != null ? event.getThread().getJavaName() : "?";
+        long millis = event.getDuration().toMillis();
+        RecordedStackTrace stackTrace = event.getStackTrace();
+        List<RecordedFrame> frames = stackTrace != null ? stackTrace.getFrames() : List.of();
+        String site = frames.isEmpty() ? "unknown" : format( frames.get( 0 ) );
+
+        if ( loggedSites.size() < MAX_LOGGED_SITES && loggedSites.add( site ) )
+        {
+            StringBuilder stack = new StringBuilder();
+            for ( int i = 0; i < Math.min( frames.size(), MAX_LOGGED_FRAMES ); i++ )
+            {
+                stack.append( "\n  at " ).append( format( frames.get( i ) ) );
+            }
+            logger.warn( "Virtual thread {} was pinned to its carrier for {}ms:{}", thread, millis, stack );
+        }
+        else
+        {
+            logger.debug( "Virtual thread {} was pinned to its carrier for {}ms at {}", thread, millis, site );
+        }
+    }
+
+    private static String format( final RecordedFrame frame )
+    {
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+    }
+}
@@ -38,6 +38,12 @@ public class ProxyMeter
 
     private final OtelAdapter otel;
 
+    private volatile long upstreamStartNanos = -1;
+
+    private volatile long upstreamLatencyNanos = -1;
+
+    private volatile boolean upstreamOverloaded;
+
     public ProxyMeter( final String method, final String requestLine, final long startNanos,
                        final SocketAddress peerAddress, final OtelAdapter otel )
     {
@@ -74,6 +80,40 @@ public class ProxyMeter
         }
     }
 
+    /**
+     * The request to the content service is being sent.
+     */
+    public void markUpstreamStart()
+    {
+        upstreamStartNanos = System.nanoTime();
+    }
+
+    /**
+     * The content service answered, or failed; overloaded if it failed or said it was unavailable. Only the first
+     * call after {@link #markUpstreamStart()} counts.
+     */
+    public void markUpstreamEnd( final boolean overloaded )
+    {
+        if ( upstreamStartNanos >= 0 && upstreamLatencyNanos < 0 )
+        {
+            upstreamOverloaded = overloaded;
+            upstreamLatencyNanos = System.nanoTime() - upstreamStartNanos;
+        }
+    }
+
+    /**
+     * @return the time until the content service answered, or -1 if it was not asked, e.g. for a cached copy
+     */
+    public long getUpstreamLatencyNanos()
+    {
+        return upstreamLatencyNanos;
+    }
+
+    public boolean isUpstreamOverloaded()
+    {
+        return upstreamOverloaded;
+    }
+
     public ProxyMeter copy( final long startNanos, final String method, final String requestLine )
     {
         return new ProxyMeter( method, requestLine, startNanos, peerAddress, otel );
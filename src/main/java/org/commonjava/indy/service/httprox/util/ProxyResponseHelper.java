@@ -20,6 +20,7 @@ import io.smallrye.mutiny.Uni;
 import io.vertx.core.http.HttpMethod;
 import kotlin.Pair;
 import okhttp3.ResponseBody;
+import okio.BufferedSource;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpStatus;
@@ -33,23 +34,21 @@ import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
 import org.commonjava.indy.service.httprox.handler.ProxyCreationResult;
 import org.commonjava.indy.service.httprox.handler.ProxyRepositoryCreator;
 import org.commonjava.indy.service.httprox.model.TrackingKey;
-import com.github.benmanes.caffeine.cache.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import jakarta.ws.rs.WebApplicationException;
 import jakarta.ws.rs.core.Response;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static io.vertx.core.http.HttpMethod.HEAD;
+import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.commonjava.indy.model.core.ArtifactStore.TRACKING_ID;
 import static org.commonjava.indy.model.core.GenericPackageTypeDescriptor.GENERIC_PKG_KEY;
 import static org.commonjava.indy.service.httprox.util.HttpProxyConstants.FORBIDDEN_HEADERS;
@@ -81,9 +80,13 @@ public class ProxyResponseHelper
 
     private OtelAdapter otel;
 
-    private CacheProducer cacheProducer;
+    private ArtifactStoreResolver storeResolver;
 
-    public ProxyResponseHelper(HttpRequest httpRequest, ProxyConfiguration config, ProxyRepositoryCreator repoCreator, RepositoryService repositoryService, ContentRetrievalService contentRetrievalService, IndyObjectMapper indyObjectMapper, CacheProducer cacheProducer, OtelAdapter otel )
+    private ContentCache contentCache;
+
+    private DownloadCoalescer downloadCoalescer;
+
+    public ProxyResponseHelper(HttpRequest httpRequest, ProxyConfiguration config, ProxyRepositoryCreator repoCreator, RepositoryService repositoryService, ContentRetrievalService contentRetrievalService, IndyObjectMapper indyObjectMapper, ArtifactStoreResolver storeResolver, ContentCache contentCache, DownloadCoalescer downloadCoalescer, OtelAdapter otel )
     {
         this.httpRequest = httpRequest;
         this.config = config;
@@ -91,165 +94,90 @@ public class ProxyResponseHelper
         this.repositoryService = repositoryService;
         this.contentRetrievalService = contentRetrievalService;
         this.indyObjectMapper = indyObjectMapper;
-        this.cacheProducer = cacheProducer;
+        this.storeResolver = storeResolver;
+        this.contentCache = contentCache;
+        this.downloadCoalescer = downloadCoalescer;
         this.otel = otel;
     }
 
+    /**
+     * A helper sharing this one's collaborators, for the next request on the same connection. Each helper transfers
+     * at most once.
+     */
+    public ProxyResponseHelper newTransfer()
+    {
+        return new ProxyResponseHelper( httpRequest, config, repoCreator, repositoryService, contentRetrievalService,
+                                        indyObjectMapper, storeResolver, contentCache, downloadCoalescer, otel );
+    }
+
     public ArtifactStore getArtifactStore(String trackingId, final URL url )
                     throws IndyProxyException
     {
-        ArtifactStore store = null;
-
-        if ( store == null )
+        try
         {
-            try
-            {
-                store = doGetArtifactStore( trackingId, url );
-
-                if ( store != null )
-                {
-                    logger.info("Got the store {} with trackingId {} and url {}", store.getKey(), trackingId, url);
-                }
-            }
-            finally
-            {
-                //timerContext.stop();
-            }
+            return getArtifactStoreAsync( trackingId, url ).join();
         }
-
-        if ( otel.enabled() )
+        catch ( CompletionException e )
         {
-            Span span = Span.current();
-            span.setAttribute("proxy.target.url", String.valueOf(url));
-            if ( trackingId != null )
-            {
-                span.setAttribute( TRACKING_ID, trackingId);
-            }
-            if ( store != null )
+            if ( e.getCause() instanceof IndyProxyException )
             {
-                span.setAttribute( PACKAGE_TYPE, store.getKey().getPackageType());
-                span.setAttribute( CONTENT_ENTRY_POINT, store.getKey().toString());
+                throw (IndyProxyException) e.getCause();
             }
+            throw new IndyProxyException( "Get artifact store error.", e.getCause() );
         }
-
-        return store;
     }
 
-    private ArtifactStore doGetArtifactStore(String trackingId, final URL url )
-                    throws IndyProxyException
+    /**
+     * Resolve the store for the url's target off the calling thread. Lookups for the same host, port and trackingId
+     * are shared with other requests and their outcome is cached, see {@link ArtifactStoreResolver}.
+     */
+    public CompletableFuture<ArtifactStore> getArtifactStoreAsync( final String trackingId, final URL url )
     {
+        // the lookup completes on another thread, so keep hold of this request's span
+        final Span span = otel.enabled() ? Span.current() : null;
 
-        int port = getPort( url );
-        String groupName = repoCreator.formatId( url.getHost(), port, 0, trackingId, "group" );
-
-        Lock lock = LockWrapper.getLockByKey( groupName );
-        lock.lock();
-
-        try
-        {
-            Cache cache = cacheProducer.getCache("artifact_store");
-
-            if ( trackingId != null )
+        return storeResolver.resolve( StoreTarget.of( url, trackingId ),
+                                      () -> createArtifactStore( trackingId, url ) ).thenApply( store -> {
+            if ( store != null )
             {
-                if ( cache.getIfPresent( groupName ) != null )
-                {
-                    return (ArtifactStore) cache.getIfPresent( groupName );
-                }
-
-                Group group = null;
-                Response response = null;
-                try
-                {
-                    response = repositoryService.getStore(PackageTypeConstants.PKG_TYPE_GENERIC_HTTP, "group", groupName);
-
-                    if ( response != null && response.getStatus() == HttpStatus.SC_OK )
-                    {
-                        group = (Group)response.readEntity(ArtifactStore.class);
-                        cache.put(groupName, group);
-                    }
-                }
-                catch ( WebApplicationException e )
-                {
-                    if (e.getResponse().getStatus() == HttpStatus.SC_NOT_FOUND )
-                    {
-                        logger.debug( "Creating repositories (group, hosted, remote) for HTTProx request: {}, trackingId: {}",
-                                url, trackingId );
-                        ProxyCreationResult result = createRepo( trackingId, url, null );
-                        group = result.getGroup();
-                        cache.put(groupName, group);
-                        return group;
-                    }
-                    else
-                    {
-                        throw new IndyProxyException("Get artifact store error.", e);
-                    }
-                }
-                finally
-                {
-                    if ( response != null )
-                    {
-                        response.close();
-                    }
-                }
-
-                return group;
+                logger.info( "Got the store {} with trackingId {} and url {}", store.getKey(), trackingId, url );
             }
-            else
+
+            if ( span != null )
             {
-                RemoteRepository remote = null;
-                final String baseUrl = getBaseUrl( url, false );
-                logger.info("baseUrl: {}", baseUrl);
-                Response response = null;
-                try
+                span.setAttribute( "proxy.target.url", String.valueOf( url ) );
+                if ( trackingId != null )
                 {
-                    response = repositoryService.getRemoteByUrl(PackageTypeConstants.PKG_TYPE_GENERIC_HTTP, "remote", baseUrl);
-
-                    if ( response != null && response.getStatus() == HttpStatus.SC_OK )
-                    {
-                        StoreListingDTO<RemoteRepository> dto = response.readEntity(StoreListingDTO.class);
-                        for( RemoteRepository remoteRepository : dto.getItems() )
-                        {
-                            if ( remoteRepository.getMetadata( TRACKING_ID ) == null )
-                            {
-                                remote = remoteRepository;
-                                break;
-                            }
-                        }
-                    }
+                    span.setAttribute( TRACKING_ID, trackingId );
                 }
-                catch ( WebApplicationException e  )
-                {
-                    if (e.getResponse().getStatus() == HttpStatus.SC_NOT_FOUND )
-                    {
-                        logger.debug( "Creating remote repository for HTTProx request: {}", url );
-                        String name = getRemoteRepositoryName( url );
-                        logger.info("remote repo name: {} based on url: {}", name, url);
-                        ProxyCreationResult result = createRepo( null, url, name );
-                        remote = result.getRemote();
-                        return remote;
-                    }
-                    else
-                    {
-                        throw new IndyProxyException("Get artifact store error.", e);
-                    }
-                }
-                finally
+                if ( store != null )
                 {
-                    if ( response != null )
-                    {
-                        response.close();
-                    }
+                    span.setAttribute( PACKAGE_TYPE, store.getKey().getPackageType() );
+                    span.setAttribute( CONTENT_ENTRY_POINT, store.getKey().toString() );
                 }
-
-
-                return remote;
             }
-        }
-        finally
+            return store;
+        } );
+    }
+
+    /**
+     * Create the store for a target the repository service does not know yet, with the credentials this request
+     * brought for the remote site.
+     */
+    private ArtifactStore createArtifactStore( final String trackingId, final URL url )
+                    throws IndyProxyException
+    {
+        if ( trackingId != null )
         {
-            lock.unlock();
+            logger.debug( "Creating repositories (group, hosted, remote) for HTTProx request: {}, trackingId: {}",
+                    url, trackingId );
+            return createRepo( trackingId, url, null ).getGroup();
         }
 
+        logger.debug( "Creating remote repository for HTTProx request: {}", url );
+        String name = getRemoteRepositoryName( url );
+        logger.info("remote repo name: {} based on url: {}", name, url);
+        return createRepo( null, url, name ).getRemote();
     }
 
     /**
@@ -442,7 +370,11 @@ public class ProxyResponseHelper
         return String.format( "%s://%s%s/", url.getProtocol(), url.getHost(), portStr );
     }
 
-    public void transfer( final HttpConduitWrapper http, final ArtifactStore store, final String path,
+    /**
+     * Start streaming the content of path in store to the client. The caller's thread is not held while the upstream
+     * response is pending; the returned future completes once the response has been written (or has failed).
+     */
+    public CompletableFuture<Void> transfer( final HttpConduitWrapper http, final ArtifactStore store, final String path,
                    final boolean writeBody, final UserPass proxyUserPass, final ProxyMeter meter )
                     throws IOException, IndyProxyException
     {
@@ -453,18 +385,18 @@ public class ProxyResponseHelper
             Span.current().setAttribute( METADATA_CONTENT, Boolean.FALSE );
         }
 
-        doTransfer( http, store, path, writeBody, proxyUserPass, meter );
+        return doTransfer( http, store, path, writeBody, proxyUserPass, meter );
 
     }
 
-    private void doTransfer( final HttpConduitWrapper http, final ArtifactStore store, final String path,
+    private CompletableFuture<Void> doTransfer( final HttpConduitWrapper http, final ArtifactStore store, final String path,
                              final boolean writeBody, final UserPass proxyUserPass, final ProxyMeter meter )
                     throws IOException, IndyProxyException
     {
         if ( transferred )
         {
             logger.info("Transfer already done, store: {}, path: {}", store.getKey(), path);
-            return;
+            return CompletableFuture.completedFuture( null );
         }
 
         if ( !http.isOpen() )
@@ -487,52 +419,190 @@ public class ProxyResponseHelper
             logger.debug( "NOT TRACKING: {} in {}", path, store );
         }
 
+        final boolean cacheable = contentCache.isCacheable( store, trackingId );
+        if ( cacheable )
+        {
+            ContentCache.Entry cached = contentCache.get( store.getKey(), path );
+            if ( cached != null )
+            {
+                try
+                {
+                    logger.debug( "Serving from the local content cache, store: {}, path: {}", store.getKey(), path );
+                    return http.writeCachedTransfer( cached, writeBody ).whenComplete( ( v, t ) -> {
+                        if ( t != null )
+                        {
+                            logger.error( "write cached transfer error: {}", t.getMessage(), t );
+                            http.setKeepAlive( false );
+                        }
+                        transferred = true;
+                        if ( meter != null )
+                        {
+                            meter.reportResponseSummary();
+                        }
+                    } );
+                }
+                catch ( IOException e )
+                {
+                    logger.debug( "Cached copy of {} is gone, fetching it again: {}", path, e.toString() );
+                }
+            }
+        }
+
+        final DownloadCoalescer.Flight flight = writeBody && downloadCoalescer.isEnabled() ?
+                        downloadCoalescer.join( trackingId, store.getKey(), path ) : null;
+
+        final CompletableFuture<Void> transferDone = flight != null && !flight.isLeader() ?
+                        follow( http, store, path, trackingId, cacheable, flight, meter ) :
+                        fetch( http, store, path, writeBody, trackingId, cacheable, flight, meter );
+
+        return transferDone.whenComplete( ( v, t ) -> {
+            if ( flight != null )
+            {
+                flight.release();
+            }
+            if ( meter != null )
+            {
+                meter.reportResponseSummary();
+            }
+        } );
+    }
+
+    /**
+     * Get path from the content service and write it out. As the leader of a flight, share the response with the
+     * requests that joined it: a 200 body is spooled and this request tails the spool like the others, unless nobody
+     * joined.
+     */
+    private CompletableFuture<Void> fetch( final HttpConduitWrapper http, final ArtifactStore store, final String path,
+                                           final boolean writeBody, final String trackingId, final boolean cacheable,
+                                           final DownloadCoalescer.Flight flight, final ProxyMeter meter )
+    {
+        final CompletableFuture<Void> transferDone = new CompletableFuture<>();
         try {
             String encodedPath = base64url(path);
             logger.debug( "Get from content service, store: {}, path: {}", store.getKey(), encodedPath );
+            if ( meter != null )
+            {
+                meter.markUpstreamStart();
+            }
             Uni<okhttp3.Response> responseUni = contentRetrievalService.doGet(trackingId, store.getType().name(),
                     store.getName(), encodedPath);
 
-            final CountDownLatch transferLatch = new CountDownLatch(1);
-
             responseUni.subscribe().with(
                     response ->
                     {
+                        if ( meter != null )
+                        {
+                            meter.markUpstreamEnd( response.code() == HttpStatus.SC_SERVICE_UNAVAILABLE
+                                                           || response.code() == HttpStatus.SC_GATEWAY_TIMEOUT );
+                        }
                         ResponseBody responseBody = response.body();
+                        BufferedSource source = null;
+                        // once spooled, the response belongs to the spool task
+                        boolean spooled = false;
+                        CompletableFuture<Void> written;
                         try
                         {
                             if ( response.code() == HttpStatus.SC_NOT_FOUND )
                             {
+                                if ( flight != null )
+                                {
+                                    downloadCoalescer.publishNotFound( flight );
+                                }
                                 http.writeNotFoundTransfer(store, path);
+                                written = CompletableFuture.completedFuture( null );
                             }
                             else
                             {
-                                try ( InputStream bodyInputStream = responseBody.byteStream() )
+                                source = responseBody.source();
+                                if ( cacheable && writeBody && response.code() == HttpStatus.SC_OK )
                                 {
-                                    http.writeExistingTransfer(bodyInputStream, writeBody, response.headers());
+                                    source = contentCache.cache( store.getKey(), path, response.headers(),
+                                                                 responseBody.contentLength(), source );
                                 }
+                                if ( flight != null && response.code() == HttpStatus.SC_OK )
+                                {
+                                    DownloadCoalescer.Spool spool =
+                                            downloadCoalescer.publish( flight, response.headers(),
+                                                                       responseBody.contentLength(), source, response );
+                                    if ( spool != null )
+                                    {
+                                        spooled = true;
+                                        try
+                                        {
+                                            source = spool.open();
+                                        }
+                                        catch ( IOException e )
+                                        {
+                                            // the spool task owns the upstream body now, it is not ours to close
+                                            source = null;
+                                            throw e;
+                                        }
+                                    }
+                                }
+                                written = http.writeExistingTransfer(source, responseBody.contentLength(),
+                                                                     writeBody, response.headers());
                             }
                         }
                         catch (IOException e)
                         {
-                            logger.error("write transfer error: {}", e.getMessage(), e);
+                            written = CompletableFuture.failedFuture( e );
                         }
                         finally
                         {
-                            if ( response != null && responseBody != null )
+                            if ( flight != null )
+                            {
+                                // no-op once the response was shared; otherwise the followers fetch it themselves
+                                downloadCoalescer.abandon( flight );
+                            }
+                        }
+
+                        final BufferedSource bodySource = source;
+                        final boolean closeResponse = !spooled && responseBody != null;
+                        written.whenComplete( ( v, t ) -> {
+                            if ( t != null )
+                            {
+                                logger.error("write transfer error: {}", t.getMessage(), t);
+                                // the response may be cut short, the client can't reuse this connection
+                                http.setKeepAlive( false );
+                            }
+                            if ( bodySource != null )
+                            {
+                                // drops a partial copy in the content cache
+                                closeQuietly( bodySource );
+                            }
+                            if ( closeResponse )
                             {
                                 responseBody.close();
                                 response.close();
                             }
                             transferred = true;
-                            transferLatch.countDown();
-                        }
+                            transferDone.complete( null );
+                        } );
                     },
                     throwable ->
                     {
+                        if ( flight != null )
+                        {
+                            downloadCoalescer.abandon( flight );
+                        }
+                        http.setKeepAlive( false );
                         try
                         {
-                            http.writeError(throwable);
+                            ServiceUnavailableException unavailable = ServiceUnavailableException.find( throwable );
+                            if ( unavailable != null )
+                            {
+                                logger.warn( "Not fetching {} from {}: {}", path, store.getKey(),
+                                             unavailable.getMessage() );
+                                http.writeUnavailable( unavailable.getRetryAfterSeconds() );
+                            }
+                            else
+                            {
+                                if ( meter != null )
+                                {
+                                    meter.markUpstreamEnd( true );
+                                }
+                                http.writeError( throwable );
+                            }
                         }
                         catch (IOException e)
                         {
@@ -541,23 +611,83 @@ public class ProxyResponseHelper
                         finally
                         {
                             transferred = true;
-                            transferLatch.countDown();
+                            transferDone.complete( null );
                         }
                     }
             );
-
-            transferLatch.await( 5, TimeUnit.MINUTES ); // Wait until the item or a failure is emitted
-
-            if ( meter != null )
-            {
-                meter.reportResponseSummary();
-            }
         }
         catch (Exception exception)
         {
             logger.error("doTransfer error: {}", exception.getMessage(), exception);
+            if ( flight != null )
+            {
+                downloadCoalescer.abandon( flight );
+            }
+            http.setKeepAlive( false );
+            transferDone.complete( null );
         }
 
+        return transferDone;
+    }
+
+    /**
+     * Answer with the response of the flight's leader, tailing its spool. Falls back to {@link #fetch} when the
+     * leader has nothing to share.
+     */
+    private CompletableFuture<Void> follow( final HttpConduitWrapper http, final ArtifactStore store, final String path,
+                                            final String trackingId, final boolean cacheable,
+                                            final DownloadCoalescer.Flight flight, final ProxyMeter meter )
+    {
+        final CompletableFuture<DownloadCoalescer.Spool> shared = flight.getSpool();
+        if ( !http.isNonBlocking() )
+        {
+            // the body is written in place, so wait on this request's thread instead of holding up the leader's
+            shared.join();
+        }
+
+        return shared.thenCompose( spool -> {
+            if ( spool == null )
+            {
+                logger.debug( "Nothing shared for {} in {}, fetching it separately", path, store.getKey() );
+                return fetch( http, store, path, true, trackingId, cacheable, null, meter );
+            }
+
+            logger.debug( "Serving {} in {} from a shared download", path, store.getKey() );
+            BufferedSource source = null;
+            CompletableFuture<Void> written;
+            try
+            {
+                if ( spool == DownloadCoalescer.Spool.NOT_FOUND )
+                {
+                    http.writeNotFoundTransfer( store, path );
+                    written = CompletableFuture.completedFuture( null );
+                }
+                else
+                {
+                    source = spool.open();
+                    written = http.writeExistingTransfer( source, spool.getContentLength(), true, spool.getHeaders() );
+                }
+            }
+            catch ( IOException e )
+            {
+                written = CompletableFuture.failedFuture( e );
+            }
+
+            final BufferedSource bodySource = source;
+            return written.handle( ( v, t ) -> {
+                if ( t != null )
+                {
+                    logger.error( "write shared transfer error: {}", t.getMessage(), t );
+                    http.setKeepAlive( false );
+                }
+                if ( bodySource != null )
+                {
+                    closeQuietly( bodySource );
+                }
+                transferred = true;
+                return null;
+            } );
+        } );
     }
 
     public TrackingKey getTrackingKey(UserPass proxyUserPass ) throws IndyProxyException
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_RETRIES;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_RETRY_BUDGET_EXHAUSTED;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_RETRY_BUDGET_TOKENS;
+
+/**
+ * Proxy-wide limit on upstream retries, so a struggling backend does not get every call several times over. It is a
+ * token bucket: every upstream call adds budget-percent/100 of a token, every retry takes one, and budget-min-per-second
+ * tokens are added each second regardless of traffic so a quiet proxy can still retry. The bucket holds
+ * {@value #BURST_SECONDS} seconds' worth of that minimum (at least {@value #MIN_CAPACITY} tokens) and starts full.
+ */
+@ApplicationScoped
+public class RetryBudget
+{
+    private static final int DEFAULT_BUDGET_PERCENT = 20;
+
+    private static final int DEFAULT_BUDGET_MIN_PER_SECOND = 10;
+
+    private static final int BURST_SECONDS = 10;
+
+    private static final int MIN_CAPACITY = 10;
+
+    @Inject
+    ServiceProxyConfig proxyConfiguration;
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder exhausted = new LongAdder();
+
+    private double tokens = -1;
+
+    private long refilledAt;
+
+    protected RetryBudget()
+    {
+    }
+
+    public RetryBudget( final ServiceProxyConfig proxyConfiguration )
+    {
+        this.proxyConfiguration = proxyConfiguration;
+    }
+
+    /**
+     * An upstream call is being made.
+     */
+    public synchronized void deposit()
+    {
+        ServiceProxyConfig.Retry retry = proxyConfiguration.getRetry();
+        refill( retry );
+        int percent = retry == null || retry.budgetPercent == null ? DEFAULT_BUDGET_PERCENT : retry.budgetPercent;
+        tokens = Math.min( capacity( retry ), tokens + percent / 100.0 );
+    }
+
+    /**
+     * Take a token for a retry.
+     *
+     * @return false if the budget is spent and the call should not be retried
+     */
+    public synchronized boolean tryRetry()
+    {
+        refill( proxyConfiguration.getRetry() );
+        if ( tokens < 1 )
+        {
+            exhausted.increment();
+            return false;
+        }
+        tokens -= 1;
+        retries.increment();
+        return true;
+    }
+
+    private void refill( ServiceProxyConfig.Retry retry )
+    {
+        long now = System.nanoTime();
+        double capacity = capacity( retry );
+        if ( tokens < 0 )
+        {
+            tokens = capacity;
+        }
+        else
+        {
+            double seconds = ( now - refilledAt ) / (double) TimeUnit.SECONDS.toNanos( 1 );
+            tokens = Math.min( capacity, tokens + seconds * minPerSecond( retry ) );
+        }
+        refilledAt = now;
+    }
+
+    private static int minPerSecond( ServiceProxyConfig.Retry retry )
+    {
+        return retry == null || retry.budgetMinPerSecond == null ?
+                DEFAULT_BUDGET_MIN_PER_SECOND : retry.budgetMinPerSecond;
+    }
+
+    private static double capacity( ServiceProxyConfig.Retry retry )
+    {
+        return Math.max( MIN_CAPACITY, minPerSecond( retry ) * BURST_SECONDS );
+    }
+
+    public long getRetries()
+    {
+        return retries.sum();
+    }
+
+    public long getExhausted()
+    {
+        return exhausted.sum();
+    }
+
+    public synchronized double getTokens()
+    {
+        return Math.max( tokens, 0 );
+    }
+
+    public void bindTo( final MeterRegistry registry )
+    {
+        FunctionCounter.builder( UPSTREAM_RETRIES, this, RetryBudget::getRetries )
+                       .description( "Upstream attempts that were retries of a failed one" )
+                       .register( registry );
+        FunctionCounter.builder( UPSTREAM_RETRY_BUDGET_EXHAUSTED, this, RetryBudget::getExhausted )
+                       .description( "Retries not made because the retry budget was spent" )
+                       .register( registry );
+        Gauge.builder( UPSTREAM_RETRY_BUDGET_TOKENS, this, RetryBudget::getTokens )
+             .description( "Retries the budget currently allows" )
+             .register( registry );
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.commonjava.indy.service.httprox.util.ApplicationStatus.SERVICE_UNAVAILABLE;
+
+/**
+ * A request turned away without trying, because a backend it needs is known to be down (its circuit breaker is open)
+ * or the proxy is at its concurrency limits. Answered with 503 and a Retry-After.
+ */
+public class ServiceUnavailableException
+        extends IndyProxyException
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final long BUSY_RETRY_AFTER_SECONDS = 1;
+
+    private final long retryAfterSeconds;
+
+    public ServiceUnavailableException( final long retryAfterSeconds, final String message, final Object... params )
+    {
+        super( SERVICE_UNAVAILABLE.code(), message, params );
+        this.retryAfterSeconds = Math.max( 1, retryAfterSeconds );
+    }
+
+    public ServiceUnavailableException( final long retryAfterSeconds, final String message, final Throwable cause,
+                                        final Object... params )
+    {
+        super( SERVICE_UNAVAILABLE.code(), message, cause, params );
+        this.retryAfterSeconds = Math.max( 1, retryAfterSeconds );
+    }
+
+    public long getRetryAfterSeconds()
+    {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * The reason to answer 503 in the causes of an error: a {@link ServiceUnavailableException}, or a task a full
+     * executor rejected.
+     *
+     * @return null for errors that are not about availability
+     */
+    public static ServiceUnavailableException find( final Throwable error )
+    {
+        for ( Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause() )
+        {
+            if ( t instanceof ServiceUnavailableException )
+            {
+                return (ServiceUnavailableException) t;
+            }
+            if ( t instanceof RejectedExecutionException )
+            {
+                return new ServiceUnavailableException( BUSY_RETRY_AFTER_SECONDS, "Proxy is busy", t );
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import java.net.URL;
+
+/**
+ * What identifies the artifact store serving a proxied url: the target's scheme, host and port, plus the trackingId
+ * of the client if it has one. Holds nothing of the request it came from, so it can be kept for as long as the store
+ * is cached.
+ */
+public final class StoreTarget
+{
+    private final String scheme;
+
+    private final String host;
+
+    private final int port;
+
+    private final String trackingId;
+
+    public StoreTarget( final String scheme, final String host, final int port, final String trackingId )
+    {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.trackingId = trackingId;
+    }
+
+    public static StoreTarget of( final URL url, final String trackingId )
+    {
+        int port = url.getPort() < 1 ? url.getDefaultPort() : url.getPort();
+        return new StoreTarget( url.getProtocol(), url.getHost(), port, trackingId );
+    }
+
+    public String getScheme()
+    {
+        return scheme;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public String getTrackingId()
+    {
+        return trackingId;
+    }
+
+    /**
+     * The url remote repositories for this target are registered with, e.g. http://repo.example.com/; the port is
+     * left out when it is the scheme's default.
+     */
+    public String getBaseUrl()
+    {
+        boolean defaultPort = ( "http".equalsIgnoreCase( scheme ) && port == 80 ) || ( "https".equalsIgnoreCase( scheme )
+                && port == 443 );
+        return String.format( "%s://%s%s/", scheme, host, defaultPort ? "" : ":" + port );
+    }
+
+    /**
+     * The cache key; targets with the same key share one store.
+     */
+    public String toKey()
+    {
+        return trackingId == null ? host + ":" + port : host + ":" + port + "#" + trackingId;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toKey();
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import okio.BufferedSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.ChannelListener;
+import org.xnio.channels.StreamSinkChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Streams an upstream body into an XNIO sink channel, driven by the channel's write readiness.
+ *
+ * The pump alternates between two steps and never runs both at once:
+ * <ul>
+ *     <li>fill: a blocking read of the next segment(s) from the upstream {@link BufferedSource} into a pooled buffer,
+ *     done on the upstream executor, a pool of its own rather than the XNIO worker, so a stalled upstream does not
+ *     hold up other worker tasks;</li>
+ *     <li>drain: non-blocking writes of that buffer (plus chunk framing) on the channel's I/O thread, resumed by the
+ *     channel whenever it becomes writable again.</li>
+ * </ul>
+ * The next fill is only scheduled once everything from the previous one has been written, so a congested client
+ * socket pauses upstream reads instead of having writes retried in a sleep loop.
+ *
+ * A closed channel sends no more write events, so whoever notices the close has to {@link #abort()} the pump.
+ */
+public final class TransferPump
+        implements ChannelListener<StreamSinkChannel>
+{
+    private static final byte[] CRLF = "\r\n".getBytes( US_ASCII );
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes( US_ASCII );
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final StreamSinkChannel sink;
+
+    private final BufferedSource source;
+
+    private final boolean chunked;
+
+    private final Executor upstreamExecutor;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private final ByteBufferPool.Lease lease;
+
+    private final ByteBuffer body;
+
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate( 10 );
+
+    private final ByteBuffer chunkTrailer = ByteBuffer.allocate( CRLF.length );
+
+    // written by the fill step before it resumes writes, consumed on the I/O thread
+    private volatile ByteBuffer[] pending;
+
+    private volatile boolean eof;
+
+    // while a fill is scheduled or running it owns the body buffer, and gives the lease back itself if the pump
+    // completed meanwhile
+    private volatile boolean filling;
+
+    private long transferred;
+
+    /**
+     * @param head bytes to send before the body (status line and headers), may be null
+     * @param source upstream body, or null when there is no body to send (e.g., HEAD)
+     */
+    public TransferPump( final StreamSinkChannel sink, final ByteBuffer head, final BufferedSource source,
+                         final boolean chunked, final Executor upstreamExecutor )
+    {
+        this.sink = sink;
+        this.source = source;
+        this.chunked = chunked;
+        this.upstreamExecutor = upstreamExecutor;
+        this.pending = head == null ? null : new ByteBuffer[] { head };
+        this.eof = source == null;
+        this.lease = source == null ? null : ByteBufferPool.getInstance().lease();
+        this.body = lease == null ? null : lease.buffer();
+    }
+
+    /**
+     * Take over the channel's write listener and start pumping. The returned future completes when the last byte has
+     * been flushed, or exceptionally when either side fails.
+     */
+    @SuppressWarnings( "unchecked" )
+    public CompletableFuture<Void> start()
+    {
+        if ( !sink.isOpen() )
+        {
+            complete( new ClosedChannelException() );
+            return done;
+        }
+        ( (ChannelListener.Setter<StreamSinkChannel>) sink.getWriteSetter() ).set( this );
+        sink.resumeWrites();
+        return done;
+    }
+
+    /**
+     * Give up on the transfer because the channel was closed, e.g. by the client going away. Fails the future of
+     * {@link #start()} unless the transfer is done already; safe to call from any thread and repeatedly.
+     */
+    public void abort()
+    {
+        complete( new ClosedChannelException() );
+    }
+
+    @Override
+    public void handleEvent( final StreamSinkChannel channel )
+    {
+        try
+        {
+            ByteBuffer[] bufs = pending;
+            if ( bufs != null )
+            {
+                if ( !drain( channel, bufs ) )
+                {
+                    logger.trace( "Sink congested, waiting for it to become writable" );
+                    return;
+                }
+                pending = null;
+            }
+
+            if ( eof )
+            {
+                if ( channel.flush() )
+                {
+                    channel.suspendWrites();
+                    complete( null );
+                }
+                return;
+            }
+
+            channel.suspendWrites();
+            filling = true;
+            upstreamExecutor.execute( this::fill );
+        }
+        catch ( IOException | RejectedExecutionException e )
+        {
+            filling = false;
+            channel.suspendWrites();
+            complete( e );
+        }
+    }
+
+    private void fill()
+    {
+        IOException failure = null;
+        try
+        {
+            body.clear();
+            int read = source.read( body ); // blocks until upstream delivers data or reaches the end
+            if ( read < 0 )
+            {
+                eof = true;
+                pending = chunked ? new ByteBuffer[] { ByteBuffer.wrap( LAST_CHUNK ) } : null;
+                logger.debug( "Upstream body done, transferred: {}", transferred );
+            }
+            else
+            {
+                transferred += read;
+                body.flip();
+                if ( chunked )
+                {
+                    chunkHeader.clear();
+                    chunkHeader.put( Integer.toHexString( read ).getBytes( US_ASCII ) ).put( CRLF ).flip();
+                    chunkTrailer.clear();
+                    chunkTrailer.put( CRLF ).flip();
+                    pending = new ByteBuffer[] { chunkHeader, body, chunkTrailer };
+                }
+                else
+                {
+                    pending = new ByteBuffer[] { body };
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            failure = e;
+        }
+
+        filling = false;
+        if ( completed.get() )
+        {
+            // aborted while reading, nobody is going to write the buffer
+            releaseLease();
+            return;
+        }
+
+        if ( failure != null )
+        {
+            logger.debug( "Read upstream body failed: {}", failure.toString() );
+            IOException e = failure;
+            sink.getIoThread().execute( () -> complete( e ) );
+        }
+        else
+        {
+            sink.resumeWrites();
+        }
+    }
+
+    private static boolean drain( final StreamSinkChannel channel, final ByteBuffer[] bufs )
+            throws IOException
+    {
+        while ( hasRemaining( bufs ) )
+        {
+            if ( channel.write( bufs, 0, bufs.length ) == 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasRemaining( final ByteBuffer[] bufs )
+    {
+        for ( ByteBuffer buf : bufs )
+        {
+            if ( buf.hasRemaining() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void complete( final Throwable error )
+    {
+        if ( !completed.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        if ( source != null )
+        {
+            closeQuietly( source ); // also ends a fill blocked on upstream
+        }
+        if ( !filling )
+        {
+            releaseLease();
+        }
+
+        if ( error == null )
+        {
+            done.complete( null );
+        }
+        else
+        {
+            done.completeExceptionally( error );
+        }
+    }
+
+    private void releaseLease()
+    {
+        if ( lease != null ) // releasing twice is harmless, a fill and complete() may both get here
+        {
+            lease.release();
+        }
+    }
+}
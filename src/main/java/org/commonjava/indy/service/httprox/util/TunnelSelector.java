@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.TUNNEL_BYTES_TO_CLIENT;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.TUNNEL_BYTES_TO_TARGET;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.TUNNEL_OPEN;
+
+/**
+ * One selector thread watching the target sockets of all SSL tunnels. It only reports readiness: the interest a
+ * channel registered is used up by the event that reports it, and the listener re-arms it once it has acted on it,
+ * typically after moving the bytes on another thread. Listeners are called on the selector thread and must not block.
+ *
+ * Also keeps the byte counts of the tunnels.
+ */
+public final class TunnelSelector
+        implements Runnable
+{
+    private static final TunnelSelector INSTANCE = new TunnelSelector();
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    // registrations and interest changes, applied by the selector thread between selects
+    private final Queue<Runnable> changes = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger open = new AtomicInteger();
+
+    private final LongAdder bytesToTarget = new LongAdder();
+
+    private final LongAdder bytesToClient = new LongAdder();
+
+    private Selector selector;
+
+    public static TunnelSelector getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public interface Listener
+    {
+        /**
+         * @param readyOps the operations the channel is ready for; all of them when it could not be registered, so
+         * that the next operation on it reports the failure
+         */
+        void ready( int readyOps );
+    }
+
+    /**
+     * Watch channel for ops, switching it to non-blocking mode.
+     */
+    public Registration register( final SelectableChannel channel, final int ops, final Listener listener )
+            throws IOException
+    {
+        channel.configureBlocking( false );
+        Selector s = start();
+        Registration registration = new Registration( listener );
+        submit( () -> {
+            try
+            {
+                registration.key = channel.register( s, ops, registration );
+            }
+            catch ( ClosedChannelException e )
+            {
+                listener.ready( ops );
+            }
+        } );
+        return registration;
+    }
+
+    private synchronized Selector start()
+            throws IOException
+    {
+        if ( selector == null )
+        {
+            selector = Selector.open();
+            Thread thread = new Thread( this, "tunnel-selector" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+        return selector;
+    }
+
+    private void submit( final Runnable change )
+    {
+        changes.add( change );
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        while ( true )
+        {
+            try
+            {
+                selector.select();
+
+                Runnable change;
+                while ( ( change = changes.poll() ) != null )
+                {
+                    change.run();
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while ( selected.hasNext() )
+                {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if ( !key.isValid() )
+                    {
+                        continue;
+                    }
+
+                    int ready = key.readyOps();
+                    key.interestOps( key.interestOps() & ~ready );
+                    ( (Registration) key.attachment() ).listener.ready( ready );
+                }
+            }
+            catch ( Throwable e )
+            {
+                logger.error( "Tunnel selector failed to dispatch: " + e.getMessage(), e );
+            }
+        }
+    }
+
+    public void opened()
+    {
+        open.incrementAndGet();
+    }
+
+    public void closed()
+    {
+        open.decrementAndGet();
+    }
+
+    public void countToTarget( final long bytes )
+    {
+        bytesToTarget.add( bytes );
+    }
+
+    public void countToClient( final long bytes )
+    {
+        bytesToClient.add( bytes );
+    }
+
+    public int getOpen()
+    {
+        return open.get();
+    }
+
+    public long getBytesToTarget()
+    {
+        return bytesToTarget.sum();
+    }
+
+    public long getBytesToClient()
+    {
+        return bytesToClient.sum();
+    }
+
+    public void bindTo( final MeterRegistry registry )
+    {
+        Gauge.builder( TUNNEL_OPEN, this, TunnelSelector::getOpen )
+             .description( "SSL tunnels being relayed" )
+             .register( registry );
+        FunctionCounter.builder( TUNNEL_BYTES_TO_TARGET, this, TunnelSelector::getBytesToTarget )
+                       .description( "Bytes relayed from clients to tunnel targets" )
+                       .register( registry );
+        FunctionCounter.builder( TUNNEL_BYTES_TO_CLIENT, this, TunnelSelector::getBytesToClient )
+                       .description( "Bytes relayed from tunnel targets to clients" )
+                       .register( registry );
+    }
+
+    /**
+     * A watched channel. Closing the channel ends the registration too.
+     */
+    public final class Registration
+    {
+        private final Listener listener;
+
+        // set by the selector thread
+        private volatile SelectionKey key;
+
+        private Registration( final Listener listener )
+        {
+            this.listener = listener;
+        }
+
+        /**
+         * Be told once when the channel is ready for any of ops.
+         */
+        public void interest( final int ops )
+        {
+            submit( () -> {
+                SelectionKey k = key;
+                if ( k != null && k.isValid() )
+                {
+                    k.interestOps( k.interestOps() | ops );
+                }
+            } );
+        }
+
+        public void cancel()
+        {
+            submit( () -> {
+                SelectionKey k = key;
+                if ( k != null )
+                {
+                    k.cancel();
+                }
+            } );
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.commonjava.indy.service.httprox.config.ServiceConfig;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * The replicas behind one service entry and the choice between them. Each attempt of a call (see the attempt
+ * interceptor in {@link WebClientAdapter}) picks an endpoint, reports how it went and holds the endpoint's outstanding
+ * count until its response body is closed. Endpoints failing repeatedly are ejected for a while, and endpoints failing
+ * their health probe are skipped; when nothing is left, all endpoints are used anyway rather than failing the call.
+ */
+public class UpstreamEndpoints
+{
+    private static final Logger logger = LoggerFactory.getLogger( UpstreamEndpoints.class );
+
+    private static final int DEFAULT_EJECT_AFTER_FAILURES = 3;
+
+    private static final Duration DEFAULT_EJECT_FOR = Duration.ofSeconds( 30 );
+
+    private static final Duration DEFAULT_HEALTH_CHECK_INTERVAL = Duration.ofSeconds( 10 );
+
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    private static final double EWMA_WEIGHT = 0.3;
+
+    /**
+     * Answers that count toward ejection, besides I/O errors; the same as for the circuit breaker. Other 5xx come from
+     * a live endpoint, often about a remote site behind it.
+     */
+    private static final Set<Integer> FAILURE_STATUSES = Set.of( 503, 504 );
+
+    private static final ScheduledExecutorService PROBES = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread t = new Thread( r, "upstream-health-probes" );
+        t.setDaemon( true );
+        return t;
+    } );
+
+    enum Strategy
+    {
+        ROUND_ROBIN, LEAST_OUTSTANDING, EWMA;
+
+        static Strategy of( String name )
+        {
+            if ( name == null || name.isBlank() )
+            {
+                return ROUND_ROBIN;
+            }
+            return valueOf( name.trim().toUpperCase().replace( '-', '_' ) );
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+
+    private final Strategy strategy;
+
+    private final int ejectAfterFailures;
+
+    private final long ejectForMillis;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private ScheduledFuture<?> probes;
+
+    public UpstreamEndpoints( ServiceConfig serviceConfig )
+    {
+        List<Endpoint> list = new ArrayList<>();
+        if ( serviceConfig.endpoints == null || serviceConfig.endpoints.isEmpty() )
+        {
+            list.add( new Endpoint( serviceConfig.host, serviceConfig.port ) );
+        }
+        else
+        {
+            for ( String ep : serviceConfig.endpoints )
+            {
+                int idx = ep.lastIndexOf( ':' );
+                list.add( idx < 0 ?
+                                  new Endpoint( ep.trim(), serviceConfig.port ) :
+                                  new Endpoint( ep.substring( 0, idx ).trim(),
+                                                Integer.parseInt( ep.substring( idx + 1 ).trim() ) ) );
+            }
+        }
+        this.endpoints = Collections.unmodifiableList( list );
+        this.strategy = Strategy.of( serviceConfig.loadBalancer );
+        this.ejectAfterFailures = serviceConfig.ejectAfterFailures == null ?
+                DEFAULT_EJECT_AFTER_FAILURES : serviceConfig.ejectAfterFailures;
+        this.ejectForMillis = ( serviceConfig.ejectFor == null ?
+                DEFAULT_EJECT_FOR : Duration.parse( "pt" + serviceConfig.ejectFor ) ).toMillis();
+    }
+
+    public List<Endpoint> getEndpoints()
+    {
+        return endpoints;
+    }
+
+    /**
+     * Pick the endpoint for the next attempt, preferring usable ones that were not tried yet for this call.
+     */
+    public Endpoint select( Collection<Endpoint> tried )
+    {
+        if ( endpoints.size() == 1 )
+        {
+            return endpoints.get( 0 );
+        }
+
+        long now = System.currentTimeMillis();
+        Endpoint picked = pick( now, tried, true );
+        if ( picked == null )
+        {
+            picked = pick( now, tried, false );
+        }
+        if ( picked == null )
+        {
+            picked = pick( now, Collections.emptyList(), false );
+        }
+        return picked;
+    }
+
+    /**
+     * Whether another attempt could go to an endpoint this call has not tried yet, so it need not back off first.
+     */
+    public boolean hasUntried( Collection<Endpoint> tried )
+    {
+        long now = System.currentTimeMillis();
+        for ( Endpoint ep : endpoints )
+        {
+            if ( !tried.contains( ep ) && ep.isUsable( now ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Endpoint pick( long now, Collection<Endpoint> tried, boolean usableOnly )
+    {
+        int size = endpoints.size();
+        if ( strategy == Strategy.ROUND_ROBIN )
+        {
+            // the cursor moves past skipped endpoints too, so the rest share their turns evenly
+            for ( int i = 0; i < size; i++ )
+            {
+                Endpoint ep = endpoints.get( Math.floorMod( next.getAndIncrement(), size ) );
+                if ( !tried.contains( ep ) && ( !usableOnly || ep.isUsable( now ) ) )
+                {
+                    return ep;
+                }
+            }
+            return null;
+        }
+
+        // ties go to whichever comes first from a rotating start
+        int start = Math.floorMod( next.getAndIncrement(), size );
+        Endpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        for ( int i = 0; i < size; i++ )
+        {
+            Endpoint ep = endpoints.get( ( start + i ) % size );
+            if ( tried.contains( ep ) || usableOnly && !ep.isUsable( now ) )
+            {
+                continue;
+            }
+
+            // under ewma an endpoint without a latency measurement yet is costed by its outstanding calls alone, so
+            // an idle one gets measured first
+            double cost = strategy == Strategy.LEAST_OUTSTANDING || ep.ewmaMillis < 0 ?
+                    ep.outstanding.get() : ep.ewmaMillis * ( ep.outstanding.get() + 1 );
+            if ( cost < bestCost )
+            {
+                best = ep;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The attempt's request, sent to the given endpoint.
+     */
+    public Request route( Request request, Endpoint ep )
+    {
+        HttpUrl url = request.url();
+        int port = ep.port > 0 ? ep.port : HttpUrl.defaultPort( url.scheme() );
+        if ( ep.host.equals( url.host() ) && port == url.port() )
+        {
+            return request;
+        }
+        return request.newBuilder().url( url.newBuilder().host( ep.host ).port( port ).build() ).build();
+    }
+
+    public void started( Endpoint ep )
+    {
+        ep.outstanding.incrementAndGet();
+    }
+
+    /**
+     * Report the answer of an attempt, a failure if its status is one of {@link #FAILURE_STATUSES}.
+     */
+    public void answered( Endpoint ep, int code, long latencyNanos )
+    {
+        if ( FAILURE_STATUSES.contains( code ) )
+        {
+            failed( ep );
+        }
+        else
+        {
+            succeeded( ep, latencyNanos );
+        }
+    }
+
+    public void succeeded( Endpoint ep, long latencyNanos )
+    {
+        double millis = latencyNanos / 1_000_000.0;
+        double ewma = ep.ewmaMillis;
+        ep.ewmaMillis = ewma < 0 ? millis : ewma + EWMA_WEIGHT * ( millis - ewma );
+        ep.consecutiveFailures.set( 0 );
+        ep.ejectionStreak = 0;
+    }
+
+    public void failed( Endpoint ep )
+    {
+        if ( ejectAfterFailures <= 0 || endpoints.size() == 1 )
+        {
+            return;
+        }
+        if ( ep.consecutiveFailures.incrementAndGet() >= ejectAfterFailures )
+        {
+            synchronized ( ep )
+            {
+                if ( ep.consecutiveFailures.get() < ejectAfterFailures )
+                {
+                    return; // ejected by a concurrent failure already
+                }
+                ep.consecutiveFailures.set( 0 );
+                ep.ejectionStreak = Math.min( ep.ejectionStreak + 1, MAX_EJECTION_MULTIPLIER );
+                long ejectFor = ejectForMillis * ep.ejectionStreak;
+                ep.ejectedUntil = System.currentTimeMillis() + ejectFor;
+                ep.ejections.incrementAndGet();
+                logger.warn( "Ejected upstream endpoint {} for {}ms after {} consecutive failures", ep, ejectFor,
+                             ejectAfterFailures );
+            }
+        }
+    }
+
+    /**
+     * Release the attempt's hold on the endpoint when the body of the response is closed, or now if it has none.
+     */
+    public Response track( Response response, Endpoint ep )
+    {
+        ResponseBody body = response.body();
+        if ( body == null )
+        {
+            done( ep );
+            return response;
+        }
+
+        AtomicBoolean closed = new AtomicBoolean();
+        ForwardingSource source = new ForwardingSource( body.source() )
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    if ( closed.compareAndSet( false, true ) )
+                    {
+                        done( ep );
+                    }
+                }
+            }
+        };
+        return response.newBuilder()
+                       .body( ResponseBody.create( Okio.buffer( source ), body.contentType(), body.contentLength() ) )
+                       .build();
+    }
+
+    public void done( Endpoint ep )
+    {
+        ep.outstanding.decrementAndGet();
+    }
+
+    /**
+     * Probe every endpoint with a GET of the path through the given client, which should not retry.
+     */
+    public synchronized void startProbes( OkHttpClient client, boolean ssl, String path, String interval )
+    {
+        if ( path == null || probes != null )
+        {
+            return;
+        }
+
+        long millis = ( interval == null ? DEFAULT_HEALTH_CHECK_INTERVAL : Duration.parse( "pt" + interval ) ).toMillis();
+        probes = PROBES.scheduleWithFixedDelay( () -> endpoints.forEach( ep -> probe( client, ssl, path, ep ) ), 0,
+                                                millis, TimeUnit.MILLISECONDS );
+    }
+
+    public synchronized void stopProbes()
+    {
+        if ( probes != null )
+        {
+            probes.cancel( false );
+            probes = null;
+        }
+    }
+
+    private void probe( OkHttpClient client, boolean ssl, String path, Endpoint ep )
+    {
+        String url = ( ssl ? "https://" : "http://" ) + ep + ( path.startsWith( "/" ) ? "" : "/" ) + path;
+        client.newCall( new Request.Builder().get().url( url ).build() ).enqueue( new Callback()
+        {
+            @Override
+            public void onFailure( @NotNull Call call, @NotNull IOException e )
+            {
+                healthy( ep, false, e.getMessage() );
+            }
+
+            @Override
+            public void onResponse( @NotNull Call call, @NotNull Response response )
+            {
+                try (response)
+                {
+                    healthy( ep, response.isSuccessful(), "HTTP " + response.code() );
+                }
+            }
+        } );
+    }
+
+    private void healthy( Endpoint ep, boolean healthy, String detail )
+    {
+        if ( ep.healthy != healthy )
+        {
+            ep.healthy = healthy;
+            if ( healthy )
+            {
+                logger.info( "Upstream endpoint {} passes its health check again", ep );
+            }
+            else
+            {
+                logger.warn( "Upstream endpoint {} failed its health check: {}", ep, detail );
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return endpoints.stream().map( Endpoint::toString ).collect( Collectors.joining( "," ) );
+    }
+
+    public static final class Endpoint
+    {
+        private final String host;
+
+        private final int port;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        private final AtomicInteger ejections = new AtomicInteger();
+
+        private volatile double ewmaMillis = -1;
+
+        private volatile int ejectionStreak;
+
+        private volatile long ejectedUntil;
+
+        private volatile boolean healthy = true;
+
+        Endpoint( String host, int port )
+        {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost()
+        {
+            return host;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        public int getOutstanding()
+        {
+            return outstanding.get();
+        }
+
+        public int getEjections()
+        {
+            return ejections.get();
+        }
+
+        public boolean isUsable( long now )
+        {
+            return healthy && now >= ejectedUntil;
+        }
+
+        @Override
+        public String toString()
+        {
+            return port > 0 ? host + ":" + port : host;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.indy.service.httprox.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, looked up reflectively so the service still builds and runs on a JDK without them (before 21).
+ */
+public final class VirtualThreads
+{
+    private static final int MIN_FEATURE_VERSION = 21;
+
+    private VirtualThreads()
+    {
+    }
+
+    public static boolean isSupported()
+    {
+        return Runtime.version().feature() >= MIN_FEATURE_VERSION;
+    }
+
+    /**
+     * An executor starting a new virtual thread for each task, named namePrefix plus a counter. A task that blocks
+     * on I/O or sleeps releases its carrier thread meanwhile, unless it is pinned to it (see
+     * {@link PinnedThreadMonitor}).
+     *
+     * @throws UnsupportedOperationException if the JDK has no virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor( final String namePrefix )
+    {
+        if ( !isSupported() )
+        {
+            throw new UnsupportedOperationException(
+                            "Virtual threads need Java " + MIN_FEATURE_VERSION + ", running " + Runtime.version() );
+        }
+
+        try
+        {
+            Class<?> builderType = Class.forName( "java.lang.Thread$Builder" );
+            Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            builder = builderType.getMethod( "name", String.class, long.class ).invoke( builder, namePrefix, 0L );
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod( "factory" ).invoke( builder );
+            return (ExecutorService) Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class )
+                                                    .invoke( null, factory );
+        }
+        catch ( ReflectiveOperationException e )
+        {
+            throw new UnsupportedOperationException( "Virtual threads are not available: " + e, e );
+        }
+    }
+}
@@ -15,9 +15,16 @@
  */
 package org.commonjava.indy.service.httprox.util;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.context.Scope;
 import io.opentelemetry.semconv.trace.attributes.SemanticAttributes;
+import io.smallrye.faulttolerance.api.CircuitBreakerState;
+import io.smallrye.faulttolerance.api.FaultTolerance;
+import io.smallrye.faulttolerance.mutiny.api.MutinyFaultTolerance;
 import io.smallrye.mutiny.Uni;
 import io.smallrye.mutiny.vertx.UniHelper;
 import io.vertx.core.Future;
@@ -26,6 +33,7 @@ import okhttp3.*;
 import org.apache.commons.io.IOUtils;
 import org.commonjava.indy.service.httprox.config.ServiceConfig;
 import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
+import org.eclipse.microprofile.faulttolerance.exceptions.CircuitBreakerOpenException;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,13 +43,35 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import static jakarta.ws.rs.core.HttpHeaders.HOST;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_CALLS_QUEUED;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_CALLS_RUNNING;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_CIRCUIT_OPEN;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_CIRCUIT_REJECTED;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_ENDPOINT;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_ENDPOINT_AVAILABLE;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_ENDPOINT_EJECTIONS;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_ENDPOINT_OUTSTANDING;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_PATH_PATTERN;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_POOL_CONNECTIONS;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_POOL_IDLE;
+import static org.commonjava.indy.service.httprox.util.MetricsConstants.UPSTREAM_SERVICE;
 
 public class WebClientAdapter
 {
@@ -59,22 +89,78 @@ public class WebClientAdapter
 
     private final long DEFAULT_MAX_BACKOFF_MILLIS = Duration.ofSeconds( 15 ).toMillis();
 
+    /**
+     * Statuses worth another attempt: the upstream (or something in front of it) could not serve the call right now.
+     * Other 5xx answers are the service's own and would come back the same.
+     */
+    private static final Set<Integer> RETRYABLE_STATUSES = Set.of( 502, 503, 504 );
+
+    /**
+     * Answers that count against the circuit breaker, besides errors. 500 and 502 do not: the content service also
+     * gives those for a remote site it could not get the content from, which says nothing about the service itself.
+     */
+    private static final Set<Integer> BREAKER_FAILURE_STATUSES = Set.of( 503, 504 );
+
+    private final int DEFAULT_BREAKER_REQUEST_VOLUME = 20;
+
+    private final double DEFAULT_BREAKER_FAILURE_RATIO = 0.5;
+
+    private final long DEFAULT_BREAKER_DELAY_MILLIS = Duration.ofSeconds( 10 ).toMillis();
+
+    private final int DEFAULT_BREAKER_SUCCESS_THRESHOLD = 1;
+
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor( r -> {
+        Thread t = new Thread( r, "upstream-retry-scheduler" );
+        t.setDaemon( true );
+        return t;
+    } );
+
+    // the per-host cap applies to each endpoint of the service, the total one to all of them
+    private final int DEFAULT_MAX_REQUESTS = 128;
+
+    private final int DEFAULT_MAX_REQUESTS_PER_HOST = 64;
+
+    private final int DEFAULT_POOL_MAX_IDLE = 32;
+
+    private final Duration DEFAULT_POOL_KEEP_ALIVE = Duration.ofMinutes( 5 );
+
     private final ServiceConfig serviceConfig;
 
+    private final UpstreamEndpoints endpoints;
+
     private final AtomicLong timeout;
 
     private final OtelAdapter otel;
 
+    private final RetryBudget retryBudget;
+
     private OkHttpClient client;
 
+    private final AttemptInterceptor attemptInterceptor = new AttemptInterceptor();
+
+    private volatile CallClients callClients;
+
+    private final List<Meter> meters = new ArrayList<>();
+
+    private final LongAdder breakerRejections = new LongAdder();
+
+    private volatile long retiredAt;
+
+    private volatile boolean closed;
+
     public WebClientAdapter( ServiceConfig serviceConfig, ServiceProxyConfig proxyConfiguration, AtomicLong timeout,
-                             OtelAdapter otel )
+                             OtelAdapter otel, RetryBudget retryBudget )
     {
         this.serviceConfig = serviceConfig;
         this.proxyConfiguration = proxyConfiguration;
         this.timeout = timeout;
         this.otel = otel;
+        this.retryBudget = retryBudget;
+        this.endpoints = new UpstreamEndpoints( serviceConfig );
         reinit();
+        register();
+        endpoints.startProbes( client, serviceConfig.ssl, serviceConfig.healthCheckPath,
+                               serviceConfig.healthCheckInterval );
     }
 
     public RequestAdapter head( String path )
@@ -104,8 +190,7 @@ public class WebClientAdapter
             File bodyFile = cacheInputStream( is );
 
             return new RequestAdapter( new Request.Builder().post( RequestBody.create( bodyFile, getMediaType( req ) ) )
-                    .url( calculateUrl( path ) ), path ).withCleanup(
-                    new DeleteInterceptor( bodyFile ) ).headersFrom( req );
+                    .url( calculateUrl( path ) ), path ).withCleanup( bodyFile ).headersFrom( req );
         }
         catch ( IOException exception )
         {
@@ -120,8 +205,7 @@ public class WebClientAdapter
             File bodyFile = cacheInputStream( is );
 
             return new RequestAdapter( new Request.Builder().put( RequestBody.create( bodyFile, getMediaType( req ) ) )
-                    .url( calculateUrl( path ) ), path ).withCleanup(
-                    new DeleteInterceptor( bodyFile ) ).headersFrom( req );
+                    .url( calculateUrl( path ) ), path ).withCleanup( bodyFile ).headersFrom( req );
         }
         catch ( IOException exception )
         {
@@ -155,17 +239,21 @@ public class WebClientAdapter
         return new RequestAdapter( new Request.Builder().delete().url( calculateUrl( path ) ), path );
     }
 
+    /**
+     * The url on the first endpoint; each attempt is sent to the endpoint picked for it.
+     */
     private String calculateUrl( String path )
     {
+        UpstreamEndpoints.Endpoint endpoint = endpoints.getEndpoints().get( 0 );
         StringBuilder sb = new StringBuilder( "http" );
         if ( serviceConfig.ssl )
         {
             sb.append( 's' );
         }
-        sb.append( "://" ).append( serviceConfig.host );
-        if ( serviceConfig.port > 0 )
+        sb.append( "://" ).append( endpoint.getHost() );
+        if ( endpoint.getPort() > 0 )
         {
-            sb.append( ':' ).append( serviceConfig.port );
+            sb.append( ':' ).append( endpoint.getPort() );
         }
 
         if ( !path.startsWith( "/" ) )
@@ -181,16 +269,249 @@ public class WebClientAdapter
     public void reinit()
     {
         logger.info("reinit, timeout: {}", timeout.get());
-        logger.info("reinit, retry: {}", proxyConfiguration.getRetry());
         Duration d = Duration.ofMillis( timeout.get() );
-        this.client = new OkHttpClient.Builder().addInterceptor( new RetryInterceptor( proxyConfiguration.getRetry() ) )
+
+        int maxIdle = serviceConfig.poolMaxIdle == null ? DEFAULT_POOL_MAX_IDLE : serviceConfig.poolMaxIdle;
+        Duration keepAlive = serviceConfig.poolKeepAlive == null ?
+                DEFAULT_POOL_KEEP_ALIVE : Duration.parse( "pt" + serviceConfig.poolKeepAlive );
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests( serviceConfig.maxRequests == null ? DEFAULT_MAX_REQUESTS : serviceConfig.maxRequests );
+        dispatcher.setMaxRequestsPerHost( serviceConfig.maxRequestsPerHost == null ?
+                                                  DEFAULT_MAX_REQUESTS_PER_HOST : serviceConfig.maxRequestsPerHost );
+
+        List<Protocol> protocols = getProtocols();
+        logger.info( "reinit, {} ({}) pool max-idle: {}, keep-alive: {}, max-requests: {}, max-requests-per-host: {}, "
+                             + "protocols: {}", endpoints, serviceConfig.loadBalancer, maxIdle, keepAlive,
+                     dispatcher.getMaxRequests(), dispatcher.getMaxRequestsPerHost(), protocols );
+
+        this.client = new OkHttpClient.Builder()
                 .callTimeout( d )
                 .readTimeout( d )
                 .writeTimeout( d )
                 .connectTimeout( d )
                 .retryOnConnectionFailure( true )
-                .protocols( Arrays.asList( Protocol.HTTP_1_1 ) )
+                .connectionPool( new ConnectionPool( maxIdle, keepAlive.toMillis(), TimeUnit.MILLISECONDS ) )
+                .dispatcher( dispatcher )
+                .protocols( protocols )
                 .build();
+        this.callClients = derive();
+    }
+
+    /**
+     * The clients for the current service_proxy settings, rebuilt when those have been reloaded.
+     */
+    private CallClients getCallClients()
+    {
+        CallClients clients = callClients;
+        if ( clients.generation != proxyConfiguration.getGeneration() )
+        {
+            synchronized ( this )
+            {
+                clients = callClients;
+                if ( clients.generation != proxyConfiguration.getGeneration() )
+                {
+                    clients = derive();
+                    callClients = clients;
+                }
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * Derive the client calls are made with, and the retry policy, from the service_proxy settings. The client shares
+     * the base client's pool and dispatcher.
+     */
+    private CallClients derive()
+    {
+        int generation = proxyConfiguration.getGeneration();
+        String readTimeout = proxyConfiguration.getReadTimeout();
+        Duration pathTimeout = readTimeout == null ? null : Duration.parse( "pt" + readTimeout );
+        logger.info( "Building upstream clients for {}:{}, read timeout: {}, retry: {}", serviceConfig.host,
+                     serviceConfig.port, readTimeout, proxyConfiguration.getRetry() );
+
+        OkHttpClient.Builder builder = client.newBuilder().addInterceptor( attemptInterceptor );
+        if ( pathTimeout != null )
+        {
+            builder.callTimeout( pathTimeout )
+                    .readTimeout( pathTimeout )
+                    .writeTimeout( pathTimeout )
+                    .connectTimeout( pathTimeout );
+        }
+
+        return new CallClients( generation, pathTimeout, builder.build(),
+                                new RetryPolicy( proxyConfiguration.getRetry() ),
+                                deriveBreaker( proxyConfiguration.getCircuitBreaker() ) );
+    }
+
+    /**
+     * The circuit breaker for the circuit-breaker settings, or null if it is disabled. The current one is kept, open
+     * or not, as long as its settings did not change.
+     */
+    private Breaker deriveBreaker( ServiceProxyConfig.CircuitBreaker settings )
+    {
+        if ( settings != null && Boolean.FALSE.equals( settings.enabled ) )
+        {
+            return null;
+        }
+
+        Breaker breaker = new Breaker(
+                settings == null || settings.requestVolume == null ?
+                        DEFAULT_BREAKER_REQUEST_VOLUME : settings.requestVolume,
+                settings == null || settings.failureRatio == null ?
+                        DEFAULT_BREAKER_FAILURE_RATIO : settings.failureRatio,
+                settings == null || settings.delay == null ?
+                        DEFAULT_BREAKER_DELAY_MILLIS : Duration.parse( "pt" + settings.delay ).toMillis(),
+                settings == null || settings.successThreshold == null ?
+                        DEFAULT_BREAKER_SUCCESS_THRESHOLD : settings.successThreshold );
+
+        CallClients current = callClients;
+        return current != null && breaker.sameSettings( current.breaker ) ? current.breaker : breaker;
+    }
+
+    private List<Protocol> getProtocols()
+    {
+        String protocol = serviceConfig.protocol == null ? "" : serviceConfig.protocol.trim().toLowerCase();
+        switch ( protocol )
+        {
+            case "h2c":
+                if ( !serviceConfig.ssl )
+                {
+                    return Arrays.asList( Protocol.H2_PRIOR_KNOWLEDGE );
+                }
+                logger.warn( "h2c does not apply to TLS service {}:{}, negotiating h2 instead", serviceConfig.host,
+                             serviceConfig.port );
+                return Arrays.asList( Protocol.HTTP_2, Protocol.HTTP_1_1 );
+            case "h2":
+                return Arrays.asList( Protocol.HTTP_2, Protocol.HTTP_1_1 );
+            default:
+                return Arrays.asList( Protocol.HTTP_1_1 );
+        }
+    }
+
+    public ServiceConfig getServiceConfig()
+    {
+        return serviceConfig;
+    }
+
+    /**
+     * The base client, as built from the service entry by {@link #reinit()}; calls go through clients derived from it.
+     */
+    public OkHttpClient getClient()
+    {
+        return client;
+    }
+
+    /**
+     * Take this adapter out of service after a reload replaced its service entry. Calls already made, and the
+     * downloads they are streaming, go on as they are; {@link #closeIfDrained(long)} closes the pool once they are
+     * done. The gauges go now, so the replacement adapter can register its own under the same tags.
+     */
+    public void retire()
+    {
+        retiredAt = System.currentTimeMillis();
+        endpoints.stopProbes();
+        synchronized ( meters )
+        {
+            meters.forEach( Metrics.globalRegistry::remove );
+            meters.clear();
+        }
+        logger.info( "Retired upstream client for {} ({})", endpoints, serviceConfig.pathPattern );
+    }
+
+    /**
+     * Close the pool and the dispatcher of a retired adapter if it has been retired for at least the grace period
+     * (callers may still be holding it from before the reload) and it has no calls and no busy connections left.
+     *
+     * @return true if it was closed
+     */
+    public boolean closeIfDrained( long graceMillis )
+    {
+        if ( retiredAt == 0 || System.currentTimeMillis() - retiredAt < graceMillis )
+        {
+            return false;
+        }
+
+        Dispatcher dispatcher = client.dispatcher();
+        ConnectionPool pool = client.connectionPool();
+        if ( dispatcher.runningCallsCount() > 0 || dispatcher.queuedCallsCount() > 0
+                || pool.connectionCount() > pool.idleConnectionCount() )
+        {
+            return false;
+        }
+
+        pool.evictAll();
+        dispatcher.executorService().shutdown();
+        closed = true;
+        logger.info( "Closed retired upstream client for {} ({})", endpoints, serviceConfig.pathPattern );
+        return true;
+    }
+
+    public boolean isRetired()
+    {
+        return retiredAt != 0;
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    private void register()
+    {
+        String service = endpoints.toString();
+        String pathPattern = String.valueOf( serviceConfig.pathPattern );
+        meters.add( Gauge.builder( UPSTREAM_POOL_CONNECTIONS, this, a -> a.client.connectionPool().connectionCount() )
+                         .tag( UPSTREAM_SERVICE, service )
+                         .tag( UPSTREAM_PATH_PATTERN, pathPattern )
+                         .description( "Upstream connections in the pool, busy or idle" )
+                         .register( Metrics.globalRegistry ) );
+        meters.add( Gauge.builder( UPSTREAM_POOL_IDLE, this, a -> a.client.connectionPool().idleConnectionCount() )
+                         .tag( UPSTREAM_SERVICE, service )
+                         .tag( UPSTREAM_PATH_PATTERN, pathPattern )
+                         .description( "Idle upstream connections in the pool" )
+                         .register( Metrics.globalRegistry ) );
+        meters.add( Gauge.builder( UPSTREAM_CALLS_RUNNING, this, a -> a.client.dispatcher().runningCallsCount() )
+                         .tag( UPSTREAM_SERVICE, service )
+                         .tag( UPSTREAM_PATH_PATTERN, pathPattern )
+                         .description( "Upstream calls in progress" )
+                         .register( Metrics.globalRegistry ) );
+        meters.add( Gauge.builder( UPSTREAM_CALLS_QUEUED, this, a -> a.client.dispatcher().queuedCallsCount() )
+                         .tag( UPSTREAM_SERVICE, service )
+                         .tag( UPSTREAM_PATH_PATTERN, pathPattern )
+                         .description( "Upstream calls waiting for the dispatcher's request limits" )
+                         .register( Metrics.globalRegistry ) );
+        meters.add( Gauge.builder( UPSTREAM_CIRCUIT_OPEN, this, a -> a.callClients.breaker != null
+                                 && a.callClients.breaker.state == CircuitBreakerState.OPEN ? 1 : 0 )
+                         .tag( UPSTREAM_SERVICE, service )
+                         .tag( UPSTREAM_PATH_PATTERN, pathPattern )
+                         .description( "1 while the circuit breaker is open and calls to the service fail fast" )
+                         .register( Metrics.globalRegistry ) );
+        meters.add( FunctionCounter.builder( UPSTREAM_CIRCUIT_REJECTED, breakerRejections, LongAdder::sum )
+                                   .tag( UPSTREAM_SERVICE, service )
+                                   .tag( UPSTREAM_PATH_PATTERN, pathPattern )
+                                   .description( "Calls failed fast because the circuit breaker was open" )
+                                   .register( Metrics.globalRegistry ) );
+        for ( UpstreamEndpoints.Endpoint ep : endpoints.getEndpoints() )
+        {
+            meters.add( Gauge.builder( UPSTREAM_ENDPOINT_OUTSTANDING, ep, UpstreamEndpoints.Endpoint::getOutstanding )
+                             .tag( UPSTREAM_SERVICE, service )
+                             .tag( UPSTREAM_ENDPOINT, ep.toString() )
+                             .description( "Attempts sent to the endpoint whose response is not finished yet" )
+                             .register( Metrics.globalRegistry ) );
+            meters.add( Gauge.builder( UPSTREAM_ENDPOINT_AVAILABLE, ep,
+                                       e -> e.isUsable( System.currentTimeMillis() ) ? 1 : 0 )
+                             .tag( UPSTREAM_SERVICE, service )
+                             .tag( UPSTREAM_ENDPOINT, ep.toString() )
+                             .description( "1 while the endpoint is neither ejected nor failing its health check" )
+                             .register( Metrics.globalRegistry ) );
+            meters.add( Gauge.builder( UPSTREAM_ENDPOINT_EJECTIONS, ep, UpstreamEndpoints.Endpoint::getEjections )
+                             .tag( UPSTREAM_SERVICE, service )
+                             .tag( UPSTREAM_ENDPOINT, ep.toString() )
+                             .description( "Times the endpoint was ejected after consecutive failures" )
+                             .register( Metrics.globalRegistry ) );
+        }
     }
 
     public final class RequestAdapter
@@ -201,8 +522,6 @@ public class WebClientAdapter
 
         private IOException exception;
 
-        private Interceptor cleanupInterceptor;
-
         public RequestAdapter( Request.Builder requestBuilder, String path )
         {
             this.requestBuilder = requestBuilder;
@@ -258,40 +577,23 @@ public class WebClientAdapter
                 return new CallAdapter( exception );
             }
 
-            logger.info("read timeout: {}", proxyConfiguration.getReadTimeout());
-            Duration pathTimeout = Duration.parse( "pt" + proxyConfiguration.getReadTimeout() );
+            CallClients clients = getCallClients();
             if ( otel.enabled() )
             {
                 Span.current()
-                        .setAttribute( "target.timeout", pathTimeout != null ? pathTimeout.toMillis() : timeout.get() );
+                        .setAttribute( "target.timeout", clients.pathTimeout != null ? clients.pathTimeout.toMillis() : timeout.get() );
             }
-            OkHttpClient callClient = client;
-            if ( pathTimeout != null || cleanupInterceptor != null )
-            {
-                OkHttpClient.Builder builder = client.newBuilder();
-                if ( pathTimeout != null )
-                {
-                    builder.callTimeout( pathTimeout )
-                            .readTimeout( pathTimeout )
-                            .writeTimeout( pathTimeout )
-                            .connectTimeout( pathTimeout );
-                }
-
-                if ( cleanupInterceptor != null )
-                {
-                    builder.interceptors().add( 0, cleanupInterceptor );
-                    //                    builder.addInterceptor( cleanupInterceptor );
-                }
 
-                callClient = builder.protocols( Arrays.asList(Protocol.HTTP_1_1) ).build();
-            }
-
-            return new CallAdapter( callClient, requestBuilder, serviceConfig );
+            return new CallAdapter( clients.client, clients.retryPolicy, clients.breaker, requestBuilder,
+                                    serviceConfig );
         }
 
-        public RequestAdapter withCleanup( Interceptor cleanupInterceptor )
+        /**
+         * Delete bodyFile once the call is done, retries included.
+         */
+        public RequestAdapter withCleanup( File bodyFile )
         {
-            this.cleanupInterceptor = cleanupInterceptor;
+            requestBuilder.tag( File.class, bodyFile );
             return this;
         }
     }
@@ -300,15 +602,22 @@ public class WebClientAdapter
     {
         private OkHttpClient callClient;
 
+        private RetryPolicy retryPolicy;
+
+        private Breaker breaker;
+
         private Request.Builder requestBuilder;
 
         private ServiceConfig serviceConfig;
 
         private IOException exception;
 
-        public CallAdapter( OkHttpClient callClient, Request.Builder requestBuilder, ServiceConfig serviceConfig )
+        private CallAdapter( OkHttpClient callClient, RetryPolicy retryPolicy, Breaker breaker,
+                             Request.Builder requestBuilder, ServiceConfig serviceConfig )
         {
             this.callClient = callClient;
+            this.retryPolicy = retryPolicy;
+            this.breaker = breaker;
             this.requestBuilder = requestBuilder;
             this.serviceConfig = serviceConfig;
         }
@@ -318,6 +627,10 @@ public class WebClientAdapter
             this.exception = exception;
         }
 
+        /**
+         * Make the call, retries included. While the service's circuit breaker is open it fails right away with a
+         * {@link ServiceUnavailableException}.
+         */
         public Uni<Response> enqueue()
         {
             if ( exception != null )
@@ -325,6 +638,11 @@ public class WebClientAdapter
                 return UniHelper.toUni( Future.failedFuture( exception ) );
             }
 
+            return breaker == null ? send() : breaker.call( this::send );
+        }
+
+        private Uni<Response> send()
+        {
             return UniHelper.toUni( Future.future( ( p ) -> {
 
                 Span span;
@@ -345,26 +663,28 @@ public class WebClientAdapter
                     scope = null;
                 }
 
-                Call call = callClient.newCall( requestBuilder.build() );
+                Request request = requestBuilder.tag( Attempts.class, new Attempts() ).build();
 
                 final long nano = System.nanoTime();
                 final long mill = System.currentTimeMillis();
                 final String timestamp = mill + "." + nano;
-                final HttpUrl url = call.request().url();
+                final HttpUrl url = request.url();
                 logger.info( "Starting upstream request: {} ({})", url, timestamp );
 
                 if ( span != null )
                 {
-                    span.setAttribute( SemanticAttributes.HTTP_METHOD, call.request().method() );
-                    span.setAttribute( SemanticAttributes.HTTP_HOST, call.request().url().host() );
-                    span.setAttribute( SemanticAttributes.HTTP_URL, call.request().url().url().toExternalForm() );
+                    span.setAttribute( SemanticAttributes.HTTP_METHOD, request.method() );
+                    span.setAttribute( SemanticAttributes.HTTP_HOST, request.url().host() );
+                    span.setAttribute( SemanticAttributes.HTTP_URL, request.url().url().toExternalForm() );
                 }
 
-                call.enqueue( new Callback()
+                retryBudget.deposit();
+                attempt( request, 0, span, new Callback()
                 {
                     @Override
                     public void onFailure(@NotNull Call call, @NotNull IOException e )
                     {
+                        cleanup( request );
                         if ( span != null )
                         {
                             span.setAttribute( "error.class", e.getClass().getSimpleName() );
@@ -383,6 +703,7 @@ public class WebClientAdapter
                     @Override
                     public void onResponse( @NotNull Call call, @NotNull Response response )
                     {
+                        cleanup( request );
                         if ( span != null )
                         {
                             span.setAttribute( SemanticAttributes.HTTP_STATUS_CODE, response.code() );
@@ -402,136 +723,352 @@ public class WebClientAdapter
             } ) );
         }
 
+        /**
+         * Send one attempt. A failed attempt that may be retried is sent again from the retry scheduler once its
+         * backoff is over, so no thread waits for it; otherwise its outcome goes to the final callback.
+         */
+        private void attempt( Request request, int retries, Span span, Callback done )
+        {
+            callClient.newCall( request ).enqueue( new Callback()
+            {
+                @Override
+                public void onFailure( @NotNull Call call, @NotNull IOException e )
+                {
+                    if ( !retry( request, retries, span, e.getClass().getSimpleName() + ": " + e.getMessage(), null,
+                                 done ) )
+                    {
+                        done.onFailure( call, e );
+                    }
+                }
+
+                @Override
+                public void onResponse( @NotNull Call call, @NotNull Response response ) throws IOException
+                {
+                    if ( RETRYABLE_STATUSES.contains( response.code() ) && retry( request, retries, span,
+                                                                                  "HTTP " + response.code(),
+                                                                                  response.header( "Retry-After" ),
+                                                                                  done ) )
+                    {
+                        response.close();
+                        return;
+                    }
+                    done.onResponse( call, response );
+                }
+            } );
+        }
+
+        private boolean retry( Request request, int retries, Span span, String cause, String retryAfter,
+                               Callback done )
+        {
+            if ( retries >= retryPolicy.count )
+            {
+                return false;
+            }
+
+            long delay = retryPolicy.delay( retries, retryAfter );
+            if ( delay < 0 )
+            {
+                logger.debug( "TRY({}/{}): {} from {}, Retry-After is beyond the max interval, not retrying", retries,
+                              retryPolicy.count, cause, request.url() );
+                return false;
+            }
+            if ( !retryBudget.tryRetry() )
+            {
+                if ( span != null )
+                {
+                    span.setAttribute( "target.retry.budget_exhausted", 1 );
+                }
+                logger.debug( "TRY({}/{}): {} from {}, retry budget spent, not retrying", retries, retryPolicy.count,
+                              cause, request.url() );
+                return false;
+            }
+
+            // failing over to an endpoint this call has not tried yet needs no backoff
+            if ( endpoints.hasUntried( request.tag( Attempts.class ).tried ) && retryAfter == null )
+            {
+                delay = 0;
+            }
+            if ( span != null )
+            {
+                span.setAttribute( "target.try." + retries + ".cause", cause );
+                span.setAttribute( "target.retries", retries + 1 );
+            }
+            logger.debug( "TRY({}/{}): {} from {}, retrying in {}ms", retries, retryPolicy.count, cause,
+                          request.url(), delay );
+
+            Runnable next = () -> attempt( request, retries + 1, span, done );
+            if ( delay == 0 )
+            {
+                next.run();
+            }
+            else
+            {
+                RETRY_SCHEDULER.schedule( next, delay, TimeUnit.MILLISECONDS );
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Deletes the body file a request was tagged with, see {@link RequestAdapter#withCleanup(File)}.
+     */
+    private void cleanup( Request request )
+    {
+        File bodyFile = request.tag( File.class );
+        if ( bodyFile == null )
+        {
+            return;
+        }
+
+        logger.debug( "Deleting input post/put body tempfile: {}", bodyFile );
+        try
+        {
+            if ( !Files.deleteIfExists( bodyFile.toPath() ) )
+            {
+                logger.trace( "Could not delete body input file: {}", bodyFile );
+            }
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Failed to delete body input file: {}", bodyFile, e );
+        }
     }
 
-    private class RetryInterceptor
+    /**
+     * Sends each attempt of a call to the endpoint picked for it, preferring one the call has not tried yet, and
+     * feeds the outcome to the endpoints' outlier ejection.
+     */
+    private class AttemptInterceptor
             implements Interceptor
+    {
+        @NotNull
+        @Override
+        public Response intercept( @NotNull Chain chain ) throws IOException
+        {
+            Request req = chain.request();
+            Attempts attempts = req.tag( Attempts.class );
+            List<UpstreamEndpoints.Endpoint> tried = attempts == null ? Collections.emptyList() : attempts.tried;
+
+            UpstreamEndpoints.Endpoint endpoint = endpoints.select( tried );
+            if ( attempts != null )
+            {
+                attempts.tried.add( endpoint );
+            }
+
+            endpoints.started( endpoint );
+            long start = System.nanoTime();
+            Response resp;
+            try
+            {
+                resp = chain.proceed( endpoints.route( req, endpoint ) );
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                endpoints.done( endpoint );
+                endpoints.failed( endpoint );
+                throw e;
+            }
+
+            endpoints.answered( endpoint, resp.code(), System.nanoTime() - start );
+            return endpoints.track( resp, endpoint );
+        }
+    }
+
+    /**
+     * The endpoints the attempts of one call went to so far.
+     */
+    private static final class Attempts
+    {
+        private final List<UpstreamEndpoints.Endpoint> tried = new ArrayList<>( 1 );
+    }
+
+    /**
+     * Up to count retries, each after a random delay of up to interval * 2^retry (capped at max-interval), or after
+     * the upstream's Retry-After when it asks for a longer one.
+     */
+    private final class RetryPolicy
     {
         private final int count;
 
         private final long interval;
 
-        RetryInterceptor( ServiceProxyConfig.Retry retry )
+        private final long maxInterval;
+
+        private RetryPolicy( ServiceProxyConfig.Retry retry )
         {
             this.count = retry == null || retry.count < 0 ? DEFAULT_RETRY_COUNT : retry.count;
             this.interval = retry == null || retry.interval < 0 ? DEFAULT_BACKOFF_MILLIS : retry.interval;
+            this.maxInterval = retry == null || retry.maxInterval == null ?
+                    DEFAULT_MAX_BACKOFF_MILLIS : retry.maxInterval;
         }
 
-        @NotNull
-        @Override
-        public Response intercept( @NotNull Chain chain ) throws IOException
+        /**
+         * @return the delay before the next attempt in millis, or -1 if the upstream asks to wait beyond max-interval
+         */
+        private long delay( int retries, String retryAfter )
         {
-            Request req = chain.request();
-            Response resp;
-            int tryCounter = 0;
-            long start = System.currentTimeMillis();
-            long backOff = 0l;
-            do
+            long cap = Math.min( maxInterval, interval << Math.min( retries, 20 ) );
+            long delay = cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong( cap + 1 );
+            if ( retryAfter != null )
             {
                 try
                 {
-                    resp = chain.proceed( req );
-                    if ( resp.code() < 500 )
+                    long asked = TimeUnit.SECONDS.toMillis( Long.parseLong( retryAfter.trim() ) );
+                    if ( asked > maxInterval )
                     {
-                        return resp;
-                    }
-                    else
-                    {
-                        if ( tryCounter >= count )
-                        {
-                            return resp;
-                        }
-                        else
-                        {
-                            if ( otel.enabled() )
-                            {
-                                Span.current().setAttribute( "target.try." + tryCounter + ".status_code", resp.code() );
-                            }
-
-                            logger.debug( "TRY({}/{}): Response missing or indicates server error: {}. Retrying",
-                                    tryCounter, count, resp );
-                        }
+                        return -1;
                     }
+                    delay = Math.max( delay, asked );
                 }
-                catch ( IOException e )
+                catch ( NumberFormatException e )
                 {
-                    if ( tryCounter >= count )
-                    {
-                        throw e;
-                    }
-                    if ( otel.enabled() )
-                    {
-                        Span.current().setAttribute( "target.try." + tryCounter + ".error_message", e.getMessage() );
-                        Span.current()
-                                .setAttribute( "target.try." + tryCounter + ".error_class", e.getClass().getSimpleName() );
-                    }
-
-                    logger.debug( "TRY(" + tryCounter + "/" + count + "): Failed upstream request: " + req.url(), e );
+                    // an http-date; the backoff will do
                 }
+            }
+            return delay;
+        }
+    }
 
-                try
-                {
-                    Thread.sleep( interval );
-                    backOff = System.currentTimeMillis() - start;
-                }
-                catch ( InterruptedException e )
-                {
-                    if ( otel.enabled() )
-                    {
-                        Span.current().setAttribute( "target.interrupted", 1 );
-                        Span.current().setAttribute( "target.try." + tryCounter + ".interrupted", 1 );
-                    }
+    /**
+     * Circuit breaker over the calls to this service. Once failure-ratio of the last request-volume calls failed
+     * (errors, or an answer in {@link #BREAKER_FAILURE_STATUSES} after the retries), it opens: for delay, calls fail
+     * at once instead of waiting out timeouts and retries, then success-threshold trial calls decide whether it
+     * closes again.
+     */
+    private final class Breaker
+    {
+        private final int requestVolume;
 
-                    return new Response.Builder().code( 502 )
-                            .message( "Thread interruption while waiting for upstream retry!" )
-                            .build();
-                }
+        private final double failureRatio;
 
-                tryCounter++;
-            }
-            while ( tryCounter < count );
+        private final long delayMillis;
 
-            if ( otel.enabled() )
-            {
-                Span.current().setAttribute( "target.retries", tryCounter );
-            }
+        private final int successThreshold;
 
-            throw new IOException( "Proxy retry interceptor reached an unexpected fall-through condition!" );
-        }
-    }
+        private volatile FaultTolerance<Uni<Response>> guard;
 
-    private class DeleteInterceptor
-            implements Interceptor
-    {
-        private final File bodyFile;
+        private volatile CircuitBreakerState state = CircuitBreakerState.CLOSED;
 
-        public DeleteInterceptor( File bodyFile )
+        private volatile long openedAt;
+
+        private Breaker( int requestVolume, double failureRatio, long delayMillis, int successThreshold )
         {
-            this.bodyFile = bodyFile;
+            this.requestVolume = requestVolume;
+            this.failureRatio = failureRatio;
+            this.delayMillis = delayMillis;
+            this.successThreshold = successThreshold;
         }
 
-        @NotNull
-        @Override
-        public Response intercept( @NotNull Chain chain ) throws IOException
+        /**
+         * Built for the first call rather than with the adapter, which stays constructible where no fault tolerance
+         * implementation is around, as in unit tests.
+         */
+        private FaultTolerance<Uni<Response>> guard()
         {
-            try
+            FaultTolerance<Uni<Response>> g = guard;
+            if ( g == null )
             {
-                if ( otel.enabled() )
+                synchronized ( this )
                 {
-                    Span.current().setAttribute( "sidecar.target.bodyFile", bodyFile.getPath() );
+                    g = guard;
+                    if ( g == null )
+                    {
+                        g = guard = MutinyFaultTolerance.<Response>create()
+                                                        .withCircuitBreaker()
+                                                        .requestVolumeThreshold( requestVolume )
+                                                        .failureRatio( failureRatio )
+                                                        .delay( delayMillis, ChronoUnit.MILLIS )
+                                                        .successThreshold( successThreshold )
+                                                        .onStateChange( this::onStateChange )
+                                                        .done()
+                                                        .build();
+                    }
                 }
+            }
+            return g;
+        }
+
+        private boolean sameSettings( Breaker other )
+        {
+            return other != null && requestVolume == other.requestVolume && failureRatio == other.failureRatio
+                    && delayMillis == other.delayMillis && successThreshold == other.successThreshold;
+        }
 
-                return chain.proceed( chain.request() );
+        private Uni<Response> call( Supplier<Uni<Response>> send )
+        {
+            return guard().get( () -> send.get().onItem().transformToUni(
+                                response -> BREAKER_FAILURE_STATUSES.contains( response.code() ) ?
+                                        Uni.createFrom().failure( new FailedResponse( response ) ) :
+                                        Uni.createFrom().item( response ) ) )
+                        // the failing answer still goes to the caller, it only had to count as a failure
+                        .onFailure( FailedResponse.class )
+                        .recoverWithItem( t -> ( (FailedResponse) t ).response )
+                        .onFailure( CircuitBreakerOpenException.class )
+                        .transform( t -> {
+                            breakerRejections.increment();
+                            return new ServiceUnavailableException( retryAfterSeconds(),
+                                                                    "Circuit breaker for {} ({}) is open", t,
+                                                                    endpoints, serviceConfig.pathPattern );
+                        } );
+        }
+
+        private long retryAfterSeconds()
+        {
+            long left = openedAt + delayMillis - System.currentTimeMillis();
+            return Math.max( 1, TimeUnit.MILLISECONDS.toSeconds( left + 999 ) );
+        }
+
+        private void onStateChange( CircuitBreakerState state )
+        {
+            if ( state == CircuitBreakerState.OPEN )
+            {
+                openedAt = System.currentTimeMillis();
+                logger.warn( "Circuit breaker for {} ({}) opened, failing calls fast for {}ms", endpoints,
+                             serviceConfig.pathPattern, delayMillis );
             }
-            finally
+            else
             {
-                logger.debug( "Deleting input post/put body tempfile: {}", bodyFile );
-                boolean deleted = Files.deleteIfExists( bodyFile.toPath() );
-                if ( !deleted )
-                {
-                    logger.trace( "Could not delete body input file: {}", bodyFile );
-                }
+                logger.info( "Circuit breaker for {} ({}) is {}", endpoints, serviceConfig.pathPattern, state );
             }
+            this.state = state;
+        }
+    }
+
+    /**
+     * Carries an answer that counts as a failure through the circuit breaker, see {@link Breaker#call(Supplier)}.
+     */
+    private static final class FailedResponse
+            extends RuntimeException
+    {
+        private final transient Response response;
+
+        private FailedResponse( Response response )
+        {
+            super( "HTTP " + response.code(), null, false, false );
+            this.response = response;
+        }
+    }
+
+    private static final class CallClients
+    {
+        private final int generation;
+
+        private final Duration pathTimeout;
+
+        private final OkHttpClient client;
+
+        private final RetryPolicy retryPolicy;
+
+        private final Breaker breaker;
+
+        private CallClients( int generation, Duration pathTimeout, OkHttpClient client, RetryPolicy retryPolicy,
+                             Breaker breaker )
+        {
+            this.generation = generation;
+            this.pathTimeout = pathTimeout;
+            this.client = client;
+            this.retryPolicy = retryPolicy;
+            this.breaker = breaker;
         }
     }
 }
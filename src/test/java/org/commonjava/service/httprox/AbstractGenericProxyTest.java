@@ -43,6 +43,7 @@ import org.mockito.Mockito;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.util.Random;
 
 import static org.commonjava.indy.service.httprox.util.UrlUtils.base64url;
 import static org.hamcrest.CoreMatchers.notNullValue;
@@ -58,18 +59,27 @@ public class AbstractGenericProxyTest
 
     protected static File etcDir;
 
+    protected static final String LARGE_ARTIFACT = "large-1.bin";
+
+    /**
+     * Big enough to exceed the loopback socket buffers, so a client that stops reading really congests the proxy.
+     */
+    protected static final byte[] LARGE_BODY = largeBody( 16 * 1024 * 1024 );
+
     @BeforeAll
     public static void setup() throws Exception
     {
 
         ContentRetrievalService contentRetrievalService = Mockito.mock(ContentRetrievalService.class);
 
-        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("indy-api-1.3.1.pom")))).thenReturn(Uni.createFrom().item(buildResponse("indy-api-1.3.1.pom")));
-        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("fsevents-1.2.4.tgz")))).thenReturn(Uni.createFrom().item(buildResponse("fsevents-1.2.4.tgz")));
-        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), eq(base64url("/test/org/test/simple/1/simple.pom")))).thenReturn(Uni.createFrom().item(buildResponse("simple.pom")));
-        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), eq(base64url("/org/test/simple.pom?version=2.0")))).thenReturn(Uni.createFrom().item(buildResponse("simple-2.0.pom")));
-        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("simple-1.pom")))).thenReturn(Uni.createFrom().item(buildResponse("simple-1.pom")));
-        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("no.pom")))).thenReturn(Uni.createFrom().item(buildResponse("no.pom")));
+        // a fresh response per subscription, the body is consumed by each request
+        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("indy-api-1.3.1.pom")))).thenReturn(Uni.createFrom().item(() -> buildResponse("indy-api-1.3.1.pom")));
+        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("fsevents-1.2.4.tgz")))).thenReturn(Uni.createFrom().item(() -> buildResponse("fsevents-1.2.4.tgz")));
+        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), eq(base64url("/test/org/test/simple/1/simple.pom")))).thenReturn(Uni.createFrom().item(() -> buildResponse("simple.pom")));
+        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), eq(base64url("/org/test/simple.pom?version=2.0")))).thenReturn(Uni.createFrom().item(() -> buildResponse("simple-2.0.pom")));
+        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("simple-1.pom")))).thenReturn(Uni.createFrom().item(() -> buildResponse("simple-1.pom")));
+        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url("no.pom")))).thenReturn(Uni.createFrom().item(() -> buildResponse("no.pom")));
+        Mockito.when(contentRetrievalService.doGet(any(), any(), any(), contains(base64url(LARGE_ARTIFACT)))).thenReturn(Uni.createFrom().item(() -> buildResponse(LARGE_BODY)));
 
         QuarkusMock.installMockForType(contentRetrievalService, ContentRetrievalService.class);
 
@@ -105,6 +115,23 @@ public class AbstractGenericProxyTest
         return null;
     }
 
+    private static Response buildResponse(byte[] body)
+    {
+        return new Response.Builder()
+                .request(new Request.Builder().url("http://url.com").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .body(ResponseBody.create(body, MediaType.parse("application/octet-stream")))
+                .message("Mock response from byte array.").build();
+    }
+
+    private static byte[] largeBody(int size)
+    {
+        byte[] body = new byte[size];
+        new Random(size).nextBytes(body);
+        return body;
+    }
+
     protected static byte[] toByteArray(InputStream is) throws IOException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         try {
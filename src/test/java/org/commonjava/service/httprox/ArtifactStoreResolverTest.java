@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import io.smallrye.config.SmallRyeConfigBuilder;
+import org.commonjava.indy.model.core.ArtifactStore;
+import org.commonjava.indy.model.core.RemoteRepository;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.util.ArtifactStoreResolver;
+import org.commonjava.indy.service.httprox.util.CacheProducer;
+import org.commonjava.indy.service.httprox.util.IndyProxyException;
+import org.commonjava.indy.service.httprox.util.StoreTarget;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.commonjava.indy.pkg.PackageTypeConstants.PKG_TYPE_GENERIC_HTTP;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactStoreResolverTest
+{
+    private static final StoreTarget TARGET = new StoreTarget( "http", "repo.example.com", 80, null );
+
+    private ExecutorService executor;
+
+    private ArtifactStoreResolver resolver;
+
+    // the lookup the resolver under test calls, swapped by each test
+    private final AtomicReference<ArtifactStoreResolver.StoreLookup> lookup = new AtomicReference<>();
+
+    @BeforeEach
+    public void setup()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.setStoreLookupNegativeTtlSeconds( 60 );
+        executor = Executors.newFixedThreadPool( 4 );
+        resolver = new ArtifactStoreResolver( config, new CacheProducer(), executor,
+                                              ( target, creator ) -> lookup.get().lookup( target, creator ) );
+    }
+
+    @AfterEach
+    public void stop()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentLookupsShareOneCall()
+            throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch( 1 );
+        ArtifactStore remote = new RemoteRepository( PKG_TYPE_GENERIC_HTTP, "h-repo-example-com", "http://repo.example.com/" );
+
+        lookup.set( ( target, creator ) -> {
+            calls.incrementAndGet();
+            release.await( 30, TimeUnit.SECONDS );
+            return remote;
+        } );
+
+        CompletableFuture<ArtifactStore> first = resolver.resolve( TARGET, null );
+        CompletableFuture<ArtifactStore> second = resolver.resolve( TARGET, null );
+        release.countDown();
+
+        assertSame( remote, first.get( 30, TimeUnit.SECONDS ) );
+        assertSame( remote, second.get( 30, TimeUnit.SECONDS ) );
+
+        // served from the cache afterwards
+        assertSame( remote, resolver.resolve( TARGET, null ).get() );
+        assertEquals( 1, calls.get() );
+    }
+
+    @Test
+    public void trackingIdAndPortAreDistinctTargets()
+            throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        lookup.set( ( target, creator ) -> new RemoteRepository( PKG_TYPE_GENERIC_HTTP, "r" + calls.incrementAndGet(),
+                                                                 target.getBaseUrl() ) );
+
+        resolver.resolve( TARGET, null ).get( 30, TimeUnit.SECONDS );
+        resolver.resolve( new StoreTarget( "http", "repo.example.com", 8080, null ), null ).get( 30, TimeUnit.SECONDS );
+        resolver.resolve( new StoreTarget( "http", "repo.example.com", 80, "build-1" ), null ).get( 30, TimeUnit.SECONDS );
+
+        assertEquals( 3, calls.get() );
+    }
+
+    @Test
+    public void failedLookupIsNotRetriedWithinTtl()
+            throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        lookup.set( ( target, creator ) -> {
+            calls.incrementAndGet();
+            throw new IndyProxyException( "repository service unavailable" );
+        } );
+        StoreTarget tracked = new StoreTarget( "http", "repo.example.com", 80, "build-1" );
+
+        ExecutionException first = assertThrows( ExecutionException.class,
+                                                  () -> resolver.resolve( tracked, null ).get( 30, TimeUnit.SECONDS ) );
+        assertInstanceOf( IndyProxyException.class, first.getCause() );
+
+        ExecutionException second = assertThrows( ExecutionException.class,
+                                                   () -> resolver.resolve( tracked, null ).get( 30, TimeUnit.SECONDS ) );
+        assertInstanceOf( IndyProxyException.class, second.getCause() );
+        assertEquals( 1, calls.get() );
+    }
+
+    @Test
+    public void cachedStoreDoesNotKeepTheRequest()
+            throws Exception
+    {
+        lookup.set( ( target, creator ) -> creator.create() );
+        ArtifactStore remote = new RemoteRepository( PKG_TYPE_GENERIC_HTTP, "h-repo-example-com", "http://repo.example.com/" );
+
+        WeakReference<Object> request = resolveFor( new Object(), remote );
+        for ( int i = 0; i < 50 && request.get() != null; i++ )
+        {
+            System.gc();
+            Thread.sleep( 20 );
+        }
+        assertNull( request.get() );
+        assertSame( remote, resolver.resolve( TARGET, null ).get() );
+    }
+
+    /**
+     * Resolve with a creator holding on to request, as the one of a ProxyResponseHelper does.
+     */
+    private WeakReference<Object> resolveFor( final Object request, final ArtifactStore store )
+            throws Exception
+    {
+        ArtifactStoreResolver.StoreCreator creator = () -> {
+            assertNotNull( request );
+            return store;
+        };
+        assertSame( store, resolver.resolve( TARGET, creator ).get( 30, TimeUnit.SECONDS ) );
+        return new WeakReference<>( request );
+    }
+
+    @Test
+    public void staleStoreIsRefreshedWithoutCreating()
+            throws Exception
+    {
+        resolver = resolverWithCache( "PT0.1S", "PT30S" );
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger creates = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch( 1 );
+        lookup.set( ( target, creator ) -> {
+            int call = calls.incrementAndGet();
+            if ( call > 1 )
+            {
+                assertNull( creator );
+                // a refresh done before the stale read returns would be handed to that read already
+                release.await( 30, TimeUnit.SECONDS );
+            }
+            return new RemoteRepository( PKG_TYPE_GENERIC_HTTP, "r" + call, target.getBaseUrl() );
+        } );
+        ArtifactStoreResolver.StoreCreator creator = () -> {
+            creates.incrementAndGet();
+            return null;
+        };
+
+        ArtifactStore first = resolver.resolve( TARGET, creator ).get( 30, TimeUnit.SECONDS );
+        assertEquals( "r1", first.getName() );
+
+        Thread.sleep( 200 );
+
+        // the stale store is answered right away, the refresh replaces it in the background
+        assertSame( first, resolver.resolve( TARGET, creator ).get() );
+        release.countDown();
+
+        ArtifactStore refreshed = awaitChange( first );
+        assertEquals( "r2", refreshed.getName() );
+        assertEquals( 0, creates.get() );
+    }
+
+    @Test
+    public void failedRefreshKeepsStaleStoreUntilExpiry()
+            throws Exception
+    {
+        resolver = resolverWithCache( "PT0.1S", "PT1S" );
+
+        AtomicInteger calls = new AtomicInteger();
+        ArtifactStore remote = new RemoteRepository( PKG_TYPE_GENERIC_HTTP, "h-repo-example-com", "http://repo.example.com/" );
+        lookup.set( ( target, creator ) -> {
+            if ( calls.incrementAndGet() > 1 )
+            {
+                throw new IndyProxyException( "repository service unavailable" );
+            }
+            return remote;
+        } );
+
+        assertSame( remote, resolver.resolve( TARGET, null ).get( 30, TimeUnit.SECONDS ) );
+        Thread.sleep( 200 );
+
+        // refreshes fail, the stale store is still served meanwhile
+        long start = System.currentTimeMillis();
+        assertSame( remote, resolver.resolve( TARGET, null ).get() );
+        for ( int i = 0; i < 50 && calls.get() < 2; i++ )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 2, calls.get() );
+        if ( System.currentTimeMillis() - start < 500 )
+        {
+            assertSame( remote, resolver.resolve( TARGET, null ).get() );
+        }
+
+        // but not past expire-after-write
+        Thread.sleep( 1200 );
+        ExecutionException e = assertThrows( ExecutionException.class,
+                                             () -> resolver.resolve( TARGET, null ).get( 30, TimeUnit.SECONDS ) );
+        assertInstanceOf( IndyProxyException.class, e.getCause() );
+    }
+
+    private ArtifactStoreResolver resolverWithCache( final String refreshAfterWrite, final String expireAfterWrite )
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.setStoreLookupNegativeTtlSeconds( 60 );
+        CacheProducer cacheProducer = new CacheProducer(
+                new SmallRyeConfigBuilder().withDefaultValue( "cache.artifact_store.refresh-after-write", refreshAfterWrite )
+                                           .withDefaultValue( "cache.artifact_store.expire-after-write", expireAfterWrite )
+                                           .build() );
+        return new ArtifactStoreResolver( config, cacheProducer, executor,
+                                          ( target, creator ) -> lookup.get().lookup( target, creator ) );
+    }
+
+    private ArtifactStore awaitChange( final ArtifactStore stale )
+            throws Exception
+    {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( 30 );
+        ArtifactStore current = stale;
+        while ( current == stale && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 20 );
+            current = resolver.resolve( TARGET, null ).get();
+        }
+        assertNotSame( stale, current );
+        return current;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.util.ByteBufferPool;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ByteBufferPoolTest
+{
+    @Test
+    public void releasedBufferIsReused()
+    {
+        ByteBufferPool pool = new ByteBufferPool( 1024, 4 );
+
+        ByteBufferPool.Lease first = pool.lease();
+        ByteBuffer buffer = first.buffer();
+        assertTrue( buffer.isDirect() );
+        buffer.put( (byte) 1 );
+        assertEquals( 1, pool.getOutstanding() );
+
+        first.release();
+        first.release(); // ignored
+        assertEquals( 0, pool.getOutstanding() );
+        assertEquals( 1, pool.getIdle() );
+
+        try ( ByteBufferPool.Lease second = pool.lease() )
+        {
+            assertSame( buffer, second.buffer() );
+            assertEquals( 0, second.buffer().position() );
+        }
+
+        assertEquals( 1, pool.getHits() );
+        assertEquals( 1, pool.getMisses() );
+    }
+
+    @Test
+    public void idleBuffersAreBounded()
+    {
+        ByteBufferPool pool = new ByteBufferPool( 1024, 2 );
+
+        ByteBufferPool.Lease[] leases = new ByteBufferPool.Lease[4];
+        for ( int i = 0; i < leases.length; i++ )
+        {
+            leases[i] = pool.lease();
+        }
+        for ( ByteBufferPool.Lease lease : leases )
+        {
+            lease.release();
+        }
+
+        assertEquals( 2, pool.getIdle() );
+        assertEquals( 0, pool.getOutstanding() );
+
+        pool.setMaxPooled( 1 );
+        assertEquals( 1, pool.getIdle() );
+    }
+
+    @Test
+    public void concurrentReleasesRecycleOnce()
+            throws Exception
+    {
+        ByteBufferPool pool = new ByteBufferPool( 1024, 1000 );
+        ExecutorService releasers = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            for ( int i = 0; i < 20000; i++ )
+            {
+                ByteBufferPool.Lease lease = pool.lease();
+                CyclicBarrier barrier = new CyclicBarrier( 2 );
+                Callable<Void> release = () -> {
+                    barrier.await();
+                    lease.release();
+                    return null;
+                };
+                for ( Future<Void> f : releasers.invokeAll( List.of( release, release ) ) )
+                {
+                    f.get();
+                }
+
+                assertEquals( 0, pool.getOutstanding() );
+                assertEquals( 1, pool.getIdle() );
+                pool.setMaxPooled( 0 );
+                pool.setMaxPooled( 1000 );
+            }
+        }
+        finally
+        {
+            releasers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import org.commonjava.indy.service.httprox.util.CacheProducer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheProducerTest
+{
+    @Test
+    public void namedCacheIsBuiltOnceAndRecordsStats()
+    {
+        CacheProducer producer = new CacheProducer();
+
+        Cache<String, String> cache = producer.getCache( "test_stats" );
+        assertSame( cache, producer.getCache( "test_stats" ) );
+
+        cache.put( "a", "1" );
+        assertEquals( "1", cache.getIfPresent( "a" ) );
+        assertNull( cache.getIfPresent( "b" ) );
+
+        assertEquals( 1, cache.stats().hitCount() );
+        assertEquals( 1, cache.stats().missCount() );
+    }
+
+    @Test
+    public void loadingCacheLoadsMissingEntries()
+    {
+        CacheProducer producer = new CacheProducer();
+
+        LoadingCache<String, Integer> cache = producer.getLoadingCache( "test_loading", String::length );
+        assertEquals( Integer.valueOf( 5 ), cache.get( "hello" ) );
+        assertEquals( Integer.valueOf( 5 ), cache.get( "hello" ) );
+
+        assertEquals( 1, cache.stats().loadCount() );
+        assertEquals( 1, cache.stats().hitCount() );
+    }
+}
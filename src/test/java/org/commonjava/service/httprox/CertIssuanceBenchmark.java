@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.util.CertUtils;
+import org.commonjava.indy.service.httprox.util.CertificateAndKeys;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares MITM host certificate issuance strategies: the original per-host RSA key pair with a self-signed
+ * certificate that is then re-signed by the CA, against single-pass issuance with per-host or shared RSA / EC leaf
+ * keys.
+ *
+ * Not part of the surefire run; launch {@link #main(String[])} from the test classpath.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CertIssuanceBenchmark
+{
+    private static final String DN = "CN=repo.example.com, O=Test Org";
+
+    private PrivateKey caKey;
+
+    private X509Certificate caCert;
+
+    private KeyPair sharedRsa;
+
+    private KeyPair sharedEc;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        caKey = CertUtils.getPrivateKey( "src/test/resources/ssl/ca.der" );
+        caCert = CertUtils.loadX509Certificate( new File( "src/test/resources/ssl", "ca.crt" ) );
+        sharedRsa = CertUtils.generateKeyPair( CertUtils.KEY_TYPE_RSA );
+        sharedEc = CertUtils.generateKeyPair( CertUtils.KEY_TYPE_EC );
+    }
+
+    @Benchmark
+    public X509Certificate legacyTwoPassRsa()
+            throws Exception
+    {
+        KeyPair pair = KeyPairGenerator.getInstance( CertUtils.KEY_TYPE_RSA ).generateKeyPair();
+        X509Certificate cert = CertUtils.generateX509Certificate( pair, DN, CertUtils.DEFAULT_CERT_EXPIRATION_DAYS,
+                                                                  CertUtils.DEFAULT_SIGN_ALGORITHM );
+        return CertUtils.createSignedCertificate( cert, caCert, caKey, false );
+    }
+
+    @Benchmark
+    public CertificateAndKeys perHostRsa()
+            throws Exception
+    {
+        return CertUtils.createSignedCertificateAndKey( DN, CertUtils.generateKeyPair( CertUtils.KEY_TYPE_RSA ),
+                                                        caCert, caKey, false );
+    }
+
+    @Benchmark
+    public CertificateAndKeys perHostEc()
+            throws Exception
+    {
+        return CertUtils.createSignedCertificateAndKey( DN, CertUtils.generateKeyPair( CertUtils.KEY_TYPE_EC ),
+                                                        caCert, caKey, false );
+    }
+
+    @Benchmark
+    public CertificateAndKeys sharedRsa()
+            throws Exception
+    {
+        return CertUtils.createSignedCertificateAndKey( DN, sharedRsa, caCert, caKey, false );
+    }
+
+    @Benchmark
+    public CertificateAndKeys sharedEc()
+            throws Exception
+    {
+        return CertUtils.createSignedCertificateAndKey( DN, sharedEc, caCert, caKey, false );
+    }
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        new Runner( new OptionsBuilder().include( CertIssuanceBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
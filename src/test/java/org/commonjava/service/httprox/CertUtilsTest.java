@@ -112,4 +112,24 @@ public class CertUtilsTest {
         assertEquals( ext.getExtnId() , Extension.basicConstraints );
         assertEquals( ext.getParsedValue(), new BasicConstraints( -1 ));
     }
+
+    @Test
+    public void testSharedEcLeafKeySignedByRsaIssuer()
+            throws Exception
+    {
+        PrivateKey caKey = CertUtils.getPrivateKey( "src/test/resources/ssl/ca.der" );
+        X509Certificate caCert = CertUtils.loadX509Certificate( new File("src/test/resources/ssl", "ca.crt") );
+        KeyPair shared = CertUtils.generateKeyPair( CertUtils.KEY_TYPE_EC );
+
+        CertificateAndKeys first = CertUtils.createSignedCertificateAndKey( "CN=one.org, O=Test Org", shared, caCert, caKey, false );
+        CertificateAndKeys second = CertUtils.createSignedCertificateAndKey( "CN=two.org, O=Test Org", shared, caCert, caKey, false );
+
+        X509Certificate cert = (X509Certificate) first.getCertificate();
+        cert.verify( caCert.getPublicKey() );
+        cert.checkValidity( new Date() );
+        assertEquals( caCert.getSubjectX500Principal(), cert.getIssuerX500Principal() );
+        assertEquals( "EC", cert.getPublicKey().getAlgorithm() );
+        assertEquals( first.getPublicKey(), second.getPublicKey() );
+        assertNotEquals( cert.getSerialNumber(), ( (X509Certificate) second.getCertificate() ).getSerialNumber() );
+    }
 }
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import okhttp3.Headers;
+import okio.Buffer;
+import okio.BufferedSource;
+import org.commonjava.indy.model.core.RemoteRepository;
+import org.commonjava.indy.model.core.StoreKey;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.util.ContentCache;
+import org.commonjava.indy.service.httprox.util.FileTransferPump;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xnio.ChannelPipe;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.channels.StreamSourceChannel;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.commonjava.indy.pkg.PackageTypeConstants.PKG_TYPE_GENERIC_HTTP;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContentCacheTest
+{
+    private static final String CONTENT = "artifact content";
+
+    @TempDir
+    Path dir;
+
+    private ContentCache cache;
+
+    private RemoteRepository remote;
+
+    @BeforeEach
+    public void setup()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.setContentCacheEnabled( true );
+        config.setContentCacheDir( dir.toString() );
+        config.setContentCacheMaxSizeMb( 10L );
+        config.setContentCacheImmutableExtensions( List.of( ".jar", ".tgz", ".pom" ) );
+        cache = new ContentCache( config );
+
+        remote = new RemoteRepository( PKG_TYPE_GENERIC_HTTP, "h-repo-example-com", "http://repo.example.com/" );
+        remote.setPassthrough( true );
+    }
+
+    @Test
+    public void immutableContentIsCachedOnceFullyRead()
+            throws Exception
+    {
+        StoreKey key = remote.getKey();
+        assertTrue( cache.isCacheable( remote, null ) );
+        assertNull( cache.get( key, "/lib/foo-1.0.jar" ) );
+
+        BufferedSource source = cache.cache( key, "/lib/foo-1.0.jar", Headers.of( "Content-Type", "application/java-archive" ),
+                                             CONTENT.length(), upstream() );
+        assertEquals( CONTENT, source.readUtf8() );
+        source.close();
+
+        ContentCache.Entry entry = cache.get( key, "/lib/foo-1.0.jar" );
+        assertNotNull( entry );
+        assertEquals( CONTENT.length(), entry.getLength() );
+        assertEquals( "application/java-archive", entry.getContentType() );
+        assertEquals( CONTENT, Files.readString( entry.getFile() ) );
+        assertEquals( 1, cache.getHits() );
+    }
+
+    @Test
+    public void partialOrUncacheableResponsesAreNotKept()
+            throws Exception
+    {
+        StoreKey key = remote.getKey();
+
+        BufferedSource partial = cache.cache( key, "/lib/bar-1.0.jar", Headers.of(), CONTENT.length(), upstream() );
+        partial.readUtf8( 4 );
+        partial.close();
+        assertNull( cache.get( key, "/lib/bar-1.0.jar" ) );
+
+        BufferedSource noStore = upstream();
+        assertSame( noStore, cache.cache( key, "/lib/baz-1.0.jar", Headers.of( "Cache-Control", "no-store" ),
+                                          CONTENT.length(), noStore ) );
+
+        BufferedSource mutable = upstream();
+        assertSame( mutable, cache.cache( key, "/lib/maven-metadata.xml", Headers.of(), CONTENT.length(), mutable ) );
+
+        try (var files = Files.list( dir ))
+        {
+            assertEquals( 0, files.count() );
+        }
+    }
+
+    @Test
+    public void onlyNonTrackedPassthroughRemotesAreCacheable()
+    {
+        assertFalse( cache.isCacheable( remote, "build-1" ) );
+
+        RemoteRepository regular =
+                new RemoteRepository( PKG_TYPE_GENERIC_HTTP, "h-other-example-com", "http://other.example.com/" );
+        assertFalse( cache.isCacheable( regular, null ) );
+    }
+
+    @Test
+    public void truncatedEntryFailsTheTransfer()
+            throws Exception
+    {
+        StoreKey key = remote.getKey();
+        BufferedSource source = cache.cache( key, "/lib/foo-1.0.jar", Headers.of(), CONTENT.length(), upstream() );
+        source.readUtf8();
+        source.close();
+        ContentCache.Entry entry = cache.get( key, "/lib/foo-1.0.jar" );
+
+        // shortened behind the cache's back after the length was announced
+        Files.writeString( entry.getFile(), CONTENT.substring( 0, 4 ) );
+
+        XnioWorker worker = Xnio.getInstance().createWorker( OptionMap.create( Options.WORKER_IO_THREADS, 1 ) );
+        try
+        {
+            ChannelPipe<StreamSourceChannel, StreamSinkChannel> pipe = worker.createHalfDuplexPipe();
+            FileTransferPump pump = new FileTransferPump( pipe.getRightSide(), ByteBuffer.wrap( new byte[0] ),
+                                                          FileChannel.open( entry.getFile() ), 0, entry.getLength() );
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            pipe.getRightSide().getIoThread().execute( () -> pump.start().whenComplete( ( v, e ) -> {
+                if ( e == null )
+                {
+                    done.complete( v );
+                }
+                else
+                {
+                    done.completeExceptionally( e );
+                }
+            } ) );
+
+            ExecutionException e = assertThrows( ExecutionException.class, () -> done.get( 10, TimeUnit.SECONDS ) );
+            assertInstanceOf( EOFException.class, e.getCause() );
+        }
+        finally
+        {
+            worker.shutdownNow();
+        }
+    }
+
+    private static BufferedSource upstream()
+    {
+        return new Buffer().writeString( CONTENT, StandardCharsets.UTF_8 );
+    }
+}
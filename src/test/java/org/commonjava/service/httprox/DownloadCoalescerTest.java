@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import okhttp3.Headers;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Pipe;
+import org.commonjava.indy.model.core.StoreKey;
+import org.commonjava.indy.model.core.StoreType;
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.util.DownloadCoalescer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.commonjava.indy.pkg.PackageTypeConstants.PKG_TYPE_GENERIC_HTTP;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DownloadCoalescerTest
+{
+    private static final StoreKey STORE = new StoreKey( PKG_TYPE_GENERIC_HTTP, StoreType.remote, "h-repo-example-com" );
+
+    private static final String PATH = "/dist/foo-1.0.tgz";
+
+    @TempDir
+    Path dir;
+
+    private ExecutorService executor;
+
+    private DownloadCoalescer coalescer;
+
+    @BeforeEach
+    public void setup()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.setDownloadCoalescingEnabled( true );
+        config.setDownloadSpoolDir( dir.toString() );
+        executor = Executors.newFixedThreadPool( 2 );
+        coalescer = new DownloadCoalescer( config, executor );
+    }
+
+    @AfterEach
+    public void stop()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void followersTailTheLeadersDownloadAsItArrives()
+            throws Exception
+    {
+        DownloadCoalescer.Flight leader = coalescer.join( null, STORE, PATH );
+        DownloadCoalescer.Flight follower = coalescer.join( null, STORE, PATH );
+        assertTrue( leader.isLeader() );
+        assertFalse( follower.isLeader() );
+        assertEquals( 1, coalescer.getCoalesced() );
+
+        Pipe upstream = new Pipe( 1024 * 1024 );
+        AtomicBoolean responseClosed = new AtomicBoolean();
+        DownloadCoalescer.Spool spool = coalescer.publish( leader, Headers.of( "Content-Type", "application/gzip" ), 10,
+                                                           Okio.buffer( upstream.source() ),
+                                                           () -> responseClosed.set( true ) );
+        assertNotNull( spool );
+
+        DownloadCoalescer.Spool shared = follower.getSpool().get( 30, TimeUnit.SECONDS );
+        assertSame( spool, shared );
+        assertEquals( "application/gzip", shared.getHeaders().get( "Content-Type" ) );
+
+        BufferedSink sink = Okio.buffer( upstream.sink() );
+        try (BufferedSource leaderBody = spool.open(); BufferedSource followerBody = shared.open())
+        {
+            sink.writeUtf8( "01234" ).flush();
+            // both read the first half before the rest has arrived
+            assertEquals( "01234", leaderBody.readUtf8( 5 ) );
+            assertEquals( "01234", followerBody.readUtf8( 5 ) );
+
+            sink.writeUtf8( "56789" ).close();
+            assertEquals( "56789", leaderBody.readUtf8() );
+            assertEquals( "56789", followerBody.readUtf8() );
+        }
+        assertTrue( responseClosed.get() );
+
+        // the flight is over, the next request leads a new one
+        DownloadCoalescer.Flight next = coalescer.join( null, STORE, PATH );
+        assertTrue( next.isLeader() );
+        coalescer.abandon( next );
+        next.release();
+
+        leader.release();
+        follower.release();
+        try (var files = Files.list( dir ))
+        {
+            assertEquals( 0, files.count() );
+        }
+    }
+
+    @Test
+    public void truncatedUpstreamFailsTheReaders()
+            throws Exception
+    {
+        DownloadCoalescer.Flight leader = coalescer.join( null, STORE, PATH );
+        DownloadCoalescer.Flight follower = coalescer.join( null, STORE, PATH );
+        Pipe upstream = new Pipe( 1024 );
+        DownloadCoalescer.Spool spool =
+                coalescer.publish( leader, Headers.of(), 10, Okio.buffer( upstream.source() ), () -> {} );
+
+        BufferedSink sink = Okio.buffer( upstream.sink() );
+        sink.writeUtf8( "012" ).close();
+
+        try (BufferedSource body = spool.open())
+        {
+            assertThrows( IOException.class, body::readUtf8 );
+        }
+        leader.release();
+        follower.release();
+    }
+
+    @Test
+    public void uncontendedDownloadIsNotSpooled()
+            throws Exception
+    {
+        DownloadCoalescer.Flight leader = coalescer.join( null, STORE, PATH );
+        AtomicBoolean responseClosed = new AtomicBoolean();
+        assertNull( coalescer.publish( leader, Headers.of(), 10, Okio.buffer( new Pipe( 1024 ).source() ),
+                                       () -> responseClosed.set( true ) ) );
+
+        // the leader keeps the response, and a request arriving now does not wait for it
+        assertFalse( responseClosed.get() );
+        assertEquals( 0, coalescer.getInFlight() );
+        DownloadCoalescer.Flight next = coalescer.join( null, STORE, PATH );
+        assertTrue( next.isLeader() );
+        coalescer.abandon( next );
+        next.release();
+        leader.release();
+        try (var files = Files.list( dir ))
+        {
+            assertEquals( 0, files.count() );
+        }
+    }
+
+    @Test
+    public void rejectedSpoolSendsFollowersUpstream()
+            throws Exception
+    {
+        executor.shutdown();
+        DownloadCoalescer.Flight leader = coalescer.join( null, STORE, PATH );
+        DownloadCoalescer.Flight follower = coalescer.join( null, STORE, PATH );
+        assertNull( coalescer.publish( leader, Headers.of(), 10, Okio.buffer( new Pipe( 1024 ).source() ), () -> {} ) );
+        assertNull( follower.getSpool().get( 30, TimeUnit.SECONDS ) );
+        assertEquals( 1, coalescer.getSpoolFailures() );
+        leader.release();
+        follower.release();
+    }
+
+    @Test
+    public void unsharedResponsesSendFollowersUpstream()
+            throws Exception
+    {
+        DownloadCoalescer.Flight leader = coalescer.join( null, STORE, PATH );
+        DownloadCoalescer.Flight follower = coalescer.join( null, STORE, PATH );
+        coalescer.publishNotFound( leader );
+        assertSame( DownloadCoalescer.Spool.NOT_FOUND, follower.getSpool().get( 30, TimeUnit.SECONDS ) );
+        leader.release();
+        follower.release();
+
+        leader = coalescer.join( null, STORE, PATH );
+        follower = coalescer.join( null, STORE, PATH );
+        assertTrue( leader.isLeader() );
+        coalescer.abandon( leader );
+        assertNull( follower.getSpool().get( 30, TimeUnit.SECONDS ) );
+        leader.release();
+        follower.release();
+    }
+
+    @Test
+    public void trackedDownloadsAreNotSharedAcrossTrackingIds()
+    {
+        DownloadCoalescer.Flight untracked = coalescer.join( null, STORE, PATH );
+        DownloadCoalescer.Flight build1 = coalescer.join( "build-1", STORE, PATH );
+        DownloadCoalescer.Flight build1Again = coalescer.join( "build-1", STORE, PATH );
+        DownloadCoalescer.Flight build2 = coalescer.join( "build-2", STORE, PATH );
+
+        assertTrue( untracked.isLeader() );
+        assertTrue( build1.isLeader() );
+        assertFalse( build1Again.isLeader() );
+        assertTrue( build2.isLeader() );
+    }
+}
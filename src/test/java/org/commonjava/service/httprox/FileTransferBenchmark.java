@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.util.OutputStreamSinkChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a file to a loopback socket the way HttpConduitWrapper used to (stream reads into a heap byte[] that is
+ * wrapped and written), and through {@link FileChannel#transferTo}, both straight into the socket (the XNIO path, where
+ * the kernel copies) and through {@link OutputStreamSinkChannel} (the MITM path). A reader thread drains the socket.
+ *
+ * Score is milliseconds per file; throughput is size / score. Not part of the surefire run; launch
+ * {@link #main(String[])} from the test classpath, with enough free space in java.io.tmpdir for a 1 GB file.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class FileTransferBenchmark
+{
+    private static final int COPY_BUF_SIZE = 32 * 1024;
+
+    @Param( { "10", "100", "1024" } )
+    public int sizeMb;
+
+    private Path file;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel client;
+
+    private SocketChannel accepted;
+
+    private Thread drain;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        file = Files.createTempFile( "file-transfer-benchmark", ".bin" );
+        try (RandomAccessFile raf = new RandomAccessFile( file.toFile(), "rw" ))
+        {
+            byte[] block = new byte[1024 * 1024];
+            for ( int i = 0; i < block.length; i++ )
+            {
+                block[i] = (byte) i;
+            }
+            for ( int i = 0; i < sizeMb; i++ )
+            {
+                raf.write( block );
+            }
+        }
+
+        server = ServerSocketChannel.open().bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+        client = SocketChannel.open( server.getLocalAddress() );
+        accepted = server.accept();
+
+        drain = new Thread( () -> {
+            ByteBuffer buf = ByteBuffer.allocateDirect( 1024 * 1024 );
+            try
+            {
+                while ( accepted.read( buf ) >= 0 )
+                {
+                    buf.clear();
+                }
+            }
+            catch ( IOException e )
+            {
+                // socket closed at teardown
+            }
+        }, "file-transfer-benchmark-drain" );
+        drain.setDaemon( true );
+        drain.start();
+    }
+
+    @TearDown
+    public void teardown()
+            throws Exception
+    {
+        client.close();
+        drain.join( TimeUnit.SECONDS.toMillis( 10 ) );
+        accepted.close();
+        server.close();
+        Files.deleteIfExists( file );
+    }
+
+    @Benchmark
+    public long copyLoop()
+            throws IOException
+    {
+        long total = 0;
+        byte[] buf = new byte[COPY_BUF_SIZE];
+        try (InputStream in = Files.newInputStream( file ))
+        {
+            int read;
+            while ( ( read = in.read( buf ) ) > -1 )
+            {
+                ByteBuffer bbuf = ByteBuffer.wrap( buf, 0, read );
+                while ( bbuf.hasRemaining() )
+                {
+                    total += client.write( bbuf );
+                }
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long transferToSocket()
+            throws IOException
+    {
+        try (FileChannel fc = FileChannel.open( file, StandardOpenOption.READ ))
+        {
+            long size = fc.size();
+            long position = 0;
+            while ( position < size )
+            {
+                position += fc.transferTo( position, size - position, client );
+            }
+            return position;
+        }
+    }
+
+    @Benchmark
+    public long transferToOutputStreamSink()
+            throws IOException
+    {
+        OutputStreamSinkChannel sink = new OutputStreamSinkChannel( client.socket().getOutputStream() );
+        try (FileChannel fc = FileChannel.open( file, StandardOpenOption.READ ))
+        {
+            return sink.transferFrom( fc, 0, fc.size() );
+        }
+    }
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        new Runner( new OptionsBuilder().include( FileTransferBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
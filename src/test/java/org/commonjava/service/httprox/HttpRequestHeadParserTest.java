@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolException;
+import org.commonjava.indy.service.httprox.handler.HttpRequestHeadParser;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRequestHeadParserTest
+{
+    private static final String HEAD = "GET http://remote.example:80/org/test/simple.pom HTTP/1.1\r\n"
+            + "Host: remote.example\r\n" + "Proxy-Authorization:   Basic dXNlcjpwYXNz  \r\n" + "\r\n";
+
+    @Test
+    public void parseCompleteHead()
+            throws Exception
+    {
+        ByteBuffer buf = fill( HEAD + "trailing" );
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        assertTrue( parser.parse( buf, buf.position() ) );
+        assertEquals( HEAD.length(), parser.getHeadEnd() );
+        assertTrue( parser.methodEquals( buf, "get" ) );
+        assertEquals( 2, parser.getHeaderCount() );
+
+        int idx = parser.findHeader( buf, "proxy-authorization" );
+        assertEquals( 1, idx );
+        assertEquals( "Basic dXNlcjpwYXNz", HttpRequestHeadParser.ascii( buf, parser.getHeaderValueStart( idx ),
+                                                                          parser.getHeaderValueEnd( idx ) ) );
+
+        HttpRequest request = parser.toHttpRequest( buf );
+        assertEquals( "GET", request.getRequestLine().getMethod() );
+        assertEquals( "http://remote.example:80/org/test/simple.pom", request.getRequestLine().getUri() );
+        assertEquals( HttpVersion.HTTP_1_1, request.getProtocolVersion() );
+        assertEquals( "remote.example", request.getFirstHeader( "Host" ).getValue() );
+    }
+
+    @Test
+    public void parseOneByteAtATime()
+            throws Exception
+    {
+        byte[] bytes = HEAD.getBytes( StandardCharsets.US_ASCII );
+        ByteBuffer buf = ByteBuffer.allocateDirect( 1024 );
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        boolean done = false;
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            assertFalse( done );
+            buf.put( bytes[i] );
+            done = parser.parse( buf, buf.position() );
+        }
+
+        assertTrue( done );
+        assertEquals( "http://remote.example:80/org/test/simple.pom",
+                      parser.toHttpRequest( buf ).getRequestLine().getUri() );
+    }
+
+    @Test
+    public void parseBareLineFeeds()
+            throws Exception
+    {
+        ByteBuffer buf = fill( "CONNECT github.com:443 HTTP/1.0\nHost: github.com\n\n" );
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        assertTrue( parser.parse( buf, buf.position() ) );
+        HttpRequest request = parser.toHttpRequest( buf );
+        assertEquals( "github.com:443", request.getRequestLine().getUri() );
+        assertEquals( HttpVersion.HTTP_1_0, request.getProtocolVersion() );
+    }
+
+    @Test
+    public void resetForNextHead()
+            throws Exception
+    {
+        ByteBuffer buf = fill( HEAD );
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+        assertTrue( parser.parse( buf, buf.position() ) );
+
+        parser.reset();
+        assertFalse( parser.isDone() );
+        assertEquals( -1, parser.getHeadEnd() );
+        assertTrue( parser.parse( buf, buf.position() ) );
+    }
+
+    @Test
+    public void rejectMalformedRequestLine()
+    {
+        ByteBuffer buf = fill( "GET\r\n\r\n" );
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+        assertThrows( ProtocolException.class, () -> parser.parse( buf, buf.position() ) );
+    }
+
+    @Test
+    public void rejectHeaderWithoutColon()
+    {
+        ByteBuffer buf = fill( "GET / HTTP/1.1\r\nBroken header\r\n\r\n" );
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+        assertThrows( ProtocolException.class, () -> parser.parse( buf, buf.position() ) );
+    }
+
+    private static ByteBuffer fill( String s )
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect( 1024 );
+        buf.put( s.getBytes( StandardCharsets.US_ASCII ) );
+        return buf;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.util.InFlightLimiter;
+import org.commonjava.indy.service.httprox.util.ProxyMeter;
+import org.commonjava.indy.service.httprox.util.ServiceUnavailableException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InFlightLimiterTest
+{
+    @Test
+    public void requestsBeyondTheLimitAreShedUntilOneIsReleased()
+    {
+        ProxyConfiguration config = config( 2, 0, false );
+        InFlightLimiter limiter = new InFlightLimiter( config );
+
+        InFlightLimiter.Permit first = limiter.acquire().join();
+        assertNotNull( limiter.acquire().join() );
+        assertShed( limiter.acquire() );
+        assertEquals( 2, limiter.getInFlight() );
+        assertEquals( 1, limiter.getShed() );
+
+        first.release( null );
+        first.release( null );
+        assertEquals( 1, limiter.getInFlight() );
+        assertNotNull( limiter.acquire().join() );
+        assertEquals( 2, limiter.getInFlight() );
+    }
+
+    @Test
+    public void noLimitAdmitsEverything()
+    {
+        ProxyConfiguration config = config( 0, 0, false );
+        InFlightLimiter limiter = new InFlightLimiter( config );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertTrue( limiter.acquire().isDone() );
+        }
+        assertEquals( 1000, limiter.getInFlight() );
+        assertEquals( 0, limiter.getShed() );
+    }
+
+    @Test
+    public void queuedRequestGetsThePermitOfAFinishedOneOrIsShedAfterTheTimeout()
+        throws Exception
+    {
+        ProxyConfiguration config = config( 1, 200, false );
+        InFlightLimiter limiter = new InFlightLimiter( config );
+
+        InFlightLimiter.Permit first = limiter.acquire().join();
+        CompletableFuture<InFlightLimiter.Permit> waiting = limiter.acquire();
+        assertFalse( waiting.isDone() );
+        assertEquals( 1, limiter.getQueued() );
+
+        first.release( null );
+        assertTrue( waiting.isDone() );
+        assertEquals( 0, limiter.getQueued() );
+        assertEquals( 1, limiter.getInFlight() );
+
+        assertShed( limiter.acquire() );
+        assertEquals( 0, limiter.getQueued() );
+        assertEquals( 1, limiter.getInFlight() );
+        assertEquals( 1, limiter.getShed() );
+    }
+
+    @Test
+    public void adaptiveLimitGrowsWhileLatencyHoldsAndShrinksWhenItRises()
+        throws Exception
+    {
+        ProxyConfiguration config = config( 100, 0, true );
+        InFlightLimiter limiter = new InFlightLimiter( config );
+        assertEquals( 10, limiter.getLimit() );
+
+        Deque<InFlightLimiter.Permit> permits = new ArrayDeque<>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            permits.add( limiter.acquire().join() );
+        }
+        for ( int i = 0; i < 30; i++ )
+        {
+            permits.poll().release( upstreamCall( 1, false ) );
+            permits.add( limiter.acquire().join() );
+        }
+        int grown = limiter.getLimit();
+        assertTrue( grown > 10, "limit " + grown );
+
+        while ( permits.size() < grown )
+        {
+            permits.add( limiter.acquire().join() );
+        }
+        for ( int i = 0; i < 20; i++ )
+        {
+            permits.poll().release( upstreamCall( 20, false ) );
+            if ( limiter.getInFlight() < limiter.getLimit() )
+            {
+                permits.add( limiter.acquire().join() );
+            }
+        }
+        int shrunk = limiter.getLimit();
+        assertTrue( shrunk < grown, "limit " + shrunk + " after " + grown );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            permits.poll().release( upstreamCall( 1, true ) );
+        }
+        assertTrue( limiter.getLimit() < shrunk );
+
+        permits.forEach( p -> p.release( null ) );
+        for ( int i = 0; i < 100; i++ )
+        {
+            limiter.acquire().join().release( upstreamCall( 0, true ) );
+        }
+        assertEquals( 5, limiter.getLimit() );
+    }
+
+    private static ProxyConfiguration config( final int maxInFlight, final int queueTimeoutMillis,
+                                              final boolean adaptive )
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.setLoadSheddingMaxInFlight( maxInFlight );
+        config.setLoadSheddingRetryAfterSeconds( 1 );
+        config.setLoadSheddingQueueTimeoutMillis( queueTimeoutMillis );
+        config.setAdaptiveLimitEnabled( adaptive );
+        config.setAdaptiveLimitInitial( 10 );
+        config.setAdaptiveLimitMin( 5 );
+        config.setAdaptiveLimitLatencyTolerance( 1.5 );
+        return config;
+    }
+
+    private static ProxyMeter upstreamCall( final long millis, final boolean overloaded )
+        throws InterruptedException
+    {
+        ProxyMeter meter = new ProxyMeter( "GET", "GET /path HTTP/1.1", System.nanoTime(), null, null );
+        meter.markUpstreamStart();
+        Thread.sleep( millis );
+        meter.markUpstreamEnd( overloaded );
+        return meter;
+    }
+
+    private static void assertShed( final CompletableFuture<InFlightLimiter.Permit> permit )
+    {
+        ExecutionException e = assertThrows( ExecutionException.class, permit::get );
+        assertInstanceOf( ServiceUnavailableException.class, e.getCause() );
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.util.VirtualThreads;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the mitm-transfers executor modes: tunnels many concurrent HTTPS downloads, each a task blocked in a
+ * socket read (as the MITM server is) until its upstream answers after upstreamMillis. The platform pool has the
+ * max-async threads of our yaml and queues the rest, so downloads wait for a thread; with virtual threads all of them
+ * wait on upstream at once. The peak thread count of each iteration is reported as the peakThreads secondary result.
+ *
+ * Needs Java 21 for the virtual mode, and two file descriptors per tunnel. Not part of the surefire run; launch
+ * {@link #main(String[])} from the test classpath.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class MITMExecutorBenchmark
+{
+    private static final int MAX_ASYNC = 100;
+
+    private static final Logger logger = LoggerFactory.getLogger( MITMExecutorBenchmark.class );
+
+    @Param( { "platform", "virtual" } )
+    public String mode;
+
+    @Param( { "400" } )
+    public int tunnels;
+
+    @Param( { "100" } )
+    public int upstreamMillis;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel[] clientSides;
+
+    private SocketChannel[] upstreamSides;
+
+    private ExecutorService executor;
+
+    private ScheduledExecutorService upstream;
+
+    @Setup( Level.Trial )
+    public void setup()
+            throws IOException
+    {
+        executor = "virtual".equals( mode ) ?
+                        VirtualThreads.newThreadPerTaskExecutor( "mitm-transfer-" ) :
+                        new ThreadPoolExecutor( MAX_ASYNC, MAX_ASYNC, 60, TimeUnit.SECONDS,
+                                                new LinkedBlockingQueue<>() );
+        upstream = Executors.newSingleThreadScheduledExecutor();
+
+        server = ServerSocketChannel.open().bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+        clientSides = new SocketChannel[tunnels];
+        upstreamSides = new SocketChannel[tunnels];
+        for ( int i = 0; i < tunnels; i++ )
+        {
+            clientSides[i] = SocketChannel.open( server.getLocalAddress() );
+            upstreamSides[i] = server.accept();
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown()
+            throws IOException
+    {
+        executor.shutdownNow();
+        upstream.shutdownNow();
+        for ( int i = 0; i < tunnels; i++ )
+        {
+            clientSides[i].close();
+            upstreamSides[i].close();
+        }
+        server.close();
+    }
+
+    /**
+     * The peak number of live platform threads in the JVM while the downloads of an iteration ran. JMH shows it for
+     * each iteration; its summary line adds the iterations up.
+     */
+    @State( Scope.Thread )
+    @AuxCounters( AuxCounters.Type.EVENTS )
+    public static class Threads
+    {
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        public long peakThreads;
+
+        @Setup( Level.Iteration )
+        public void reset()
+        {
+            threads.resetPeakThreadCount();
+            peakThreads = 0;
+        }
+
+        void record()
+        {
+            peakThreads = threads.getPeakThreadCount();
+        }
+    }
+
+    @Benchmark
+    public int tunnelDownloads( final Threads threads )
+            throws Exception
+    {
+        CountDownLatch done = new CountDownLatch( tunnels );
+        AtomicInteger received = new AtomicInteger();
+        for ( int i = 0; i < tunnels; i++ )
+        {
+            final int tunnel = i;
+            executor.execute( () -> {
+                upstream.schedule( () -> answer( tunnel ), upstreamMillis, TimeUnit.MILLISECONDS );
+                try
+                {
+                    InputStream in = clientSides[tunnel].socket().getInputStream();
+                    if ( in.read() >= 0 )
+                    {
+                        received.incrementAndGet();
+                    }
+                }
+                catch ( IOException e )
+                {
+                    logger.warn( "Tunnel {} failed to read", tunnel, e );
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            } );
+        }
+        done.await();
+        threads.record();
+        return received.get();
+    }
+
+    private void answer( final int tunnel )
+    {
+        try
+        {
+            upstreamSides[tunnel].write( ByteBuffer.wrap( new byte[] { 1 } ) );
+        }
+        catch ( IOException e )
+        {
+            logger.warn( "Tunnel {} failed to answer", tunnel, e );
+        }
+    }
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        new Runner( new OptionsBuilder().include( MITMExecutorBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.handler.MITMSSLContexts;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MITMSSLContextsTest
+{
+    private MITMSSLContexts contexts;
+
+    @BeforeEach
+    public void setup()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.setMITMCAKey( "src/test/resources/ssl/ca.der" );
+        config.setMITMCACert( "src/test/resources/ssl/ca.crt" );
+        config.setMITMDNTemplate( "CN=<host>, O=Test Org" );
+        config.setMITMCertCacheMaxSize( 10 );
+        config.setMITMCertCacheTtlHours( 1 );
+        config.setMITMCertGeneratorThreads( 2 );
+        config.setMITMCertKeyType( "EC" );
+        config.setMITMCertKeyShared( true );
+        config.setMITMCertPrewarmHosts( List.of( "prewarmed.example" ) );
+        contexts = new MITMSSLContexts( config );
+    }
+
+    @AfterEach
+    public void stop()
+    {
+        contexts.stop();
+    }
+
+    @Test
+    public void concurrentMissesShareOneGeneration()
+            throws Exception
+    {
+        CompletableFuture<SSLContext> first = contexts.getSSLContext( "repo.example" );
+        CompletableFuture<SSLContext> second = contexts.getSSLContext( "repo.example" );
+
+        assertSame( first.get( 30, TimeUnit.SECONDS ), second.get( 30, TimeUnit.SECONDS ) );
+        assertSame( first.get(), contexts.getSSLContext( "repo.example" ).get() );
+        assertEquals( 1, contexts.getMisses() );
+        assertEquals( 2, contexts.getHits() );
+    }
+
+    @Test
+    public void prewarmedHostIsServedFromCache()
+            throws Exception
+    {
+        contexts.prewarm();
+        assertEquals( 1, contexts.getMisses() );
+
+        SSLContext context = contexts.getSSLContext( "prewarmed.example" ).get( 30, TimeUnit.SECONDS );
+        assertNotNull( context.createSSLEngine( "prewarmed.example", 443 ) );
+        assertEquals( 1, contexts.getMisses() );
+        assertEquals( 1, contexts.getHits() );
+    }
+
+    @Test
+    public void missingCaFailsTheFuture()
+    {
+        ProxyConfiguration config = new ProxyConfiguration();
+        config.setMITMCAKey( "src/test/resources/ssl/missing.der" );
+        config.setMITMCACert( "src/test/resources/ssl/ca.crt" );
+        config.setMITMDNTemplate( "CN=<host>, O=Test Org" );
+        config.setMITMCertCacheMaxSize( 10 );
+        config.setMITMCertCacheTtlHours( 1 );
+        config.setMITMCertGeneratorThreads( 1 );
+        MITMSSLContexts broken = new MITMSSLContexts( config );
+        try
+        {
+            CompletableFuture<SSLContext> future = broken.getSSLContext( "repo.example" );
+            assertThrows( Exception.class, () -> future.get( 30, TimeUnit.SECONDS ) );
+        }
+        finally
+        {
+            broken.stop();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Several requests through one client reuse the same CONNECT tunnel, so everything after the first request is served
+ * by the request loop inside the MITM server.
+ */
+@QuarkusTest
+public class ProxyHttpsKeepAliveTest extends AbstractGenericProxyTest
+{
+    private static final String USER = "user";
+
+    private static final String PASS = "password";
+
+    private static final String HOST_URL = "https://really.useful.script";
+
+    @Test
+    public void run() throws Exception
+    {
+        SSLSocketFactory socketFactory = new SSLSocketFactory( getTrustStore( new File( etcDir, "ssl/ca.jks" ) ) );
+        try (CloseableHttpClient client = proxiedHttp( USER, PASS, socketFactory ))
+        {
+            assertThat( fetch( client, HOST_URL + "/org/test/simple.pom?version=2.0" ),
+                        equalTo( loadResource( "simple-2.0.pom" ) ) );
+            assertThat( fetch( client, HOST_URL
+                                + "/content/repositories/releases/org/commonjava/indy/indy-api/1.3.1/indy-api-1.3.1.pom" ),
+                        containsString( "<artifactId>indy-api</artifactId>" ) );
+        }
+    }
+
+    private String fetch( CloseableHttpClient client, String url ) throws Exception
+    {
+        try (CloseableHttpResponse response = client.execute( new HttpGet( url ), proxyContext( USER, PASS ) ))
+        {
+            assertThat( response.getStatusLine().getStatusCode(), equalTo( 200 ) );
+            return IOUtils.toString( response.getEntity().getContent() );
+        }
+    }
+}
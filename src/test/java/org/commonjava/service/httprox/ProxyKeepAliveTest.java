@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Several requests, some of them pipelined or carrying a body, served over a single client connection.
+ */
+@QuarkusTest
+public class ProxyKeepAliveTest
+        extends AbstractGenericProxyTest
+{
+    private static final String USER = "user";
+
+    private static final String PASS = "password";
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final int proxyPort = 8085;
+
+    @Test
+    public void pipelinedRequestsShareOneConnection()
+            throws Exception
+    {
+        final String simpleUrl = "http://remote.example:80/test/org/test/simple/1/simple.pom";
+        final String missingUrl = "http://remote.example:80/org/commonjava/indy/indy-api/1.3.1/no.pom";
+        final String apiUrl = "http://remote.example:80/org/commonjava/indy/indy-api/1.3.1/indy-api-1.3.1.pom";
+        final String queryUrl = "http://remote.example:80/org/test/simple.pom?version=2.0";
+
+        try (Socket socket = new Socket( HOST, proxyPort ))
+        {
+            socket.setSoTimeout( (int) TimeUnit.SECONDS.toMillis( 30 ) );
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = new BufferedInputStream( socket.getInputStream() );
+
+            // the proxy is secured; the challenge must not cost the client its connection
+            out.write( request( simpleUrl, false, false ) );
+            out.flush();
+            RawResponse challenge = RawResponse.read( in );
+            assertThat( challenge.status, equalTo( 407 ) );
+            assertThat( challenge.header( "Connection" ), equalTo( "keep-alive" ) );
+
+            // three requests in one go, answered in order
+            final ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+            pipelined.write( request( simpleUrl, true, false ) );
+            pipelined.write( request( missingUrl, true, false ) );
+            pipelined.write( request( apiUrl, true, false ) );
+            out.write( pipelined.toByteArray() );
+            out.flush();
+
+            RawResponse simple = RawResponse.read( in );
+            assertThat( simple.status, equalTo( 200 ) );
+            assertThat( simple.body(), equalTo( loadResource( "simple.pom" ) ) );
+
+            RawResponse missing = RawResponse.read( in );
+            assertThat( missing.status, equalTo( 404 ) );
+            assertThat( missing.body.length, equalTo( 0 ) );
+
+            RawResponse api = RawResponse.read( in );
+            assertThat( api.status, equalTo( 200 ) );
+            assertThat( api.body(), equalTo( loadResource( "indy-api-1.3.1.pom" ) ) );
+
+            // the client asks to close after the last request
+            out.write( request( queryUrl, true, true ) );
+            out.flush();
+            RawResponse last = RawResponse.read( in );
+            assertThat( last.status, equalTo( 200 ) );
+            assertThat( last.header( "Connection" ), equalTo( "close" ) );
+            assertThat( last.body(), equalTo( loadResource( "simple-2.0.pom" ) ) );
+            assertThat( in.read(), equalTo( -1 ) );
+        }
+    }
+
+    @Test
+    public void requestBodiesAreSkippedToKeepTheConnection()
+            throws Exception
+    {
+        final String simpleUrl = "http://remote.example:80/test/org/test/simple/1/simple.pom";
+
+        try (Socket socket = new Socket( HOST, proxyPort ))
+        {
+            socket.setSoTimeout( (int) TimeUnit.SECONDS.toMillis( 30 ) );
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = new BufferedInputStream( socket.getInputStream() );
+
+            // a sized body, then a chunked one split across writes, each followed by a pipelined GET
+            final ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+            pipelined.write( request( "POST", simpleUrl, "Content-Length: 11\r\n", "hello world" ) );
+            pipelined.write( request( simpleUrl, true, false ) );
+            pipelined.write( request( "PUT", simpleUrl, "Transfer-Encoding: chunked\r\n", "5;ext=1\r\nhel" ) );
+            out.write( pipelined.toByteArray() );
+            out.flush();
+
+            RawResponse post = RawResponse.read( in );
+            assertThat( post.status, equalTo( 405 ) );
+            assertThat( post.header( "Connection" ), equalTo( "keep-alive" ) );
+
+            RawResponse simple = RawResponse.read( in );
+            assertThat( simple.status, equalTo( 200 ) );
+            assertThat( simple.body(), equalTo( loadResource( "simple.pom" ) ) );
+
+            RawResponse put = RawResponse.read( in );
+            assertThat( put.status, equalTo( 405 ) );
+            assertThat( put.header( "Connection" ), equalTo( "keep-alive" ) );
+
+            out.write( "lo\r\n0\r\nTrailer: x\r\n\r\n".getBytes( US_ASCII ) );
+            out.write( request( simpleUrl, true, false ) );
+            out.flush();
+            simple = RawResponse.read( in );
+            assertThat( simple.status, equalTo( 200 ) );
+            assertThat( simple.body(), equalTo( loadResource( "simple.pom" ) ) );
+
+            // the end of a body in an unknown coding cannot be found, so the connection cannot carry more requests
+            out.write( request( "POST", simpleUrl, "Transfer-Encoding: gzip\r\n", "" ) );
+            out.flush();
+            RawResponse unframed = RawResponse.read( in );
+            assertThat( unframed.status, equalTo( 405 ) );
+            assertThat( unframed.header( "Connection" ), equalTo( "close" ) );
+        }
+    }
+
+    private static byte[] request( final String method, final String url, final String headers, final String body )
+    {
+        return ( method + " " + url + " HTTP/1.1\r\n" + "Host: remote.example\r\n" + "Proxy-Authorization: Basic "
+                + Base64.getEncoder().encodeToString( ( USER + ":" + PASS ).getBytes( US_ASCII ) ) + "\r\n" + headers
+                + "\r\n" + body ).getBytes( US_ASCII );
+    }
+
+    private static byte[] request( final String url, final boolean authenticate, final boolean close )
+    {
+        final StringBuilder sb = new StringBuilder( "GET " ).append( url ).append( " HTTP/1.1\r\n" );
+        sb.append( "Host: remote.example\r\n" );
+        if ( authenticate )
+        {
+            sb.append( "Proxy-Authorization: Basic " )
+              .append( Base64.getEncoder().encodeToString( ( USER + ":" + PASS ).getBytes( US_ASCII ) ) )
+              .append( "\r\n" );
+        }
+        if ( close )
+        {
+            sb.append( "Connection: close\r\n" );
+        }
+        return sb.append( "\r\n" ).toString().getBytes( US_ASCII );
+    }
+
+    private static final class RawResponse
+    {
+        int status;
+
+        final Map<String, String> headers = new HashMap<>();
+
+        byte[] body;
+
+        String header( final String name )
+        {
+            return headers.get( name.toLowerCase() );
+        }
+
+        String body()
+        {
+            return new String( body, UTF_8 );
+        }
+
+        static RawResponse read( final InputStream in )
+                throws IOException
+        {
+            final RawResponse response = new RawResponse();
+            final String statusLine = readLine( in );
+            response.status = Integer.parseInt( statusLine.split( " " )[1] );
+
+            String line;
+            while ( !( line = readLine( in ) ).isEmpty() )
+            {
+                final int colon = line.indexOf( ':' );
+                response.headers.put( line.substring( 0, colon ).trim().toLowerCase(),
+                                      line.substring( colon + 1 ).trim() );
+            }
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final String length = response.header( "Content-Length" );
+            if ( length != null )
+            {
+                body.write( in.readNBytes( Integer.parseInt( length ) ) );
+            }
+            else if ( "chunked".equalsIgnoreCase( response.header( "Transfer-Encoding" ) ) )
+            {
+                int size;
+                while ( ( size = Integer.parseInt( readLine( in ).trim(), 16 ) ) > 0 )
+                {
+                    body.write( in.readNBytes( size ) );
+                    readLine( in );
+                }
+                readLine( in );
+            }
+            else
+            {
+                body.write( in.readAllBytes() );
+            }
+
+            response.body = body.toByteArray();
+            return response;
+        }
+
+        private static String readLine( final InputStream in )
+                throws IOException
+        {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while ( ( c = in.read() ) != -1 && c != '\n' )
+            {
+                if ( c != '\r' )
+                {
+                    sb.append( (char) c );
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
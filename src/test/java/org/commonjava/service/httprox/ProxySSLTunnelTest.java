@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.config.ProxyConfiguration;
+import org.commonjava.indy.service.httprox.handler.ProxySSLTunnel;
+import org.commonjava.indy.service.httprox.util.ByteBufferPool;
+import org.junit.jupiter.api.Test;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.StreamConnection;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+import org.xnio.channels.AcceptingChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProxySSLTunnelTest
+{
+    @Test
+    public void relaysBothWaysAndPassesHalfCloseOn()
+            throws Exception
+    {
+        try ( Harness harness = new Harness( "early" ) )
+        {
+            byte[] request = randomBytes( 300_000 );
+            byte[] response = randomBytes( 500_000 );
+
+            // the target answers only once the client is done sending
+            CompletableFuture<byte[]> received = CompletableFuture.supplyAsync( () -> {
+                try ( Socket target = harness.target.accept().socket() )
+                {
+                    byte[] in = target.getInputStream().readAllBytes();
+                    target.getOutputStream().write( response );
+                    target.shutdownOutput();
+                    return in;
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            } );
+
+            try ( Socket client = harness.connect() )
+            {
+                client.getOutputStream().write( request );
+                client.shutdownOutput();
+
+                assertArrayEquals( response, client.getInputStream().readAllBytes() );
+            }
+
+            byte[] expected = new byte[5 + request.length];
+            System.arraycopy( "early".getBytes( US_ASCII ), 0, expected, 0, 5 );
+            System.arraycopy( request, 0, expected, 5, request.length );
+            assertArrayEquals( expected, received.get( 10, TimeUnit.SECONDS ) );
+
+            ProxySSLTunnel tunnel = harness.awaitClosed();
+            assertEquals( expected.length, tunnel.getBytesToTarget() );
+            assertEquals( response.length, tunnel.getBytesToClient() );
+        }
+    }
+
+    @Test
+    public void slowClientHoldsTheTargetBack()
+            throws Exception
+    {
+        int outstanding = ByteBufferPool.getInstance().getOutstanding();
+        try ( Harness harness = new Harness( "" ) )
+        {
+            byte[] response = randomBytes( 8 * 1024 * 1024 );
+
+            CompletableFuture<Void> sent = CompletableFuture.runAsync( () -> {
+                try ( Socket target = harness.target.accept().socket() )
+                {
+                    target.getOutputStream().write( response );
+                    target.shutdownOutput();
+                    assertEquals( -1, target.getInputStream().read() );
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            } );
+
+            try ( Socket client = harness.connect() )
+            {
+                InputStream in = client.getInputStream();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int read;
+                while ( ( read = in.read( chunk ) ) > 0 )
+                {
+                    out.write( chunk, 0, read );
+                    if ( out.size() < 512 * 1024 )
+                    {
+                        Thread.sleep( 1 );
+                    }
+                }
+                assertArrayEquals( response, out.toByteArray() );
+                client.shutdownOutput();
+            }
+
+            sent.get( 10, TimeUnit.SECONDS );
+            assertEquals( response.length, harness.awaitClosed().getBytesToClient() );
+        }
+        // the tunnel flags itself closed before it hands its buffers back
+        for ( int i = 0; i < 100 && ByteBufferPool.getInstance().getOutstanding() != outstanding; i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        assertEquals( outstanding, ByteBufferPool.getInstance().getOutstanding() );
+    }
+
+    private static byte[] randomBytes( final int length )
+    {
+        byte[] bytes = new byte[length];
+        new Random( length ).nextBytes( bytes );
+        return bytes;
+    }
+
+    /**
+     * An XNIO server whose connections are tunneled to {@link #target}, as ProxyResponseWriter does after a CONNECT.
+     */
+    private static final class Harness
+            implements AutoCloseable
+    {
+        private final XnioWorker worker;
+
+        private final AcceptingChannel<StreamConnection> server;
+
+        private final ServerSocketChannel target;
+
+        private final BlockingQueue<ProxySSLTunnel> tunnels = new LinkedBlockingQueue<>();
+
+        Harness( final String clientBytes )
+                throws IOException
+        {
+            ProxyConfiguration config = new ProxyConfiguration();
+            target = ServerSocketChannel.open().bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+            worker = Xnio.getInstance().createWorker( OptionMap.create( Options.WORKER_IO_THREADS, 2 ) );
+            server = worker.createStreamConnectionServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ),
+                                                          channel -> {
+                                                              try
+                                                              {
+                                                                  StreamConnection connection = channel.accept();
+                                                                  if ( connection != null )
+                                                                  {
+                                                                      tunnel( connection, clientBytes, config );
+                                                                  }
+                                                              }
+                                                              catch ( IOException e )
+                                                              {
+                                                                  throw new RuntimeException( e );
+                                                              }
+                                                          }, OptionMap.EMPTY );
+            server.resumeAccepts();
+        }
+
+        private void tunnel( final StreamConnection connection, final String clientBytes,
+                             final ProxyConfiguration config )
+                throws IOException
+        {
+            SocketChannel socketChannel = SocketChannel.open( target.getLocalAddress() );
+            ProxySSLTunnel tunnel = new ProxySSLTunnel( connection.getSourceChannel(), connection.getSinkChannel(),
+                                                        socketChannel, config );
+            tunnels.add( tunnel );
+            connection.getIoThread().execute( () -> {
+                try
+                {
+                    tunnel.start( ByteBuffer.wrap( clientBytes.getBytes( US_ASCII ) ) );
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            } );
+        }
+
+        Socket connect()
+                throws IOException
+        {
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            return new Socket( address.getAddress(), address.getPort() );
+        }
+
+        ProxySSLTunnel awaitClosed()
+                throws InterruptedException
+        {
+            ProxySSLTunnel tunnel = tunnels.poll( 10, TimeUnit.SECONDS );
+            assertNotNull( tunnel );
+            for ( int i = 0; i < 100 && !tunnel.isClosed(); i++ )
+            {
+                Thread.sleep( 50 );
+            }
+            assertTrue( tunnel.isClosed() );
+            return tunnel;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            server.close();
+            target.close();
+            worker.shutdownNow();
+        }
+    }
+}
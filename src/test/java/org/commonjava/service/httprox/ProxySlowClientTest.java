@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Soak test for clients that read much slower than upstream delivers. The proxy has to hold the upstream body back
+ * while the client socket is congested rather than failing the write or tying up an I/O thread.
+ */
+@QuarkusTest
+public class ProxySlowClientTest
+        extends AbstractGenericProxyTest
+{
+    private static final String USER = "user";
+
+    private static final String PASS = "password";
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final int proxyPort = 8085;
+
+    private static final int CLIENTS = 4;
+
+    private static final long STALL_MILLIS = 3000;
+
+    @Test
+    public void slowClientsReceiveCompleteBody()
+            throws Exception
+    {
+        final String url = "http://remote.example:80/test/org/test/large/01/" + LARGE_ARTIFACT;
+
+        ExecutorService clients = Executors.newFixedThreadPool( CLIENTS );
+        try
+        {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for ( int i = 0; i < CLIENTS; i++ )
+            {
+                results.add( clients.submit( () -> slowGet( url ) ) );
+            }
+
+            // while the slow clients are stalled, other requests must still be served
+            final String pom = get( "http://remote.example:80/test/org/test/simple/1/simple.pom", false, USER, PASS );
+            assertThat( pom, equalTo( loadResource( "simple.pom" ) ) );
+
+            for ( Future<byte[]> result : results )
+            {
+                assertArrayEquals( LARGE_BODY, result.get( 2, TimeUnit.MINUTES ) );
+            }
+        }
+        finally
+        {
+            clients.shutdownNow();
+        }
+    }
+
+    private byte[] slowGet( final String url )
+            throws IOException, InterruptedException
+    {
+        try (Socket socket = new Socket())
+        {
+            // a small receive window makes the proxy side congest quickly
+            socket.setReceiveBufferSize( 4096 );
+            socket.setSoTimeout( (int) TimeUnit.MINUTES.toMillis( 1 ) );
+            socket.connect( new InetSocketAddress( HOST, proxyPort ) );
+
+            final String auth = Base64.getEncoder().encodeToString( ( USER + ":" + PASS ).getBytes( US_ASCII ) );
+            final OutputStream out = socket.getOutputStream();
+            out.write( ( "GET " + url + " HTTP/1.1\r\n" + "Host: remote.example\r\n" + "Proxy-Authorization: Basic "
+                    + auth + "\r\n\r\n" ).getBytes( US_ASCII ) );
+            out.flush();
+
+            // stop reading for a while; writes on the proxy side now return 0 until we catch up
+            Thread.sleep( STALL_MILLIS );
+
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int read;
+            int reads = 0;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                received.write( buf, 0, read );
+                if ( ++reads % 64 == 0 )
+                {
+                    Thread.sleep( 5 );
+                }
+            }
+
+            return body( received.toByteArray() );
+        }
+    }
+
+    private static byte[] body( final byte[] response )
+    {
+        int headEnd = -1;
+        for ( int i = 3; i < response.length; i++ )
+        {
+            if ( response[i - 3] == '\r' && response[i - 2] == '\n' && response[i - 1] == '\r' && response[i] == '\n' )
+            {
+                headEnd = i + 1;
+                break;
+            }
+        }
+
+        assertTrue( headEnd > 0, "No response head received" );
+        assertThat( new String( response, 0, headEnd, US_ASCII ), startsWith( "HTTP/1.1 200" ) );
+        return Arrays.copyOfRange( response, headEnd, response.length );
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.faulttolerance.api.FaultTolerance;
+import org.commonjava.indy.service.httprox.client.repository.RepositoryResponseExceptionMapper;
+import org.commonjava.indy.service.httprox.client.repository.RepositoryService;
+import org.eclipse.microprofile.faulttolerance.CircuitBreaker;
+import org.eclipse.microprofile.faulttolerance.Retry;
+import org.eclipse.microprofile.faulttolerance.exceptions.CircuitBreakerOpenException;
+import org.junit.jupiter.api.Test;
+
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.ServerErrorException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the exceptions of the mapper against the fault tolerance annotations on {@link RepositoryService}, which is
+ * what decides how the breakers and retries treat an answer.
+ */
+@QuarkusTest
+public class RepositoryResponseExceptionMapperTest
+{
+    private final RepositoryResponseExceptionMapper mapper = new RepositoryResponseExceptionMapper();
+
+    @Test
+    public void clientErrorsAreSkippedAndNotRetried()
+    {
+        for ( Method method : RepositoryService.class.getMethods() )
+        {
+            CircuitBreaker breaker = method.getAnnotation( CircuitBreaker.class );
+            Retry retry = method.getAnnotation( Retry.class );
+            if ( breaker == null )
+            {
+                continue;
+            }
+
+            for ( int status : new int[] { 400, 404, 409 } )
+            {
+                WebApplicationException e = error( status );
+                assertTrue( isAny( breaker.skipOn(), e ), method.getName() + " counts " + status );
+                assertTrue( retry == null || isAny( retry.abortOn(), e ), method.getName() + " retries " + status );
+            }
+            for ( int status : new int[] { 500, 502, 503, 504 } )
+            {
+                WebApplicationException e = error( status );
+                assertFalse( isAny( breaker.skipOn(), e ), method.getName() + " skips " + status );
+                assertFalse( retry != null && isAny( retry.abortOn(), e ), method.getName() + " aborts " + status );
+            }
+        }
+    }
+
+    @Test
+    public void answersKeepTheirStatus()
+    {
+        assertInstanceOf( NotFoundException.class, error( 404 ) );
+        assertInstanceOf( ServerErrorException.class, error( 503 ) );
+        assertEquals( 404, error( 404 ).getResponse().getStatus() );
+        assertEquals( 409, error( 409 ).getResponse().getStatus() );
+        assertFalse( mapper.handles( 204, null ) );
+        assertTrue( mapper.handles( 404, null ) );
+    }
+
+    @Test
+    public void notFoundAnswersDoNotOpenTheBreaker()
+            throws Exception
+    {
+        CircuitBreaker settings = RepositoryService.class.getMethod( "getStore", String.class, String.class,
+                                                                     String.class ).getAnnotation( CircuitBreaker.class );
+        FaultTolerance<Object> guard = FaultTolerance.create()
+                                                     .withCircuitBreaker()
+                                                     .requestVolumeThreshold( settings.requestVolumeThreshold() )
+                                                     .failureRatio( settings.failureRatio() )
+                                                     .delay( settings.delay(), settings.delayUnit() )
+                                                     .failOn( Arrays.asList( settings.failOn() ) )
+                                                     .skipOn( Arrays.asList( settings.skipOn() ) )
+                                                     .done()
+                                                     .build();
+
+        // a burst of stores created on first request
+        for ( int i = 0; i < settings.requestVolumeThreshold() * 2; i++ )
+        {
+            assertThrows( NotFoundException.class, () -> guard.call( () -> {
+                throw error( 404 );
+            } ) );
+        }
+        assertEquals( "ok", guard.call( () -> "ok" ) );
+
+        // while server errors do open it
+        assertThrows( CircuitBreakerOpenException.class, () -> {
+            for ( int i = 0; i <= settings.requestVolumeThreshold(); i++ )
+            {
+                try
+                {
+                    guard.call( () -> {
+                        throw error( 500 );
+                    } );
+                }
+                catch ( ServerErrorException e )
+                {
+                    // counted, the next one may be rejected
+                }
+            }
+        } );
+    }
+
+    private WebApplicationException error( int status )
+    {
+        return mapper.toThrowable( Response.status( status ).build() );
+    }
+
+    private static boolean isAny( Class<? extends Throwable>[] types, Throwable t )
+    {
+        return Arrays.stream( types ).anyMatch( type -> type.isInstance( t ) );
+    }
+}
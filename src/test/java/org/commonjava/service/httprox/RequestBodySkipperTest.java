@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.ProtocolException;
+import org.apache.http.message.BasicHttpRequest;
+import org.commonjava.indy.service.httprox.handler.RequestBodySkipper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestBodySkipperTest
+{
+    private static final String NEXT = "GET / HTTP/1.1\r\n";
+
+    @Test
+    public void sizedBodyEndsAfterContentLength()
+            throws Exception
+    {
+        RequestBodySkipper skipper = RequestBodySkipper.forRequest( post( "Content-Length", "11" ) );
+
+        ByteBuffer first = ascii( "hello" );
+        assertFalse( skipper.skip( first ) );
+        assertFalse( first.hasRemaining() );
+
+        ByteBuffer second = ascii( " world" + NEXT );
+        assertTrue( skipper.skip( second ) );
+        assertEquals( NEXT, rest( second ) );
+    }
+
+    @Test
+    public void noBodyWithoutFraming()
+    {
+        assertTrue( RequestBodySkipper.forRequest( new BasicHttpRequest( "GET", "/" ) ).isDone() );
+        assertTrue( RequestBodySkipper.forRequest( post( "Content-Length", "0" ) ).isDone() );
+    }
+
+    @Test
+    public void chunkedBodyEndsAfterTrailers()
+            throws Exception
+    {
+        String body = "5;name=value\r\nhello\r\nA\r\n0123456789\r\n0\r\nTrailer: x\r\n\r\n";
+        RequestBodySkipper skipper = RequestBodySkipper.forRequest( post( "Transfer-Encoding", "gzip, chunked" ) );
+
+        // one byte at a time, as it may arrive
+        for ( int i = 0; i < body.length() - 1; i++ )
+        {
+            assertFalse( skipper.skip( ascii( body.substring( i, i + 1 ) ) ), "done early at " + i );
+        }
+        ByteBuffer last = ascii( "\n" + NEXT );
+        assertTrue( skipper.skip( last ) );
+        assertEquals( NEXT, rest( last ) );
+    }
+
+    @Test
+    public void unframedBodiesAreRefused()
+    {
+        assertNull( RequestBodySkipper.forRequest( post( "Transfer-Encoding", "chunked, gzip" ) ) );
+        assertNull( RequestBodySkipper.forRequest( post( "Content-Length", "ten" ) ) );
+        assertNull( RequestBodySkipper.forRequest(
+                post( "Content-Length", String.valueOf( RequestBodySkipper.MAX_SKIPPED + 1 ) ) ) );
+
+        HttpRequest conflicting = post( "Content-Length", "1" );
+        conflicting.addHeader( "Content-Length", "2" );
+        assertNull( RequestBodySkipper.forRequest( conflicting ) );
+    }
+
+    @Test
+    public void brokenOrOversizedChunksFail()
+            throws Exception
+    {
+        RequestBodySkipper broken = RequestBodySkipper.forRequest( post( "Transfer-Encoding", "chunked" ) );
+        assertThrows( ProtocolException.class, () -> broken.skip( ascii( "xyz\r\n" ) ) );
+
+        RequestBodySkipper missing = RequestBodySkipper.forRequest( post( "Transfer-Encoding", "chunked" ) );
+        assertThrows( ProtocolException.class, () -> missing.skip( ascii( "\r\n" ) ) );
+
+        RequestBodySkipper oversized = RequestBodySkipper.forRequest( post( "Transfer-Encoding", "chunked" ) );
+        assertFalse( oversized.skip( ascii( "FFFFFF\r\n" ) ) );
+        ByteBuffer data = ByteBuffer.allocate( (int) RequestBodySkipper.MAX_SKIPPED );
+        assertThrows( ProtocolException.class, () -> oversized.skip( data ) );
+    }
+
+    private static HttpRequest post( final String header, final String value )
+    {
+        HttpRequest request = new BasicHttpRequest( "POST", "/" );
+        request.addHeader( header, value );
+        return request;
+    }
+
+    private static ByteBuffer ascii( final String s )
+    {
+        return ByteBuffer.wrap( s.getBytes( US_ASCII ) );
+    }
+
+    private static String rest( final ByteBuffer buf )
+    {
+        return US_ASCII.decode( buf ).toString();
+    }
+}
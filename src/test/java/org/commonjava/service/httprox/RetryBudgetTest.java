@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
+import org.commonjava.indy.service.httprox.util.RetryBudget;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetryBudgetTest
+{
+    @Test
+    public void retriesAreLimitedToTheBurstPlusAShareOfTheCalls()
+    {
+        RetryBudget budget = new RetryBudget( new ServiceProxyConfig() );
+
+        // starts full: ten seconds of the default 10 retries per second
+        int allowed = 0;
+        while ( budget.tryRetry() )
+        {
+            allowed++;
+        }
+        assertTrue( allowed >= 100 && allowed <= 101, "allowed: " + allowed );
+        assertEquals( 1, budget.getExhausted() );
+
+        // 20% by default: ten calls pay for two retries
+        for ( int i = 0; i < 10; i++ )
+        {
+            budget.deposit();
+        }
+        assertTrue( budget.tryRetry() );
+        assertTrue( budget.tryRetry() );
+        assertEquals( allowed + 2, budget.getRetries() );
+    }
+}
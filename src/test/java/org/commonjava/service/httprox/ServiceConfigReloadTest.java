@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import io.vertx.core.http.HttpMethod;
+import okhttp3.Response;
+import org.commonjava.indy.service.httprox.client.Classifier;
+import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
+import org.commonjava.indy.service.httprox.util.OtelAdapter;
+import org.commonjava.indy.service.httprox.util.RetryBudget;
+import org.commonjava.indy.service.httprox.util.WebClientAdapter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Rewrites config/application.yaml under the working directory, as a ConfigMap update would, and restores whatever
+ * was there before.
+ */
+public class ServiceConfigReloadTest
+{
+    private final File file = new File( ServiceProxyConfig.USER_DIR, "config/application.yaml" );
+
+    private File backup;
+
+    private boolean createdDir;
+
+    private ServiceProxyConfig proxyConfig;
+
+    private Classifier classifier;
+
+    @BeforeEach
+    public void setup()
+            throws Exception
+    {
+        if ( file.exists() )
+        {
+            backup = File.createTempFile( "application", ".yaml" );
+            Files.copy( file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+        else
+        {
+            createdDir = file.getParentFile().mkdirs();
+        }
+        proxyConfig = new ServiceProxyConfig();
+    }
+
+    @AfterEach
+    public void restore()
+            throws Exception
+    {
+        if ( classifier != null )
+        {
+            classifier.stop();
+        }
+        if ( backup != null )
+        {
+            Files.move( backup.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+        else
+        {
+            Files.deleteIfExists( file.toPath() );
+            if ( createdDir )
+            {
+                Files.deleteIfExists( file.getParentFile().toPath() );
+            }
+        }
+    }
+
+    @Test
+    public void reloadRetiresReplacedAdapterAndClosesItOnceDrained()
+            throws Exception
+    {
+        try (ServerSocket server = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() ))
+        {
+            write( service( server.getLocalPort(), "/api/one/.+" ), 1 );
+            proxyConfig.load();
+            classifier = new Classifier( proxyConfig, new OtelAdapter(), new RetryBudget( proxyConfig ), 100 );
+
+            WebClientAdapter old = classifier.classifyAnd( "/api/one/foo", HttpMethod.GET, ( a, sc ) -> a );
+
+            // a download through the old adapter is still going when the config changes
+            CountDownLatch answer = new CountDownLatch( 1 );
+            CompletableFuture<Void> served = CompletableFuture.runAsync( () -> serve( server, answer ) );
+            CompletableFuture<Response> call =
+                    old.get( "/api/one/foo" ).call().enqueue().subscribe().asCompletionStage().toCompletableFuture();
+
+            int generation = proxyConfig.getGeneration();
+            write( service( server.getLocalPort(), "/api/two/.+" ), 2 );
+            proxyConfig.reloadIfChanged();
+            assertEquals( generation + 1, proxyConfig.getGeneration() );
+            assertNull( proxyConfig.getRoutes().route( "/api/one/foo", "GET" ) );
+            assertNotNull( proxyConfig.getRoutes().route( "/api/two/foo", "GET" ) );
+
+            WebClientAdapter replacement = classifier.classifyAnd( "/api/two/foo", HttpMethod.GET, ( a, sc ) -> a );
+            assertNotSame( old, replacement );
+            assertTrue( old.isRetired() );
+            assertFalse( replacement.isRetired() );
+
+            // past the grace period, but the call still holds it
+            Thread.sleep( 500 );
+            assertFalse( old.isClosed() );
+
+            answer.countDown();
+            try (Response response = call.get( 10, TimeUnit.SECONDS ))
+            {
+                assertEquals( "ok", response.body().string() );
+            }
+            served.get( 10, TimeUnit.SECONDS );
+            assertTrue( await( old::isClosed ) );
+            assertFalse( replacement.isClosed() );
+        }
+    }
+
+    @Test
+    public void failedReloadIsRetried()
+            throws Exception
+    {
+        String valid = service( 8080, "/api/two/.+" );
+        write( service( 8080, "/api/one/.+" ), 1 );
+        proxyConfig.load();
+        int generation = proxyConfig.getGeneration();
+
+        // caught halfway through the write: same size and time as the complete file
+        String broken = "service_proxy: [" + " ".repeat( valid.length() - "service_proxy: [".length() );
+        write( broken, 2 );
+        proxyConfig.reloadIfChanged();
+        assertEquals( generation, proxyConfig.getGeneration() );
+        assertNotNull( proxyConfig.getRoutes().route( "/api/one/foo", "GET" ) );
+
+        write( valid, 2 );
+        proxyConfig.reloadIfChanged();
+        assertEquals( generation + 1, proxyConfig.getGeneration() );
+        assertNotNull( proxyConfig.getRoutes().route( "/api/two/foo", "GET" ) );
+    }
+
+    /**
+     * A config with one service. The circuit breaker is off: it is beside the point here, and building one needs the
+     * CDI fault tolerance implementation, which a plain unit test does not have.
+     */
+    private static String service( int port, String pathPattern )
+    {
+        return "service_proxy:\n" + "  circuit-breaker:\n" + "    enabled: false\n" + "  services:\n"
+                + "    - host: 127.0.0.1\n" + "      port: " + port + "\n" + "      path-pattern: " + pathPattern + "\n";
+    }
+
+    /**
+     * Write the file with a modification time of its own, whatever the file system's time resolution.
+     */
+    private void write( String content, int version )
+            throws Exception
+    {
+        Files.writeString( file.toPath(), content, US_ASCII );
+        assertTrue( file.setLastModified( TimeUnit.SECONDS.toMillis( 1_000_000_000L + version ) ) );
+    }
+
+    private static void serve( ServerSocket server, CountDownLatch answer )
+    {
+        try (Socket socket = server.accept())
+        {
+            BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), US_ASCII ) );
+            String line;
+            while ( ( line = in.readLine() ) != null && !line.isEmpty() )
+            {
+                // request head
+            }
+            answer.await();
+            OutputStream out = socket.getOutputStream();
+            out.write( "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok".getBytes( US_ASCII ) );
+            out.flush();
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static boolean await( BooleanSupplier condition )
+            throws InterruptedException
+    {
+        for ( int i = 0; i < 100 && !condition.getAsBoolean(); i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        return condition.getAsBoolean();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.config.ServiceConfig;
+import org.commonjava.indy.service.httprox.config.ServiceRoutes;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServiceRoutesTest
+{
+    @Test
+    public void firstMatchingServiceInConfigOrderWins()
+    {
+        ServiceConfig content = service( "/api/content/.+", "GET,HEAD" );
+        ServiceConfig api = service( "/api/.+", null );
+        ServiceConfig narrower = service( "/api/content/generic-http/.+", null );
+        ServiceRoutes routes = ServiceRoutes.build( List.of( content, api, narrower ) );
+
+        assertSame( content, routes.route( "/api/content/generic-http/remote/foo", "GET" ) );
+        assertSame( api, routes.route( "/api/content/generic-http/remote/foo", "PUT" ) );
+        assertSame( api, routes.route( "/api/admin/stores", "GET" ) );
+        assertNull( routes.route( "/metrics", "GET" ) );
+        assertNull( routes.route( "/api/", "GET" ) );
+    }
+
+    @Test
+    public void methodsAreMatchedWholeNotAsSubstrings()
+    {
+        ServiceConfig sv = service( "/api/.+", "GET, HEAD" );
+        ServiceRoutes routes = ServiceRoutes.build( List.of( sv ) );
+
+        assertSame( sv, routes.route( "/api/foo", "HEAD" ) );
+        assertNull( routes.route( "/api/foo", "ET" ) );
+        assertNull( routes.route( "/api/foo", "POST" ) );
+    }
+
+    @Test
+    public void patternsWithoutLiteralPrefixAreStillRouted()
+    {
+        ServiceConfig alternation = service( "/(api|rest)/.+", null );
+        ServiceConfig caseless = service( "(?i)/STATIC/.*", null );
+        ServiceRoutes routes = ServiceRoutes.build( List.of( alternation, caseless ) );
+
+        assertSame( alternation, routes.route( "/rest/foo", "GET" ) );
+        assertSame( caseless, routes.route( "/static/app.js", "GET" ) );
+    }
+
+    @Test
+    public void invalidPatternsAreLeftOut()
+    {
+        ServiceConfig broken = service( "/api/(", null );
+        ServiceConfig api = service( "/api/.+", null );
+        ServiceRoutes routes = ServiceRoutes.build( List.of( broken, api ) );
+
+        assertEquals( 1, routes.size() );
+        assertSame( api, routes.route( "/api/(", "GET" ) );
+    }
+
+    private static ServiceConfig service( String pathPattern, String methods )
+    {
+        ServiceConfig sv = new ServiceConfig();
+        sv.host = "localhost";
+        sv.port = 8080;
+        sv.pathPattern = pathPattern;
+        sv.methods = methods;
+        return sv;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import org.commonjava.indy.service.httprox.config.ServiceConfig;
+import org.commonjava.indy.service.httprox.config.ServiceRoutes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service lookup for one request: the linear scan Classifier used to do (String.matches, compiling every pattern again,
+ * over the synchronized service set) against {@link ServiceRoutes}. Each configured service owns one remote repository
+ * path; the looked-up path belongs to the last one, behind a catch-all '/api/.+' for everything else.
+ *
+ * Not part of the surefire run; launch {@link #main(String[])} from the test classpath.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ServiceRoutingBenchmark
+{
+    @Param( { "1", "20", "200" } )
+    public int serviceCount;
+
+    private Set<ServiceConfig> services;
+
+    private ServiceRoutes routes;
+
+    private String path;
+
+    @Setup
+    public void setup()
+    {
+        services = Collections.synchronizedSet( new LinkedHashSet<>() );
+        for ( int i = 0; i < serviceCount - 1; i++ )
+        {
+            services.add( service( "/api/content/generic-http/remote/h-repo-" + i + "/.+", "GET,HEAD" ) );
+        }
+        services.add( service( "/api/.+", null ) );
+        routes = ServiceRoutes.build( services );
+        path = "/api/content/generic-http/remote/h-repo-" + ( serviceCount - 2 ) + "/org/foo/1.0/foo-1.0.jar";
+    }
+
+    @Benchmark
+    public ServiceConfig linearScan()
+    {
+        synchronized ( services )
+        {
+            for ( ServiceConfig sv : services )
+            {
+                if ( path.matches( sv.pathPattern ) && ( sv.methods == null || sv.methods.contains( "GET" ) ) )
+                {
+                    return sv;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public ServiceConfig routingTable()
+    {
+        return routes.route( path, "GET" );
+    }
+
+    private static ServiceConfig service( String pathPattern, String methods )
+    {
+        ServiceConfig sv = new ServiceConfig();
+        sv.host = "localhost";
+        sv.port = 8080;
+        sv.pathPattern = pathPattern;
+        sv.methods = methods;
+        return sv;
+    }
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        new Runner( new OptionsBuilder().include( ServiceRoutingBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.commonjava.indy.service.httprox.util.ByteBufferPool;
+import org.commonjava.indy.service.httprox.util.TransferPump;
+import org.junit.jupiter.api.Test;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.StreamConnection;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+import org.xnio.IoUtils;
+import org.xnio.channels.AcceptingChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransferPumpTest
+{
+    @Test
+    public void slowClientGetsWholeBodyAndUpstreamIsReadOffTheWorker()
+            throws Exception
+    {
+        int outstanding = ByteBufferPool.getInstance().getOutstanding();
+        byte[] body = randomBytes( 4 * 1024 * 1024 );
+        try ( Harness harness = new Harness( () -> Okio.buffer( Okio.source( new ByteArrayInputStream( body ) ) ), false ) )
+        {
+            try ( Socket client = harness.connect() )
+            {
+                InputStream in = client.getInputStream();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int read;
+                while ( out.size() < body.length + 4 && ( read = in.read( chunk ) ) > 0 )
+                {
+                    out.write( chunk, 0, read );
+                    if ( out.size() < 512 * 1024 )
+                    {
+                        Thread.sleep( 1 );
+                    }
+                }
+
+                byte[] received = out.toByteArray();
+                assertEquals( "HEAD", new String( received, 0, 4, US_ASCII ) );
+                byte[] receivedBody = new byte[received.length - 4];
+                System.arraycopy( received, 4, receivedBody, 0, receivedBody.length );
+                assertArrayEquals( body, receivedBody );
+            }
+
+            harness.done().get( 10, TimeUnit.SECONDS );
+            assertFalse( harness.fillThreads.isEmpty() );
+            for ( String thread : harness.fillThreads )
+            {
+                assertTrue( thread.startsWith( "upstream-read" ), thread );
+            }
+        }
+        assertEquals( outstanding, ByteBufferPool.getInstance().getOutstanding() );
+    }
+
+    @Test
+    public void chunkedBodyIsFramedAndTerminated()
+            throws Exception
+    {
+        try ( Harness harness = new Harness( () -> new Buffer().writeUtf8( "hello" ), true ) )
+        {
+            try ( Socket client = harness.connect() )
+            {
+                harness.done().get( 10, TimeUnit.SECONDS );
+                client.shutdownOutput();
+                byte[] expected = "HEAD5\r\nhello\r\n0\r\n\r\n".getBytes( US_ASCII );
+                assertArrayEquals( expected, client.getInputStream().readNBytes( expected.length ) );
+            }
+        }
+    }
+
+    @Test
+    public void upstreamFailureFailsTheTransfer()
+            throws Exception
+    {
+        int outstanding = ByteBufferPool.getInstance().getOutstanding();
+        Source failing = new Source()
+        {
+            @Override
+            public long read( final Buffer sink, final long byteCount )
+                    throws IOException
+            {
+                throw new IOException( "upstream reset" );
+            }
+
+            @Override
+            public Timeout timeout()
+            {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+
+        try ( Harness harness = new Harness( () -> Okio.buffer( failing ), false ) )
+        {
+            try ( Socket ignored = harness.connect() )
+            {
+                ExecutionException e = assertThrows( ExecutionException.class,
+                                                     () -> harness.done().get( 10, TimeUnit.SECONDS ) );
+                assertEquals( "upstream reset", e.getCause().getMessage() );
+            }
+        }
+        assertEquals( outstanding, ByteBufferPool.getInstance().getOutstanding() );
+    }
+
+    @Test
+    public void closedChannelAbortsAPendingUpstreamRead()
+            throws Exception
+    {
+        int outstanding = ByteBufferPool.getInstance().getOutstanding();
+        CountDownLatch reading = new CountDownLatch( 1 );
+        CountDownLatch closed = new CountDownLatch( 1 );
+        Source stalled = new Source()
+        {
+            @Override
+            public long read( final Buffer sink, final long byteCount )
+                    throws IOException
+            {
+                reading.countDown();
+                try
+                {
+                    closed.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException( "closed" );
+            }
+
+            @Override
+            public Timeout timeout()
+            {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close()
+            {
+                closed.countDown();
+            }
+        };
+
+        try ( Harness harness = new Harness( () -> Okio.buffer( stalled ), false ) )
+        {
+            try ( Socket ignored = harness.connect() )
+            {
+                assertTrue( reading.await( 10, TimeUnit.SECONDS ) );
+                harness.closeConnection();
+
+                ExecutionException e = assertThrows( ExecutionException.class,
+                                                     () -> harness.done().get( 10, TimeUnit.SECONDS ) );
+                assertInstanceOf( ClosedChannelException.class, e.getCause() );
+                assertEquals( 0, closed.getCount() );
+            }
+        }
+
+        // the fill gives the lease back once its read returns
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 10 );
+        while ( ByteBufferPool.getInstance().getOutstanding() != outstanding && System.nanoTime() < deadline )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( outstanding, ByteBufferPool.getInstance().getOutstanding() );
+    }
+
+    private static byte[] randomBytes( final int length )
+    {
+        byte[] bytes = new byte[length];
+        new Random( length ).nextBytes( bytes );
+        return bytes;
+    }
+
+    /**
+     * An XNIO server that answers each connection with a pump of "HEAD" and a body from the given source, reading
+     * upstream on an executor of its own as ProxyResponseWriter does.
+     */
+    private static final class Harness
+            implements AutoCloseable
+    {
+        private final XnioWorker worker;
+
+        private final AcceptingChannel<StreamConnection> server;
+
+        private final ExecutorService upstreamExecutor;
+
+        private final Set<String> fillThreads = ConcurrentHashMap.newKeySet();
+
+        private final BlockingQueue<CompletableFuture<Void>> transfers = new LinkedBlockingQueue<>();
+
+        private final BlockingQueue<StreamConnection> connections = new LinkedBlockingQueue<>();
+
+        Harness( final Supplier<BufferedSource> body, final boolean chunked )
+                throws IOException
+        {
+            upstreamExecutor = Executors.newCachedThreadPool( r -> new Thread( r, "upstream-read" ) );
+            worker = Xnio.getInstance().createWorker( OptionMap.create( Options.WORKER_IO_THREADS, 1 ) );
+            server = worker.createStreamConnectionServer( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ),
+                                                          channel -> {
+                                                              try
+                                                              {
+                                                                  StreamConnection connection = channel.accept();
+                                                                  if ( connection != null )
+                                                                  {
+                                                                      pump( connection, body.get(), chunked );
+                                                                  }
+                                                              }
+                                                              catch ( IOException e )
+                                                              {
+                                                                  throw new RuntimeException( e );
+                                                              }
+                                                          }, OptionMap.EMPTY );
+            server.resumeAccepts();
+        }
+
+        private void pump( final StreamConnection connection, final BufferedSource body, final boolean chunked )
+        {
+            connection.getIoThread().execute( () -> {
+                TransferPump pump = new TransferPump( connection.getSinkChannel(),
+                                                      ByteBuffer.wrap( "HEAD".getBytes( US_ASCII ) ), body, chunked,
+                                                      task -> upstreamExecutor.execute( () -> {
+                                                          fillThreads.add( Thread.currentThread().getName() );
+                                                          task.run();
+                                                      } ) );
+                // as ProxyResponseWriter does, a closed sink sends no more write events
+                connection.getSinkChannel().getCloseSetter().set( c -> pump.abort() );
+                connections.add( connection );
+                transfers.add( pump.start() );
+            } );
+        }
+
+        void closeConnection()
+                throws InterruptedException
+        {
+            StreamConnection connection = connections.poll( 10, TimeUnit.SECONDS );
+            assertNotNull( connection );
+            connection.getIoThread().execute( () -> IoUtils.safeClose( connection ) );
+        }
+
+        Socket connect()
+                throws IOException
+        {
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            return new Socket( address.getAddress(), address.getPort() );
+        }
+
+        CompletableFuture<Void> done()
+                throws InterruptedException
+        {
+            CompletableFuture<Void> done = transfers.poll( 10, TimeUnit.SECONDS );
+            assertNotNull( done );
+            transfers.add( done );
+            return done;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            server.close();
+            worker.shutdownNow();
+            upstreamExecutor.shutdownNow();
+        }
+    }
+}
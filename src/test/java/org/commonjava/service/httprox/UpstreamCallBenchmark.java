@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import org.commonjava.indy.service.httprox.config.ServiceConfig;
+import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
+import org.commonjava.indy.service.httprox.util.OtelAdapter;
+import org.commonjava.indy.service.httprox.util.RetryBudget;
+import org.commonjava.indy.service.httprox.util.WebClientAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-call overhead of preparing an upstream call: what RequestAdapter.call() used to do (parse the read timeout and
+ * derive a new client from the base one for every call) against {@link WebClientAdapter} handing out the clients it
+ * derived once. Nothing is sent; the INFO line the old code logged per call is left out.
+ *
+ * Not part of the surefire run; launch {@link #main(String[])} from the test classpath.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class UpstreamCallBenchmark
+{
+    private static final String PATH = "/api/content/generic-http/remote/h-repo-example-com/Zm9vLTEuMC5qYXI";
+
+    private static final String READ_TIMEOUT = "30m";
+
+    private OkHttpClient base;
+
+    private WebClientAdapter adapter;
+
+    @Setup
+    public void setup()
+    {
+        ServiceConfig service = new ServiceConfig();
+        service.host = "localhost";
+        service.port = 8080;
+        service.pathPattern = "/api/.+";
+
+        ServiceProxyConfig proxyConfig = new ServiceProxyConfig();
+        adapter = new WebClientAdapter( service, proxyConfig, new AtomicLong( TimeUnit.MINUTES.toMillis( 5 ) ),
+                                        new OtelAdapter(), new RetryBudget( proxyConfig ) );
+        base = new OkHttpClient.Builder().protocols( Arrays.asList( Protocol.HTTP_1_1 ) ).build();
+    }
+
+    @Benchmark
+    public void rebuildPerCall( Blackhole bh )
+    {
+        Request.Builder request = new Request.Builder().get().url( "http://localhost:8080" + PATH );
+        Duration pathTimeout = Duration.parse( "pt" + READ_TIMEOUT );
+        OkHttpClient callClient = base.newBuilder()
+                                      .callTimeout( pathTimeout )
+                                      .readTimeout( pathTimeout )
+                                      .writeTimeout( pathTimeout )
+                                      .connectTimeout( pathTimeout )
+                                      .protocols( Arrays.asList( Protocol.HTTP_1_1 ) )
+                                      .build();
+        bh.consume( request );
+        bh.consume( callClient );
+    }
+
+    @Benchmark
+    public Object precomputed()
+    {
+        return adapter.get( PATH ).call();
+    }
+
+    public static void main( String[] args )
+            throws Exception
+    {
+        new Runner( new OptionsBuilder().include( UpstreamCallBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import io.quarkus.test.junit.QuarkusTest;
+import okhttp3.Response;
+import org.commonjava.indy.service.httprox.config.ServiceConfig;
+import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
+import org.commonjava.indy.service.httprox.util.OtelAdapter;
+import org.commonjava.indy.service.httprox.util.RetryBudget;
+import org.commonjava.indy.service.httprox.util.ServiceUnavailableException;
+import org.commonjava.indy.service.httprox.util.WebClientAdapter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The circuit breaker of {@link WebClientAdapter}, against a local upstream. A Quarkus test, as the fault tolerance
+ * implementation the breaker is built with needs CDI.
+ */
+@QuarkusTest
+public class UpstreamCircuitBreakerTest
+{
+    private final ServiceProxyConfig proxyConfig = new ServiceProxyConfig();
+
+    private final List<WebClientAdapter> adapters = new ArrayList<>();
+
+    @AfterEach
+    public void retire()
+    {
+        adapters.forEach( WebClientAdapter::retire );
+    }
+
+    @Test
+    public void unavailableAnswersOpenTheBreaker()
+            throws Exception
+    {
+        try (Upstream upstream = new Upstream( 503 ))
+        {
+            WebClientAdapter adapter = adapter( upstream.service() );
+
+            // the default request volume, all failing
+            for ( int i = 0; i < 20; i++ )
+            {
+                try (Response response = get( adapter ))
+                {
+                    assertEquals( 503, response.code() );
+                }
+            }
+            int answered = upstream.requests.get();
+
+            ExecutionException e = assertThrows( ExecutionException.class, () -> get( adapter ) );
+            ServiceUnavailableException open = assertInstanceOf( ServiceUnavailableException.class, e.getCause() );
+            assertTrue( open.getRetryAfterSeconds() >= 1 && open.getRetryAfterSeconds() <= 10,
+                        "Retry-After " + open.getRetryAfterSeconds() );
+            assertEquals( answered, upstream.requests.get() );
+        }
+    }
+
+    @Test
+    public void remoteFailuresDoNotOpenTheBreaker()
+            throws Exception
+    {
+        for ( int code : new int[] { 500, 502 } )
+        {
+            try (Upstream upstream = new Upstream( code ))
+            {
+                WebClientAdapter adapter = adapter( upstream.service() );
+                for ( int i = 0; i < 40; i++ )
+                {
+                    try (Response response = get( adapter ))
+                    {
+                        assertEquals( code, response.code() );
+                    }
+                }
+                assertEquals( 40, upstream.requests.get() );
+            }
+        }
+    }
+
+    private static Response get( WebClientAdapter adapter )
+            throws Exception
+    {
+        return adapter.get( "/api/foo" )
+                      .call()
+                      .enqueue()
+                      .subscribe()
+                      .asCompletionStage()
+                      .toCompletableFuture()
+                      .get( 10, TimeUnit.SECONDS );
+    }
+
+    private WebClientAdapter adapter( ServiceConfig sv )
+    {
+        WebClientAdapter adapter = new WebClientAdapter( sv, proxyConfig, new AtomicLong( TimeUnit.SECONDS.toMillis( 5 ) ),
+                                                         new OtelAdapter(), new RetryBudget( proxyConfig ) );
+        adapters.add( adapter );
+        return adapter;
+    }
+
+    /**
+     * Answers every request with the same status. The Retry-After is beyond the default max-interval, so the adapter
+     * does not retry and each call is one request.
+     */
+    private static final class Upstream
+            implements AutoCloseable
+    {
+        private final ServerSocket server = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() );
+
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private final int code;
+
+        private Upstream( int code )
+                throws IOException
+        {
+            this.code = code;
+            Thread acceptor = new Thread( this::accept, "upstream-" + code );
+            acceptor.setDaemon( true );
+            acceptor.start();
+        }
+
+        private ServiceConfig service()
+        {
+            ServiceConfig sv = new ServiceConfig();
+            sv.host = "127.0.0.1";
+            sv.port = server.getLocalPort();
+            sv.pathPattern = "/api/.+";
+            return sv;
+        }
+
+        private void accept()
+        {
+            while ( !server.isClosed() )
+            {
+                try
+                {
+                    Socket socket = server.accept();
+                    Thread connection = new Thread( () -> serve( socket ) );
+                    connection.setDaemon( true );
+                    connection.start();
+                }
+                catch ( IOException e )
+                {
+                    return;
+                }
+            }
+        }
+
+        private void serve( Socket socket )
+        {
+            try (Socket s = socket)
+            {
+                BufferedReader in = new BufferedReader( new InputStreamReader( s.getInputStream(), US_ASCII ) );
+                OutputStream out = s.getOutputStream();
+                String line;
+                while ( ( line = in.readLine() ) != null )
+                {
+                    if ( line.isEmpty() )
+                    {
+                        requests.incrementAndGet();
+                        out.write( ( "HTTP/1.1 " + code + " Failed\r\nRetry-After: 3600\r\nContent-Length: 0\r\n\r\n" )
+                                           .getBytes( US_ASCII ) );
+                        out.flush();
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                // the client went away
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import okhttp3.Request;
+import org.commonjava.indy.service.httprox.config.ServiceConfig;
+import org.commonjava.indy.service.httprox.util.UpstreamEndpoints;
+import org.commonjava.indy.service.httprox.util.UpstreamEndpoints.Endpoint;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpstreamEndpointsTest
+{
+    @Test
+    public void roundRobinSkipsEjectedEndpointsEvenly()
+    {
+        UpstreamEndpoints endpoints = new UpstreamEndpoints( service( null ) );
+        List<Endpoint> all = endpoints.getEndpoints();
+        Endpoint a = all.get( 0 );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertSame( all.get( i ), endpoints.select( List.of() ) );
+        }
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            endpoints.failed( a );
+        }
+        assertEquals( 1, a.getEjections() );
+        assertFalse( a.isUsable( System.currentTimeMillis() ) );
+
+        int b = 0;
+        int c = 0;
+        for ( int i = 0; i < 10; i++ )
+        {
+            Endpoint ep = endpoints.select( List.of() );
+            assertNotSame( a, ep );
+            if ( ep == all.get( 1 ) )
+            {
+                b++;
+            }
+            else
+            {
+                c++;
+            }
+        }
+        assertEquals( 5, b );
+        assertEquals( 5, c );
+
+        // ejected, but better than nothing once the others have been tried
+        assertSame( a, endpoints.select( List.of( all.get( 1 ), all.get( 2 ) ) ) );
+        assertTrue( a.isUsable( System.currentTimeMillis() + TimeUnit.SECONDS.toMillis( 31 ) ) );
+    }
+
+    @Test
+    public void aSuccessResetsTheFailureCount()
+    {
+        UpstreamEndpoints endpoints = new UpstreamEndpoints( service( null ) );
+        Endpoint a = endpoints.getEndpoints().get( 0 );
+
+        endpoints.failed( a );
+        endpoints.failed( a );
+        endpoints.succeeded( a, TimeUnit.MILLISECONDS.toNanos( 5 ) );
+        endpoints.failed( a );
+        assertEquals( 0, a.getEjections() );
+    }
+
+    @Test
+    public void leastOutstandingAndEwmaPreferTheLessLoadedEndpoint()
+    {
+        UpstreamEndpoints endpoints = new UpstreamEndpoints( service( "least-outstanding" ) );
+        List<Endpoint> all = endpoints.getEndpoints();
+        endpoints.started( all.get( 0 ) );
+        endpoints.started( all.get( 2 ) );
+        assertSame( all.get( 1 ), endpoints.select( List.of() ) );
+        assertEquals( 1, all.get( 0 ).getOutstanding() );
+
+        endpoints = new UpstreamEndpoints( service( "ewma" ) );
+        all = endpoints.getEndpoints();
+        endpoints.succeeded( all.get( 0 ), TimeUnit.MILLISECONDS.toNanos( 50 ) );
+        endpoints.succeeded( all.get( 1 ), TimeUnit.MILLISECONDS.toNanos( 5 ) );
+        endpoints.succeeded( all.get( 2 ), TimeUnit.MILLISECONDS.toNanos( 20 ) );
+        assertSame( all.get( 1 ), endpoints.select( List.of() ) );
+    }
+
+    @Test
+    public void onlyUnavailableAnswersCountTowardEjection()
+    {
+        UpstreamEndpoints endpoints = new UpstreamEndpoints( service( null ) );
+        Endpoint a = endpoints.getEndpoints().get( 0 );
+        long latency = TimeUnit.MILLISECONDS.toNanos( 5 );
+
+        // the content service answers 500 and 502 for remote sites it could not get content from
+        for ( int i = 0; i < 5; i++ )
+        {
+            endpoints.answered( a, 500, latency );
+            endpoints.answered( a, 502, latency );
+        }
+        assertEquals( 0, a.getEjections() );
+
+        endpoints.answered( a, 503, latency );
+        endpoints.answered( a, 504, latency );
+        endpoints.answered( a, 503, latency );
+        assertEquals( 1, a.getEjections() );
+    }
+
+    @Test
+    public void attemptsAreRoutedToTheirEndpoint()
+    {
+        UpstreamEndpoints endpoints = new UpstreamEndpoints( service( null ) );
+        Request request = new Request.Builder().url( "http://content-0:8080/api/content/foo?x=1" )
+                                               .tag( String.class, "tagged" )
+                                               .build();
+
+        Request routed = endpoints.route( request, endpoints.getEndpoints().get( 1 ) );
+        assertEquals( "http://content-1:8081/api/content/foo?x=1", routed.url().toString() );
+        assertEquals( "tagged", routed.tag( String.class ) );
+        assertSame( request, endpoints.route( request, endpoints.getEndpoints().get( 0 ) ) );
+    }
+
+    private static ServiceConfig service( String loadBalancer )
+    {
+        ServiceConfig sv = new ServiceConfig();
+        sv.pathPattern = "/api/.+";
+        sv.endpoints = List.of( "content-0:8080", "content-1:8081", "content-2:8082" );
+        sv.loadBalancer = loadBalancer;
+        return sv;
+    }
+}
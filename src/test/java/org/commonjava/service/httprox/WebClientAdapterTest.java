@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2021-2023 Red Hat, Inc. (https://github.com/Commonjava/service-parent)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.commonjava.service.httprox;
+
+import okhttp3.Dispatcher;
+import okhttp3.Protocol;
+import org.commonjava.indy.service.httprox.config.ServiceConfig;
+import org.commonjava.indy.service.httprox.config.ServiceProxyConfig;
+import org.commonjava.indy.service.httprox.util.OtelAdapter;
+import org.commonjava.indy.service.httprox.util.RetryBudget;
+import org.commonjava.indy.service.httprox.util.WebClientAdapter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WebClientAdapterTest
+{
+    private final ServiceProxyConfig proxyConfig = new ServiceProxyConfig();
+
+    private final List<WebClientAdapter> adapters = new ArrayList<>();
+
+    @AfterEach
+    public void retire()
+    {
+        adapters.forEach( WebClientAdapter::retire );
+    }
+
+    @Test
+    public void protocolsFollowTheServiceEntry()
+    {
+        assertEquals( List.of( Protocol.HTTP_1_1 ), protocols( null, false ) );
+        assertEquals( List.of( Protocol.HTTP_1_1 ), protocols( "http/1.1", true ) );
+        assertEquals( List.of( Protocol.HTTP_2, Protocol.HTTP_1_1 ), protocols( "h2", true ) );
+        assertEquals( List.of( Protocol.HTTP_2, Protocol.HTTP_1_1 ), protocols( "h2", false ) );
+        assertEquals( List.of( Protocol.H2_PRIOR_KNOWLEDGE ), protocols( " H2C ", false ) );
+
+        // cleartext HTTP/2 cannot be spoken over TLS, h2 is negotiated instead
+        assertEquals( List.of( Protocol.HTTP_2, Protocol.HTTP_1_1 ), protocols( "h2c", true ) );
+    }
+
+    @Test
+    public void dispatcherLimitsComeFromTheServiceEntry()
+    {
+        Dispatcher defaults = adapter( service( null, false ) ).getClient().dispatcher();
+        assertEquals( 128, defaults.getMaxRequests() );
+        assertEquals( 64, defaults.getMaxRequestsPerHost() );
+
+        ServiceConfig sv = service( null, false );
+        sv.maxRequests = 300;
+        sv.maxRequestsPerHost = 100;
+        Dispatcher configured = adapter( sv ).getClient().dispatcher();
+        assertEquals( 300, configured.getMaxRequests() );
+        assertEquals( 100, configured.getMaxRequestsPerHost() );
+    }
+
+    private List<Protocol> protocols( String protocol, boolean ssl )
+    {
+        return adapter( service( protocol, ssl ) ).getClient().protocols();
+    }
+
+    private WebClientAdapter adapter( ServiceConfig sv )
+    {
+        WebClientAdapter adapter = new WebClientAdapter( sv, proxyConfig, new AtomicLong( TimeUnit.SECONDS.toMillis( 5 ) ),
+                                                         new OtelAdapter(), new RetryBudget( proxyConfig ) );
+        adapters.add( adapter );
+        return adapter;
+    }
+
+    private static ServiceConfig service( String protocol, boolean ssl )
+    {
+        ServiceConfig sv = new ServiceConfig();
+        sv.host = "127.0.0.1";
+        sv.port = 8080;
+        sv.ssl = ssl;
+        sv.pathPattern = "/api/.+";
+        sv.protocol = protocol;
+        return sv;
+    }
+}